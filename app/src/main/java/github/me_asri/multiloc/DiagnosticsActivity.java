@@ -0,0 +1,166 @@
+package github.me_asri.multiloc;
+
+import android.net.Uri;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.Toast;
+
+import androidx.activity.result.ActivityResultLauncher;
+import androidx.activity.result.contract.ActivityResultContracts;
+import androidx.appcompat.app.AppCompatActivity;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+
+import github.me_asri.multiloc.databinding.ActivityDiagnosticsBinding;
+import github.me_asri.multiloc.location.CellCache;
+import github.me_asri.multiloc.location.LatencyHistogram;
+import github.me_asri.multiloc.location.RequestQuota;
+import github.me_asri.multiloc.location.Timings;
+
+/**
+ * Shows the latency histograms of every provider and stage, along with the OpenCelliD quota and
+ * the cell cache counters, and exports the histograms as JSON or CSV.
+ */
+public class DiagnosticsActivity extends AppCompatActivity {
+    private static final String TAG = DiagnosticsActivity.class.getName();
+    private static final String ROW_FORMAT = "%-16s %-9s %6s %8s %8s %8s %8s %8s%n";
+
+    private ActivityDiagnosticsBinding mBinding;
+    private Timings mTimings;
+    private RequestQuota mQuota;
+    private CellCache mCellCache;
+
+    private final ActivityResultLauncher<String> jsonExportRequest = registerForActivityResult(
+            new ActivityResultContracts.CreateDocument("application/json"), uri -> export(uri, mTimings::writeJson)
+    );
+
+    private final ActivityResultLauncher<String> csvExportRequest = registerForActivityResult(
+            new ActivityResultContracts.CreateDocument("text/csv"), uri -> export(uri, mTimings::writeCsv)
+    );
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        mBinding = ActivityDiagnosticsBinding.inflate(getLayoutInflater());
+        setContentView(mBinding.getRoot());
+
+        MultiLocApplication application = (MultiLocApplication) getApplication();
+        mTimings = application.getTimings();
+        mQuota = application.getOpenCellIDQuota();
+        mCellCache = application.getCellCache();
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        refresh();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        super.onCreateOptionsMenu(menu);
+        getMenuInflater().inflate(R.menu.menu_diagnostics, menu);
+
+        MenuItem refreshItem = menu.findItem(R.id.refreshItem);
+        refreshItem.setOnMenuItemClickListener(item -> {
+            refresh();
+            return true;
+        });
+
+        MenuItem exportJsonItem = menu.findItem(R.id.exportJsonItem);
+        exportJsonItem.setOnMenuItemClickListener(item -> {
+            jsonExportRequest.launch("multiloc-timings.json");
+            return true;
+        });
+
+        MenuItem exportCsvItem = menu.findItem(R.id.exportCsvItem);
+        exportCsvItem.setOnMenuItemClickListener(item -> {
+            csvExportRequest.launch("multiloc-timings.csv");
+            return true;
+        });
+
+        MenuItem resetItem = menu.findItem(R.id.resetItem);
+        resetItem.setOnMenuItemClickListener(item -> {
+            mTimings.reset();
+            refresh();
+            return true;
+        });
+
+        return true;
+    }
+
+    private void refresh() {
+        StringBuilder text = new StringBuilder();
+
+        List<Timings.Entry> entries = mTimings.snapshot();
+        if (entries.isEmpty()) {
+            text.append(getString(R.string.text_diagnostics_empty)).append('\n');
+        } else {
+            text.append(String.format(Locale.ROOT, ROW_FORMAT,
+                    "source", "stage", "count", "mean ms", "p50", "p90", "p99", "max"));
+            for (Timings.Entry entry : entries) {
+                LatencyHistogram.Snapshot s = entry.snapshot;
+                text.append(String.format(Locale.ROOT, ROW_FORMAT, entry.source, entry.stage.getLabel(),
+                        s.count, formatMillis(s.getMeanMillis()), formatMillis(s.getPercentileMillis(0.5)),
+                        formatMillis(s.getPercentileMillis(0.9)), formatMillis(s.getPercentileMillis(0.99)),
+                        formatMillis(s.getMaxMillis())));
+            }
+        }
+
+        text.append('\n').append(getString(R.string.text_diagnostics_quota, mQuota.getMetrics()));
+        text.append("\n\n").append(getString(R.string.text_diagnostics_cell_cache,
+                mCellCache.getHitCount(), mCellCache.getMissCount()));
+
+        mBinding.diagnosticsText.setText(text);
+    }
+
+    private static String formatMillis(double millis) {
+        return String.format(Locale.ROOT, "%.1f", millis);
+    }
+
+    /**
+     * Writes a snapshot to the document at {@code uri} off the UI thread.
+     */
+    private void export(Uri uri, Exporter exporter) {
+        if (uri == null) {
+            return;
+        }
+
+        new Thread(() -> {
+            Throwable error = null;
+            try (OutputStream out = getContentResolver().openOutputStream(uri)) {
+                if (out == null) {
+                    throw new IOException("Failed to open " + uri);
+                }
+
+                Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+                exporter.writeTo(writer);
+                writer.flush();
+            } catch (IOException | RuntimeException e) {
+                error = e;
+            }
+
+            Throwable finalError = error;
+            runOnUiThread(() -> {
+                if (finalError != null) {
+                    Log.e(TAG, "export: ", finalError);
+                    Toast.makeText(this, "Failed to export timings", Toast.LENGTH_LONG).show();
+                } else {
+                    Toast.makeText(this, "Timings exported", Toast.LENGTH_SHORT).show();
+                }
+            });
+        }).start();
+    }
+
+    private interface Exporter {
+        void writeTo(Writer writer) throws IOException;
+    }
+}
@@ -0,0 +1,285 @@
+package github.me_asri.multiloc;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Point;
+
+import org.osmdroid.util.BoundingBox;
+import org.osmdroid.util.GeoPoint;
+import org.osmdroid.views.MapView;
+import org.osmdroid.views.Projection;
+import org.osmdroid.views.overlay.Overlay;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import github.me_asri.multiloc.location.TrackHistory;
+import github.me_asri.multiloc.location.TrackLog;
+
+/**
+ * Draws the history of fixes as a track per provider, with the accuracy circle of each fix.
+ * <p>
+ * Tracks are {@link TrackHistory}s, so only the points that change the shape of a track at the
+ * current zoom level and within view are drawn, and memory stays bounded however long the
+ * history is. Points are projected through an affine transform derived once per frame, and
+ * nothing is allocated while drawing. Must be used from the main thread.
+ */
+public class HistoryOverlay extends Overlay implements TrackHistory.Visitor {
+    // Fixes kept per provider, a few MB at most across all of them
+    public static final int CAPACITY_PER_PROVIDER = 16384;
+    // Fixes read at most when loading, older fixes of a rarely used provider are left out
+    // rather than the whole log read for them
+    public static final int LOAD_MAX_FIXES = 8 * CAPACITY_PER_PROVIDER;
+
+    // Detail finer than this is dropped
+    private static final float TOLERANCE_PX = 1.5f;
+    private static final float MIN_CIRCLE_RADIUS_PX = 4;
+    private static final float LINE_WIDTH_DP = 2;
+    private static final float POINT_SIZE_DP = 5;
+    private static final int CIRCLE_ALPHA = 0x28;
+    private static final int[] COLORS = {
+            0xFF1E88E5, 0xFFE53935, 0xFF43A047, 0xFFFB8C00, 0xFF8E24AA, 0xFF00897B, 0xFF6D4C41
+    };
+
+    private final float mDensity;
+    private final Map<String, Track> mTracks = new LinkedHashMap<>();
+
+    // Scratch state of the frame being drawn
+    private final GeoPoint mGeoPoint = new GeoPoint(0.0, 0.0);
+    private final Point mPixel = new Point();
+    private Canvas mCanvas;
+    private Track mTrack;
+    private double mOriginX;
+    private double mOriginY;
+    private double mPixelX;
+    private double mPixelY;
+    private double mScaleX;
+    private double mScaleY;
+    private float mLastX;
+    private float mLastY;
+    private float[] mLines = new float[1024];
+    private int mLineCount;
+    private float[] mPoints = new float[512];
+    private int mPointCount;
+
+    /**
+     * @param density display density, scaling line widths
+     */
+    public HistoryOverlay(float density) {
+        mDensity = density;
+    }
+
+    /**
+     * Reads the histories of every provider from {@code log} up to {@code mark}, keeping the
+     * latest fixes of each. Segments are read newest first, until every provider found so far
+     * has as many fixes as kept or {@link #LOAD_MAX_FIXES} were read, so a provider not used in
+     * the segments read is left out. Blocking, to be called off the main thread.
+     */
+    public static Map<String, TrackHistory> load(TrackLog log, TrackLog.Mark mark) throws IOException {
+        Map<String, TrackHistory> histories = new HashMap<>();
+        // Fixes read of each provider, in the segments merged so far
+        Map<String, long[]> counts = new HashMap<>();
+        long read = 0;
+        try (TrackLog.Cursor cursor = log.cursor(mark, true)) {
+            boolean more = cursor.next();
+            while (more) {
+                // Fixes are delta encoded within a segment, so each one is read from its start
+                Map<String, TrackHistory> segment = new HashMap<>();
+                Map<String, long[]> segmentCounts = new HashMap<>();
+                int segmentNumber = cursor.getSegment();
+                do {
+                    String key = key(cursor.getProvider());
+                    TrackHistory history = segment.get(key);
+                    if (history == null) {
+                        history = new TrackHistory(CAPACITY_PER_PROVIDER);
+                        segment.put(key, history);
+                        segmentCounts.put(key, new long[1]);
+                    }
+                    history.add(cursor.getLat(), cursor.getLon(), cursor.getAccuracy());
+                    segmentCounts.get(key)[0]++;
+                    read++;
+
+                    more = cursor.next();
+                } while (more && cursor.getSegment() == segmentNumber);
+
+                for (Map.Entry<String, TrackHistory> entry : segment.entrySet()) {
+                    long[] count = counts.get(entry.getKey());
+                    if (count == null) {
+                        count = new long[1];
+                        counts.put(entry.getKey(), count);
+                        histories.put(entry.getKey(), entry.getValue());
+                    } else if (count[0] < CAPACITY_PER_PROVIDER) {
+                        // Newer segments were read first, their fixes go after these. Once a
+                        // history dropped fixes, older ones would leave a gap
+                        entry.getValue().addAll(histories.get(entry.getKey()));
+                        histories.put(entry.getKey(), entry.getValue());
+                    }
+                    count[0] += segmentCounts.get(entry.getKey())[0];
+                }
+
+                if (read >= LOAD_MAX_FIXES || isFull(counts)) {
+                    break;
+                }
+            }
+        }
+        return histories;
+    }
+
+    private static boolean isFull(Map<String, long[]> counts) {
+        for (long[] count : counts.values()) {
+            if (count[0] < CAPACITY_PER_PROVIDER) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Puts histories read by {@link #load(TrackLog, TrackLog.Mark)} before the fixes added since.
+     */
+    public void setLoaded(Map<String, TrackHistory> histories) {
+        for (Map.Entry<String, TrackHistory> entry : histories.entrySet()) {
+            Track track = mTracks.get(entry.getKey());
+            TrackHistory history = entry.getValue();
+            if (track != null) {
+                history.addAll(track.history);
+            }
+            mTracks.put(entry.getKey(), newTrack(history, (track != null) ? track.color : nextColor()));
+        }
+    }
+
+    /**
+     * @param accuracy accuracy of the fix in meters
+     */
+    public void add(String provider, double lat, double lon, double accuracy) {
+        String key = key(provider);
+        Track track = mTracks.get(key);
+        if (track == null) {
+            track = newTrack(new TrackHistory(CAPACITY_PER_PROVIDER), nextColor());
+            mTracks.put(key, track);
+        }
+        track.history.add(lat, lon, accuracy);
+    }
+
+    @Override
+    public void draw(Canvas canvas, MapView mapView, boolean shadow) {
+        if (shadow || mTracks.isEmpty()) {
+            return;
+        }
+
+        Projection projection = mapView.getProjection();
+        BoundingBox box = projection.getBoundingBox();
+        double minX = TrackHistory.mercatorX(box.getLonWest());
+        double maxX = TrackHistory.mercatorX(box.getLonEast());
+        double minY = TrackHistory.mercatorY(box.getLatNorth());
+        double maxY = TrackHistory.mercatorY(box.getLatSouth());
+        if (maxX <= minX || maxY <= minY) {
+            // Across the antimeridian or degenerate, not worth the special case
+            return;
+        }
+
+        // Mercator is linear on screen, so two corners give the whole transform
+        mGeoPoint.setCoords(box.getLatNorth(), box.getLonWest());
+        projection.toPixels(mGeoPoint, mPixel);
+        mPixelX = mPixel.x;
+        mPixelY = mPixel.y;
+        mGeoPoint.setCoords(box.getLatSouth(), box.getLonEast());
+        projection.toPixels(mGeoPoint, mPixel);
+        mScaleX = (mPixel.x - mPixelX) / (maxX - minX);
+        mScaleY = (mPixel.y - mPixelY) / (maxY - minY);
+        mOriginX = minX;
+        mOriginY = minY;
+
+        double tolerance = TOLERANCE_PX / mScaleX;
+        // Points just out of view still draw the segments entering it
+        double marginX = (maxX - minX) / 2;
+        double marginY = (maxY - minY) / 2;
+
+        mCanvas = canvas;
+        for (Track track : mTracks.values()) {
+            mTrack = track;
+            mLineCount = 0;
+            mPointCount = 0;
+            track.history.visit(minX - marginX, minY - marginY, maxX + marginX, maxY + marginY, tolerance, this);
+
+            canvas.drawLines(mLines, 0, mLineCount, track.linePaint);
+            canvas.drawPoints(mPoints, 0, mPointCount, track.pointPaint);
+        }
+        mCanvas = null;
+        mTrack = null;
+    }
+
+    @Override
+    public void visit(double x, double y, double accuracy, boolean connected) {
+        float px = (float) (mPixelX + (x - mOriginX) * mScaleX);
+        float py = (float) (mPixelY + (y - mOriginY) * mScaleY);
+
+        float radius = (float) (accuracy * mScaleX);
+        if (radius >= MIN_CIRCLE_RADIUS_PX) {
+            mCanvas.drawCircle(px, py, radius, mTrack.circlePaint);
+        }
+
+        if (connected) {
+            if (mLineCount + 4 > mLines.length) {
+                mLines = Arrays.copyOf(mLines, mLines.length * 2);
+            }
+            mLines[mLineCount++] = mLastX;
+            mLines[mLineCount++] = mLastY;
+            mLines[mLineCount++] = px;
+            mLines[mLineCount++] = py;
+        }
+        if (mPointCount + 2 > mPoints.length) {
+            mPoints = Arrays.copyOf(mPoints, mPoints.length * 2);
+        }
+        mPoints[mPointCount++] = px;
+        mPoints[mPointCount++] = py;
+
+        mLastX = px;
+        mLastY = py;
+    }
+
+    private static String key(String provider) {
+        return (provider != null) ? provider.toLowerCase(Locale.ROOT) : "";
+    }
+
+    private int nextColor() {
+        return COLORS[mTracks.size() % COLORS.length];
+    }
+
+    private Track newTrack(TrackHistory history, int color) {
+        Paint linePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        linePaint.setColor(color);
+        linePaint.setStyle(Paint.Style.STROKE);
+        linePaint.setStrokeWidth(LINE_WIDTH_DP * mDensity);
+        linePaint.setStrokeCap(Paint.Cap.ROUND);
+
+        Paint pointPaint = new Paint(linePaint);
+        pointPaint.setStrokeWidth(POINT_SIZE_DP * mDensity);
+
+        Paint circlePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        circlePaint.setColor((color & 0x00FFFFFF) | (CIRCLE_ALPHA << 24));
+        circlePaint.setStyle(Paint.Style.FILL);
+
+        return new Track(history, color, linePaint, pointPaint, circlePaint);
+    }
+
+    private static final class Track {
+        final TrackHistory history;
+        final int color;
+        final Paint linePaint;
+        final Paint pointPaint;
+        final Paint circlePaint;
+
+        Track(TrackHistory history, int color, Paint linePaint, Paint pointPaint, Paint circlePaint) {
+            this.history = history;
+            this.color = color;
+            this.linePaint = linePaint;
+            this.pointPaint = pointPaint;
+            this.circlePaint = circlePaint;
+        }
+    }
+}
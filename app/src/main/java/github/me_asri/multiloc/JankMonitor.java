@@ -0,0 +1,109 @@
+package github.me_asri.multiloc;
+
+import android.util.Log;
+import android.view.Choreographer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures main thread frame times while an operation is running.
+ * <p>
+ * A frame callback is kept scheduled for the duration of the operation, so any stall of the
+ * main thread shows up as a late frame even if nothing is being drawn. A summary of each
+ * operation and running totals are logged once it stops. Must be used from the main thread.
+ */
+public class JankMonitor implements Choreographer.FrameCallback {
+    private static final String TAG = JankMonitor.class.getName();
+    // Frames taking longer than this many refresh intervals are counted as janky
+    private static final double JANK_FACTOR = 1.5;
+    private static final long FROZEN_FRAME_NANOS = TimeUnit.MILLISECONDS.toNanos(700);
+
+    private final long mFrameIntervalNanos;
+
+    private String mOperation;
+    private long mStartNanos;
+    private long mLastFrameNanos;
+    private int mFrames;
+    private int mJankyFrames;
+    private int mFrozenFrames;
+    private long mMaxFrameNanos;
+    private boolean mRunning = false;
+
+    private int mTotalOperations = 0;
+    private long mTotalFrames = 0;
+    private long mTotalJankyFrames = 0;
+    private long mTotalFrozenFrames = 0;
+
+    /**
+     * @param refreshRate refresh rate of the display in Hz
+     */
+    public JankMonitor(float refreshRate) {
+        mFrameIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / ((refreshRate > 0) ? refreshRate : 60));
+    }
+
+    /**
+     * Starts measuring {@code operation}, stopping the previous one if still running.
+     */
+    public void start(String operation) {
+        if (mRunning) {
+            stop();
+        }
+
+        mOperation = operation;
+        mStartNanos = System.nanoTime();
+        mLastFrameNanos = 0;
+        mFrames = 0;
+        mJankyFrames = 0;
+        mFrozenFrames = 0;
+        mMaxFrameNanos = 0;
+        mRunning = true;
+
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    public void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        Choreographer.getInstance().removeFrameCallback(this);
+
+        mTotalOperations++;
+        mTotalFrames += mFrames;
+        mTotalJankyFrames += mJankyFrames;
+        mTotalFrozenFrames += mFrozenFrames;
+
+        Log.i(TAG, mOperation + ": " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mStartNanos) + " ms" +
+                " frames: " + mFrames +
+                " janky: " + mJankyFrames +
+                " frozen: " + mFrozenFrames +
+                " max frame: " + TimeUnit.NANOSECONDS.toMillis(mMaxFrameNanos) + " ms" +
+                " (total operations: " + mTotalOperations +
+                " frames: " + mTotalFrames +
+                " janky: " + mTotalJankyFrames +
+                " frozen: " + mTotalFrozenFrames + ")");
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!mRunning) {
+            return;
+        }
+
+        if (mLastFrameNanos != 0) {
+            long frameNanos = frameTimeNanos - mLastFrameNanos;
+            mFrames++;
+            mMaxFrameNanos = Math.max(mMaxFrameNanos, frameNanos);
+
+            if (frameNanos > mFrameIntervalNanos * JANK_FACTOR) {
+                mJankyFrames++;
+            }
+            if (frameNanos > FROZEN_FRAME_NANOS) {
+                mFrozenFrames++;
+            }
+        }
+        mLastFrameNanos = frameTimeNanos;
+
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+}
@@ -1,17 +1,18 @@
 package github.me_asri.multiloc;
 
 import android.Manifest;
+import android.annotation.SuppressLint;
 import android.app.ProgressDialog;
+import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.hardware.display.DisplayManager;
 import android.location.Location;
-import android.location.LocationListener;
 import android.location.LocationManager;
-import android.os.Build;
+import android.net.Uri;
 import android.os.Bundle;
-import android.os.CancellationSignal;
-import android.os.Handler;
 import android.util.DisplayMetrics;
 import android.util.Log;
+import android.view.Display;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
@@ -20,7 +21,6 @@ import android.widget.Toast;
 
 import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
-import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.AppCompatSpinner;
 import androidx.core.location.LocationManagerCompat;
@@ -36,17 +36,65 @@ import org.osmdroid.views.MapView;
 import org.osmdroid.views.overlay.Marker;
 import org.osmdroid.views.overlay.MinimapOverlay;
 
-import java.net.SocketTimeoutException;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
 
 import github.me_asri.multiloc.databinding.ActivityMainBinding;
+import github.me_asri.multiloc.location.AndroidLocation;
 import github.me_asri.multiloc.location.BTSLocation;
+import github.me_asri.multiloc.location.BssidIndex;
+import github.me_asri.multiloc.location.CellIndex;
+import github.me_asri.multiloc.location.CellIndexImporter;
+import github.me_asri.multiloc.location.Deadline;
+import github.me_asri.multiloc.location.FastestFix;
+import github.me_asri.multiloc.location.FusionFilter;
+import github.me_asri.multiloc.location.Fix;
+import github.me_asri.multiloc.location.HttpStack;
 import github.me_asri.multiloc.location.IPLocation;
+import github.me_asri.multiloc.location.IPRangeIndex;
+import github.me_asri.multiloc.location.LocationProvider;
+import github.me_asri.multiloc.location.ReverseGeocoder;
+import github.me_asri.multiloc.location.Timings;
+import github.me_asri.multiloc.location.TrackExporter;
+import github.me_asri.multiloc.location.TrackHistory;
+import github.me_asri.multiloc.location.TrackLog;
+import github.me_asri.multiloc.location.WifiException;
+import github.me_asri.multiloc.location.WifiLocation;
 
 public class MainActivity extends AppCompatActivity {
     private static final String TAG = MainActivity.class.getName();
     private static final String SHARED_PREF_OSMDROID = TAG + ".osmdroid_pref";
     private static final OnlineTileSourceBase MAP_TILE_SOURCE = TileSourceFactory.MAPNIK;
     private static final long LOCATION_TIMEOUT_MILLIS = 7000;
+    // City-level guess for IP geolocation
+    private static final double IP_ACCURACY_METERS = 25000;
+    // Used for the rare platform fix without an accuracy
+    private static final double ANDROID_DEFAULT_ACCURACY_METERS = 1000;
+    private static final double ALL_TARGET_ACCURACY_METERS = 20;
+    private static final long ALL_DEADLINE_MILLIS = 2 * LOCATION_TIMEOUT_MILLIS;
+    // Worst GPS fix still precise enough to learn cell and access point locations from
+    private static final double LEARN_MAX_ACCURACY_METERS = 50;
+    // Fixes closer to the last one learned from add little, a cell scan and a Wi-Fi scan walk
+    // are only worth it once the phone moved by the spread access points need to be trusted,
+    // or while it stays put, every so often
+    private static final double LEARN_MIN_DISTANCE_METERS = 10;
+    private static final long LEARN_MIN_INTERVAL_MILLIS = 30_000;
 
     private ActivityMainBinding mBinding;
 
@@ -59,15 +107,67 @@ public class MainActivity extends AppCompatActivity {
 
     private IMapController mMapController;
     private Marker mMapMarker;
-
-    private final IPLocation mIPLocation = new IPLocation(LOCATION_TIMEOUT_MILLIS);
-    private final BTSLocation mBTSLocation = new BTSLocation(LOCATION_TIMEOUT_MILLIS);
+    private HistoryOverlay mHistoryOverlay;
+
+    private IPLocation mIPLocation;
+    private AndroidLocation mAndroidLocation;
+    private BTSLocation mBTSLocation;
+    private CellIndex mCellIndex;
+    private WifiLocation mWifiLocation;
+    private BssidIndex mBssidIndex;
+    private IPRangeIndex mIPRangeIndex;
+    private ReverseGeocoder mReverseGeocoder;
+    private TrackLog mTrackLog;
+
+    private JankMonitor mJankMonitor;
+    private Timings mTimings;
+    // Only touched on the UI thread
+    private final FusionFilter mFusion = new FusionFilter();
+
+    // Deadline of the request the user is currently waiting for
+    private Deadline mDeadline;
+    private BTSLocation.Tracker mCellTracker;
+    private AndroidLocation.Tracker mLocationTracker;
+    // Fix the cells were last learned from, fixes arrive on the worker threads
+    private final Object mLearnLock = new Object();
+    private Location mLastLearned;
 
     private final ActivityResultLauncher<String[]> multiPermRequest = registerForActivityResult(
             new ActivityResultContracts.RequestMultiplePermissions(), result -> {
             }
     );
 
+    private final ActivityResultLauncher<String[]> cellImportRequest = registerForActivityResult(
+            new ActivityResultContracts.OpenDocument(), this::importCellDatabase
+    );
+
+    private final ActivityResultLauncher<String[]> accessPointImportRequest = registerForActivityResult(
+            new ActivityResultContracts.OpenDocument(), this::importAccessPointDatabase
+    );
+
+    private final ActivityResultLauncher<String[]> ipRangeImportRequest = registerForActivityResult(
+            new ActivityResultContracts.OpenDocument(), this::importIPRangeDatabase
+    );
+
+    private final ActivityResultLauncher<String[]> placesImportRequest = registerForActivityResult(
+            new ActivityResultContracts.OpenMultipleDocuments(), this::importPlaces
+    );
+
+    private final ActivityResultLauncher<String> gpxExportRequest = registerForActivityResult(
+            new ActivityResultContracts.CreateDocument("application/gpx+xml"),
+            uri -> exportTrack(uri, TrackExporter::writeGpx)
+    );
+
+    private final ActivityResultLauncher<String> geoJsonExportRequest = registerForActivityResult(
+            new ActivityResultContracts.CreateDocument("application/geo+json"),
+            uri -> exportTrack(uri, TrackExporter::writeGeoJson)
+    );
+
+    private final ActivityResultLauncher<String> csvExportRequest = registerForActivityResult(
+            new ActivityResultContracts.CreateDocument("text/csv"),
+            uri -> exportTrack(uri, TrackExporter::writeCsv)
+    );
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -82,6 +182,27 @@ public class MainActivity extends AppCompatActivity {
 
         mLocationManager = (LocationManager) getSystemService(LOCATION_SERVICE);
 
+        Display display = getSystemService(DisplayManager.class).getDisplay(Display.DEFAULT_DISPLAY);
+        mJankMonitor = new JankMonitor(display.getRefreshRate());
+
+        // Providers do their work and call back on the worker executor, only rendering is posted to the UI
+        MultiLocApplication application = (MultiLocApplication) getApplication();
+        ExecutorService workerExecutor = application.getWorkerExecutor();
+        HttpStack httpStack = application.getHttpStack();
+        mTimings = application.getTimings();
+        mAndroidLocation = new AndroidLocation(this, LOCATION_TIMEOUT_MILLIS, workerExecutor);
+        mIPRangeIndex = application.getIPRangeIndex();
+        mIPLocation = new IPLocation(application, httpStack, LOCATION_TIMEOUT_MILLIS, workerExecutor, application.getIPCache(),
+                mIPRangeIndex, application.getIPBatchClient());
+        mCellIndex = application.getCellIndex();
+        mBTSLocation = new BTSLocation(httpStack, LOCATION_TIMEOUT_MILLIS, workerExecutor, application.getCellCache(), mCellIndex,
+                application.getCellLearner(), application.getOpenCellIDQuota(), application.getOpenCellIDLatency());
+        mReverseGeocoder = application.getReverseGeocoder();
+        mTrackLog = application.getTrackLog();
+        mBssidIndex = application.getBssidIndex();
+        mWifiLocation = new WifiLocation(this, LOCATION_TIMEOUT_MILLIS, workerExecutor, mBssidIndex,
+                application.getAccessPointLearner());
+
         // osmdroid configuration
         Configuration.getInstance().load(this, getSharedPreferences(SHARED_PREF_OSMDROID, 0));
         // osmdroid map source
@@ -101,6 +222,11 @@ public class MainActivity extends AppCompatActivity {
 
         DisplayMetrics dm = getResources().getDisplayMetrics();
 
+        // Drawn under everything else, fixes of earlier sessions are loaded in the background
+        mHistoryOverlay = new HistoryOverlay(dm.density);
+        mBinding.map.getOverlays().add(mHistoryOverlay);
+        loadHistory();
+
         MinimapOverlay minimap = new MinimapOverlay(this, mBinding.map.getTileRequestCompleteHandler());
         minimap.setTileSource(MAP_TILE_SOURCE);
         minimap.setWidth(dm.widthPixels / 5);
@@ -108,6 +234,20 @@ public class MainActivity extends AppCompatActivity {
         mBinding.map.getOverlays().add(minimap);
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        // Nobody is left to see the result
+        if (mDeadline != null) {
+            mDeadline.cancel();
+            mDeadline = null;
+        }
+        stopCellTracking();
+        stopLocationTracking();
+        mJankMonitor.stop();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         super.onCreateOptionsMenu(menu);
@@ -116,6 +256,54 @@ public class MainActivity extends AppCompatActivity {
         MenuItem locateItem = menu.findItem(R.id.locateItem);
         locateItem.setOnMenuItemClickListener(this::onLocateItemClick);
 
+        MenuItem importCellsItem = menu.findItem(R.id.importCellsItem);
+        importCellsItem.setOnMenuItemClickListener(item -> {
+            cellImportRequest.launch(new String[]{"*/*"});
+            return true;
+        });
+
+        MenuItem importAccessPointsItem = menu.findItem(R.id.importAccessPointsItem);
+        importAccessPointsItem.setOnMenuItemClickListener(item -> {
+            accessPointImportRequest.launch(new String[]{"*/*"});
+            return true;
+        });
+
+        MenuItem importIPRangesItem = menu.findItem(R.id.importIPRangesItem);
+        importIPRangesItem.setOnMenuItemClickListener(item -> {
+            ipRangeImportRequest.launch(new String[]{"*/*"});
+            return true;
+        });
+
+        MenuItem importPlacesItem = menu.findItem(R.id.importPlacesItem);
+        importPlacesItem.setOnMenuItemClickListener(item -> {
+            placesImportRequest.launch(new String[]{"*/*"});
+            return true;
+        });
+
+        MenuItem exportGpxItem = menu.findItem(R.id.exportGpxItem);
+        exportGpxItem.setOnMenuItemClickListener(item -> {
+            gpxExportRequest.launch("multiloc-track.gpx");
+            return true;
+        });
+
+        MenuItem exportGeoJsonItem = menu.findItem(R.id.exportGeoJsonItem);
+        exportGeoJsonItem.setOnMenuItemClickListener(item -> {
+            geoJsonExportRequest.launch("multiloc-track.geojson");
+            return true;
+        });
+
+        MenuItem exportCsvItem = menu.findItem(R.id.exportCsvItem);
+        exportCsvItem.setOnMenuItemClickListener(item -> {
+            csvExportRequest.launch("multiloc-track.csv");
+            return true;
+        });
+
+        MenuItem diagnosticsItem = menu.findItem(R.id.diagnosticsItem);
+        diagnosticsItem.setOnMenuItemClickListener(item -> {
+            startActivity(new Intent(this, DiagnosticsActivity.class));
+            return true;
+        });
+
         AppCompatSpinner mProviderSpinner = (AppCompatSpinner) menu.findItem(R.id.locationProviderItem).getActionView();
         mProviderSpinner.setOnItemSelectedListener(new OnProviderItemSelectedListener());
 
@@ -129,17 +317,37 @@ public class MainActivity extends AppCompatActivity {
                 break;
 
             case "BTS":
-                useBTSLocation();
+                useBTSLocation(false);
+                break;
+
+            case "Multi-BTS":
+                useBTSLocation(true);
+                break;
+
+            case "BTS-Track":
+                useBTSTracking();
                 break;
 
             case "GPS":
                 useGPSLocation();
                 break;
 
+            case "GPS-Track":
+                useGPSTracking();
+                break;
+
+            case "Network-Track":
+                useNetworkTracking();
+                break;
+
             case "WiFi":
                 useWiFiLocation();
                 break;
 
+            case "All":
+                useAllLocation();
+                break;
+
             default:
                 throw new RuntimeException("Unhandled selection");
         }
@@ -147,6 +355,153 @@ public class MainActivity extends AppCompatActivity {
         return true;
     }
 
+    /**
+     * Starts a new request, abandoning the previous one.
+     */
+    private Deadline newDeadline(long timeoutMillis) {
+        if (mDeadline != null) {
+            mDeadline.cancel();
+        }
+        stopCellTracking();
+        stopLocationTracking();
+
+        mDeadline = Deadline.after(timeoutMillis);
+        return mDeadline;
+    }
+
+    private void importCellDatabase(Uri uri) {
+        importDatabase(uri, R.string.progress_dialog_message_import, "Failed to import cell database",
+                "Cell database contains %d cells", in -> {
+            CellIndexImporter importer = new CellIndexImporter(getCacheDir());
+            long count = importer.importCsv(in.get(0), mCellIndex.getFile());
+            mCellIndex.reload();
+            return count;
+        });
+    }
+
+    private void importAccessPointDatabase(Uri uri) {
+        importDatabase(uri, R.string.progress_dialog_message_import_access_points, "Failed to import Wi-Fi database",
+                "Wi-Fi database contains %d access points", in -> mBssidIndex.importCsv(in.get(0)));
+    }
+
+    private void importIPRangeDatabase(Uri uri) {
+        importDatabase(uri, R.string.progress_dialog_message_import_ip_ranges, "Failed to import IP database",
+                "IP database contains %d ranges", in -> mIPRangeIndex.importCsv(in.get(0)));
+    }
+
+    private void importPlaces(List<Uri> uris) {
+        importDatabase(uris, R.string.progress_dialog_message_import_places, "Failed to import place names",
+                "%d places imported", mReverseGeocoder::importGeoNames);
+    }
+
+    private void importDatabase(Uri uri, int progressMessage, String failureMessage, String countMessage,
+                                Importer importer) {
+        if (uri != null) {
+            importDatabase(Collections.singletonList(uri), progressMessage, failureMessage, countMessage, importer);
+        }
+    }
+
+    /**
+     * Streams the track log to the document at {@code uri} off the UI thread.
+     */
+    private void exportTrack(Uri uri, TrackWriter trackWriter) {
+        if (uri == null) {
+            return;
+        }
+
+        mProgressDialog.setMessage(getText(R.string.progress_dialog_message_export));
+        mProgressDialog.show();
+
+        new Thread(() -> {
+            Throwable error = null;
+            try (OutputStream out = getContentResolver().openOutputStream(uri)) {
+                if (out == null) {
+                    throw new IOException("Failed to open " + uri);
+                }
+
+                // Include fixes still queued for the log
+                mTrackLog.flush();
+                Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+                trackWriter.writeTo(mTrackLog, writer);
+                writer.flush();
+            } catch (IOException | RuntimeException e) {
+                error = e;
+            } catch (InterruptedException e) {
+                error = e;
+                Thread.currentThread().interrupt();
+            }
+
+            Throwable finalError = error;
+            runOnUiThread(() -> {
+                mProgressDialog.dismiss();
+
+                if (finalError != null) {
+                    Log.e(TAG, "exportTrack: ", finalError);
+                    Toast.makeText(this, "Failed to export track", Toast.LENGTH_LONG).show();
+                } else {
+                    Toast.makeText(this, "Track exported", Toast.LENGTH_SHORT).show();
+                }
+            });
+        }).start();
+    }
+
+    /**
+     * Runs {@code importer} on the documents at {@code uris} off the UI thread.
+     *
+     * @param countMessage format of the message reporting the number of records afterwards
+     */
+    private void importDatabase(List<Uri> uris, int progressMessage, String failureMessage, String countMessage,
+                                Importer importer) {
+        if (uris == null || uris.isEmpty()) {
+            return;
+        }
+
+        mProgressDialog.setMessage(getText(progressMessage));
+        mProgressDialog.show();
+
+        new Thread(() -> {
+            long count;
+            Throwable error = null;
+            List<InputStream> inputs = new ArrayList<>();
+            try {
+                for (Uri uri : uris) {
+                    InputStream in = getContentResolver().openInputStream(uri);
+                    if (in == null) {
+                        throw new IOException("Failed to open " + uri);
+                    }
+                    inputs.add(in);
+                }
+
+                count = importer.importFrom(inputs);
+            } catch (IOException | RuntimeException e) {
+                count = 0;
+                error = e;
+            } finally {
+                for (InputStream in : inputs) {
+                    try {
+                        in.close();
+                    } catch (IOException ignored) {
+                        // Already imported or failed, nothing left to read
+                    }
+                }
+            }
+
+            long finalCount = count;
+            Throwable finalError = error;
+            runOnUiThread(() -> {
+                mProgressDialog.dismiss();
+                mProgressDialog.setMessage(getText(R.string.progress_dialog_message));
+
+                if (finalError != null) {
+                    Log.e(TAG, "importDatabase: ", finalError);
+                    Toast.makeText(this, failureMessage, Toast.LENGTH_LONG).show();
+                } else {
+                    Toast.makeText(this, String.format(countMessage, finalCount), Toast.LENGTH_LONG).show();
+                }
+            });
+        }).start();
+    }
+
     private void displayPointOnMap(double lat, double lon) {
         GeoPoint geoPoint = new GeoPoint(lat, lon);
         // Zoom in
@@ -169,56 +524,197 @@ public class MainActivity extends AppCompatActivity {
         mBinding.map.getOverlays().add(mMapMarker);
     }
 
-    private void displayPoint(double lat, double lon, double alt, double speed, boolean mock) {
-        mBinding.locText.setVisibility(View.VISIBLE);
-        mBinding.locText.setText(getString(R.string.text_location_android, lat, lon, alt, speed,
-                getString((mock) ? R.string.text_yes : R.string.text_no)));
+    /**
+     * Posts the formatted location to the UI, fusing it with earlier fixes of every provider into
+     * the estimate shown on the map, and records it in the track log. Safe to call from any thread.
+     *
+     * @param meta provider specific details recorded with the fix, or {@code null}
+     */
+    private void render(String text, Fix fix, String meta) {
+        mTrackLog.append(fix.provider, fix.lat, fix.lon, fix.accuracy, fix.timeMillis, meta);
+
+        String place = describePlace(fix.lat, fix.lon);
+        String fullText = (place != null) ? text + "\n" + place : text;
+
+        runOnUiThread(() -> {
+            int result = mFusion.update(fix.lat, fix.lon, fix.accuracy, fix.timeMillis);
+            if (result == FusionFilter.REJECTED) {
+                Log.i(TAG, "render: fix at " + fix.lat + ", " + fix.lon + " (" + fix.accuracy
+                        + " m) disagrees with the estimate");
+            }
+            double fusedLat = mFusion.getLat();
+            double fusedLon = mFusion.getLon();
+
+            mBinding.locText.setVisibility(View.VISIBLE);
+            mBinding.locText.setText(fullText + "\n" + getString(R.string.text_location_fused, fusedLat, fusedLon,
+                    mFusion.getAccuracy(), mFusion.getAcceptedCount(), mFusion.getRejectedCount()));
+
+            mHistoryOverlay.add(fix.provider, fix.lat, fix.lon, fix.accuracy);
+            displayPointOnMap(fusedLat, fusedLon);
+        });
+    }
+
+    /**
+     * Loads the fixes logged before now in the background. Must be called before any fix is
+     * rendered, those are added to the overlay as they come instead.
+     */
+    private void loadHistory() {
+        Future<TrackLog.Mark> end = mTrackLog.mark();
+        new Thread(() -> {
+            try {
+                Map<String, TrackHistory> histories = HistoryOverlay.load(mTrackLog, end.get());
+                runOnUiThread(() -> {
+                    mHistoryOverlay.setLoaded(histories);
+                    mBinding.map.invalidate();
+                });
+            } catch (IOException | ExecutionException | RuntimeException e) {
+                Log.e(TAG, "loadHistory: failed to read track log", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }).start();
+    }
 
-        displayPointOnMap(lat, lon);
+    /**
+     * @return name of the place nearest to the position, or {@code null} if no places are imported
+     */
+    private String describePlace(double lat, double lon) {
+        ReverseGeocoder.Place place = mReverseGeocoder.lookup(lat, lon);
+        if (place == null) {
+            return null;
+        }
+
+        StringBuilder names = new StringBuilder(place.name);
+        if (place.region != null && !place.region.equals(place.name)) {
+            names.append(", ").append(place.region);
+        }
+        names.append(", ").append(place.country);
+        return getString(R.string.text_place, names, place.distance / 1000);
+    }
+
+    private void displayPoint(Location l) {
+        double lat = l.getLatitude();
+        double lon = l.getLongitude();
+        boolean mock = AndroidLocation.isMock(l);
+        render(getString(R.string.text_location_android, lat, lon, l.getAltitude(), l.getSpeed(),
+                getString((mock) ? R.string.text_yes : R.string.text_no)),
+                new Fix(l.getProvider(), lat, lon, l.hasAccuracy() ? l.getAccuracy() : ANDROID_DEFAULT_ACCURACY_METERS,
+                        l.getTime()),
+                (mock) ? "mock" : null);
+    }
+
+    private void displayPoint(Fix fix) {
+        render(getString(R.string.text_location_fix, fix.lat, fix.lon, fix.provider, fix.accuracy), fix, null);
     }
 
     private void displayPoint(double lat, double lon, String isp, String as) {
-        mBinding.locText.setVisibility(View.VISIBLE);
-        mBinding.locText.setText(getString(R.string.text_location_ip, lat, lon, isp, as));
+        render(getString(R.string.text_location_ip, lat, lon, isp, as),
+                new Fix("IP", lat, lon, IP_ACCURACY_METERS, System.currentTimeMillis()), as);
+    }
 
-        displayPointOnMap(lat, lon);
+    private void displayPoint(double lat, double lon, int apCount, double accuracy) {
+        render(getString(R.string.text_location_wifi, lat, lon, apCount, accuracy),
+                new Fix("WiFi", lat, lon, accuracy, System.currentTimeMillis()), "aps=" + apCount);
     }
 
-    private void displayPoint(double lat, double lon, String mcc, String mnc, int tac, long ci) {
-        mBinding.locText.setVisibility(View.VISIBLE);
-        mBinding.locText.setText(getString(R.string.text_location_bts, lat, lon, mcc, mnc, tac, ci));
+    private void displayPoint(double lat, double lon, String mcc, String mnc, int tac, long ci, double accuracy) {
+        render(getString(R.string.text_location_bts, lat, lon, mcc, mnc, tac, ci),
+                new Fix("BTS", lat, lon, accuracy, System.currentTimeMillis()), cellMeta(mcc, mnc, tac, ci));
+    }
 
-        displayPointOnMap(lat, lon);
+    private void displayPoint(double lat, double lon, String mcc, String mnc, int tac, long ci, int cellCount, double accuracy) {
+        render(getString(R.string.text_location_bts_multi, lat, lon, mcc, mnc, tac, ci, cellCount, accuracy),
+                new Fix("Multi-BTS", lat, lon, accuracy, System.currentTimeMillis()), cellMeta(mcc, mnc, tac, ci));
     }
 
-    private void useIPLocation() {
+    /**
+     * @return serving cell as recorded in the track log
+     */
+    private static String cellMeta(String mcc, String mnc, int tac, long ci) {
+        return mcc + "-" + mnc + "-" + tac + "-" + ci;
+    }
+
+    /**
+     * @return start of the operation as a {@link System#nanoTime()} value
+     */
+    private long startOperation(String operation) {
+        mJankMonitor.start(operation);
         mProgressDialog.show();
+        return System.nanoTime();
+    }
+
+    private void recordFirstFix(String provider, long startNanos) {
+        mTimings.recordSince(provider, Timings.Stage.FIRST_FIX, startNanos);
+    }
+
+    /**
+     * Records how long {@code provider} takes to its fix, from the moment it's started.
+     */
+    private LocationProvider timed(String name, LocationProvider provider) {
+        return (deadline, callback) -> {
+            long start = System.nanoTime();
+            provider.getLocation(deadline, (fix, t) -> {
+                if (fix != null) {
+                    recordFirstFix(name, start);
+                }
+                callback.accept(fix, t);
+            });
+        };
+    }
 
-        mIPLocation.getLocation(null, (r, t) -> {
+    /**
+     * Ends the current operation on the UI thread. Safe to call from any thread.
+     */
+    private void finishOperation() {
+        runOnUiThread(() -> {
             mProgressDialog.dismiss();
+            mJankMonitor.stop();
+        });
+    }
 
-            if (t != null) {
-                Log.e(TAG, "onIPButtonClick: ", t);
+    private void showError(String where, Throwable t) {
+        Log.e(TAG, where + ": ", t);
 
-                if (t instanceof JsonSyntaxException) {
-                    Toast.makeText(MainActivity.this, "Received invalid response", Toast.LENGTH_LONG).show();
-                } else if (t instanceof SocketTimeoutException) {
-                    Toast.makeText(MainActivity.this, "Connection timed-out", Toast.LENGTH_LONG).show();
-                } else {
-                    Toast.makeText(MainActivity.this, t.getMessage(), Toast.LENGTH_LONG).show();
-                }
+        if (t instanceof JsonSyntaxException) {
+            showMessage("Received invalid response");
+        } else if (t instanceof InterruptedIOException) {
+            showMessage("Connection timed-out");
+        } else if (t instanceof TimeoutException) {
+            showMessage("Operation timed-out");
+        } else {
+            showMessage(t.getMessage());
+        }
+    }
+
+    /**
+     * Ends the current operation with {@code message}. Safe to call from any thread.
+     */
+    private void showMessage(String message) {
+        finishOperation();
+        runOnUiThread(() -> Toast.makeText(MainActivity.this, message, Toast.LENGTH_LONG).show());
+    }
+
+    private void useIPLocation() {
+        long start = startOperation("IP");
+
+        mIPLocation.getLocation(newDeadline(LOCATION_TIMEOUT_MILLIS), (r, t) -> {
+            if (t != null) {
+                showError("onIPButtonClick", t);
                 return;
             }
             if (r == null) {
-                Toast.makeText(MainActivity.this, "Received empty response", Toast.LENGTH_LONG).show();
+                showMessage("Received empty response");
                 return;
             }
 
-            displayPoint(r.lat, r.lon, r.isp, r.as);
+            recordFirstFix("IP", start);
+            // Offline results only carry what the imported database has
+            displayPoint(r.lat, r.lon, (r.isp != null) ? r.isp : "-", (r.as != null) ? r.as : "-");
+            finishOperation();
         });
     }
 
-    private void useBTSLocation() {
+    private void useBTSLocation(boolean multiCell) {
         if (checkSelfPermission(Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
             Toast.makeText(this, "Fine location permission required", Toast.LENGTH_SHORT).show();
             requestLocationPermission();
@@ -231,32 +727,90 @@ public class MainActivity extends AppCompatActivity {
             return;
         }
 
-        mProgressDialog.show();
-
-        mBTSLocation.getLocation(this, null, (r, t) -> {
-            mProgressDialog.dismiss();
+        String operation = (multiCell) ? "Multi-BTS" : "BTS";
+        long start = startOperation(operation);
 
+        BiConsumer<BTSLocation.Result, Throwable> callback = (r, t) -> {
             if (t != null) {
-                Log.e(TAG, "onBTSLocation: ", t);
-
-                if (t instanceof JsonSyntaxException) {
-                    Toast.makeText(MainActivity.this, "Received invalid response", Toast.LENGTH_LONG).show();
-                } else if (t instanceof SocketTimeoutException) {
-                    Toast.makeText(MainActivity.this, "Connection timed-out", Toast.LENGTH_LONG).show();
-                } else {
-                    Toast.makeText(MainActivity.this, t.getMessage(), Toast.LENGTH_LONG).show();
-                }
+                showError("onBTSLocation", t);
                 return;
             }
             if (r == null) {
-                Toast.makeText(MainActivity.this, "Received empty response", Toast.LENGTH_LONG).show();
+                showMessage("Received empty response");
                 return;
             }
 
-            displayPoint(r.lat, r.lon, r.mcc, r.mnc, r.tac, r.ci);
+            recordFirstFix(operation, start);
+            if (multiCell) {
+                displayPoint(r.lat, r.lon, r.mcc, r.mnc, r.tac, r.ci, r.cellCount, r.accuracy);
+            } else {
+                displayPoint(r.lat, r.lon, r.mcc, r.mnc, r.tac, r.ci, r.accuracy);
+            }
+            finishOperation();
+        };
+
+        Deadline deadline = newDeadline(LOCATION_TIMEOUT_MILLIS);
+        if (multiCell) {
+            mBTSLocation.getMultiCellLocation(this, deadline, callback);
+        } else {
+            mBTSLocation.getLocation(this, deadline, callback);
+        }
+    }
+
+    /**
+     * Starts following the serving cell, or stops if already following it.
+     */
+    @SuppressLint("MissingPermission")
+    private void useBTSTracking() {
+        if (mCellTracker != null) {
+            stopCellTracking();
+            Toast.makeText(this, "Cell tracking stopped", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        if (checkSelfPermission(Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
+            Toast.makeText(this, "Fine location permission required", Toast.LENGTH_SHORT).show();
+            requestLocationPermission();
+
+            return;
+        }
+
+        if (!LocationManagerCompat.isLocationEnabled(mLocationManager)) {
+            Toast.makeText(this, "Location not enabled", Toast.LENGTH_LONG).show();
+            return;
+        }
+
+        // Tracking outlives single requests, so it doesn't hold up the UI with a progress dialog
+        if (mDeadline != null) {
+            mDeadline.cancel();
+            mDeadline = null;
+        }
+        stopLocationTracking();
+        Toast.makeText(this, "Tracking serving cell, locate again to stop", Toast.LENGTH_SHORT).show();
+
+        long start = System.nanoTime();
+        AtomicBoolean first = new AtomicBoolean(true);
+        mCellTracker = mBTSLocation.track(this, (r, t) -> {
+            if (t != null) {
+                // The next cell may well resolve, so keep tracking
+                Log.e(TAG, "onCellTracked: ", t);
+                return;
+            }
+
+            if (first.compareAndSet(true, false)) {
+                recordFirstFix("BTS-Track", start);
+            }
+            displayPoint(r.lat, r.lon, r.mcc, r.mnc, r.tac, r.ci, r.accuracy);
         });
     }
 
+    private void stopCellTracking() {
+        if (mCellTracker != null) {
+            mCellTracker.stop();
+            mCellTracker = null;
+        }
+    }
+
     private void useAndroidLocation(String locationProvider) {
         if (checkSelfPermission(Manifest.permission.ACCESS_COARSE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
             Toast.makeText(this, "Location permission required", Toast.LENGTH_SHORT).show();
@@ -270,80 +824,245 @@ public class MainActivity extends AppCompatActivity {
             return;
         }
 
-        mProgressDialog.show();
+        long start = startOperation(locationProvider);
 
-        Handler handler = new Handler(getMainLooper());
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
-            CancellationSignal locationCancelSignal = new CancellationSignal();
-            Runnable timeoutRunnable = () -> {
-                locationCancelSignal.cancel();
+        mAndroidLocation.getLocation(locationProvider, newDeadline(LOCATION_TIMEOUT_MILLIS), (l, t) -> {
+            if (t instanceof TimeoutException) {
+                showMessage("Operation timed-out");
+                return;
+            }
+            if (l == null) {
+                showMessage("Failed to determine location");
+                return;
+            }
 
-                Toast.makeText(this, "Operation timed-out", Toast.LENGTH_LONG).show();
-                mProgressDialog.dismiss();
-            };
+            recordFirstFix(LocationManager.GPS_PROVIDER.equals(locationProvider) ? "GPS" : "Network", start);
+            displayPoint(l);
+            finishOperation();
 
-            mLocationManager.getCurrentLocation(locationProvider, locationCancelSignal, getMainExecutor(), l -> {
-                handler.removeCallbacks(timeoutRunnable);
+            learnCells(l);
+        });
+    }
 
-                mProgressDialog.dismiss();
+    @SuppressLint("MissingPermission")
+    private void useAllLocation() {
+        List<LocationProvider> providers = new ArrayList<>();
+        providers.add(timed("IP", (deadline, callback) -> mIPLocation.getLocation(deadline, (r, t) -> {
+            if (r == null || !r.isSuccess()) {
+                callback.accept(null, t);
+            } else {
+                callback.accept(new Fix("IP", r.lat, r.lon, IP_ACCURACY_METERS, System.currentTimeMillis()), null);
+            }
+        })));
 
-                if (l == null) {
-                    Toast.makeText(this, "Failed to determine location", Toast.LENGTH_LONG).show();
-                    return;
-                }
+        if (checkSelfPermission(Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
+            // Race whatever is available, next time will include the rest
+            requestLocationPermission();
+        }
 
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
-                    displayPoint(l.getLatitude(), l.getLongitude(), l.getAltitude(), l.getSpeed(), l.isMock());
+        boolean locationEnabled = LocationManagerCompat.isLocationEnabled(mLocationManager);
+        if (locationEnabled && checkSelfPermission(Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED) {
+            providers.add(timed("Multi-BTS", (deadline, callback) -> mBTSLocation.getMultiCellLocation(this, deadline, (r, t) -> {
+                if (r == null) {
+                    callback.accept(null, t);
                 } else {
-                    displayPoint(l.getLatitude(), l.getLongitude(), l.getAltitude(), l.getSpeed(), l.isFromMockProvider());
+                    callback.accept(new Fix("BTS", r.lat, r.lon, r.accuracy, System.currentTimeMillis()), null);
                 }
-            });
-            handler.postDelayed(timeoutRunnable, LOCATION_TIMEOUT_MILLIS);
-        } else {
-            CancellationSignal timeoutCancelSignal = new CancellationSignal();
+            })));
+            providers.add(timed("WiFi", (deadline, callback) -> mWifiLocation.getLocation(deadline, (r, t) -> {
+                if (r == null) {
+                    callback.accept(null, t);
+                } else {
+                    callback.accept(new Fix("WiFi", r.lat, r.lon, r.accuracy, System.currentTimeMillis()), null);
+                }
+            })));
+        }
+        if (locationEnabled && checkSelfPermission(Manifest.permission.ACCESS_COARSE_LOCATION) == PackageManager.PERMISSION_GRANTED) {
+            providers.add(timed("GPS", androidLocationProvider("GPS", LocationManager.GPS_PROVIDER)));
+            providers.add(timed("Network", androidLocationProvider("Network", LocationManager.NETWORK_PROVIDER)));
+        }
 
-            LocationListener locationListener = new LocationListener() {
-                @Override
-                public void onLocationChanged(@NonNull Location l) {
-                    timeoutCancelSignal.cancel();
+        long start = startOperation("All");
 
-                    mProgressDialog.dismiss();
+        FastestFix fastestFix = new FastestFix(providers, ALL_TARGET_ACCURACY_METERS);
+        fastestFix.start(newDeadline(ALL_DEADLINE_MILLIS), new FastestFix.Listener() {
+            private boolean mFirst = true;
 
-                    displayPoint(l.getLatitude(), l.getLongitude(), l.getAltitude(), l.getSpeed(), l.isFromMockProvider());
+            @Override
+            public void onFix(Fix fix, boolean done) {
+                if (mFirst) {
+                    mFirst = false;
+                    recordFirstFix("All", start);
                 }
 
-                @Override
-                public void onProviderEnabled(@NonNull String provider) {
-                }
+                // Show the first fix right away and keep refining it in the background
+                mProgressDialog.dismiss();
 
-                @Override
-                public void onProviderDisabled(@NonNull String provider) {
+                if (fix != null) {
+                    displayPoint(fix);
+                }
+                if (done) {
+                    mJankMonitor.stop();
                 }
+            }
 
-                @Override
-                public void onStatusChanged(String provider, int status, Bundle extras) {
+            @Override
+            public void onFailure(Throwable lastError) {
+                if (lastError != null) {
+                    Log.e(TAG, "useAllLocation: ", lastError);
                 }
-            };
+                showMessage("Failed to determine location");
+            }
+        });
+    }
 
-            mLocationManager.requestSingleUpdate(locationProvider, locationListener, null);
+    @SuppressLint("MissingPermission")
+    private LocationProvider androidLocationProvider(String name, String locationProvider) {
+        return (deadline, callback) -> mAndroidLocation.getLocation(locationProvider, deadline, (l, t) -> {
+            if (l == null) {
+                callback.accept(null, t);
+            } else {
+                callback.accept(new Fix(name, l.getLatitude(), l.getLongitude(),
+                        l.hasAccuracy() ? l.getAccuracy() : ANDROID_DEFAULT_ACCURACY_METERS, System.currentTimeMillis()), null);
 
-            Runnable timeoutRunnable = () -> {
-                mLocationManager.removeUpdates(locationListener);
+                learnCells(l);
+            }
+        });
+    }
 
-                Toast.makeText(this, "Operation timed-out", Toast.LENGTH_LONG).show();
-                mProgressDialog.dismiss();
-            };
-            handler.postDelayed(timeoutRunnable, LOCATION_TIMEOUT_MILLIS);
-            timeoutCancelSignal.setOnCancelListener(() -> handler.removeCallbacks(timeoutRunnable));
+    /**
+     * Teaches the local cell and access point databases where the visible cells and access points
+     * are, if {@code l} is a precise GPS fix far enough in distance or time from the last one
+     * learned from.
+     */
+    private void learnCells(Location l) {
+        if (!LocationManager.GPS_PROVIDER.equals(l.getProvider()) || AndroidLocation.isMock(l)
+                || !l.hasAccuracy() || l.getAccuracy() > LEARN_MAX_ACCURACY_METERS
+                || checkSelfPermission(Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
+            return;
         }
+
+        synchronized (mLearnLock) {
+            if (mLastLearned != null && l.distanceTo(mLastLearned) < LEARN_MIN_DISTANCE_METERS
+                    && Math.abs(l.getTime() - mLastLearned.getTime()) < LEARN_MIN_INTERVAL_MILLIS) {
+                return;
+            }
+            mLastLearned = l;
+        }
+
+        mBTSLocation.learn(this, l.getLatitude(), l.getLongitude(), l.getAccuracy(), l.getTime());
+        mWifiLocation.learn(l.getLatitude(), l.getLongitude(), l.getAccuracy(), l.getTime());
     }
 
     private void useGPSLocation() {
         useAndroidLocation(LocationManager.GPS_PROVIDER);
     }
 
+    private void useGPSTracking() {
+        useAndroidTracking(LocationManager.GPS_PROVIDER, "GPS", Manifest.permission.ACCESS_FINE_LOCATION);
+    }
+
+    private void useNetworkTracking() {
+        useAndroidTracking(LocationManager.NETWORK_PROVIDER, "Network", Manifest.permission.ACCESS_COARSE_LOCATION);
+    }
+
+    /**
+     * Starts following {@code locationProvider} at an adaptive rate, or stops if already following
+     * a provider. Only GPS fixes teach the cell and access point databases.
+     */
+    @SuppressLint("MissingPermission")
+    private void useAndroidTracking(String locationProvider, String name, String permission) {
+        if (mLocationTracker != null) {
+            stopLocationTracking();
+            Toast.makeText(this, "Tracking stopped", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        if (checkSelfPermission(permission) != PackageManager.PERMISSION_GRANTED) {
+            Toast.makeText(this, (Manifest.permission.ACCESS_FINE_LOCATION.equals(permission) ? "Fine" : "Coarse")
+                    + " location permission required", Toast.LENGTH_SHORT).show();
+            requestLocationPermission();
+
+            return;
+        }
+
+        if (!LocationManagerCompat.isLocationEnabled(mLocationManager)) {
+            Toast.makeText(this, "Location not enabled", Toast.LENGTH_LONG).show();
+            return;
+        }
+
+        if (mDeadline != null) {
+            mDeadline.cancel();
+            mDeadline = null;
+        }
+        stopCellTracking();
+        Toast.makeText(this, "Tracking " + name + ", locate again to stop", Toast.LENGTH_SHORT).show();
+
+        long start = System.nanoTime();
+        AtomicBoolean first = new AtomicBoolean(true);
+        mLocationTracker = mAndroidLocation.track(locationProvider, l -> {
+            if (first.compareAndSet(true, false)) {
+                recordFirstFix(name + "-Track", start);
+            }
+            displayPoint(l);
+
+            learnCells(l);
+        });
+    }
+
+    private void stopLocationTracking() {
+        if (mLocationTracker != null) {
+            mLocationTracker.stop();
+            mLocationTracker = null;
+
+            // Learning is saved a while after the last fix, don't leave it to a process that
+            // may be killed in the background
+            MultiLocApplication application = (MultiLocApplication) getApplication();
+            application.getWorkerExecutor().execute(() -> {
+                try {
+                    application.getCellLearner().flush();
+                    application.getAccessPointLearner().flush();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+    }
+
     private void useWiFiLocation() {
-        useAndroidLocation(LocationManager.NETWORK_PROVIDER);
+        if (checkSelfPermission(Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
+            Toast.makeText(this, "Fine location permission required", Toast.LENGTH_SHORT).show();
+            requestLocationPermission();
+
+            return;
+        }
+
+        if (!LocationManagerCompat.isLocationEnabled(mLocationManager)) {
+            Toast.makeText(this, "Location not enabled", Toast.LENGTH_LONG).show();
+            return;
+        }
+
+        long start = startOperation("WiFi");
+
+        mWifiLocation.getLocation(newDeadline(LOCATION_TIMEOUT_MILLIS), (r, t) -> {
+            if (t instanceof WifiException.UnknownAccessPointsException) {
+                // Nothing imported or learned around here yet, let the platform have a go
+                Log.i(TAG, "useWiFiLocation: no known access points, falling back to network provider");
+                runOnUiThread(() -> {
+                    finishOperation();
+                    useAndroidLocation(LocationManager.NETWORK_PROVIDER);
+                });
+                return;
+            }
+            if (t != null) {
+                showError("onWiFiLocation", t);
+                return;
+            }
+
+            recordFirstFix("WiFi", start);
+            displayPoint(r.lat, r.lon, r.apCount, r.accuracy);
+            finishOperation();
+        });
     }
 
     private void requestLocationPermission() {
@@ -353,16 +1072,32 @@ public class MainActivity extends AppCompatActivity {
         });
     }
 
+    private interface TrackWriter {
+        void writeTo(TrackLog log, Writer writer) throws IOException;
+    }
+
+    private interface Importer {
+        /**
+         * @return number of records in the database after the import
+         */
+        long importFrom(List<InputStream> inputs) throws IOException;
+    }
+
     private class OnProviderItemSelectedListener implements AdapterView.OnItemSelectedListener {
         @Override
         public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
             mSelectedProvider = (String) parent.getSelectedItem();
 
-            if ((mSelectedProvider.equals("GPS") || mSelectedProvider.equals("WiFi")) && checkSelfPermission(Manifest.permission.ACCESS_COARSE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
+            if ((mSelectedProvider.equals("GPS") || mSelectedProvider.equals("Network-Track")) && checkSelfPermission(Manifest.permission.ACCESS_COARSE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
                 requestLocationPermission();
-            } else if (mSelectedProvider.equals("BTS") && checkSelfPermission(Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
+            } else if ((mSelectedProvider.equals("BTS") || mSelectedProvider.equals("Multi-BTS") || mSelectedProvider.equals("BTS-Track") || mSelectedProvider.equals("GPS-Track") || mSelectedProvider.equals("WiFi") || mSelectedProvider.equals("All")) && checkSelfPermission(Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
                 requestLocationPermission();
             }
+
+            if (mSelectedProvider.equals("BTS") || mSelectedProvider.equals("Multi-BTS") || mSelectedProvider.equals("BTS-Track") || mSelectedProvider.equals("All")) {
+                // Get DNS and TLS out of the way while the user reaches for the locate button
+                mBTSLocation.preconnect();
+            }
         }
 
         @Override
@@ -1,14 +1,199 @@
 package github.me_asri.multiloc;
 
 import android.app.Application;
+import android.os.Process;
 
 import com.google.android.material.color.DynamicColors;
 
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import github.me_asri.multiloc.location.BssidIndex;
+import github.me_asri.multiloc.location.CellCache;
+import github.me_asri.multiloc.location.CellIndex;
+import github.me_asri.multiloc.location.CellLearner;
+import github.me_asri.multiloc.location.HttpStack;
+import github.me_asri.multiloc.location.IPBatchClient;
+import github.me_asri.multiloc.location.IPCache;
+import github.me_asri.multiloc.location.IPRangeIndex;
+import github.me_asri.multiloc.location.LatencyTracker;
+import github.me_asri.multiloc.location.OpenCellIDClient;
+import github.me_asri.multiloc.location.RequestQuota;
+import github.me_asri.multiloc.location.ReverseGeocoder;
+import github.me_asri.multiloc.location.Timings;
+import github.me_asri.multiloc.location.TrackLog;
+
 public class MultiLocApplication extends Application {
+    private static final String CELL_CACHE_FILE = "cell_cache.bin";
+    private static final int CELL_CACHE_CAPACITY = 1024;
+    private static final long CELL_CACHE_TTL_MILLIS = TimeUnit.DAYS.toMillis(7);
+    private static final long CELL_CACHE_NEGATIVE_TTL_MILLIS = TimeUnit.HOURS.toMillis(12);
+    private static final String OPENCELLID_QUOTA_FILE = "opencellid_quota.bin";
+    // Client-side limits of the API key, OpenCelliD enforces its own on top
+    private static final double OPENCELLID_REQUESTS_PER_SECOND = 4;
+    private static final int OPENCELLID_BURST = 8;
+    private static final long OPENCELLID_DAILY_LIMIT = 5000;
+    private static final String CELL_INDEX_FILE = "cell_index.bin";
+    private static final String LEARNED_CELLS_FILE = "learned_cells.bin";
+    private static final int LEARNED_CELLS_CAPACITY = 8192;
+    private static final String BSSID_INDEX_FILE = "bssid_index.bin";
+    private static final String LEARNED_APS_FILE = "learned_aps.bin";
+    private static final int LEARNED_APS_CAPACITY = 16384;
+    // Access points reach far less than cells, so are trusted from closer observations
+    private static final int LEARNED_APS_MIN_OBSERVATIONS = 5;
+    private static final double LEARNED_APS_MIN_SPREAD_METERS = 10;
+    private static final int LEARNED_APS_MIN_RANGE_METERS = 100;
+    private static final String IP_RANGE_INDEX_FILE = "ip_ranges.bin";
+    private static final String PLACES_FILE = "places.bin";
+    // Single addresses are located at a time, a second chunk covers a lookup from another network
+    private static final int IP_BATCH_MAX_IN_FLIGHT = 2;
+    private static final String TRACK_LOG_DIR = "track";
+    private static final String SHARED_PREF_IP_CACHE = MultiLocApplication.class.getName() + ".ip_cache";
+    private static final String HTTP_CACHE_DIR = "http_cache";
+    private static final long HTTP_CACHE_SIZE = 4 * 1024 * 1024;
+    // Upper bound per connect/read, requests are bounded by their own deadline
+    private static final long HTTP_TIMEOUT_MILLIS = 7000;
+    private static final int WORKER_THREADS = 2;
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 30;
+
+    private ExecutorService mWorkerExecutor;
+    private Timings mTimings;
+    private HttpStack mHttpStack;
+    private CellCache mCellCache;
+    private RequestQuota mOpenCellIDQuota;
+    private LatencyTracker mOpenCellIDLatency;
+    private CellIndex mCellIndex;
+    private CellLearner mCellLearner;
+    private BssidIndex mBssidIndex;
+    private CellLearner mAccessPointLearner;
+    private IPCache mIPCache;
+    private IPRangeIndex mIPRangeIndex;
+    private IPBatchClient mIPBatchClient;
+    private ReverseGeocoder mReverseGeocoder;
+    private TrackLog mTrackLog;
+
     @Override
     public void onCreate() {
         super.onCreate();
 
         DynamicColors.applyToActivitiesIfAvailable(this);
+
+        mWorkerExecutor = createWorkerExecutor();
+        mTimings = new Timings();
+        mHttpStack = new HttpStack(new File(getCacheDir(), HTTP_CACHE_DIR), HTTP_CACHE_SIZE, HTTP_TIMEOUT_MILLIS,
+                mTimings);
+
+        mCellCache = new CellCache(new File(getCacheDir(), CELL_CACHE_FILE), CELL_CACHE_CAPACITY,
+                CELL_CACHE_TTL_MILLIS, CELL_CACHE_NEGATIVE_TTL_MILLIS);
+        mOpenCellIDQuota = new RequestQuota(new File(getFilesDir(), OPENCELLID_QUOTA_FILE),
+                OPENCELLID_REQUESTS_PER_SECOND, OPENCELLID_BURST, OPENCELLID_DAILY_LIMIT);
+        mOpenCellIDLatency = OpenCellIDClient.newLatencyTracker();
+        mCellIndex = new CellIndex(new File(getFilesDir(), CELL_INDEX_FILE));
+        mCellLearner = new CellLearner(new File(getFilesDir(), LEARNED_CELLS_FILE), LEARNED_CELLS_CAPACITY);
+        mBssidIndex = new BssidIndex(new File(getFilesDir(), BSSID_INDEX_FILE));
+        mAccessPointLearner = new CellLearner(new File(getFilesDir(), LEARNED_APS_FILE), LEARNED_APS_CAPACITY,
+                LEARNED_APS_MIN_OBSERVATIONS, LEARNED_APS_MIN_SPREAD_METERS, LEARNED_APS_MIN_RANGE_METERS);
+        mIPCache = new IPCache(this, getSharedPreferences(SHARED_PREF_IP_CACHE, MODE_PRIVATE));
+        mIPRangeIndex = new IPRangeIndex(new File(getFilesDir(), IP_RANGE_INDEX_FILE));
+        mIPBatchClient = new IPBatchClient(mHttpStack, IPBatchClient.API_URL, mWorkerExecutor, IP_BATCH_MAX_IN_FLIGHT);
+        mReverseGeocoder = new ReverseGeocoder(new File(getFilesDir(), PLACES_FILE));
+        mTrackLog = new TrackLog(new File(getFilesDir(), TRACK_LOG_DIR));
+    }
+
+    /**
+     * @return executor for cell scanning and response processing, keeping them off the main thread
+     */
+    public ExecutorService getWorkerExecutor() {
+        return mWorkerExecutor;
+    }
+
+    /**
+     * @return latency histograms of every provider, kept for the lifetime of the process
+     */
+    public Timings getTimings() {
+        return mTimings;
+    }
+
+    public HttpStack getHttpStack() {
+        return mHttpStack;
+    }
+
+    public CellCache getCellCache() {
+        return mCellCache;
+    }
+
+    public RequestQuota getOpenCellIDQuota() {
+        return mOpenCellIDQuota;
+    }
+
+    /**
+     * @return recent OpenCelliD latencies deciding when to hedge, kept across activities
+     */
+    public LatencyTracker getOpenCellIDLatency() {
+        return mOpenCellIDLatency;
+    }
+
+    public CellIndex getCellIndex() {
+        return mCellIndex;
+    }
+
+    public CellLearner getCellLearner() {
+        return mCellLearner;
+    }
+
+    public BssidIndex getBssidIndex() {
+        return mBssidIndex;
+    }
+
+    /**
+     * @return learner of Wi-Fi access point locations, kept apart from the cells
+     */
+    public CellLearner getAccessPointLearner() {
+        return mAccessPointLearner;
+    }
+
+    public IPCache getIPCache() {
+        return mIPCache;
+    }
+
+    public IPRangeIndex getIPRangeIndex() {
+        return mIPRangeIndex;
+    }
+
+    /**
+     * @return client of the ip-api batch endpoint, sharing its rate limit window across activities
+     */
+    public IPBatchClient getIPBatchClient() {
+        return mIPBatchClient;
+    }
+
+    public ReverseGeocoder getReverseGeocoder() {
+        return mReverseGeocoder;
+    }
+
+    /**
+     * @return log of every fix shown, kept across runs
+     */
+    public TrackLog getTrackLog() {
+        return mTrackLog;
+    }
+
+    private static ExecutorService createWorkerExecutor() {
+        AtomicInteger threadCount = new AtomicInteger();
+        // The queue is unbounded, as tasks are submitted from the main thread too, which must
+        // neither run a blocking modem call itself nor drop a callback. Every task belongs to a
+        // request bounded by its deadline, so the queue can't grow for long
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(WORKER_THREADS, WORKER_THREADS,
+                WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                r -> new Thread(() -> {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }, "MultiLoc-worker-" + threadCount.incrementAndGet()));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 }
@@ -0,0 +1,291 @@
+package github.me_asri.multiloc.location;
+
+import android.Manifest;
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.hardware.TriggerEvent;
+import android.hardware.TriggerEventListener;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresPermission;
+import androidx.core.location.LocationListenerCompat;
+import androidx.core.location.LocationManagerCompat;
+import androidx.core.location.LocationRequestCompat;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Single fixes and continuous tracking from the platform {@link LocationManager} providers.
+ */
+public class AndroidLocation {
+    private static final String TAG = AndroidLocation.class.getName();
+
+    // Fixes held back while tracking steadily, delivered together to spare wake-ups
+    private static final long TRACK_MAX_BATCH_DELAY_MILLIS = 30_000;
+    private static final int ACCELEROMETER_PERIOD_MICROS = 200_000;
+    // Samples wait in the sensor hub's FIFO where there is one instead of waking the CPU
+    private static final int ACCELEROMETER_MAX_LATENCY_MICROS = 5_000_000;
+
+    private final Context mContext;
+    private final LocationManager mLocationManager;
+    private final long mTimeoutMillis;
+    private final Executor mExecutor;
+
+    /**
+     * @param executor where fixes are delivered on Android 11 and later, earlier versions use
+     *                 the main thread
+     */
+    public AndroidLocation(Context context, long timeoutMillis, Executor executor) {
+        mContext = context.getApplicationContext();
+        mLocationManager = context.getSystemService(LocationManager.class);
+        mTimeoutMillis = timeoutMillis;
+        mExecutor = executor;
+    }
+
+    /**
+     * Requests a single fix from {@code locationProvider}.
+     * <p>
+     * The callback receives a {@link TimeoutException} if no fix arrives in time, and a
+     * {@code null} location if the provider couldn't determine one.
+     *
+     * @param deadline bounds the request, or {@code null} to use the default timeout
+     */
+    @RequiresPermission(anyOf = {Manifest.permission.ACCESS_COARSE_LOCATION, Manifest.permission.ACCESS_FINE_LOCATION})
+    public void getLocation(String locationProvider, Deadline deadline, BiConsumer<Location, Throwable> callback) {
+        Deadline requestDeadline = (deadline != null) ? deadline : Deadline.after(mTimeoutMillis);
+        BiConsumer<Location, Throwable> boundCallback = requestDeadline.bind(callback);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            CancellationSignal locationCancelSignal = new CancellationSignal();
+            mLocationManager.getCurrentLocation(locationProvider, locationCancelSignal, mExecutor,
+                    l -> boundCallback.accept(l, null));
+
+            requestDeadline.addCancelListener(locationCancelSignal::cancel);
+        } else {
+            LocationListener locationListener = new LocationListener() {
+                @Override
+                public void onLocationChanged(@NonNull Location l) {
+                    boundCallback.accept(l, null);
+                }
+
+                @Override
+                public void onProviderEnabled(@NonNull String provider) {
+                }
+
+                @Override
+                public void onProviderDisabled(@NonNull String provider) {
+                }
+
+                @Override
+                public void onStatusChanged(String provider, int status, Bundle extras) {
+                }
+            };
+
+            mLocationManager.requestSingleUpdate(locationProvider, locationListener, Looper.getMainLooper());
+
+            requestDeadline.addCancelListener(() -> mLocationManager.removeUpdates(locationListener));
+        }
+    }
+
+    /**
+     * Follows {@code locationProvider} until the tracker is stopped, at a rate adapted to how the
+     * phone is moving.
+     * <p>
+     * Fixes are requested every second while speed or bearing change, spaced out while moving
+     * steadily and once a minute when stationary, as decided by {@link TrackingRate}. Stationary
+     * is detected from the accelerometer, which is then swapped for the significant motion sensor
+     * if there is one, so a phone left on a desk wakes up for little more than the odd fix. Where
+     * the hardware batches fixes, they're delivered together up to
+     * {@link #TRACK_MAX_BATCH_DELAY_MILLIS} late while moving steadily. The listener is called on
+     * the executor. Must be called from the main thread.
+     */
+    @RequiresPermission(anyOf = {Manifest.permission.ACCESS_COARSE_LOCATION, Manifest.permission.ACCESS_FINE_LOCATION})
+    public Tracker track(String locationProvider, Consumer<Location> listener) {
+        Tracker tracker = new Tracker(locationProvider, listener);
+        tracker.start();
+        return tracker;
+    }
+
+    @SuppressWarnings("deprecation")
+    public static boolean isMock(Location l) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            return l.isMock();
+        } else {
+            return l.isFromMockProvider();
+        }
+    }
+
+    public class Tracker {
+        private final String mProvider;
+        private final Consumer<Location> mListener;
+        private final TrackingRate mRate = new TrackingRate(TRACK_MAX_BATCH_DELAY_MILLIS);
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        private final SensorManager mSensorManager;
+        private final Sensor mAccelerometer;
+        private final Sensor mSignificantMotion;
+        private final LocationListenerCompat mLocationListener = this::onLocation;
+        private final SensorEventListener mAccelerometerListener = new AccelerometerListener();
+        private final TriggerEventListener mMotionListener = new MotionListener();
+
+        private boolean mAccelerometerOn = false;
+        private long mFixes = 0;
+        private long mRateChanges = 0;
+        private boolean mStopped = false;
+
+        Tracker(String provider, Consumer<Location> listener) {
+            mProvider = provider;
+            mListener = listener;
+
+            mSensorManager = mContext.getSystemService(SensorManager.class);
+            mAccelerometer = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+            mSignificantMotion = mSensorManager.getDefaultSensor(Sensor.TYPE_SIGNIFICANT_MOTION);
+        }
+
+        @RequiresPermission(anyOf = {Manifest.permission.ACCESS_COARSE_LOCATION, Manifest.permission.ACCESS_FINE_LOCATION})
+        synchronized void start() {
+            requestUpdates();
+            setAccelerometer(true);
+        }
+
+        @SuppressLint("MissingPermission")
+        public synchronized void stop() {
+            if (mStopped) {
+                return;
+            }
+            mStopped = true;
+
+            LocationManagerCompat.removeUpdates(mLocationManager, mLocationListener);
+            setAccelerometer(false);
+            if (mSignificantMotion != null) {
+                mSensorManager.cancelTriggerSensor(mMotionListener, mSignificantMotion);
+            }
+
+            Log.i(TAG, "track: stopped after " + mFixes + " fixes, " + mRateChanges + " rate changes");
+        }
+
+        public synchronized boolean isStationary() {
+            return mRate.isStationary();
+        }
+
+        /**
+         * Registers for updates at the current rate, replacing any earlier registration.
+         */
+        @SuppressLint("MissingPermission")
+        private void requestUpdates() {
+            TrackingRate.Rate rate = mRate.getRate();
+            LocationRequestCompat request = new LocationRequestCompat.Builder(rate.intervalMillis)
+                    .setMinUpdateDistanceMeters(rate.minDistanceMeters)
+                    .setMaxUpdateDelayMillis(rate.maxDelayMillis)
+                    .setQuality(mRate.isStationary() ? LocationRequestCompat.QUALITY_BALANCED_POWER_ACCURACY
+                            : LocationRequestCompat.QUALITY_HIGH_ACCURACY)
+                    .build();
+            LocationManagerCompat.requestLocationUpdates(mLocationManager, mProvider, request, mExecutor,
+                    mLocationListener);
+        }
+
+        private void onRateChanged() {
+            mRateChanges++;
+            Log.i(TAG, "track: " + (mRate.isStationary() ? "stationary, " : "moving, ") + mRate.getRate());
+
+            // Both run on the main thread, where the trigger and sensor listeners are also called
+            mHandler.post(() -> {
+                synchronized (this) {
+                    if (mStopped) {
+                        return;
+                    }
+                    requestUpdates();
+
+                    // The accelerometer only needs to watch for the phone starting to move if
+                    // nothing cheaper can
+                    boolean stationary = mRate.isStationary();
+                    if (stationary && mSignificantMotion != null) {
+                        setAccelerometer(false);
+                        mSensorManager.requestTriggerSensor(mMotionListener, mSignificantMotion);
+                    } else {
+                        setAccelerometer(true);
+                    }
+                }
+            });
+        }
+
+        private void setAccelerometer(boolean on) {
+            if (mAccelerometer == null || on == mAccelerometerOn) {
+                return;
+            }
+            mAccelerometerOn = on;
+
+            if (on) {
+                mSensorManager.registerListener(mAccelerometerListener, mAccelerometer,
+                        ACCELEROMETER_PERIOD_MICROS, ACCELEROMETER_MAX_LATENCY_MICROS, mHandler);
+            } else {
+                mSensorManager.unregisterListener(mAccelerometerListener);
+            }
+        }
+
+        private void onLocation(@NonNull Location l) {
+            synchronized (this) {
+                if (mStopped) {
+                    return;
+                }
+                mFixes++;
+
+                float speed = l.hasSpeed() ? l.getSpeed() : Float.NaN;
+                float bearing = l.hasBearing() ? l.getBearing() : Float.NaN;
+                if (mRate.onFix(l.getElapsedRealtimeNanos() / 1_000_000, speed, bearing)) {
+                    onRateChanged();
+                }
+            }
+
+            mListener.accept(l);
+        }
+
+        private class AccelerometerListener implements SensorEventListener {
+            @Override
+            public void onSensorChanged(SensorEvent event) {
+                float x = event.values[0];
+                float y = event.values[1];
+                float z = event.values[2];
+
+                synchronized (Tracker.this) {
+                    if (!mStopped && mRate.onAcceleration(event.timestamp / 1_000_000,
+                            (float) Math.sqrt(x * x + y * y + z * z))) {
+                        onRateChanged();
+                    }
+                }
+            }
+
+            @Override
+            public void onAccuracyChanged(Sensor sensor, int accuracy) {
+            }
+        }
+
+        private class MotionListener extends TriggerEventListener {
+            // One-shot, it's requested again whenever the phone is found stationary
+            @Override
+            public void onTrigger(TriggerEvent event) {
+                synchronized (Tracker.this) {
+                    if (!mStopped && mRate.onMotion()) {
+                        onRateChanged();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -3,7 +3,9 @@ package github.me_asri.multiloc.location;
 import android.Manifest;
 import android.content.Context;
 import android.os.Build;
-import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.telephony.CellIdentityGsm;
 import android.telephony.CellIdentityLte;
 import android.telephony.CellIdentityNr;
@@ -13,105 +15,309 @@ import android.telephony.CellInfoGsm;
 import android.telephony.CellInfoLte;
 import android.telephony.CellInfoNr;
 import android.telephony.CellInfoWcdma;
+import android.telephony.PhoneStateListener;
+import android.telephony.TelephonyCallback;
 import android.telephony.TelephonyManager;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
 import androidx.annotation.RequiresPermission;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonDeserializationContext;
-import com.google.gson.JsonDeserializer;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonParseException;
-import com.google.gson.JsonSyntaxException;
+import github.me_asri.multiloc.location.BTSException.NoCellsException;
+import github.me_asri.multiloc.location.BTSException.QuotaExceededException;
+import github.me_asri.multiloc.location.BTSException.UnregisteredBTSException;
+import github.me_asri.multiloc.location.BTSException.UnknownCellTypeException;
 
-import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
-
-import okhttp3.OkHttpClient;
-import retrofit2.Call;
-import retrofit2.Callback;
-import retrofit2.Response;
-import retrofit2.Retrofit;
-import retrofit2.converter.gson.GsonConverterFactory;
-import retrofit2.http.GET;
-import retrofit2.http.Query;
-
+import java.util.function.Consumer;
+
+/**
+ * Locates the phone from the cells it sees, using OpenCelliD.
+ * <p>
+ * Cell scanning and response processing run on the given worker executor, which is also where
+ * callbacks are called unless the deadline expires first. Cells are resolved through
+ * {@link OpenCellIDClient} within the deadline, with serving cells ahead of neighbours in the
+ * request quota's queue.
+ */
 public class BTSLocation {
     private static final String TAG = BTSLocation.class.getName();
-    private static final String API_URL = "https://opencellid.org/ajax/";
+    private static final String TIMING_SOURCE = "BTS";
+    private static final int MULTI_CELL_MAX_IN_FLIGHT = 4;
+    private static final int LTE_MAX_TIMING_ADVANCE = 1282;
+    private static final double LTE_TIMING_ADVANCE_METERS = 78.12;
+    private static final int GSM_MAX_TIMING_ADVANCE = 219;
+    private static final double GSM_TIMING_ADVANCE_METERS = 553.85;
+    // Time a new serving cell has to last before tracking reports it, and going back to the last one
+    private static final long TRACK_DWELL_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    private static final long TRACK_RETURN_DWELL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final long TRACK_RETURN_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(2);
+
+    private final long timeoutMillis;
+    private final Executor executor;
+    private final OpenCellIDClient client;
+    private final CellLearner learner;
+    private final Timings timings;
+
+    /**
+     * @param latency recent latencies of OpenCelliD deciding when to hedge, kept across instances
+     */
+    public BTSLocation(HttpStack http, long timeoutMillis, Executor executor, CellCache cache, CellIndex index,
+                       CellLearner learner, RequestQuota quota, LatencyTracker latency) {
+        this(http, OpenCellIDClient.API_URL, timeoutMillis, executor, cache, index, learner, quota, latency);
+    }
 
-    private final OpenCellIDService service;
+    /**
+     * @param baseUrl URL of the OpenCelliD API, e.g. a local mock server
+     * @param quota   request limits of OpenCelliD, or {@code null}
+     * @param latency recent latencies of OpenCelliD deciding when to hedge, or {@code null} to never hedge
+     */
+    public BTSLocation(HttpStack http, String baseUrl, long timeoutMillis, Executor executor, CellCache cache,
+                       CellIndex index, CellLearner learner, RequestQuota quota, LatencyTracker latency) {
+        this.timeoutMillis = timeoutMillis;
+        this.executor = executor;
+        this.client = new OpenCellIDClient(http, baseUrl, executor, cache, index, quota, latency);
+        this.learner = learner;
+        this.timings = http.getTimings();
+    }
+
+    /**
+     * Warms up the connection to OpenCelliD ahead of a lookup.
+     */
+    public void preconnect() {
+        client.preconnect();
+    }
 
-    public BTSLocation(long timeoutMillis) {
-        GsonBuilder gsonBuilder = new GsonBuilder();
-        gsonBuilder.create();
+    /**
+     * Locates the phone using its serving cell.
+     *
+     * @param deadline bounds the whole lookup, or {@code null} to use the default timeout
+     */
+    @RequiresPermission(Manifest.permission.ACCESS_FINE_LOCATION)
+    public void getLocation(Context context, Deadline deadline, BiConsumer<Result, Throwable> callback) {
+        Deadline requestDeadline = (deadline != null) ? deadline : Deadline.after(timeoutMillis);
+        BiConsumer<Result, Throwable> boundCallback = requestDeadline.bind(callback);
+
+        requestCellInfo(context, requestDeadline, cellInfoList -> {
+            CellInfo cellInfo = cellInfoList.stream()
+                    .filter(CellInfo::isRegistered)
+                    .findFirst()
+                    .orElse(null);
+            if (cellInfo == null) {
+                // No cells found
+                boundCallback.accept(null, new NoCellsException());
+                return;
+            }
+
+            CellTuple cell = getCellTuple(cellInfo, null);
+            if (cell == null) {
+                boundCallback.accept(null, new UnknownCellTypeException());
+                return;
+            }
+
+            SingleFlight.Handle lookup = getBTSLocation(cell, RequestQuota.Priority.INTERACTIVE, requestDeadline,
+                    boundCallback);
+            if (lookup != null) {
+                requestDeadline.addCancelListener(lookup::cancel);
+            }
+        });
+    }
 
-        gsonBuilder.registerTypeAdapter(APIResult.class, new ResponseDeserializer());
-        Gson customGson = gsonBuilder.create();
+    /**
+     * Follows the serving cell, reporting a fix whenever the phone settles on a new one.
+     * <p>
+     * Cell changes are pushed by the modem rather than polled, and pass through a
+     * {@link HandoverFilter} so ping-pong handovers don't cause lookups. Settled cells are resolved
+     * at background priority, mostly from the cache once an area has been visited, so a phone
+     * that stays put costs next to nothing. The listener is called on the worker executor until
+     * the tracker is stopped. Must be called from the main thread.
+     */
+    @RequiresPermission(Manifest.permission.ACCESS_FINE_LOCATION)
+    public Tracker track(Context context, BiConsumer<Result, Throwable> listener) {
+        Tracker tracker = new Tracker(context.getSystemService(TelephonyManager.class), listener);
+        tracker.start();
+        return tracker;
+    }
+
+    /**
+     * Locates the phone using all visible serving and neighbour cells.
+     * <p>
+     * Cells are resolved concurrently, with at most {@link #MULTI_CELL_MAX_IN_FLIGHT} lookups
+     * running at a time, and combined into a single fix weighted by signal strength, timing
+     * advance and cell range. If the deadline expires with some of them resolved, the fix is made
+     * from those.
+     *
+     * @param deadline bounds the whole lookup, or {@code null} to use the default timeout
+     */
+    @RequiresPermission(Manifest.permission.ACCESS_FINE_LOCATION)
+    public void getMultiCellLocation(Context context, Deadline deadline, BiConsumer<Result, Throwable> callback) {
+        Deadline requestDeadline = (deadline != null) ? deadline : Deadline.after(timeoutMillis);
+        // Created ahead of the bound callback, so on expiry the lookups report before the timeout
+        Deadline lookupDeadline = requestDeadline.newChild();
+        BiConsumer<Result, Throwable> boundCallback = requestDeadline.bind(callback);
+
+        requestCellInfo(context, requestDeadline, cellInfoList -> {
+            CellInfo servingInfo = cellInfoList.stream()
+                    .filter(CellInfo::isRegistered)
+                    .findFirst()
+                    .orElse(null);
+            if (servingInfo == null) {
+                boundCallback.accept(null, new NoCellsException());
+                return;
+            }
+
+            CellTuple serving = getCellTuple(servingInfo, null);
+            if (serving == null) {
+                boundCallback.accept(null, new UnknownCellTypeException());
+                return;
+            }
+
+            List<CellTuple> cells = new ArrayList<>();
+            List<CellInfo> infos = new ArrayList<>();
+            cells.add(serving);
+            infos.add(servingInfo);
+            for (CellInfo cellInfo : cellInfoList) {
+                if (cellInfo == servingInfo) {
+                    continue;
+                }
+
+                // Neighbours usually don't report MCC/MNC, they're assumed to match the serving cell
+                CellTuple cell = getCellTuple(cellInfo, serving);
+                if (cell != null && !cells.contains(cell)) {
+                    cells.add(cell);
+                    infos.add(cellInfo);
+                }
+            }
+
+            Log.i(TAG, "getMultiCellLocation: resolving " + cells.size() + " cells");
+            new MultiCellLookup(cells, infos, lookupDeadline, boundCallback).start();
+        });
+    }
 
-        OkHttpClient httpClient = new OkHttpClient.Builder()
-                .readTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
-                .connectTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
-                .build();
+    /**
+     * Pairs the cells currently visible with a precise fix and feeds them to the learner.
+     *
+     * @param accuracy accuracy of the fix in meters
+     */
+    @RequiresPermission(Manifest.permission.ACCESS_FINE_LOCATION)
+    public void learn(Context context, double lat, double lon, double accuracy, long timeMillis) {
+        if (learner == null) {
+            return;
+        }
 
-        Retrofit retrofit = new Retrofit.Builder()
-                .baseUrl(API_URL)
-                .addConverterFactory(GsonConverterFactory.create(customGson))
-                .client(httpClient)
-                .build();
+        requestCellInfo(context, Deadline.after(timeoutMillis), cellInfoList -> {
+            CellTuple serving = null;
+            for (CellInfo cellInfo : cellInfoList) {
+                if (cellInfo.isRegistered()) {
+                    serving = getCellTuple(cellInfo, null);
+                    break;
+                }
+            }
+            if (serving == null || serving.mcc == null || serving.mnc == null) {
+                return;
+            }
 
-        service = retrofit.create(OpenCellIDService.class);
+            int learned = 0;
+            for (CellInfo cellInfo : cellInfoList) {
+                // Unlike lookups, only learn complete identities
+                CellTuple cell = getCellTuple(cellInfo, serving);
+                if (cell != null) {
+                    learner.observe(cell, lat, lon, accuracy, getSignalDbm(cellInfo), timeMillis);
+                    learned++;
+                }
+            }
+            Log.i(TAG, "learn: " + learned + " cells observed (" + learner.size() + " known)");
+        });
     }
 
+    /**
+     * Calls {@code consumer} with the current cell info, unless {@code deadline} is over by then.
+     */
     @RequiresPermission(Manifest.permission.ACCESS_FINE_LOCATION)
-    public void getLocation(Context context, CancellationSignal cancelSignal, BiConsumer<Result, Throwable> callback) {
+    private void requestCellInfo(Context context, Deadline deadline, Consumer<List<CellInfo>> consumer) {
         TelephonyManager tm = context.getSystemService(TelephonyManager.class);
+        long start = System.nanoTime();
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-            tm.requestCellInfoUpdate(context.getMainExecutor(), new TelephonyManager.CellInfoCallback() {
+            // The modem may take a while to answer, or not at all
+            tm.requestCellInfoUpdate(executor, new TelephonyManager.CellInfoCallback() {
                 @Override
                 public void onCellInfo(@NonNull List<CellInfo> cellInfoList) {
-                    CellInfo cell = cellInfoList.stream()
-                            .filter(CellInfo::isRegistered)
-                            .findFirst()
-                            .orElse(null);
-                    if (cell == null) {
-                        // No cells found
-                        callback.accept(null, new NoCellsException());
-                        return;
-                    }
-
-                    Call<APIResult> serviceCall = getBTSLocation(cell, callback);
-                    if (cancelSignal != null && serviceCall != null) {
-                        cancelSignal.setOnCancelListener(serviceCall::cancel);
+                    timings.recordSince(TIMING_SOURCE, Timings.Stage.CELL_INFO, start);
+                    if (!deadline.isDone()) {
+                        consumer.accept(cellInfoList);
                     }
                 }
             });
         } else {
-            CellInfo cellInfo = tm.getAllCellInfo().stream()
-                    .filter(CellInfo::isRegistered)
-                    .findFirst()
-                    .orElse(null);
-            if (cellInfo == null) {
-                callback.accept(null, new NoCellsException());
-                return;
+            // Blocks on a binder call to the modem
+            executor.execute(() -> {
+                List<CellInfo> cellInfoList = tm.getAllCellInfo();
+                timings.recordSince(TIMING_SOURCE, Timings.Stage.CELL_INFO, start);
+                if (!deadline.isDone()) {
+                    consumer.accept((cellInfoList != null) ? cellInfoList : Collections.emptyList());
+                }
+            });
+        }
+    }
+
+    /**
+     * @return handle detaching the callback from the lookup, or {@code null} if the cell was resolved locally
+     */
+    private SingleFlight.Handle getBTSLocation(CellTuple cell, RequestQuota.Priority priority, Deadline deadline,
+                                               BiConsumer<Result, Throwable> callback) {
+        Log.i(TAG, "getBTSLocation: " + cell);
+
+        // Our own observations beat OpenCelliD for the position, and cover cells it doesn't know
+        long start = System.nanoTime();
+        CellCache.Entry known = client.lookupLocal(cell);
+        CellCache.Entry local = (learner != null) ? learner.lookup(cell, known) : null;
+        boolean learned = (local != null);
+        if (local == null) {
+            local = known;
+        }
+        timings.recordSince(TIMING_SOURCE, Timings.Stage.CACHE, start);
+
+        if (local != null) {
+            if (learned) {
+                Log.i(TAG, "getBTSLocation: found in learned cells");
+            } else {
+                CellCache cache = client.getCache();
+                Log.i(TAG, "getBTSLocation: resolved locally" + ((cache == null) ? "" :
+                        " (cache hits: " + cache.getHitCount() + " misses: " + cache.getMissCount() + ")"));
             }
 
-            Call<APIResult> serviceCall = getBTSLocation(cellInfo, callback);
-            if (cancelSignal != null && serviceCall != null) {
-                cancelSignal.setOnCancelListener(serviceCall::cancel);
+            if (local.negative) {
+                callback.accept(null, new UnregisteredBTSException());
+            } else {
+                callback.accept(new Result(local.lon, local.lat, local.range, cell), null);
             }
+            return null;
         }
-    }
 
-    private Call<APIResult> getBTSLocation(CellInfo cellInfo, BiConsumer<Result, Throwable> callback) {
-        Call<APIResult> serviceCall;
+        return client.fetch(cell, priority, deadline::remainingMillis, (entry, t) -> {
+            if (entry == null) {
+                if (t instanceof QuotaExceededException) {
+                    Log.i(TAG, "getBTSLocation: " + t.getMessage() + " (" + client.getQuota().getMetrics() + ")");
+                }
+                callback.accept(null, t);
+            } else {
+                callback.accept(new Result(entry.lon, entry.lat, entry.range, cell), null);
+            }
+        });
+    }
 
+    /**
+     * @param serving cell to take MCC/MNC from when the given cell doesn't report them,
+     *                or {@code null} to require them
+     * @return identity of the cell, or {@code null} if the cell type is unknown or its identity is incomplete
+     */
+    private static CellTuple getCellTuple(CellInfo cellInfo, CellTuple serving) {
         String mcc, mnc;
         int tac;
         long ci;
@@ -119,182 +325,339 @@ public class BTSLocation {
             // ! UNTESTED !
 
             CellIdentityNr identity = (CellIdentityNr) ((CellInfoNr) cellInfo).getCellIdentity();
-
             mcc = identity.getMccString();
             mnc = identity.getMncString();
             tac = identity.getTac();
             ci = identity.getNci();
+            if (ci == Long.MAX_VALUE) {
+                return null;
+            }
         } else if (cellInfo instanceof CellInfoLte) {
             CellIdentityLte identity = ((CellInfoLte) cellInfo).getCellIdentity();
-            mcc = Integer.toString(identity.getMcc());
-            mnc = Integer.toString(identity.getMnc());
+            mcc = codeToString(identity.getMcc());
+            mnc = codeToString(identity.getMnc());
             tac = identity.getTac();
             ci = identity.getCi();
         } else if (cellInfo instanceof CellInfoWcdma) {
             CellIdentityWcdma identity = ((CellInfoWcdma) cellInfo).getCellIdentity();
-            mcc = Integer.toString(identity.getMcc());
-            mnc = Integer.toString(identity.getMnc());
+            mcc = codeToString(identity.getMcc());
+            mnc = codeToString(identity.getMnc());
             tac = identity.getLac();
             ci = identity.getCid();
         } else if (cellInfo instanceof CellInfoGsm) {
             CellIdentityGsm identity = ((CellInfoGsm) cellInfo).getCellIdentity();
-            mcc = Integer.toString(identity.getMcc());
-            mnc = Integer.toString(identity.getMnc());
+            mcc = codeToString(identity.getMcc());
+            mnc = codeToString(identity.getMnc());
             tac = identity.getLac();
             ci = identity.getCid();
         } else {
-            callback.accept(null, new UnknownCellTypeException());
             return null;
         }
 
-        Log.i(TAG, "getBTSLocation: " +
-                "MCC: " + mcc +
-                " MNC: " + mnc +
-                " TAC: " + tac +
-                " CI: " + ci);
-        serviceCall = service.getCellLocation(mcc, mnc, tac, ci);
+        if (serving == null) {
+            // Keep the serving cell as reported, OpenCelliD decides if it's valid
+            return new CellTuple(mcc, mnc, tac, ci);
+        }
 
-        serviceCall.enqueue(new Callback<APIResult>() {
-            @Override
-            public void onResponse(@NonNull Call<APIResult> call, @NonNull Response<APIResult> response) {
-                APIResult result = response.body();
-                if (result == null) {
-                    callback.accept(null, null);
-                } else {
-                    if (result.isSuccess()) {
-                        callback.accept(new Result(result.result, mcc, mnc, tac, ci), null);
-                    } else {
-                        callback.accept(null, BTSException.fromErrorResponse(result.error));
-                    }
+        if (tac == Integer.MAX_VALUE || ci == Integer.MAX_VALUE) {
+            return null;
+        }
+        if (mcc == null || mnc == null) {
+            mcc = serving.mcc;
+            mnc = serving.mnc;
+        }
+        return new CellTuple(mcc, mnc, tac, ci);
+    }
 
-                }
-            }
+    private static String codeToString(int code) {
+        return (code == Integer.MAX_VALUE) ? null : Integer.toString(code);
+    }
 
-            @Override
-            public void onFailure(@NonNull Call<APIResult> call, @NonNull Throwable t) {
-                if (!call.isCanceled()) {
-                    callback.accept(null, t);
-                }
-            }
-        });
+    private static int getSignalDbm(CellInfo cellInfo) {
+        int dbm;
+        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.Q && cellInfo instanceof CellInfoNr) {
+            dbm = ((CellInfoNr) cellInfo).getCellSignalStrength().getDbm();
+        } else if (cellInfo instanceof CellInfoLte) {
+            dbm = ((CellInfoLte) cellInfo).getCellSignalStrength().getDbm();
+        } else if (cellInfo instanceof CellInfoWcdma) {
+            dbm = ((CellInfoWcdma) cellInfo).getCellSignalStrength().getDbm();
+        } else if (cellInfo instanceof CellInfoGsm) {
+            dbm = ((CellInfoGsm) cellInfo).getCellSignalStrength().getDbm();
+        } else {
+            return CellPositioning.UNKNOWN_DBM;
+        }
+        return (dbm == Integer.MAX_VALUE) ? CellPositioning.UNKNOWN_DBM : dbm;
+    }
 
-        return serviceCall;
+    /**
+     * @return distance to the cell derived from timing advance in meters, or -1 if not available
+     */
+    private static double getTimingAdvanceDistance(CellInfo cellInfo) {
+        if (cellInfo instanceof CellInfoLte) {
+            int ta = ((CellInfoLte) cellInfo).getCellSignalStrength().getTimingAdvance();
+            if (ta >= 0 && ta <= LTE_MAX_TIMING_ADVANCE) {
+                return ta * LTE_TIMING_ADVANCE_METERS;
+            }
+        } else if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O && cellInfo instanceof CellInfoGsm) {
+            int ta = ((CellInfoGsm) cellInfo).getCellSignalStrength().getTimingAdvance();
+            if (ta >= 0 && ta <= GSM_MAX_TIMING_ADVANCE) {
+                return ta * GSM_TIMING_ADVANCE_METERS;
+            }
+        }
+        return -1;
     }
 
-    public static class Result {
-        public final double lon;
-        public final double lat;
-        public final int range;
+    private class MultiCellLookup {
+        private final List<CellTuple> mCells;
+        private final List<CellInfo> mInfos;
+        private final Deadline mDeadline;
+        private final BiConsumer<Result, Throwable> mCallback;
+
+        private final List<SingleFlight.Handle> mLookups = new ArrayList<>();
+        private final CellPositioning mPositioning = new CellPositioning();
+        private int mNext = 0;
+        private int mInFlight = 0;
+        private int mCompleted = 0;
+        private Throwable mServingError;
+        private boolean mCancelled = false;
+        private boolean mDone = false;
+
+        MultiCellLookup(List<CellTuple> cells, List<CellInfo> infos, Deadline deadline,
+                        BiConsumer<Result, Throwable> callback) {
+            mCells = cells;
+            mInfos = infos;
+            mDeadline = deadline;
+            mCallback = callback;
+
+            deadline.addCancelListener(this::onDeadline);
+        }
 
-        public final String mcc;
-        public final String mnc;
-        public final int tac;
-        public final long ci;
+        synchronized void start() {
+            while (mInFlight < MULTI_CELL_MAX_IN_FLIGHT && mNext < mCells.size() && !mCancelled) {
+                int position = mNext++;
+                mInFlight++;
+
+                // Only the serving cell is worth waiting for when requests are scarce
+                RequestQuota.Priority priority = (position == 0)
+                        ? RequestQuota.Priority.INTERACTIVE : RequestQuota.Priority.BACKGROUND;
+                SingleFlight.Handle lookup = getBTSLocation(mCells.get(position), priority, mDeadline,
+                        (r, t) -> onCellResult(position, r, t));
+                if (lookup != null) {
+                    mLookups.add(lookup);
+                }
+            }
+        }
 
-        public Result(LocationResult locationResult, String mcc, String mnc, int tac, long ci) {
-            this.lon = locationResult.lon;
-            this.lat = locationResult.lat;
-            this.range = locationResult.range;
+        private synchronized void onCellResult(int position, Result result, Throwable t) {
+            if (mDone) {
+                return;
+            }
+            mInFlight--;
+            mCompleted++;
+
+            if (result != null) {
+                CellInfo info = mInfos.get(position);
+                mPositioning.add(result.lat, result.lon, result.range,
+                        getSignalDbm(info), getTimingAdvanceDistance(info));
+            } else if (position == 0) {
+                mServingError = t;
+            }
 
-            this.mcc = mcc;
-            this.mnc = mnc;
-            this.tac = tac;
-            this.ci = ci;
+            if (mCompleted < mCells.size()) {
+                start();
+                return;
+            }
+            finish();
         }
-    }
 
-    private static class LocationResult {
-        public final double lon;
-        public final double lat;
-        public final int range;
+        private synchronized void onDeadline() {
+            if (mDone) {
+                return;
+            }
 
-        public LocationResult(String lon, String lat, String range) {
-            this.lon = Double.parseDouble(lon);
-            this.lat = Double.parseDouble(lat);
-            this.range = Integer.parseInt(range);
+            mCancelled = true;
+            for (SingleFlight.Handle lookup : mLookups) {
+                lookup.cancel();
+            }
+            // Better a fix from the cells resolved so far than a timeout, without any the bound
+            // callback reports one, or nothing if the request was cancelled
+            if (mDeadline.isExpired() && mPositioning.size() > 0) {
+                finish();
+            } else {
+                mDone = true;
+            }
         }
-    }
 
-    private static class APIResult {
-        public final String error;
-        public final LocationResult result;
+        private void finish() {
+            mDone = true;
 
+            double[] fix = mPositioning.solve();
+            if (fix == null) {
+                mCallback.accept(null, mServingError);
+                return;
+            }
 
-        public APIResult(LocationResult locationResult) {
-            this.result = locationResult;
-            this.error = null;
+            Log.i(TAG, "getMultiCellLocation: " + mPositioning.size() + "/" + mCells.size() + " cells resolved");
+            mCallback.accept(new Result(fix[1], fix[0], (int) Math.round(fix[2]), fix[2],
+                    mPositioning.size(), mCells.get(0)), null);
         }
+    }
 
-        public APIResult(String error) {
-            this.error = error;
-            this.result = null;
+    public class Tracker {
+        private final TelephonyManager mTelephonyManager;
+        private final BiConsumer<Result, Throwable> mListener;
+        private final HandoverFilter mFilter = new HandoverFilter(TRACK_DWELL_MILLIS, TRACK_RETURN_DWELL_MILLIS,
+                TRACK_RETURN_WINDOW_MILLIS);
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        // TelephonyCallback from Android 12 on, PhoneStateListener before
+        private Object mCallback;
+        private Deadline mLookupDeadline;
+        private long mUpdates = 0;
+        private boolean mStopped = false;
+
+        Tracker(TelephonyManager telephonyManager, BiConsumer<Result, Throwable> listener) {
+            mTelephonyManager = telephonyManager;
+            mListener = listener;
         }
 
-        public boolean isSuccess() {
-            return (error == null);
+        @SuppressWarnings("deprecation")
+        @RequiresPermission(Manifest.permission.ACCESS_FINE_LOCATION)
+        void start() {
+            // Both report the current cells right away, then only when they change
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+                CellInfoCallback callback = new CellInfoCallback();
+                mCallback = callback;
+                mTelephonyManager.registerTelephonyCallback(executor, callback);
+            } else {
+                CellInfoListener listener = new CellInfoListener();
+                mCallback = listener;
+                mTelephonyManager.listen(listener, PhoneStateListener.LISTEN_CELL_INFO);
+            }
         }
-    }
 
+        @SuppressWarnings("deprecation")
+        public synchronized void stop() {
+            if (mStopped) {
+                return;
+            }
+            mStopped = true;
 
-    private static class ResponseDeserializer implements JsonDeserializer<APIResult> {
-        @Override
-        public APIResult deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) throws JsonParseException {
-            Gson gson = new Gson();
-
-            try {
-                LocationResult locationResult = gson.fromJson(json, LocationResult.class);
-                return new APIResult(locationResult);
-            } catch (JsonSyntaxException e) {
-                return new APIResult(json.getAsString());
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+                mTelephonyManager.unregisterTelephonyCallback((TelephonyCallback) mCallback);
+            } else {
+                mTelephonyManager.listen((PhoneStateListener) mCallback, PhoneStateListener.LISTEN_NONE);
+            }
+            mHandler.removeCallbacksAndMessages(this);
+            if (mLookupDeadline != null) {
+                mLookupDeadline.cancel();
             }
+
+            Log.i(TAG, "track: stopped after " + mUpdates + " updates, "
+                    + mFilter.getSuppressedCount() + " handovers ignored");
         }
-    }
 
-    private interface OpenCellIDService {
-        @GET("searchCell.php")
-        Call<APIResult> getCellLocation(@Query("mcc") String mcc, @Query("mnc") String mnc, @Query("lac") int lac, @Query("cell_id") long ci);
-    }
+        private synchronized void onCellInfo(List<CellInfo> cellInfoList) {
+            if (mStopped || cellInfoList == null) {
+                return;
+            }
+            mUpdates++;
+
+            CellTuple serving = null;
+            for (CellInfo cellInfo : cellInfoList) {
+                if (cellInfo.isRegistered()) {
+                    serving = getCellTuple(cellInfo, null);
+                    break;
+                }
+            }
+            if (serving == null) {
+                // Out of service or an unknown cell type, the last fix still stands
+                return;
+            }
+
+            long dwellMillis = mFilter.observe(serving, SystemClock.elapsedRealtime());
+            if (dwellMillis < 0) {
+                return;
+            }
 
-    public static class BTSException extends RuntimeException {
-        public BTSException(String message) {
-            super(message);
+            CellTuple candidate = serving;
+            mHandler.postAtTime(() -> executor.execute(() -> onDwellOver(candidate)), this,
+                    SystemClock.uptimeMillis() + dwellMillis);
         }
 
-        public static BTSException fromErrorResponse(String error) {
-            switch (error) {
-                case "Invalid Request":
-                    return new InvalidRequestException();
+        private synchronized void onDwellOver(CellTuple cell) {
+            if (mStopped || !mFilter.confirm(cell, SystemClock.elapsedRealtime())) {
+                return;
+            }
+            Log.i(TAG, "track: serving cell " + cell + " (" + mUpdates + " updates, "
+                    + mFilter.getSuppressedCount() + " handovers ignored)");
 
-                case "false":
-                    return new UnregisteredBTSException();
+            // A newer cell makes the lookup of the previous one pointless
+            if (mLookupDeadline != null) {
+                mLookupDeadline.cancel();
+            }
+            Deadline deadline = Deadline.after(timeoutMillis);
+            mLookupDeadline = deadline;
 
-                default:
-                    return new BTSException("Unknown error from backend");
+            SingleFlight.Handle lookup = getBTSLocation(cell, RequestQuota.Priority.BACKGROUND, deadline,
+                    deadline.bind(mListener));
+            if (lookup != null) {
+                deadline.addCancelListener(lookup::cancel);
             }
         }
-    }
 
-    public static class NoCellsException extends BTSException {
-        public NoCellsException() {
-            super("Phone not connected to any BTS");
+        @RequiresApi(api = Build.VERSION_CODES.S)
+        private class CellInfoCallback extends TelephonyCallback implements TelephonyCallback.CellInfoListener {
+            @Override
+            public void onCellInfoChanged(@NonNull List<CellInfo> cellInfo) {
+                onCellInfo(cellInfo);
+            }
         }
-    }
 
-    public static class UnknownCellTypeException extends BTSException {
-        public UnknownCellTypeException() {
-            super("Phone connected to unknown BTS type");
+        @SuppressWarnings("deprecation")
+        private class CellInfoListener extends PhoneStateListener {
+            // Called on the main looper, which the listener was created on
+            @Override
+            public void onCellInfoChanged(List<CellInfo> cellInfo) {
+                executor.execute(() -> onCellInfo(cellInfo));
+            }
         }
     }
 
-    public static class InvalidRequestException extends BTSException {
-        public InvalidRequestException() {
-            super("Received invalid request error from OpenCelliD");
+    public static class Result {
+        public final double lon;
+        public final double lat;
+        public final int range;
+
+        public final String mcc;
+        public final String mnc;
+        public final int tac;
+        public final long ci;
+
+        /**
+         * Estimated uncertainty of the fix in meters.
+         */
+        public final double accuracy;
+        /**
+         * Number of cells the fix was computed from.
+         */
+        public final int cellCount;
+
+        public Result(double lon, double lat, int range, CellTuple cell) {
+            this(lon, lat, range, range, 1, cell);
         }
-    }
 
-    public static class UnregisteredBTSException extends BTSException {
-        public UnregisteredBTSException() {
-            super("BTS not registered in OpenCelliD");
+        public Result(double lon, double lat, int range, double accuracy, int cellCount, CellTuple cell) {
+            this.lon = lon;
+            this.lat = lat;
+            this.range = range;
+            this.accuracy = accuracy;
+            this.cellCount = cellCount;
+
+            this.mcc = cell.mcc;
+            this.mnc = cell.mnc;
+            this.tac = cell.tac;
+            this.ci = cell.ci;
         }
     }
 }
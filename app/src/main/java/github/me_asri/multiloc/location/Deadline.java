@@ -0,0 +1,136 @@
+package github.me_asri.multiloc.location;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+import okio.Timeout;
+
+/**
+ * End-to-end time budget of a location request.
+ * <p>
+ * Work started on behalf of the request registers a cancel listener, which is run once the
+ * deadline expires or the request is cancelled, e.g. because the user is no longer waiting for
+ * it. Callbacks wrapped with {@link #bind(BiConsumer)} are called at most once: with the result,
+ * or with a {@link TimeoutException} on expiry. Nothing is reported after a cancellation.
+ */
+public final class Deadline {
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // In SystemClock.uptimeMillis() time base
+    private final long mExpiresAt;
+    private final List<Runnable> mCancelListeners = new ArrayList<>();
+
+    private boolean mDone = false;
+    private boolean mExpired = false;
+
+    private Deadline(long expiresAt) {
+        mExpiresAt = expiresAt;
+
+        mHandler.postAtTime(() -> finish(true), this, expiresAt);
+    }
+
+    public static Deadline after(long millis) {
+        return new Deadline(SystemClock.uptimeMillis() + millis);
+    }
+
+    /**
+     * @return deadline expiring together with this one, which can be cancelled on its own
+     */
+    public Deadline newChild() {
+        Deadline child = new Deadline(mExpiresAt);
+        addCancelListener(() -> child.finish(isExpired()));
+        return child;
+    }
+
+    /**
+     * @return time left in milliseconds, 0 once expired or cancelled
+     */
+    public synchronized long remainingMillis() {
+        if (mDone) {
+            return 0;
+        }
+        return Math.max(0, mExpiresAt - SystemClock.uptimeMillis());
+    }
+
+    /**
+     * Applies the remaining budget to {@code timeout}, e.g. {@link retrofit2.Call#timeout()}.
+     */
+    public void applyTo(Timeout timeout) {
+        // A zero timeout means none at all, so always leave at least a millisecond
+        timeout.timeout(Math.max(1, remainingMillis()), TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    public synchronized boolean isExpired() {
+        return mExpired;
+    }
+
+    /**
+     * Cancels all work attached to this deadline without reporting anything to bound callbacks.
+     */
+    public void cancel() {
+        finish(false);
+    }
+
+    /**
+     * Registers {@code listener} to be run when the deadline expires or is cancelled. It's run
+     * right away if that already happened.
+     */
+    public void addCancelListener(Runnable listener) {
+        synchronized (this) {
+            if (!mDone) {
+                mCancelListeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    /**
+     * @return callback forwarding the first result to {@code callback}, or a
+     * {@link TimeoutException} if the deadline expires first
+     */
+    public <T> BiConsumer<T, Throwable> bind(BiConsumer<T, Throwable> callback) {
+        AtomicBoolean called = new AtomicBoolean(false);
+        addCancelListener(() -> {
+            if (called.compareAndSet(false, true) && isExpired()) {
+                callback.accept(null, new TimeoutException("Operation timed-out"));
+            }
+        });
+
+        return (r, t) -> {
+            if (called.compareAndSet(false, true)) {
+                callback.accept(r, t);
+            }
+        };
+    }
+
+    private void finish(boolean expired) {
+        List<Runnable> listeners;
+        synchronized (this) {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            mExpired = expired;
+
+            listeners = new ArrayList<>(mCancelListeners);
+            mCancelListeners.clear();
+        }
+
+        mHandler.removeCallbacksAndMessages(this);
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package github.me_asri.multiloc.location;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Races several providers against each other.
+ * <p>
+ * The first fix is reported as soon as it arrives and replaced whenever a more accurate one
+ * comes in. The race ends once a fix meets the accuracy target, the deadline passes or every
+ * provider has answered, cancelling whatever is still running. Each provider runs against its own
+ * child of the race's deadline. Listener methods are called on the main thread.
+ */
+public class FastestFix {
+    public interface Listener {
+        /**
+         * @param fix  new best fix, or {@code null} if the race ended on the fix last reported
+         * @param done whether the race is over and no further fixes will be reported
+         */
+        void onFix(Fix fix, boolean done);
+
+        /**
+         * Called if the race ended without any provider producing a fix.
+         *
+         * @param lastError last error reported by a provider, may be {@code null}
+         */
+        void onFailure(Throwable lastError);
+    }
+
+    private final List<LocationProvider> mProviders;
+    private final double mTargetAccuracy;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final List<Deadline> mProviderDeadlines = new ArrayList<>();
+
+    private Listener mListener;
+    private Fix mBest;
+    // Last fix given to the listener, which mustn't see it twice
+    private Fix mReported;
+    private Throwable mLastError;
+    private int mPending;
+    private boolean mDone = false;
+
+    /**
+     * @param targetAccuracy accuracy in meters at which the race stops early
+     */
+    public FastestFix(List<LocationProvider> providers, double targetAccuracy) {
+        mProviders = new ArrayList<>(providers);
+        mTargetAccuracy = targetAccuracy;
+    }
+
+    /**
+     * @param deadline stops the race with the best fix so far when it expires, or silently
+     *                 when it's cancelled
+     */
+    public void start(Deadline deadline, Listener listener) {
+        mListener = listener;
+        mPending = mProviders.size();
+
+        for (LocationProvider provider : mProviders) {
+            Deadline providerDeadline = deadline.newChild();
+            mProviderDeadlines.add(providerDeadline);
+
+            provider.getLocation(providerDeadline, (fix, t) -> mHandler.post(() -> onResult(fix, t)));
+        }
+        deadline.addCancelListener(() -> mHandler.post(() -> {
+            if (deadline.isExpired()) {
+                finish();
+            } else {
+                cancel();
+            }
+        }));
+
+        if (mProviders.isEmpty()) {
+            finish();
+        }
+    }
+
+    /**
+     * Stops the race without notifying the listener.
+     */
+    public void cancel() {
+        if (mDone) {
+            return;
+        }
+
+        mDone = true;
+        cancelProviders();
+    }
+
+    public boolean isDone() {
+        return mDone;
+    }
+
+    private void onResult(Fix fix, Throwable t) {
+        if (mDone) {
+            return;
+        }
+        mPending--;
+
+        if (fix == null) {
+            if (t != null) {
+                mLastError = t;
+            }
+        } else if (fix.isBetterThan(mBest)) {
+            mBest = fix;
+
+            if (fix.accuracy <= mTargetAccuracy || mPending == 0) {
+                finish();
+            } else {
+                mReported = fix;
+                mListener.onFix(fix, false);
+            }
+            return;
+        }
+
+        if (mPending == 0) {
+            finish();
+        }
+    }
+
+    private void finish() {
+        if (mDone) {
+            return;
+        }
+
+        mDone = true;
+        cancelProviders();
+
+        if (mBest != null) {
+            mListener.onFix((mBest != mReported) ? mBest : null, true);
+        } else {
+            mListener.onFailure(mLastError);
+        }
+    }
+
+    private void cancelProviders() {
+        for (Deadline providerDeadline : mProviderDeadlines) {
+            providerDeadline.cancel();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package github.me_asri.multiloc.location;
+
+/**
+ * Location estimate produced by any of the providers.
+ */
+public class Fix {
+    public final String provider;
+    public final double lat;
+    public final double lon;
+    /**
+     * Estimated horizontal accuracy in meters.
+     */
+    public final double accuracy;
+    public final long timeMillis;
+
+    public Fix(String provider, double lat, double lon, double accuracy, long timeMillis) {
+        this.provider = provider;
+        this.lat = lat;
+        this.lon = lon;
+        this.accuracy = accuracy;
+        this.timeMillis = timeMillis;
+    }
+
+    public boolean isBetterThan(Fix other) {
+        return other == null || accuracy < other.accuracy;
+    }
+}
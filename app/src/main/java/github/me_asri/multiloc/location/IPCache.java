@@ -0,0 +1,239 @@
+package github.me_asri.multiloc.location;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.LinkAddress;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+
+import androidx.annotation.NonNull;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the last IP geolocation result of each network.
+ * <p>
+ * The public IP, and with it the answer of ip-api, only changes when the network does, so
+ * entries are dropped when the default network switches or the link properties of a network
+ * change. Entries are persisted so a cold start on the same network can answer right away.
+ * <p>
+ * The public IP of an entry is trusted for longer than its location, which lets
+ * {@link IPRangeIndex} locate the phone offline once ip-api has told us the address.
+ */
+public class IPCache {
+    private static final String PREF_ENTRIES = "entries";
+    // Upper bound for changes invisible to us, e.g. the router getting a new WAN address
+    private static final long MAX_AGE_MILLIS = TimeUnit.HOURS.toMillis(6);
+    private static final long ADDRESS_MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private final ConnectivityManager mConnectivityManager;
+    private final SharedPreferences mPrefs;
+
+    private final Map<Long, Entry> mEntries = new HashMap<>();
+    private final Map<Long, String> mLinkFingerprints = new HashMap<>();
+
+    public IPCache(Context context, SharedPreferences prefs) {
+        mConnectivityManager = context.getSystemService(ConnectivityManager.class);
+        mPrefs = prefs;
+
+        load();
+
+        if (mConnectivityManager != null) {
+            mConnectivityManager.registerDefaultNetworkCallback(new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onAvailable(@NonNull Network network) {
+                    onDefaultNetworkChanged(network);
+                }
+
+                @Override
+                public void onLinkPropertiesChanged(@NonNull Network network, @NonNull LinkProperties linkProperties) {
+                    onLinkChanged(network, linkProperties);
+                }
+
+                @Override
+                public void onLost(@NonNull Network network) {
+                    invalidate(network.getNetworkHandle());
+                }
+            });
+        }
+    }
+
+    /**
+     * @return cached result for the currently active network, or {@code null} if there is none
+     */
+    public synchronized IPLocationResult get() {
+        Entry entry = getEntry(MAX_AGE_MILLIS);
+        return (entry != null) ? entry.result : null;
+    }
+
+    /**
+     * @return public IP last seen by ip-api through the currently active network, or {@code null}
+     * if there is none
+     */
+    public synchronized String getPublicAddress() {
+        Entry entry = getEntry(ADDRESS_MAX_AGE_MILLIS);
+        return (entry != null) ? entry.result.query : null;
+    }
+
+    /**
+     * Stores a result obtained through the currently active network.
+     */
+    public synchronized void put(IPLocationResult result) {
+        Network network = getActiveNetwork();
+        if (network == null || result == null) {
+            return;
+        }
+
+        long handle = network.getNetworkHandle();
+        String fingerprint = mLinkFingerprints.get(handle);
+        if (fingerprint == null) {
+            fingerprint = getLinkFingerprint(mConnectivityManager.getLinkProperties(network));
+            mLinkFingerprints.put(handle, fingerprint);
+        }
+
+        mEntries.put(handle, new Entry(handle, getTransport(network), fingerprint, result, System.currentTimeMillis()));
+        save();
+    }
+
+    public synchronized void invalidate(long networkHandle) {
+        if (mEntries.remove(networkHandle) != null) {
+            save();
+        }
+    }
+
+    private synchronized void onDefaultNetworkChanged(Network network) {
+        // Keep only the new default network, the public IP of the others is of no use now
+        long handle = network.getNetworkHandle();
+        boolean changed = false;
+        for (Iterator<Long> it = mEntries.keySet().iterator(); it.hasNext(); ) {
+            if (it.next() != handle) {
+                it.remove();
+                changed = true;
+            }
+        }
+
+        if (changed) {
+            save();
+        }
+    }
+
+    private synchronized void onLinkChanged(Network network, LinkProperties linkProperties) {
+        long handle = network.getNetworkHandle();
+        String fingerprint = getLinkFingerprint(linkProperties);
+        mLinkFingerprints.put(handle, fingerprint);
+
+        // The first callback after registration delivers the current state, which matches
+        // the stored fingerprint unless something changed while we weren't listening
+        Entry entry = mEntries.get(handle);
+        if (entry != null && !entry.linkFingerprint.equals(fingerprint)) {
+            invalidate(handle);
+        }
+    }
+
+    private Entry getEntry(long maxAgeMillis) {
+        Network network = getActiveNetwork();
+        if (network == null) {
+            return null;
+        }
+
+        Entry entry = mEntries.get(network.getNetworkHandle());
+        if (entry == null) {
+            return null;
+        }
+
+        long age = System.currentTimeMillis() - entry.timestamp;
+        if (age > ADDRESS_MAX_AGE_MILLIS || !entry.transport.equals(getTransport(network))) {
+            invalidate(entry.networkHandle);
+            return null;
+        }
+        return (age <= maxAgeMillis) ? entry : null;
+    }
+
+    private Network getActiveNetwork() {
+        return (mConnectivityManager != null) ? mConnectivityManager.getActiveNetwork() : null;
+    }
+
+    private String getTransport(Network network) {
+        NetworkCapabilities capabilities = mConnectivityManager.getNetworkCapabilities(network);
+        if (capabilities == null) {
+            return "unknown";
+        } else if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_VPN)) {
+            return "vpn";
+        } else if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_WIFI)) {
+            return "wifi";
+        } else if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR)) {
+            return "cellular";
+        } else if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_ETHERNET)) {
+            return "ethernet";
+        }
+        return "other";
+    }
+
+    private static String getLinkFingerprint(LinkProperties linkProperties) {
+        if (linkProperties == null) {
+            return "";
+        }
+
+        List<String> addresses = new ArrayList<>();
+        for (LinkAddress address : linkProperties.getLinkAddresses()) {
+            addresses.add(address.toString());
+        }
+        Collections.sort(addresses);
+
+        return linkProperties.getInterfaceName() + addresses;
+    }
+
+    private void load() {
+        String json = mPrefs.getString(PREF_ENTRIES, null);
+        if (json == null) {
+            return;
+        }
+
+        try {
+            List<Entry> entries = IPLocationResult.GSON.fromJson(json, new TypeToken<List<Entry>>() {
+            }.getType());
+            if (entries != null) {
+                for (Entry entry : entries) {
+                    if (entry != null && entry.result != null && entry.transport != null && entry.linkFingerprint != null) {
+                        mEntries.put(entry.networkHandle, entry);
+                    }
+                }
+            }
+        } catch (JsonParseException e) {
+            mPrefs.edit().remove(PREF_ENTRIES).apply();
+        }
+    }
+
+    private void save() {
+        mPrefs.edit()
+                .putString(PREF_ENTRIES, IPLocationResult.GSON.toJson(new ArrayList<>(mEntries.values())))
+                .apply();
+    }
+
+    private static class Entry {
+        final long networkHandle;
+        final String transport;
+        final String linkFingerprint;
+        final IPLocationResult result;
+        final long timestamp;
+
+        Entry(long networkHandle, String transport, String linkFingerprint, IPLocationResult result, long timestamp) {
+            this.networkHandle = networkHandle;
+            this.transport = transport;
+            this.linkFingerprint = linkFingerprint;
+            this.result = result;
+            this.timestamp = timestamp;
+        }
+    }
+}
@@ -1,98 +1,253 @@
 package github.me_asri.multiloc.location;
 
-import android.os.CancellationSignal;
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.LinkAddress;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.util.Log;
 
 import androidx.annotation.NonNull;
 
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
 
-import okhttp3.OkHttpClient;
+import okhttp3.HttpUrl;
 import retrofit2.Call;
 import retrofit2.Callback;
 import retrofit2.Response;
-import retrofit2.Retrofit;
-import retrofit2.converter.gson.GsonConverterFactory;
 import retrofit2.http.GET;
 
+/**
+ * Locates the phone by its public IP, using ip-api.com.
+ * <p>
+ * With an {@link IPRangeIndex}, the public IP is located offline as soon as it's known, either
+ * from a global address of the active network or from an earlier ip-api answer on it.
+ * <p>
+ * With an {@link IPBatchClient}, a global address of the active network the index doesn't
+ * cover is located by itself, rather than by the address ip-api sees, which is only ever the
+ * IPv4 one and may belong to a NAT64 gateway far away.
+ */
 public class IPLocation {
     private static final String API_URL = "http://ip-api.com/json/";
+    private static final String TAG = IPLocation.class.getName();
+    private static final String TIMING_SOURCE = "IP";
+    // What is shown and cached, the rest of a batch answer would go unused
+    private static final Set<IPBatchClient.Field> BATCH_FIELDS = EnumSet.of(
+            IPBatchClient.Field.COUNTRY, IPBatchClient.Field.COUNTRY_CODE, IPBatchClient.Field.REGION_NAME,
+            IPBatchClient.Field.CITY, IPBatchClient.Field.LAT, IPBatchClient.Field.LON,
+            IPBatchClient.Field.ISP, IPBatchClient.Field.AS, IPBatchClient.Field.QUERY);
+    private static final Runnable CANCELLED = () -> {
+    };
 
+    private final long mTimeoutMillis;
     private final APIService mService;
+    private final ConnectivityManager mConnectivityManager;
+    private final IPCache mCache;
+    private final IPRangeIndex mRangeIndex;
+    private final IPBatchClient mBatchClient;
+    private final Timings mTimings;
+    private final SingleFlight<Long, IPLocationResult> mInFlight = new SingleFlight<>();
 
-    public IPLocation(long timeoutMillis) {
-        OkHttpClient httpClient = new OkHttpClient.Builder()
-                .readTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
-                .connectTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
-                .build();
+    /**
+     * @param executor where responses are processed and callbacks are called
+     */
+    public IPLocation(Context context, HttpStack http, long timeoutMillis, Executor executor) {
+        this(context, http, timeoutMillis, executor, null);
+    }
+
+    public IPLocation(Context context, HttpStack http, long timeoutMillis, Executor executor, IPCache cache) {
+        this(context, http, timeoutMillis, executor, cache, null);
+    }
+
+    /**
+     * @param rangeIndex offline IP ranges, or {@code null} to always ask ip-api
+     */
+    public IPLocation(Context context, HttpStack http, long timeoutMillis, Executor executor, IPCache cache,
+                      IPRangeIndex rangeIndex) {
+        this(context, http, timeoutMillis, executor, cache, rangeIndex, null);
+    }
+
+    /**
+     * @param batchClient locates global addresses of the active network itself, or {@code null}
+     *                    to only ask ip-api about the address it sees
+     */
+    public IPLocation(Context context, HttpStack http, long timeoutMillis, Executor executor, IPCache cache,
+                      IPRangeIndex rangeIndex, IPBatchClient batchClient) {
+        mTimeoutMillis = timeoutMillis;
+        mCache = cache;
+        mRangeIndex = rangeIndex;
+        mBatchClient = batchClient;
+        mTimings = http.getTimings();
+        mConnectivityManager = context.getSystemService(ConnectivityManager.class);
+
+        // The answer depends on the network, caching it is up to IPCache
+        http.overrideCacheControl(HttpUrl.get(API_URL).resolve("/").toString(), "no-store");
+        mService = http.newRetrofit(API_URL, IPLocationResult.GSON, executor).create(APIService.class);
+    }
+
+    /**
+     * @param deadline bounds the lookup, or {@code null} to use the default timeout
+     */
+    public void getLocation(Deadline deadline, BiConsumer<IPLocationResult, Throwable> callback) {
+        long start = System.nanoTime();
+        IPLocationResult local = (mCache != null) ? mCache.get() : null;
+        if (local == null) {
+            local = getOfflineLocation();
+        }
+        mTimings.recordSince(TIMING_SOURCE, Timings.Stage.CACHE, start);
+
+        if (local != null) {
+            callback.accept(local, null);
+            return;
+        }
 
-        Retrofit retrofit = new Retrofit.Builder()
-                .baseUrl(API_URL)
-                .addConverterFactory(GsonConverterFactory.create())
-                .client(httpClient)
-                .build();
+        Deadline requestDeadline = (deadline != null) ? deadline : Deadline.after(mTimeoutMillis);
 
-        mService = retrofit.create(APIService.class);
+        // The answer depends only on the network we're connected through, so concurrent
+        // requests on the same network share a single call
+        SingleFlight.Handle lookup = mInFlight.execute(getNetworkKey(), requestDeadline::remainingMillis, (remainingMillis, completion) -> {
+            String address = (mBatchClient != null) ? getLocalPublicAddress() : null;
+            return (address != null)
+                    ? requestAddressLocation(address, remainingMillis, completion)
+                    : requestLocation(remainingMillis, completion);
+        }, requestDeadline.bind(callback));
+
+        requestDeadline.addCancelListener(lookup::cancel);
     }
 
-    public void getLocation(CancellationSignal cancelSignal, BiConsumer<Result, Throwable> callback) {
-        Call<Result> serviceCall = mService.getLocation();
-        serviceCall.enqueue(new Callback<Result>() {
+    /**
+     * Asks ip-api about the address it sees.
+     *
+     * @return cancels the request
+     */
+    private Runnable requestLocation(LongSupplier remainingMillis, BiConsumer<IPLocationResult, Throwable> completion) {
+        Call<IPLocationResult> serviceCall = mService.getLocation();
+        // Shared with callers joining later, which may have more time than this one. Each
+        // caller gives up on its own deadline, and the call is cancelled once all of them did
+        serviceCall.timeout().timeout(Math.max(mTimeoutMillis, remainingMillis.getAsLong()), TimeUnit.MILLISECONDS);
+        serviceCall.enqueue(new Callback<IPLocationResult>() {
             @Override
-            public void onResponse(@NonNull Call<Result> call, @NonNull Response<Result> response) {
-                Result result = response.body();
-                callback.accept(result, null);
+            public void onResponse(@NonNull Call<IPLocationResult> call, @NonNull Response<IPLocationResult> response) {
+                IPLocationResult result = response.body();
+                if (mCache != null && result != null && result.isSuccess()) {
+                    mCache.put(result);
+                }
+                completion.accept(result, null);
             }
 
             @Override
-            public void onFailure(@NonNull Call<Result> call, @NonNull Throwable t) {
-                if (!call.isCanceled()) {
-                    callback.accept(null, t);
+            public void onFailure(@NonNull Call<IPLocationResult> call, @NonNull Throwable t) {
+                // Ignored by SingleFlight if we cancelled the call ourselves
+                completion.accept(null, t);
+            }
+        });
+
+        return serviceCall::cancel;
+    }
+
+    /**
+     * Asks ip-api about {@code address} through the batch endpoint, falling back to the address
+     * it sees if that fails, e.g. for a prefix too new to be known.
+     *
+     * @return cancels whichever request is running
+     */
+    private Runnable requestAddressLocation(String address, LongSupplier remainingMillis,
+                                            BiConsumer<IPLocationResult, Throwable> completion) {
+        AtomicReference<Runnable> cancel = new AtomicReference<>();
+        IPBatchClient.Batch batch = mBatchClient.locate(Collections.singletonList(address), BATCH_FIELDS, (results, t) -> {
+            IPLocationResult result = (results != null) ? results.get(0) : null;
+            if (result != null && result.isSuccess()) {
+                if (mCache != null) {
+                    mCache.put(result);
                 }
+                completion.accept(result, null);
+                return;
+            }
+
+            Log.i(TAG, "requestAddressLocation: " + address + " not located ("
+                    + ((result != null) ? result.message : t) + "), asking for the address seen");
+            Runnable fallback = requestLocation(remainingMillis, completion);
+            if (cancel.getAndSet(fallback) == CANCELLED) {
+                fallback.run();
             }
         });
+        cancel.compareAndSet(null, batch::cancel);
+
+        return () -> {
+            Runnable current = cancel.getAndSet(CANCELLED);
+            if (current != null && current != CANCELLED) {
+                current.run();
+            }
+        };
+    }
+
+    /**
+     * @return location of the public IP from the range index, or {@code null} if the address
+     * isn't known yet or not covered
+     */
+    private IPLocationResult getOfflineLocation() {
+        if (mRangeIndex == null || mRangeIndex.size() == 0) {
+            return null;
+        }
+
+        String address = getLocalPublicAddress();
+        if (address == null && mCache != null) {
+            address = mCache.getPublicAddress();
+        }
+        return (address != null) ? mRangeIndex.lookup(address) : null;
+    }
 
-        if (cancelSignal != null) {
-            cancelSignal.setOnCancelListener(serviceCall::cancel);
+    /**
+     * @return globally routable address of the active network, e.g. an IPv6 address on mobile
+     * data, which geolocates like the address ip-api would see
+     */
+    private String getLocalPublicAddress() {
+        Network network = (mConnectivityManager != null) ? mConnectivityManager.getActiveNetwork() : null;
+        LinkProperties linkProperties = (network != null) ? mConnectivityManager.getLinkProperties(network) : null;
+        if (linkProperties == null) {
+            return null;
+        }
+
+        for (LinkAddress linkAddress : linkProperties.getLinkAddresses()) {
+            InetAddress address = linkAddress.getAddress();
+            if (isGlobal(address)) {
+                return address.getHostAddress();
+            }
         }
+        return null;
     }
 
-    public static class Result {
-        public final String status;
-        public final String country;
-        public final String countryCode;
-        public final String region;
-        public final String regionName;
-        public final String city;
-        public final String zip;
-        public final double lat;
-        public final double lon;
-        public final String timezone;
-        public final String isp;
-        public final String org;
-        public final String as;
-        public final String query;
-
-        public Result(String status, String country, String countryCode, String region, String regionName, String city, String zip, double lat, double lon, String timezone, String isp, String org, String as, String query) {
-            this.status = status;
-            this.country = country;
-            this.countryCode = countryCode;
-            this.region = region;
-            this.regionName = regionName;
-            this.city = city;
-            this.zip = zip;
-            this.lat = lat;
-            this.lon = lon;
-            this.timezone = timezone;
-            this.isp = isp;
-            this.org = org;
-            this.as = as;
-            this.query = query;
+    private static boolean isGlobal(InetAddress address) {
+        if (address.isAnyLocalAddress() || address.isLoopbackAddress() || address.isLinkLocalAddress()
+                || address.isSiteLocalAddress() || address.isMulticastAddress()) {
+            return false;
         }
+
+        byte[] bytes = address.getAddress();
+        if (address instanceof Inet4Address) {
+            // Carrier-grade NAT, 100.64.0.0/10
+            return !(bytes[0] == 100 && (bytes[1] & 0xC0) == 64);
+        }
+        // Unique local, fc00::/7
+        return (bytes[0] & 0xFE) != 0xFC;
+    }
+
+    private long getNetworkKey() {
+        Network network = (mConnectivityManager != null) ? mConnectivityManager.getActiveNetwork() : null;
+        return (network != null) ? network.getNetworkHandle() : 0;
     }
 
     private interface APIService {
         @GET("/json")
-        Call<Result> getLocation();
+        Call<IPLocationResult> getLocation();
     }
 }
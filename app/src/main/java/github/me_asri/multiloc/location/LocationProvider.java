@@ -0,0 +1,13 @@
+package github.me_asri.multiloc.location;
+
+import java.util.function.BiConsumer;
+
+/**
+ * Common asynchronous interface of the location sources.
+ */
+public interface LocationProvider {
+    /**
+     * Requests a single fix. The callback isn't called once {@code deadline} is cancelled.
+     */
+    void getLocation(Deadline deadline, BiConsumer<Fix, Throwable> callback);
+}
@@ -0,0 +1,28 @@
+package github.me_asri.multiloc.location;
+
+/**
+ * Errors reported while locating the phone by the Wi-Fi access points it sees.
+ */
+public class WifiException extends RuntimeException {
+    public WifiException(String message) {
+        super(message);
+    }
+
+    public static class ScanUnavailableException extends WifiException {
+        public ScanUnavailableException() {
+            super("Wi-Fi scanning not available");
+        }
+    }
+
+    public static class NoAccessPointsException extends WifiException {
+        public NoAccessPointsException() {
+            super("No Wi-Fi access points in range");
+        }
+    }
+
+    public static class UnknownAccessPointsException extends WifiException {
+        public UnknownAccessPointsException() {
+            super("No known Wi-Fi access points in range");
+        }
+    }
+}
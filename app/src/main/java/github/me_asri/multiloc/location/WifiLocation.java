@@ -0,0 +1,294 @@
+package github.me_asri.multiloc.location;
+
+import android.Manifest;
+import android.annotation.SuppressLint;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.RequiresPermission;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import github.me_asri.multiloc.location.WifiException.NoAccessPointsException;
+import github.me_asri.multiloc.location.WifiException.ScanUnavailableException;
+import github.me_asri.multiloc.location.WifiException.UnknownAccessPointsException;
+
+/**
+ * Locates the phone from the Wi-Fi access points it sees, without any network access.
+ * <p>
+ * BSSIDs of the latest scan are looked up among the access points learned from the phone's own
+ * GPS fixes, then in the imported {@link BssidIndex}, and combined into a single fix weighted by
+ * received signal strength. Scan results are processed and callbacks are called on the given
+ * worker executor, unless the deadline expires first.
+ */
+public class WifiLocation {
+    private static final String TAG = WifiLocation.class.getName();
+
+    // Older scan results trigger a new scan before locating
+    private static final long MAX_SCAN_AGE_MILLIS = 30_000;
+    // Fraction of the remaining time spent waiting for a new scan before settling for the last one
+    private static final double SCAN_WAIT_FRACTION = 0.5;
+    // Older scan results aren't learned from
+    private static final long LEARN_MAX_SCAN_AGE_MILLIS = 10_000;
+
+    // Access points have a learner of their own, so only the low half of its keys is used
+    private static final long LEARNER_KEY_HIGH = 0;
+
+    // Log-distance path loss model for distances estimated from RSSI
+    private static final double RSSI_AT_1M = -40;
+    private static final double PATH_LOSS_EXPONENT = 3;
+    private static final double MIN_SIGMA_METERS = 5;
+    private static final int DEFAULT_RANGE_METERS = 100;
+    private static final int STRONGEST_DBM = -30;
+    private static final int WEAKEST_DBM = -95;
+
+    // Set in randomized and hotspot MAC addresses, which don't stay in one place
+    private static final long LOCALLY_ADMINISTERED_BIT = 0x02L << 40;
+    // SSID suffix of access points that opted out of location databases
+    private static final String NOMAP_SUFFIX = "_nomap";
+
+    private final Context mContext;
+    private final WifiManager mWifiManager;
+    private final long mTimeoutMillis;
+    private final Executor mExecutor;
+    private final BssidIndex mIndex;
+    private final CellLearner mLearner;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * @param index   imported access point locations, or {@code null}
+     * @param learner access point locations learned from GPS fixes, or {@code null}
+     */
+    public WifiLocation(Context context, long timeoutMillis, Executor executor, BssidIndex index, CellLearner learner) {
+        mContext = context.getApplicationContext();
+        mWifiManager = mContext.getSystemService(WifiManager.class);
+        mTimeoutMillis = timeoutMillis;
+        mExecutor = executor;
+        mIndex = index;
+        mLearner = learner;
+    }
+
+    /**
+     * Locates the phone using the visible access points. Recent scan results are used right
+     * away, otherwise a new scan is requested.
+     *
+     * @param deadline bounds the whole lookup, or {@code null} to use the default timeout
+     */
+    @RequiresPermission(allOf = {Manifest.permission.ACCESS_FINE_LOCATION, Manifest.permission.ACCESS_WIFI_STATE})
+    public void getLocation(Deadline deadline, BiConsumer<Result, Throwable> callback) {
+        Deadline requestDeadline = (deadline != null) ? deadline : Deadline.after(mTimeoutMillis);
+        BiConsumer<Result, Throwable> boundCallback = requestDeadline.bind(callback);
+
+        if (!mWifiManager.isWifiEnabled() && !mWifiManager.isScanAlwaysAvailable()) {
+            boundCallback.accept(null, new ScanUnavailableException());
+            return;
+        }
+
+        List<ScanResult> lastResults = getScanResults();
+        if (!lastResults.isEmpty() && getScanAgeMillis(lastResults) <= MAX_SCAN_AGE_MILLIS) {
+            mExecutor.execute(() -> locate(lastResults, boundCallback));
+        } else {
+            new ScanRequest(requestDeadline, results -> locate(results, boundCallback)).start();
+        }
+    }
+
+    /**
+     * Pairs the access points of the last scan with a precise fix and feeds them to the learner.
+     * Doesn't request a scan of its own.
+     *
+     * @param accuracy accuracy of the fix in meters
+     */
+    @RequiresPermission(allOf = {Manifest.permission.ACCESS_FINE_LOCATION, Manifest.permission.ACCESS_WIFI_STATE})
+    public void learn(double lat, double lon, double accuracy, long timeMillis) {
+        if (mLearner == null) {
+            return;
+        }
+
+        mExecutor.execute(() -> {
+            long now = SystemClock.elapsedRealtime();
+
+            int learned = 0;
+            for (ScanResult result : getScanResults()) {
+                long bssid = getBssid(result);
+                if (bssid < 0 || now - result.timestamp / 1000 > LEARN_MAX_SCAN_AGE_MILLIS) {
+                    continue;
+                }
+
+                double strength = (Math.max(WEAKEST_DBM, Math.min(STRONGEST_DBM, result.level)) - WEAKEST_DBM)
+                        / (double) (STRONGEST_DBM - WEAKEST_DBM);
+                mLearner.observe(LEARNER_KEY_HIGH, bssid, lat, lon, accuracy, strength, timeMillis);
+                learned++;
+            }
+            Log.i(TAG, "learn: " + learned + " access points observed (" + mLearner.size() + " known)");
+        });
+    }
+
+    private void locate(List<ScanResult> results, BiConsumer<Result, Throwable> callback) {
+        if (results.isEmpty()) {
+            callback.accept(null, new NoAccessPointsException());
+            return;
+        }
+
+        CellPositioning positioning = new CellPositioning(MIN_SIGMA_METERS);
+        for (ScanResult result : results) {
+            long bssid = getBssid(result);
+            if (bssid < 0) {
+                continue;
+            }
+
+            CellCache.Entry entry = lookup(bssid);
+            if (entry != null) {
+                positioning.add(entry.lat, entry.lon, entry.range, CellPositioning.UNKNOWN_DBM,
+                        estimateDistance(result.level, entry.range));
+            }
+        }
+
+        double[] fix = positioning.solve();
+        if (fix == null) {
+            callback.accept(null, new UnknownAccessPointsException());
+            return;
+        }
+
+        Log.i(TAG, "locate: " + positioning.size() + " of " + results.size() + " access points known");
+        callback.accept(new Result(fix[0], fix[1], fix[2], positioning.size()), null);
+    }
+
+    private CellCache.Entry lookup(long bssid) {
+        CellCache.Entry known = (mIndex != null) ? mIndex.lookup(bssid) : null;
+        if (mLearner != null) {
+            CellCache.Entry entry = mLearner.lookup(LEARNER_KEY_HIGH, bssid, known);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        return known;
+    }
+
+    /**
+     * @return BSSID of an access point suitable for positioning, or -1
+     */
+    private static long getBssid(ScanResult result) {
+        if (result.SSID != null && result.SSID.endsWith(NOMAP_SUFFIX)) {
+            return -1;
+        }
+
+        long bssid = BssidIndex.parseBssid(result.BSSID);
+        return (bssid < 0 || (bssid & LOCALLY_ADMINISTERED_BIT) != 0) ? -1 : bssid;
+    }
+
+    /**
+     * @return distance from the access point estimated from {@code rssi}, capped at its range
+     */
+    private static double estimateDistance(int rssi, int range) {
+        double distance = Math.pow(10, (RSSI_AT_1M - rssi) / (10 * PATH_LOSS_EXPONENT));
+        return Math.min(distance, (range > 0) ? range : DEFAULT_RANGE_METERS);
+    }
+
+    @RequiresPermission(allOf = {Manifest.permission.ACCESS_FINE_LOCATION, Manifest.permission.ACCESS_WIFI_STATE})
+    private List<ScanResult> getScanResults() {
+        List<ScanResult> results = mWifiManager.getScanResults();
+        return (results != null) ? results : Collections.emptyList();
+    }
+
+    private static long getScanAgeMillis(List<ScanResult> results) {
+        long newest = 0;
+        for (ScanResult result : results) {
+            newest = Math.max(newest, result.timestamp);
+        }
+        return SystemClock.elapsedRealtime() - newest / 1000;
+    }
+
+    /**
+     * Requests a scan and hands out its results, or the last results if the scan is throttled or
+     * doesn't finish in time.
+     */
+    private class ScanRequest extends BroadcastReceiver implements Runnable {
+        private final Deadline mDeadline;
+        private final Consumer<List<ScanResult>> mConsumer;
+        private final AtomicBoolean mFinished = new AtomicBoolean(false);
+
+        ScanRequest(Deadline deadline, Consumer<List<ScanResult>> consumer) {
+            mDeadline = deadline;
+            mConsumer = consumer;
+        }
+
+        void start() {
+            mContext.registerReceiver(this, new IntentFilter(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION));
+            mDeadline.addCancelListener(this::stop);
+
+            // Apps may only scan a few times a minute
+            if (!mWifiManager.startScan()) {
+                Log.i(TAG, "ScanRequest: scan refused, using last results");
+                run();
+                return;
+            }
+            mHandler.postDelayed(this, (long) (mDeadline.remainingMillis() * SCAN_WAIT_FRACTION));
+        }
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            run();
+        }
+
+        @Override
+        @SuppressLint("MissingPermission")
+        public void run() {
+            if (!stop()) {
+                return;
+            }
+
+            mExecutor.execute(() -> {
+                if (!mDeadline.isDone()) {
+                    mConsumer.accept(getScanResults());
+                }
+            });
+        }
+
+        /**
+         * @return whether this call stopped the request
+         */
+        private boolean stop() {
+            if (!mFinished.compareAndSet(false, true)) {
+                return false;
+            }
+
+            mContext.unregisterReceiver(this);
+            mHandler.removeCallbacks(this);
+            return true;
+        }
+    }
+
+    public static class Result {
+        public final double lat;
+        public final double lon;
+
+        /**
+         * Estimated uncertainty of the fix in meters.
+         */
+        public final double accuracy;
+        /**
+         * Number of access points the fix was computed from.
+         */
+        public final int apCount;
+
+        public Result(double lat, double lon, double accuracy, int apCount) {
+            this.lat = lat;
+            this.lon = lon;
+            this.accuracy = accuracy;
+            this.apCount = apCount;
+        }
+    }
+}
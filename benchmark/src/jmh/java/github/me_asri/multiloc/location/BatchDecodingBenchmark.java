@@ -0,0 +1,81 @@
+package github.me_asri.multiloc.location;
+
+import com.google.gson.reflect.TypeToken;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+import retrofit2.Converter;
+import retrofit2.Retrofit;
+import retrofit2.converter.gson.GsonConverterFactory;
+
+/**
+ * Decodes a full ip-api batch response of {@link IPBatchClient#MAX_BATCH_SIZE} results with all
+ * fields against one projected to the country code and coordinates, through the Retrofit
+ * converter used by {@link IPBatchClient}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchDecodingBenchmark {
+    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+    private static final String PROJECTED_RESULT =
+            "{\"status\":\"success\",\"countryCode\":\"IR\",\"lat\":35.6944,\"lon\":51.4215}";
+
+    private Converter<ResponseBody, ?> mConverter;
+    private String mFullBatch;
+    private String mProjectedBatch;
+
+    @Setup
+    public void setup() {
+        Retrofit retrofit = new Retrofit.Builder()
+                .baseUrl("http://localhost/")
+                .build();
+        mConverter = GsonConverterFactory.create(IPLocationResult.GSON).responseBodyConverter(
+                new TypeToken<List<IPLocationResult>>() {}.getType(), new Annotation[0], retrofit);
+
+        mFullBatch = batch(Fixtures.IP_API_SUCCESS);
+        mProjectedBatch = batch(PROJECTED_RESULT);
+        System.out.println("\nBatch size: " + mFullBatch.length() + " bytes full, "
+                + mProjectedBatch.length() + " bytes projected");
+    }
+
+    @Benchmark
+    public Object full() throws IOException {
+        return mConverter.convert(ResponseBody.create(JSON, mFullBatch));
+    }
+
+    @Benchmark
+    public Object projected() throws IOException {
+        return mConverter.convert(ResponseBody.create(JSON, mProjectedBatch));
+    }
+
+    private static String batch(String result) {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < IPBatchClient.MAX_BATCH_SIZE; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(result);
+        }
+        return builder.append(']').toString();
+    }
+}
@@ -0,0 +1,92 @@
+package github.me_asri.multiloc.location;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Binary search over a memory-mapped index built from a synthetic access point dump.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BssidIndexBenchmark {
+    @Param({"300000"})
+    public int accessPoints;
+
+    private File mDir;
+    private BssidIndex mIndex;
+    private long[] mBssids;
+    private int mNext = 0;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        mDir = Files.createTempDirectory("bssid-index").toFile();
+
+        StringBuilder csv = new StringBuilder("bssid,lat,lon,range\n");
+        Random random = new Random(42);
+        mBssids = new long[1024];
+        for (int i = 0; i < accessPoints; i++) {
+            // Globally administered addresses only, like the ones used for positioning
+            long bssid = random.nextLong() & 0xFDFFFFFFFFFFL;
+            csv.append(String.format("%012x", bssid)).append(',').append(random.nextDouble() * 180 - 90)
+                    .append(',').append(random.nextDouble() * 360 - 180).append(",50\n");
+
+            if (i < mBssids.length) {
+                mBssids[i] = bssid;
+            }
+        }
+
+        mIndex = new BssidIndex(new File(mDir, "bssid_index.bin"));
+        mIndex.importCsv(new ByteArrayInputStream(csv.toString().getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    @Benchmark
+    public Object hit() {
+        int i = mNext;
+        mNext = (mNext + 1) % mBssids.length;
+        return mIndex.lookup(mBssids[i]);
+    }
+
+    @Benchmark
+    public Object miss() {
+        return mIndex.lookup(0xFFFFFFFFFFFFL);
+    }
+
+    @Benchmark
+    public long parse() {
+        return BssidIndex.parseBssid("a4:2b:b0:7c:19:3e");
+    }
+}
@@ -0,0 +1,65 @@
+package github.me_asri.multiloc.location;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups and inserts on an in-memory cell cache filled to capacity.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CellCacheBenchmark {
+    private static final long TTL_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+    @Param({"1024"})
+    public int capacity;
+
+    private CellCache mCache;
+    private CellTuple[] mCells;
+    private int mNext = 0;
+    private long mNextCi;
+
+    @Setup
+    public void setup() {
+        mCache = new CellCache(null, capacity, TTL_MILLIS, TTL_MILLIS);
+        mCells = new CellTuple[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mCells[i] = new CellTuple("432", "11", 8600 + (i % 16), 21356811L + i);
+            mCache.put(mCells[i], 35.7 + i * 1e-4, 51.4 + i * 1e-4, 1000);
+        }
+        mNextCi = 21356811L + capacity;
+    }
+
+    @Benchmark
+    public Object hit() {
+        CellTuple cell = mCells[mNext];
+        mNext = (mNext + 1) % mCells.length;
+        return mCache.get(cell);
+    }
+
+    @Benchmark
+    public Object miss() {
+        return mCache.get(CellTuple.keyHigh(432, 11, 8611), -1L);
+    }
+
+    @Benchmark
+    public void putEvicting() {
+        // Every insert pushes out the least recently used entry
+        mCache.put(new CellTuple("432", "11", 8611, mNextCi++), 35.7, 51.4, 1000);
+    }
+}
@@ -0,0 +1,95 @@
+package github.me_asri.multiloc.location;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Binary search over a memory-mapped index built from a synthetic OpenCelliD export.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CellIndexBenchmark {
+    @Param({"1000000"})
+    public int cells;
+
+    private File mDir;
+    private CellIndex mIndex;
+    private long[] mKeyHigh;
+    private long[] mKeyLow;
+    private int mNext = 0;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        mDir = Files.createTempDirectory("cell-index").toFile();
+
+        StringBuilder csv = new StringBuilder("radio,mcc,net,area,cell,unit,lon,lat,range\n");
+        Random random = new Random(42);
+        mKeyHigh = new long[1024];
+        mKeyLow = new long[mKeyHigh.length];
+        for (int i = 0; i < cells; i++) {
+            int mcc = 200 + random.nextInt(600);
+            int mnc = random.nextInt(100);
+            int tac = random.nextInt(65536);
+            long ci = random.nextInt(1 << 28);
+            csv.append("LTE,").append(mcc).append(',').append(mnc).append(',').append(tac).append(',')
+                    .append(ci).append(",0,").append(random.nextDouble() * 360 - 180).append(',')
+                    .append(random.nextDouble() * 180 - 90).append(",1000\n");
+
+            if (i < mKeyHigh.length) {
+                mKeyHigh[i] = CellTuple.keyHigh(mcc, mnc, tac);
+                mKeyLow[i] = ci;
+            }
+        }
+
+        File indexFile = new File(mDir, "cell_index.bin");
+        new CellIndexImporter(mDir).importCsv(
+                new ByteArrayInputStream(csv.toString().getBytes(StandardCharsets.US_ASCII)), indexFile);
+        mIndex = new CellIndex(indexFile);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    @Benchmark
+    public Object hit() {
+        int i = mNext;
+        mNext = (mNext + 1) % mKeyHigh.length;
+        return mIndex.lookup(mKeyHigh[i], mKeyLow[i]);
+    }
+
+    @Benchmark
+    public Object miss() {
+        return mIndex.lookup(CellTuple.keyHigh(999, 99, 0), -1L);
+    }
+}
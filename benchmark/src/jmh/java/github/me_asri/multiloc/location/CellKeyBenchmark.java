@@ -0,0 +1,55 @@
+package github.me_asri.multiloc.location;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building cell tuples from the strings reported by the modem and deriving their lookup keys.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CellKeyBenchmark {
+    private final CellTuple mCell = new CellTuple("432", "11", 8611, 21356811L);
+
+    public String mcc = "432";
+    public String mnc = "11";
+    public int tac = 8611;
+    public long ci = 21356811L;
+
+    @Benchmark
+    public Object newTuple() {
+        return new CellTuple(mcc, mnc, tac, ci);
+    }
+
+    @Benchmark
+    public void keys(Blackhole bh) {
+        bh.consume(mCell.keyHigh());
+        bh.consume(mCell.keyLow());
+    }
+
+    @Benchmark
+    public void newTupleKeys(Blackhole bh) {
+        CellTuple cell = new CellTuple(mcc, mnc, tac, ci);
+        bh.consume(cell.keyHigh());
+        bh.consume(cell.keyLow());
+    }
+
+    @Benchmark
+    public int hashCodeTuple() {
+        return mCell.hashCode();
+    }
+}
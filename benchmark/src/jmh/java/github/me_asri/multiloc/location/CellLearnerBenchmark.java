@@ -0,0 +1,60 @@
+package github.me_asri.multiloc.location;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Observing and looking up cells in an in-memory learned cell store filled to capacity.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CellLearnerBenchmark {
+    @Param({"8192"})
+    public int capacity;
+
+    private CellLearner mLearner;
+    private CellTuple[] mCells;
+    private int mNext = 0;
+
+    @Setup
+    public void setup() {
+        mLearner = new CellLearner(null, capacity);
+        mCells = new CellTuple[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mCells[i] = new CellTuple("432", "11", 8600 + (i % 16), 21356811L + i);
+            // Seen often enough from far enough apart to be trusted
+            for (int j = 0; j < 10; j++) {
+                mLearner.observe(mCells[i], 35.7 + j * 2e-3, 51.4 - j * 2e-3, 10, -80, j);
+            }
+        }
+    }
+
+    @Benchmark
+    public void observe() {
+        CellTuple cell = mCells[mNext];
+        mNext = (mNext + 1) % mCells.length;
+        mLearner.observe(cell, 35.7, 51.4, 10, -80, 0);
+    }
+
+    @Benchmark
+    public Object lookup() {
+        CellTuple cell = mCells[mNext];
+        mNext = (mNext + 1) % mCells.length;
+        return mLearner.lookup(cell);
+    }
+}
@@ -0,0 +1,38 @@
+package github.me_asri.multiloc.location;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Weighted-centroid solve over a typical set of visible cells.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CellPositioningBenchmark {
+    @Param({"1", "6"})
+    public int cells;
+
+    @Benchmark
+    public Object solve() {
+        CellPositioning positioning = new CellPositioning();
+        for (int i = 0; i < cells; i++) {
+            double taDistance = (i == 0) ? 156.24 : -1;
+            positioning.add(35.7 + i * 0.003, 51.4 - i * 0.002, 1500, -70 - i * 8, taDistance);
+        }
+        return positioning.solve();
+    }
+}
@@ -0,0 +1,67 @@
+package github.me_asri.multiloc.location;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fusion of a drive sampled by GPS every second, with a cell fix every 20 seconds and an IP fix
+ * every minute. The gc profiler should report no allocations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FusionFilterBenchmark {
+    private static final int FIXES = 4096;
+
+    private final FusionFilter mFilter = new FusionFilter();
+    private final double[] mLat = new double[FIXES];
+    private final double[] mLon = new double[FIXES];
+    private final double[] mAccuracy = new double[FIXES];
+    private long mTimeMillis = 0;
+    private int mNext = 0;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        for (int i = 0; i < FIXES; i++) {
+            double accuracy;
+            if (i % 60 == 59) {
+                accuracy = 25000;
+            } else if (i % 20 == 19) {
+                accuracy = 1000;
+            } else {
+                accuracy = 8;
+            }
+            double sigma = accuracy / 1.5;
+
+            // Heading north-east at about 11 m/s
+            mLat[i] = 35.7 + (i * 10 + random.nextGaussian() * sigma) / 110_574;
+            mLon[i] = 51.4 + (i * 5 + random.nextGaussian() * sigma) / 90_400;
+            mAccuracy[i] = accuracy;
+        }
+    }
+
+    @Benchmark
+    public double update() {
+        int i = mNext;
+        mNext = (i + 1) % FIXES;
+        mTimeMillis += 1000;
+
+        mFilter.update(mLat[i], mLon[i], mAccuracy[i], mTimeMillis);
+        return mFilter.getLat();
+    }
+}
@@ -0,0 +1,101 @@
+package github.me_asri.multiloc.location;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups in a memory-mapped range table built from a synthetic IP2Location-style dump.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IPRangeIndexBenchmark {
+    @Param({"1000000"})
+    public int ranges;
+
+    private File mDir;
+    private IPRangeIndex mIndex;
+    private String[] mV4Addresses;
+    private String[] mV6Addresses;
+    private int mNext = 0;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        mDir = Files.createTempDirectory("ip-ranges").toFile();
+
+        // Contiguous IPv4 ranges spread over the whole space, and a few thousand IPv6 /32s
+        StringBuilder csv = new StringBuilder("ip_from,ip_to,country_code,country_name,region_name,city_name,latitude,longitude\n");
+        Random random = new Random(42);
+        long step = (1L << 32) / ranges;
+        for (int i = 0; i < ranges; i++) {
+            int city = random.nextInt(20000);
+            csv.append(i * step).append(',').append((i + 1) * step - 1).append(",XX,Country ").append(city % 200)
+                    .append(",Region ").append(city % 2000).append(",City ").append(city).append(',')
+                    .append(city % 180 - 90).append(',').append(city % 360 - 180).append('\n');
+        }
+        for (int i = 0; i < 4096; i++) {
+            csv.append(String.format("2%03x:%04x::,2%03x:%04x:ffff:ffff:ffff:ffff:ffff:ffff", i >> 4, i, i >> 4, i))
+                    .append(",YY,Country,Region,City,10,20\n");
+        }
+
+        mIndex = new IPRangeIndex(new File(mDir, "ip_ranges.bin"));
+        mIndex.importCsv(new ByteArrayInputStream(csv.toString().getBytes(StandardCharsets.US_ASCII)));
+
+        mV4Addresses = new String[1024];
+        mV6Addresses = new String[mV4Addresses.length];
+        for (int i = 0; i < mV4Addresses.length; i++) {
+            mV4Addresses[i] = random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256) + "."
+                    + random.nextInt(256);
+            int prefix = random.nextInt(4096);
+            mV6Addresses[i] = String.format("2%03x:%04x:%x::%x", prefix >> 4, prefix, random.nextInt(0x10000),
+                    random.nextInt(0x10000));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    @Benchmark
+    public Object lookupV4() {
+        int i = mNext;
+        mNext = (mNext + 1) % mV4Addresses.length;
+        return mIndex.lookup(mV4Addresses[i]);
+    }
+
+    @Benchmark
+    public Object lookupV6() {
+        int i = mNext;
+        mNext = (mNext + 1) % mV6Addresses.length;
+        return mIndex.lookup(mV6Addresses[i]);
+    }
+}
@@ -0,0 +1,55 @@
+package github.me_asri.multiloc.location;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonDeserializationContext;
+import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonSyntaxException;
+
+import java.lang.reflect.Type;
+
+/**
+ * The tree-based OpenCelliD deserializer BTSLocation used before the streaming adapter,
+ * kept as a baseline.
+ */
+class LegacyResponseDeserializer implements JsonDeserializer<LegacyResponseDeserializer.APIResult> {
+    @Override
+    public APIResult deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) throws JsonParseException {
+        Gson gson = new Gson();
+
+        try {
+            LocationResult locationResult = gson.fromJson(json, LocationResult.class);
+            return new APIResult(locationResult);
+        } catch (JsonSyntaxException e) {
+            return new APIResult(json.getAsString());
+        }
+    }
+
+    static class LocationResult {
+        public final double lon;
+        public final double lat;
+        public final int range;
+
+        public LocationResult(String lon, String lat, String range) {
+            this.lon = Double.parseDouble(lon);
+            this.lat = Double.parseDouble(lat);
+            this.range = Integer.parseInt(range);
+        }
+    }
+
+    static class APIResult {
+        public final String error;
+        public final LocationResult result;
+
+        public APIResult(LocationResult locationResult) {
+            this.result = locationResult;
+            this.error = null;
+        }
+
+        public APIResult(String error) {
+            this.error = error;
+            this.result = null;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package github.me_asri.multiloc.location;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+import retrofit2.Converter;
+import retrofit2.Retrofit;
+import retrofit2.converter.gson.GsonConverterFactory;
+
+/**
+ * Compares the reflective and tree-based response decoding with the streaming adapters, both
+ * straight from a string and through the Retrofit Gson converter used by the services.
+ * Run with the gc profiler to see allocations per response.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseDecodingBenchmark {
+    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+
+    private final Gson mLegacyCellGson = new GsonBuilder()
+            .registerTypeAdapter(LegacyResponseDeserializer.APIResult.class, new LegacyResponseDeserializer())
+            .create();
+    private final Gson mStreamingCellGson = new GsonBuilder()
+            .registerTypeAdapter(OpenCellIDResponse.class, new OpenCellIDResponse.Adapter())
+            .create();
+
+    private final Gson mReflectiveIPGson = new Gson();
+    private final Gson mStreamingIPGson = IPLocationResult.GSON;
+
+    private Converter<ResponseBody, ?> mLegacyCellConverter;
+    private Converter<ResponseBody, ?> mStreamingCellConverter;
+    private Converter<ResponseBody, ?> mReflectiveIPConverter;
+    private Converter<ResponseBody, ?> mStreamingIPConverter;
+
+    @Setup
+    public void setup() {
+        mLegacyCellConverter = converter(mLegacyCellGson, LegacyResponseDeserializer.APIResult.class);
+        mStreamingCellConverter = converter(mStreamingCellGson, OpenCellIDResponse.class);
+        mReflectiveIPConverter = converter(mReflectiveIPGson, IPLocationResult.class);
+        mStreamingIPConverter = converter(mStreamingIPGson, IPLocationResult.class);
+    }
+
+    @Benchmark
+    public Object openCellIDSuccessLegacy() {
+        return mLegacyCellGson.fromJson(Fixtures.OPENCELLID_SUCCESS, LegacyResponseDeserializer.APIResult.class);
+    }
+
+    @Benchmark
+    public Object openCellIDSuccessStreaming() {
+        return mStreamingCellGson.fromJson(Fixtures.OPENCELLID_SUCCESS, OpenCellIDResponse.class);
+    }
+
+    @Benchmark
+    public Object openCellIDErrorLegacy() {
+        return mLegacyCellGson.fromJson(Fixtures.OPENCELLID_INVALID, LegacyResponseDeserializer.APIResult.class);
+    }
+
+    @Benchmark
+    public Object openCellIDErrorStreaming() {
+        return mStreamingCellGson.fromJson(Fixtures.OPENCELLID_INVALID, OpenCellIDResponse.class);
+    }
+
+    @Benchmark
+    public Object ipApiReflective() {
+        return mReflectiveIPGson.fromJson(Fixtures.IP_API_SUCCESS, IPLocationResult.class);
+    }
+
+    @Benchmark
+    public Object ipApiStreaming() {
+        return mStreamingIPGson.fromJson(Fixtures.IP_API_SUCCESS, IPLocationResult.class);
+    }
+
+    @Benchmark
+    public Object openCellIDSuccessLegacyConverter() throws IOException {
+        return mLegacyCellConverter.convert(ResponseBody.create(JSON, Fixtures.OPENCELLID_SUCCESS));
+    }
+
+    @Benchmark
+    public Object openCellIDSuccessStreamingConverter() throws IOException {
+        return mStreamingCellConverter.convert(ResponseBody.create(JSON, Fixtures.OPENCELLID_SUCCESS));
+    }
+
+    @Benchmark
+    public Object openCellIDErrorLegacyConverter() throws IOException {
+        return mLegacyCellConverter.convert(ResponseBody.create(JSON, Fixtures.OPENCELLID_INVALID));
+    }
+
+    @Benchmark
+    public Object openCellIDErrorStreamingConverter() throws IOException {
+        return mStreamingCellConverter.convert(ResponseBody.create(JSON, Fixtures.OPENCELLID_INVALID));
+    }
+
+    @Benchmark
+    public Object ipApiReflectiveConverter() throws IOException {
+        return mReflectiveIPConverter.convert(ResponseBody.create(JSON, Fixtures.IP_API_SUCCESS));
+    }
+
+    @Benchmark
+    public Object ipApiStreamingConverter() throws IOException {
+        return mStreamingIPConverter.convert(ResponseBody.create(JSON, Fixtures.IP_API_SUCCESS));
+    }
+
+    private static Converter<ResponseBody, ?> converter(Gson gson, Class<?> type) {
+        Retrofit retrofit = new Retrofit.Builder()
+                .baseUrl("http://localhost/")
+                .build();
+        return GsonConverterFactory.create(gson).responseBodyConverter(type, new Annotation[0], retrofit);
+    }
+}
@@ -0,0 +1,128 @@
+package github.me_asri.multiloc.location;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Build time, footprint and nearest-place queries of the reverse geocoder over a synthetic
+ * GeoNames cities dump. The footprint is printed when the lookup benchmark sets up.
+ */
+@Fork(1)
+public class ReverseGeocoderBenchmark {
+    @State(Scope.Benchmark)
+    public static class Dump {
+        @Param({"200000"})
+        public int places;
+
+        byte[] cities;
+        File dir;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            dir = Files.createTempDirectory("places").toFile();
+
+            StringBuilder dump = new StringBuilder();
+            Random random = new Random(42);
+            for (int i = 0; i < places; i++) {
+                // Clustered around "countries" like real places, rather than uniformly spread
+                int country = random.nextInt(200);
+                double lat = Math.max(-90, Math.min(90, (country % 18) * 10 - 85 + random.nextGaussian() * 3));
+                double lon = ((country / 18) * 33 - 180 + random.nextGaussian() * 5 + 540) % 360 - 180;
+                dump.append(i).append("\tPlace ").append(i).append("\tPlace ").append(i).append("\t\t")
+                        .append(lat).append('\t').append(lon).append("\tP\tPPL\tC").append(country)
+                        .append("\t\t").append(random.nextInt(20)).append("\t\t\t\t100\t\t0\tUTC\t2024-01-01\n");
+            }
+            cities = dump.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+
+        List<InputStream> inputs() {
+            return Collections.singletonList(new ByteArrayInputStream(cities));
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Index {
+        ReverseGeocoder geocoder;
+        double[] lat = new double[1024];
+        double[] lon = new double[lat.length];
+        int next = 0;
+
+        @Setup(Level.Trial)
+        public void setup(Dump dump) throws IOException {
+            File file = new File(dump.dir, "places.bin");
+            geocoder = new ReverseGeocoder(file);
+            geocoder.importGeoNames(dump.inputs());
+
+            // The index is mapped rather than loaded, so its footprint is the file and not the heap
+            Runtime runtime = Runtime.getRuntime();
+            System.gc();
+            long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+            ReverseGeocoder loaded = new ReverseGeocoder(file);
+            System.gc();
+            long heapAfter = runtime.totalMemory() - runtime.freeMemory();
+            System.out.printf("%n%d places: index file %d bytes, heap retained after loading ~%d bytes%n",
+                    loaded.size(), file.length(), Math.max(0, heapAfter - heapBefore));
+
+            Random random = new Random(7);
+            for (int i = 0; i < lat.length; i++) {
+                lat[i] = random.nextDouble() * 180 - 90;
+                lon[i] = random.nextDouble() * 360 - 180;
+            }
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public ReverseGeocoder build(Dump dump) throws IOException {
+        ReverseGeocoder geocoder = new ReverseGeocoder(new File(dump.dir, "build.bin"));
+        geocoder.importGeoNames(dump.inputs());
+        return geocoder;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public ReverseGeocoder.Place lookup(Index index) {
+        int i = index.next;
+        index.next = (i + 1) % index.lat.length;
+        return index.geocoder.lookup(index.lat[i], index.lon[i]);
+    }
+}
@@ -0,0 +1,101 @@
+package github.me_asri.multiloc.location;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Walking a history of a wandering drive sampled every second, as drawn on a 1080 pixel wide map
+ * zoomed out to the whole track, and zoomed in to a street. Adds and visits should allocate
+ * nothing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrackHistoryBenchmark implements TrackHistory.Visitor {
+    private static final int FIXES = 16384;
+    private static final double SCREEN_PIXELS = 1080;
+
+    private TrackHistory mHistory;
+    private final double[] mLat = new double[FIXES];
+    private final double[] mLon = new double[FIXES];
+    private int mNext = 0;
+    private double mSum = 0;
+
+    private double mMinX, mMinY, mMaxX, mMaxY;
+    private double mCenterX, mCenterY;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        double lat = 35.7;
+        double lon = 51.4;
+        double bearing = 0;
+        for (int i = 0; i < FIXES; i++) {
+            bearing += random.nextGaussian() * 0.1;
+            lat += Math.cos(bearing) * 10 / 110_574 + random.nextGaussian() * 4 / 110_574;
+            lon += Math.sin(bearing) * 10 / 90_400 + random.nextGaussian() * 4 / 90_400;
+            mLat[i] = lat;
+            mLon[i] = lon;
+        }
+
+        mHistory = new TrackHistory(FIXES);
+        mMinX = mMinY = Double.POSITIVE_INFINITY;
+        mMaxX = mMaxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < FIXES; i++) {
+            mHistory.add(mLat[i], mLon[i], 8);
+
+            double x = TrackHistory.mercatorX(mLon[i]);
+            double y = TrackHistory.mercatorY(mLat[i]);
+            mMinX = Math.min(mMinX, x);
+            mMaxX = Math.max(mMaxX, x);
+            mMinY = Math.min(mMinY, y);
+            mMaxY = Math.max(mMaxY, y);
+        }
+        mCenterX = TrackHistory.mercatorX(mLon[FIXES / 2]);
+        mCenterY = TrackHistory.mercatorY(mLat[FIXES / 2]);
+    }
+
+    @Benchmark
+    public long add() {
+        int i = mNext;
+        mNext = (i + 1) % FIXES;
+
+        mHistory.add(mLat[i], mLon[i], 8);
+        return mHistory.size();
+    }
+
+    @Benchmark
+    public double visitWhole() {
+        double extent = Math.max(mMaxX - mMinX, mMaxY - mMinY);
+        mHistory.visit(mMinX, mMinY, mMaxX, mMaxY, extent / SCREEN_PIXELS, this);
+        return mSum;
+    }
+
+    @Benchmark
+    public double visitStreet() {
+        // About 500 m across
+        double extent = 500 / TrackHistory.metersPerUnit(mCenterY);
+        mHistory.visit(mCenterX - extent / 2, mCenterY - extent / 2, mCenterX + extent / 2, mCenterY + extent / 2,
+                extent / SCREEN_PIXELS, this);
+        return mSum;
+    }
+
+    @Override
+    public void visit(double x, double y, double accuracy, boolean connected) {
+        mSum += x + y;
+    }
+}
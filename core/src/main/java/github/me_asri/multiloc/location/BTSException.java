@@ -0,0 +1,53 @@
+package github.me_asri.multiloc.location;
+
+/**
+ * Errors reported while locating the phone by its serving BTS.
+ */
+public class BTSException extends RuntimeException {
+    public BTSException(String message) {
+        super(message);
+    }
+
+    public static BTSException fromErrorResponse(String error) {
+        switch (error) {
+            case "Invalid Request":
+                return new InvalidRequestException();
+
+            case "false":
+                return new UnregisteredBTSException();
+
+            default:
+                return new BTSException("Unknown error from backend");
+        }
+    }
+
+    public static class NoCellsException extends BTSException {
+        public NoCellsException() {
+            super("Phone not connected to any BTS");
+        }
+    }
+
+    public static class UnknownCellTypeException extends BTSException {
+        public UnknownCellTypeException() {
+            super("Phone connected to unknown BTS type");
+        }
+    }
+
+    public static class InvalidRequestException extends BTSException {
+        public InvalidRequestException() {
+            super("Received invalid request error from OpenCelliD");
+        }
+    }
+
+    public static class QuotaExceededException extends BTSException {
+        public QuotaExceededException() {
+            super("OpenCelliD request quota used up");
+        }
+    }
+
+    public static class UnregisteredBTSException extends BTSException {
+        public UnregisteredBTSException() {
+            super("BTS not registered in OpenCelliD");
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package github.me_asri.multiloc.location;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with full jitter.
+ * <p>
+ * The delay before retry {@code n} is drawn uniformly from {@code [0, min(max, base * 2^(n-1))]},
+ * which keeps clients that failed together from retrying together.
+ */
+public class Backoff {
+    private final long mBaseMillis;
+    private final long mMaxMillis;
+    private final int mMaxAttempts;
+
+    /**
+     * @param maxAttempts total number of attempts, including the first one
+     */
+    public Backoff(long baseMillis, long maxMillis, int maxAttempts) {
+        mBaseMillis = baseMillis;
+        mMaxMillis = maxMillis;
+        mMaxAttempts = maxAttempts;
+    }
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    /**
+     * @param retry number of the retry, starting at 1
+     */
+    public long delayMillis(int retry) {
+        int shift = Math.min(Math.max(retry - 1, 0), 30);
+        long cap = Math.min(mMaxMillis, mBaseMillis << shift);
+        return ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+}
@@ -0,0 +1,194 @@
+package github.me_asri.multiloc.location;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Offline index of Wi-Fi access point locations keyed by BSSID.
+ * <p>
+ * Same layout as {@link CellIndex} with smaller records: the file is a memory-mapped
+ * {@link SortedRecordFile} of records sorted by BSSID, so a lookup is a binary search over the
+ * mapping without any parsing or allocation besides the result.
+ */
+public class BssidIndex {
+    static final int MAGIC = 0x4D4C4249;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = SortedRecordFile.COUNTED_HEADER_SIZE;
+    // bssid, lat, lon, range
+    static final int RECORD_SIZE = 8 + 4 + 4 + 4;
+    static final double COORD_SCALE = 1e7;
+
+    // Dump columns: bssid,lat,lon[,range]
+    private static final int COL_BSSID = 0;
+    private static final int COL_LAT = 1;
+    private static final int COL_LON = 2;
+    private static final int COL_RANGE = 3;
+    private static final int MIN_COLUMNS = COL_LON + 1;
+    private static final int RUN_SIZE = 1 << 18;
+
+    private final File mFile;
+    private volatile Mapping mMapping;
+
+    public BssidIndex(File file) {
+        mFile = file;
+        reload();
+    }
+
+    /**
+     * Remaps the index file, picking up changes made by an import.
+     *
+     * @return whether an index is available
+     */
+    public synchronized boolean reload() {
+        ByteBuffer mapped = SortedRecordFile.map(mFile, HEADER_SIZE);
+        int records = SortedRecordFile.recordCount(mapped, MAGIC, VERSION, RECORD_SIZE);
+        Mapping mapping = (records >= 0) ? new Mapping(mapped, records) : null;
+
+        mMapping = mapping;
+        return mapping != null;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public int size() {
+        Mapping mapping = mMapping;
+        return (mapping != null) ? mapping.count : 0;
+    }
+
+    /**
+     * @param bssid BSSID as returned by {@link #parseBssid(String)}
+     * @return location of the access point, or {@code null} if it's not indexed
+     */
+    public CellCache.Entry lookup(long bssid) {
+        Mapping mapping = mMapping;
+        if (mapping == null) {
+            return null;
+        }
+        ByteBuffer buffer = mapping.buffer;
+
+        int low = 0;
+        int high = mapping.count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int offset = HEADER_SIZE + mid * RECORD_SIZE;
+
+            long key = buffer.getLong(offset);
+            if (key < bssid) {
+                low = mid + 1;
+            } else if (key > bssid) {
+                high = mid - 1;
+            } else {
+                return new CellCache.Entry(buffer.getInt(offset + 8) / COORD_SCALE,
+                        buffer.getInt(offset + 12) / COORD_SCALE, buffer.getInt(offset + 16), false);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return BSSID in the form {@code aa:bb:cc:dd:ee:ff} or {@code aabbccddeeff} as a 48-bit
+     * number, or -1 if malformed
+     */
+    public static long parseBssid(String bssid) {
+        if (bssid == null) {
+            return -1;
+        }
+
+        long value = 0;
+        int digits = 0;
+        for (int i = 0; i < bssid.length(); i++) {
+            char c = bssid.charAt(i);
+            if (c == ':' || c == '-') {
+                continue;
+            }
+
+            int digit = Character.digit(c, 16);
+            if (digit < 0 || ++digits > 12) {
+                return -1;
+            }
+            value = (value << 4) | digit;
+        }
+        return (digits == 12) ? value : -1;
+    }
+
+    /**
+     * Imports a CSV dump of {@code bssid,lat,lon[,range]} rows, merging it with the current
+     * contents of the index. Rows from the dump replace existing records of the same BSSID.
+     * Unparsable rows, e.g. a header, are skipped. Rows are sorted externally, so memory use
+     * doesn't depend on the size of the dump.
+     *
+     * @return number of records in the resulting index
+     */
+    public synchronized int importCsv(InputStream in) throws IOException {
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        long count;
+        try (SortedRecordFile.Sorter sorter = new SortedRecordFile.Sorter(mFile.getAbsoluteFile().getParentFile(),
+                RECORD_SIZE, RUN_SIZE, BssidIndex::compareRecords, true)) {
+            // Existing records first, so imported rows take precedence
+            Mapping mapping = mMapping;
+            if (mapping != null) {
+                sorter.addSorted(mFile, HEADER_SIZE, mapping.count);
+            }
+
+            byte[] record = new byte[RECORD_SIZE];
+            ByteBuffer writer = ByteBuffer.wrap(record);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] columns = line.split(",", -1);
+                if (columns.length < MIN_COLUMNS) {
+                    continue;
+                }
+
+                long bssid = parseBssid(columns[COL_BSSID].trim());
+                if (bssid < 0) {
+                    continue;
+                }
+                try {
+                    double lat = Double.parseDouble(columns[COL_LAT]);
+                    double lon = Double.parseDouble(columns[COL_LON]);
+                    int range = (columns.length > COL_RANGE && !columns[COL_RANGE].isEmpty())
+                            ? (int) Double.parseDouble(columns[COL_RANGE]) : 0;
+                    if (Math.abs(lat) > 90 || Math.abs(lon) > 180) {
+                        continue;
+                    }
+
+                    writer.clear();
+                    writer.putLong(bssid)
+                            .putInt((int) Math.round(lat * COORD_SCALE))
+                            .putInt((int) Math.round(lon * COORD_SCALE))
+                            .putInt(range);
+                    sorter.add(record);
+                } catch (NumberFormatException e) {
+                    // Skip malformed row
+                }
+            }
+
+            count = SortedRecordFile.write(sorter, tmpFile, MAGIC, VERSION);
+        }
+        SortedRecordFile.replace(tmpFile, mFile);
+        reload();
+        return (int) count;
+    }
+
+    private static int compareRecords(byte[] a, int aOffset, byte[] b, int bOffset) {
+        return SortedRecordFile.compareLongs(a, aOffset, b, bOffset, 1);
+    }
+
+    private static final class Mapping {
+        final ByteBuffer buffer;
+        final int count;
+
+        Mapping(ByteBuffer buffer, int count) {
+            this.buffer = buffer;
+            this.count = count;
+        }
+    }
+}
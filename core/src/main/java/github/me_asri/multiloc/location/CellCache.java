@@ -0,0 +1,439 @@
+package github.me_asri.multiloc.location;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Two-tier cache of OpenCelliD lookups keyed by {@link CellTuple}.
+ * <p>
+ * The memory tier is a fixed-capacity LRU kept in parallel primitive arrays, so updates and misses
+ * don't allocate and a hit only allocates the {@link Entry} it returns. Every update is also
+ * appended to a file which is replayed when the cache is created, letting entries survive
+ * restarts. Disk I/O happens on a dedicated thread.
+ */
+public class CellCache {
+    // keyHigh, keyLow, lat, lon, range, expiresAt, flags
+    private static final int RECORD_SIZE = 8 + 8 + 8 + 8 + 4 + 8 + 1;
+    private static final byte FLAG_NEGATIVE = 1;
+    // Rewrite the file once it holds this many times more records than the memory tier
+    private static final int COMPACT_FACTOR = 4;
+
+    private final File mFile;
+    private final int mCapacity;
+    private final long mTtlMillis;
+    private final long mNegativeTtlMillis;
+
+    // Open-addressing hash table holding (entry index + 1), 0 marks an empty slot
+    private final int[] mTable;
+    private final int mTableMask;
+
+    private final long[] mKeyHigh;
+    private final long[] mKeyLow;
+    private final double[] mLat;
+    private final double[] mLon;
+    private final int[] mRange;
+    private final long[] mExpiresAt;
+    private final boolean[] mNegative;
+    // Entry came from the file rather than being stored since the cache was created
+    private final boolean[] mReplayed;
+
+    // Doubly linked LRU list over entry indices, head is the most recently used
+    private final int[] mPrev;
+    private final int[] mNext;
+    private int mHead = -1;
+    private int mTail = -1;
+    private int mSize = 0;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    private final ExecutorService mDiskExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "CellCache-disk");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Only accessed from mDiskExecutor
+    private DataOutputStream mDiskOut;
+    private int mDiskRecords = 0;
+
+    public CellCache(File file, int capacity, long ttlMillis, long negativeTtlMillis) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+
+        mFile = file;
+        mCapacity = capacity;
+        mTtlMillis = ttlMillis;
+        mNegativeTtlMillis = negativeTtlMillis;
+
+        int tableSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        mTable = new int[tableSize];
+        mTableMask = tableSize - 1;
+
+        mKeyHigh = new long[capacity];
+        mKeyLow = new long[capacity];
+        mLat = new double[capacity];
+        mLon = new double[capacity];
+        mRange = new int[capacity];
+        mExpiresAt = new long[capacity];
+        mNegative = new boolean[capacity];
+        mReplayed = new boolean[capacity];
+        mPrev = new int[capacity];
+        mNext = new int[capacity];
+
+        if (mFile != null) {
+            mDiskExecutor.execute(this::loadFromDisk);
+        }
+    }
+
+    /**
+     * Looks up a cell.
+     *
+     * @return cached entry, or {@code null} if the cell is unknown or its entry has expired
+     */
+    public Entry get(CellTuple cell) {
+        return get(cell.keyHigh(), cell.keyLow());
+    }
+
+    public synchronized Entry get(long keyHigh, long keyLow) {
+        int index = find(keyHigh, keyLow);
+        if (index < 0 || mExpiresAt[index] <= System.currentTimeMillis()) {
+            // Expired entries are left in place, they get overwritten once the cell is fetched again
+            mMisses.incrementAndGet();
+            return null;
+        }
+
+        moveToHead(index);
+        mHits.incrementAndGet();
+        return new Entry(mLat[index], mLon[index], mRange[index], mNegative[index]);
+    }
+
+    /**
+     * Looks up a cell ignoring expiry, for when asking OpenCelliD again isn't an option. Doesn't
+     * count as a hit or miss.
+     *
+     * @return entry, possibly expired, or {@code null} if the cell is unknown
+     */
+    public synchronized Entry getStale(CellTuple cell) {
+        int index = find(cell.keyHigh(), cell.keyLow());
+        if (index < 0) {
+            return null;
+        }
+
+        return new Entry(mLat[index], mLon[index], mRange[index], mNegative[index]);
+    }
+
+    public void put(CellTuple cell, double lat, double lon, int range) {
+        store(cell.keyHigh(), cell.keyLow(), lat, lon, range, System.currentTimeMillis() + mTtlMillis, false);
+    }
+
+    /**
+     * Remembers a cell which OpenCelliD reported as unregistered.
+     */
+    public void putNegative(CellTuple cell) {
+        store(cell.keyHigh(), cell.keyLow(), 0, 0, 0, System.currentTimeMillis() + mNegativeTtlMillis, true);
+    }
+
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Waits for the file to be replayed and for queued updates to be written to it.
+     */
+    public void flush() throws InterruptedException {
+        if (mFile == null) {
+            return;
+        }
+
+        try {
+            mDiskExecutor.submit(() -> {
+                // Updates are flushed as they're appended
+            }).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private void store(long keyHigh, long keyLow, double lat, double lon, int range, long expiresAt, boolean negative) {
+        synchronized (this) {
+            int index = insert(keyHigh, keyLow, lat, lon, range, expiresAt, negative);
+            mReplayed[index] = false;
+        }
+
+        if (mFile != null) {
+            mDiskExecutor.execute(() -> appendToDisk(keyHigh, keyLow, lat, lon, range, expiresAt, negative));
+        }
+    }
+
+    private int insert(long keyHigh, long keyLow, double lat, double lon, int range, long expiresAt, boolean negative) {
+        int index = find(keyHigh, keyLow);
+        if (index < 0) {
+            if (mSize < mCapacity) {
+                index = mSize++;
+            } else {
+                // Evict least recently used entry and reuse its slot
+                index = mTail;
+                removeFromTable(index);
+                unlink(index);
+            }
+
+            mKeyHigh[index] = keyHigh;
+            mKeyLow[index] = keyLow;
+            addToTable(index);
+            linkHead(index);
+        } else {
+            moveToHead(index);
+        }
+
+        mLat[index] = lat;
+        mLon[index] = lon;
+        mRange[index] = range;
+        mExpiresAt[index] = expiresAt;
+        mNegative[index] = negative;
+        return index;
+    }
+
+    private static int hash(long keyHigh, long keyLow) {
+        long h = (keyHigh * 0x9E3779B97F4A7C15L) ^ keyLow;
+        h ^= (h >>> 33);
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= (h >>> 33);
+        return (int) h;
+    }
+
+    private int find(long keyHigh, long keyLow) {
+        int slot = hash(keyHigh, keyLow) & mTableMask;
+        while (true) {
+            int stored = mTable[slot];
+            if (stored == 0) {
+                return -1;
+            }
+
+            int index = stored - 1;
+            if (mKeyHigh[index] == keyHigh && mKeyLow[index] == keyLow) {
+                return index;
+            }
+            slot = (slot + 1) & mTableMask;
+        }
+    }
+
+    private void addToTable(int index) {
+        int slot = hash(mKeyHigh[index], mKeyLow[index]) & mTableMask;
+        while (mTable[slot] != 0) {
+            slot = (slot + 1) & mTableMask;
+        }
+        mTable[slot] = index + 1;
+    }
+
+    private void removeFromTable(int index) {
+        int slot = hash(mKeyHigh[index], mKeyLow[index]) & mTableMask;
+        while (mTable[slot] != index + 1) {
+            slot = (slot + 1) & mTableMask;
+        }
+
+        // Backward-shift deletion keeps probe sequences intact without tombstones
+        int hole = slot;
+        int next = hole;
+        while (true) {
+            next = (next + 1) & mTableMask;
+            int stored = mTable[next];
+            if (stored == 0) {
+                break;
+            }
+
+            int home = hash(mKeyHigh[stored - 1], mKeyLow[stored - 1]) & mTableMask;
+            boolean inRange = (hole <= next) ? (hole < home && home <= next) : (hole < home || home <= next);
+            if (!inRange) {
+                mTable[hole] = stored;
+                hole = next;
+            }
+        }
+        mTable[hole] = 0;
+    }
+
+    private void linkHead(int index) {
+        mPrev[index] = -1;
+        mNext[index] = mHead;
+        if (mHead >= 0) {
+            mPrev[mHead] = index;
+        }
+        mHead = index;
+        if (mTail < 0) {
+            mTail = index;
+        }
+    }
+
+    private void unlink(int index) {
+        int prev = mPrev[index];
+        int next = mNext[index];
+        if (prev >= 0) {
+            mNext[prev] = next;
+        } else {
+            mHead = next;
+        }
+        if (next >= 0) {
+            mPrev[next] = prev;
+        } else {
+            mTail = prev;
+        }
+    }
+
+    private void moveToHead(int index) {
+        if (mHead != index) {
+            unlink(index);
+            linkHead(index);
+        }
+    }
+
+    private void loadFromDisk() {
+        if (mFile.exists()) {
+            long validLength = (mFile.length() / RECORD_SIZE) * RECORD_SIZE;
+
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)))) {
+                long now = System.currentTimeMillis();
+                for (long pos = 0; pos < validLength; pos += RECORD_SIZE) {
+                    long keyHigh = in.readLong();
+                    long keyLow = in.readLong();
+                    double lat = in.readDouble();
+                    double lon = in.readDouble();
+                    int range = in.readInt();
+                    long expiresAt = in.readLong();
+                    boolean negative = (in.readByte() & FLAG_NEGATIVE) != 0;
+                    mDiskRecords++;
+
+                    synchronized (this) {
+                        // Later records replace earlier ones even once expired, but not entries
+                        // stored while loading
+                        int index = find(keyHigh, keyLow);
+                        if ((index < 0) ? expiresAt > now : mReplayed[index]) {
+                            index = insert(keyHigh, keyLow, lat, lon, range, expiresAt, negative);
+                            mReplayed[index] = true;
+                        }
+                    }
+                }
+            } catch (EOFException e) {
+                // Truncated by a concurrent crash, keep what was read
+            } catch (IOException e) {
+                // Corrupted cache, start over
+                mDiskRecords = 0;
+                //noinspection ResultOfMethodCallIgnored
+                mFile.delete();
+            }
+
+            if (mFile.exists() && validLength != mFile.length()) {
+                // Drop a torn trailing record so following appends stay aligned
+                try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+                    raf.setLength(validLength);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        if (mDiskRecords > mCapacity * COMPACT_FACTOR) {
+            compact();
+        }
+    }
+
+    private void appendToDisk(long keyHigh, long keyLow, double lat, double lon, int range, long expiresAt, boolean negative) {
+        try {
+            if (mDiskOut == null) {
+                mDiskOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile, true)));
+            }
+
+            writeRecord(mDiskOut, keyHigh, keyLow, lat, lon, range, expiresAt, negative);
+            mDiskOut.flush();
+            mDiskRecords++;
+        } catch (IOException e) {
+            closeDiskOut();
+            return;
+        }
+
+        if (mDiskRecords > mCapacity * COMPACT_FACTOR) {
+            compact();
+        }
+    }
+
+    private void compact() {
+        closeDiskOut();
+
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        int records = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            synchronized (this) {
+                // Write least recently used first so replaying keeps the LRU order
+                for (int index = mTail; index >= 0; index = mPrev[index]) {
+                    writeRecord(out, mKeyHigh[index], mKeyLow[index], mLat[index], mLon[index],
+                            mRange[index], mExpiresAt[index], mNegative[index]);
+                    records++;
+                }
+            }
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            return;
+        }
+
+        if (tmpFile.renameTo(mFile)) {
+            mDiskRecords = records;
+        }
+    }
+
+    private void closeDiskOut() {
+        if (mDiskOut != null) {
+            try {
+                mDiskOut.close();
+            } catch (IOException ignored) {
+            }
+            mDiskOut = null;
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, long keyHigh, long keyLow, double lat, double lon,
+                                    int range, long expiresAt, boolean negative) throws IOException {
+        out.writeLong(keyHigh);
+        out.writeLong(keyLow);
+        out.writeDouble(lat);
+        out.writeDouble(lon);
+        out.writeInt(range);
+        out.writeLong(expiresAt);
+        out.writeByte(negative ? FLAG_NEGATIVE : 0);
+    }
+
+    public static final class Entry {
+        public final double lat;
+        public final double lon;
+        public final int range;
+        /**
+         * Cell is known to be missing from OpenCelliD.
+         */
+        public final boolean negative;
+
+        Entry(double lat, double lon, int range, boolean negative) {
+            this.lat = lat;
+            this.lon = lon;
+            this.range = range;
+            this.negative = negative;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package github.me_asri.multiloc.location;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * Offline cell database produced by {@link CellIndexImporter}.
+ * <p>
+ * The file is a {@link SortedRecordFile} of fixed-size records sorted by packed cell key. It is
+ * memory-mapped and binary-searched, so lookups don't touch the heap.
+ */
+public class CellIndex {
+    static final int MAGIC = 0x4D4C4349; // "MLCI"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = SortedRecordFile.COUNTED_HEADER_SIZE;
+    // keyHigh, keyLow, lat (1e-7 deg), lon (1e-7 deg), range
+    static final int RECORD_SIZE = 8 + 8 + 4 + 4 + 4;
+    static final double COORD_SCALE = 1e7;
+
+    private final File mFile;
+    private volatile Mapping mMapping;
+
+    public CellIndex(File file) {
+        mFile = file;
+        reload();
+    }
+
+    /**
+     * Remaps the index file, picking up changes made by an import.
+     *
+     * @return whether an index is available
+     */
+    public synchronized boolean reload() {
+        ByteBuffer mapped = SortedRecordFile.map(mFile, HEADER_SIZE);
+        int records = SortedRecordFile.recordCount(mapped, MAGIC, VERSION, RECORD_SIZE);
+        Mapping mapping = (records >= 0) ? new Mapping(mapped, records) : null;
+
+        mMapping = mapping;
+        return mapping != null;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public int size() {
+        Mapping mapping = mMapping;
+        return (mapping != null) ? mapping.count : 0;
+    }
+
+    /**
+     * Looks up a cell.
+     *
+     * @return location of the cell, or {@code null} if the cell is not indexed
+     */
+    public CellCache.Entry lookup(CellTuple cell) {
+        return lookup(cell.keyHigh(), cell.keyLow());
+    }
+
+    public CellCache.Entry lookup(long keyHigh, long keyLow) {
+        Mapping mapping = mMapping;
+        if (mapping == null) {
+            return null;
+        }
+        ByteBuffer buffer = mapping.buffer;
+
+        int low = 0;
+        int high = mapping.count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int offset = HEADER_SIZE + mid * RECORD_SIZE;
+
+            int cmp = compareKeys(buffer.getLong(offset), buffer.getLong(offset + 8), keyHigh, keyLow);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return new CellCache.Entry(buffer.getInt(offset + 16) / COORD_SCALE,
+                        buffer.getInt(offset + 20) / COORD_SCALE, buffer.getInt(offset + 24), false);
+            }
+        }
+        return null;
+    }
+
+    static int compareKeys(long keyHigh1, long keyLow1, long keyHigh2, long keyLow2) {
+        int cmp = Long.compare(keyHigh1, keyHigh2);
+        return (cmp != 0) ? cmp : Long.compare(keyLow1, keyLow2);
+    }
+
+    static int compareRecords(byte[] a, int aOffset, byte[] b, int bOffset) {
+        return SortedRecordFile.compareLongs(a, aOffset, b, bOffset, 2);
+    }
+
+    private static final class Mapping {
+        final ByteBuffer buffer;
+        final int count;
+
+        Mapping(ByteBuffer buffer, int count) {
+            this.buffer = buffer;
+            this.count = count;
+        }
+    }
+}
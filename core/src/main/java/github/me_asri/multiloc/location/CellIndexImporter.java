@@ -0,0 +1,160 @@
+package github.me_asri.multiloc.location;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Builds a {@link CellIndex} from OpenCelliD CSV exports.
+ * <p>
+ * Both full dumps and daily diff files are accepted, optionally gzip-compressed or zipped. Rows
+ * are collected into sorted runs of bounded size which are then merged with the existing index,
+ * so memory use doesn't depend on the size of the input. Rows from the imported file replace
+ * existing records of the same cell.
+ */
+public class CellIndexImporter {
+    private static final int DEFAULT_RUN_SIZE = 1 << 19;
+
+    // OpenCelliD export columns: radio,mcc,net,area,cell,unit,lon,lat,range,...
+    private static final int COL_MCC = 1;
+    private static final int COL_NET = 2;
+    private static final int COL_AREA = 3;
+    private static final int COL_CELL = 4;
+    private static final int COL_LON = 6;
+    private static final int COL_LAT = 7;
+    private static final int COL_RANGE = 8;
+    private static final int MIN_COLUMNS = COL_RANGE + 1;
+
+    private final File mTmpDir;
+    private final int mRunSize;
+
+    public CellIndexImporter(File tmpDir) {
+        this(tmpDir, DEFAULT_RUN_SIZE);
+    }
+
+    public CellIndexImporter(File tmpDir, int runSize) {
+        mTmpDir = tmpDir;
+        mRunSize = runSize;
+    }
+
+    /**
+     * Imports a CSV export into the index file, merging it with the current contents.
+     *
+     * @return number of records in the resulting index
+     */
+    public long importCsv(InputStream in, File indexFile) throws IOException {
+        File tmpIndex = new File(indexFile.getPath() + ".tmp");
+        long count;
+        try (SortedRecordFile.Sorter sorter = new SortedRecordFile.Sorter(mTmpDir, CellIndex.RECORD_SIZE, mRunSize,
+                CellIndex::compareRecords, true)) {
+            // Later inputs take precedence
+            if (indexFile.exists()) {
+                sorter.addSorted(indexFile, CellIndex.HEADER_SIZE,
+                        SortedRecordFile.readCount(indexFile, CellIndex.MAGIC, CellIndex.VERSION));
+            }
+            readRows(maybeDecompress(in), sorter);
+
+            count = SortedRecordFile.write(sorter, tmpIndex, CellIndex.MAGIC, CellIndex.VERSION);
+        }
+        SortedRecordFile.replace(tmpIndex, indexFile);
+        return count;
+    }
+
+    static InputStream maybeDecompress(InputStream in) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in, 1 << 16);
+        buffered.mark(2);
+        int b1 = buffered.read();
+        int b2 = buffered.read();
+        buffered.reset();
+
+        if (b1 == 0x1F && b2 == 0x8B) {
+            return new GZIPInputStream(buffered, 1 << 16);
+        }
+        if (b1 == 'P' && b2 == 'K') {
+            // Archives are expected to hold just the dump
+            ZipInputStream zip = new ZipInputStream(buffered);
+            if (zip.getNextEntry() == null) {
+                throw new IOException("Empty archive");
+            }
+            return zip;
+        }
+        return buffered;
+    }
+
+    private static void readRows(InputStream in, SortedRecordFile.Sorter sorter) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII), 1 << 16);
+        int[] commas = new int[MIN_COLUMNS];
+        byte[] record = new byte[CellIndex.RECORD_SIZE];
+        ByteBuffer writer = ByteBuffer.wrap(record);
+
+        String line;
+        while ((line = reader.readLine()) != null) {
+            // Locate the column separators we care about, skipping malformed rows and the header
+            int columns = 0;
+            for (int i = 0; i < line.length() && columns < MIN_COLUMNS; i++) {
+                if (line.charAt(i) == ',') {
+                    commas[columns++] = i;
+                }
+            }
+            if (columns < MIN_COLUMNS - 1) {
+                continue;
+            }
+            int lineEnd = (columns == MIN_COLUMNS) ? commas[MIN_COLUMNS - 1] : line.length();
+
+            long mcc = parseLong(line, commas[COL_MCC - 1] + 1, commas[COL_MCC]);
+            long net = parseLong(line, commas[COL_NET - 1] + 1, commas[COL_NET]);
+            long area = parseLong(line, commas[COL_AREA - 1] + 1, commas[COL_AREA]);
+            long cell = parseLong(line, commas[COL_CELL - 1] + 1, commas[COL_CELL]);
+            long range = parseLong(line, commas[COL_RANGE - 1] + 1, lineEnd);
+            if (mcc < 0 || mcc > 999 || net < 0 || net > 999 || area < 0 || area > 0xFFFFFFFFL
+                    || cell < 0 || range < 0 || range > Integer.MAX_VALUE) {
+                continue;
+            }
+
+            double lon = parseDouble(line, commas[COL_LON - 1] + 1, commas[COL_LON]);
+            double lat = parseDouble(line, commas[COL_LAT - 1] + 1, commas[COL_LAT]);
+            if (!(lat >= -90 && lat <= 90 && lon >= -180 && lon <= 180)) {
+                continue;
+            }
+
+            writer.clear();
+            writer.putLong(CellTuple.keyHigh((int) mcc, (int) net, (int) area))
+                    .putLong(cell)
+                    .putInt((int) Math.round(lat * CellIndex.COORD_SCALE))
+                    .putInt((int) Math.round(lon * CellIndex.COORD_SCALE))
+                    .putInt((int) range);
+            sorter.add(record);
+        }
+    }
+
+    private static long parseLong(String s, int start, int end) {
+        if (start >= end) {
+            return -1;
+        }
+
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9' || value > (Long.MAX_VALUE / 10)) {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static double parseDouble(String s, int start, int end) {
+        try {
+            return Double.parseDouble(s.substring(start, end));
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+}
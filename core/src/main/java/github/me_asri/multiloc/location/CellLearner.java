@@ -0,0 +1,378 @@
+package github.me_asri.multiloc.location;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local cell database learned from the phone's own GPS fixes.
+ * <p>
+ * Every observation of a cell together with a precise fix updates a running weighted mean of
+ * where the cell is seen, and the weighted spread around it, in constant space per cell. Fixes
+ * are weighted by their accuracy and by how strong the cell was received. A cell is only trusted
+ * once it was seen often enough from places far enough apart, as observations from a single spot
+ * say little about where the cell is, and its range never claims less than a realistic coverage
+ * radius, since observations only cover where the phone has been. The least recently observed
+ * cells are dropped once the store is full. Estimates are persisted to a snapshot file
+ * on a dedicated thread, a while after they change, so one snapshot covers many fixes.
+ */
+public class CellLearner {
+    private static final int MAGIC = 0x4D4C434C;
+    private static final int VERSION = 1;
+
+    // Defaults for cells. Observations needed before a cell is used for positioning
+    private static final int MIN_OBSERVATIONS = 10;
+    // Standard deviation of where a cell was seen needed before it's used for positioning
+    private static final double MIN_SPREAD_METERS = 100;
+    // Coverage radius of a small urban cell
+    private static final int MIN_RANGE_METERS = 1000;
+
+    private static final double MIN_ACCURACY_METERS = 5;
+    // Multiple of the standard deviation of observations reported as range
+    private static final double RANGE_SIGMAS = 2;
+
+    private static final int STRONGEST_DBM = -50;
+    private static final int WEAKEST_DBM = -140;
+    // Weight of an observation at the weakest signal relative to the strongest
+    private static final double WEAK_SIGNAL_WEIGHT = 0.25;
+
+    // Delay of a save after an observation, those made meanwhile are saved along
+    private static final long SAVE_DELAY_MILLIS = 30_000;
+
+    private static final double METERS_PER_DEGREE_LAT = 110_574;
+    private static final double METERS_PER_DEGREE_LON = 111_320;
+
+    private final File mFile;
+    private final int mMinObservations;
+    private final double mMinSpreadMeters;
+    private final int mMinRangeMeters;
+    private final Map<Key, Estimate> mEstimates;
+
+    private final ScheduledExecutorService mDiskExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "CellLearner-disk");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private boolean mSavePending = false;
+
+    /**
+     * @param file     snapshot file, or {@code null} to keep estimates in memory only
+     * @param capacity maximum number of cells kept
+     */
+    public CellLearner(File file, int capacity) {
+        this(file, capacity, MIN_OBSERVATIONS, MIN_SPREAD_METERS, MIN_RANGE_METERS);
+    }
+
+    /**
+     * @param minObservations observations needed before a transmitter is used for positioning
+     * @param minSpreadMeters standard deviation of where a transmitter was seen needed before it's
+     *                        used for positioning
+     * @param minRangeMeters  smallest range reported, a realistic coverage radius of the kind of
+     *                        transmitter
+     */
+    public CellLearner(File file, int capacity, int minObservations, double minSpreadMeters, int minRangeMeters) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+
+        mFile = file;
+        mMinObservations = minObservations;
+        mMinSpreadMeters = minSpreadMeters;
+        mMinRangeMeters = minRangeMeters;
+        mEstimates = new LinkedHashMap<Key, Estimate>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Estimate> eldest) {
+                return size() > capacity;
+            }
+        };
+
+        if (mFile != null) {
+            mDiskExecutor.execute(this::load);
+        }
+    }
+
+    /**
+     * Records that {@code cell} was seen while the phone was at the given position.
+     *
+     * @param accuracy accuracy of the fix in meters
+     * @param dbm      received signal strength, or {@link CellPositioning#UNKNOWN_DBM}
+     */
+    public void observe(CellTuple cell, double lat, double lon, double accuracy, int dbm, long timeMillis) {
+        double strength = 0.5;
+        if (dbm != CellPositioning.UNKNOWN_DBM) {
+            strength = (Math.max(WEAKEST_DBM, Math.min(STRONGEST_DBM, dbm)) - WEAKEST_DBM)
+                    / (double) (STRONGEST_DBM - WEAKEST_DBM);
+        }
+        observe(cell.keyHigh(), cell.keyLow(), lat, lon, accuracy, strength, timeMillis);
+    }
+
+    /**
+     * Records that the transmitter with the given key was seen while the phone was at the given
+     * position. Lets other kinds of transmitters, e.g. Wi-Fi access points, share the learner.
+     *
+     * @param strength received signal strength scaled to between 0 (weakest) and 1 (strongest)
+     */
+    public void observe(long keyHigh, long keyLow, double lat, double lon, double accuracy, double strength,
+                        long timeMillis) {
+        double sigma = Math.max(MIN_ACCURACY_METERS, accuracy);
+        double weight = (WEAK_SIGNAL_WEIGHT + (1 - WEAK_SIGNAL_WEIGHT) * strength) / (sigma * sigma);
+
+        synchronized (this) {
+            Key key = new Key(keyHigh, keyLow);
+            Estimate estimate = mEstimates.get(key);
+            if (estimate == null) {
+                estimate = new Estimate();
+                mEstimates.put(key, estimate);
+            }
+            estimate.add(lat, lon, weight, timeMillis);
+
+            scheduleSave();
+        }
+    }
+
+    /**
+     * @return learned location of {@code cell}, or {@code null} if it hasn't been observed often
+     * enough or from far enough apart
+     */
+    public CellCache.Entry lookup(CellTuple cell) {
+        return lookup(cell.keyHigh(), cell.keyLow(), null);
+    }
+
+    /**
+     * @param known location of {@code cell} from another source, e.g. OpenCelliD, or
+     *              {@code null}. Its range floors the learned one
+     */
+    public CellCache.Entry lookup(CellTuple cell, CellCache.Entry known) {
+        return lookup(cell.keyHigh(), cell.keyLow(), known);
+    }
+
+    public CellCache.Entry lookup(long keyHigh, long keyLow) {
+        return lookup(keyHigh, keyLow, null);
+    }
+
+    /**
+     * @param known location of the transmitter from another source, or {@code null}. Its range
+     *              floors the learned one
+     */
+    public synchronized CellCache.Entry lookup(long keyHigh, long keyLow, CellCache.Entry known) {
+        Estimate estimate = mEstimates.get(new Key(keyHigh, keyLow));
+        if (estimate == null || estimate.count < mMinObservations) {
+            return null;
+        }
+
+        double sigma = Math.sqrt(estimate.spread / estimate.weight);
+        if (sigma < mMinSpreadMeters) {
+            return null;
+        }
+
+        double range = Math.max(mMinRangeMeters, RANGE_SIGMAS * sigma);
+        if (known != null && !known.negative) {
+            range = Math.max(range, known.range);
+        }
+        return new CellCache.Entry(estimate.lat, estimate.lon, (int) Math.round(range), false);
+    }
+
+    public synchronized int size() {
+        return mEstimates.size();
+    }
+
+    /**
+     * Writes the estimates out now rather than shortly after they changed, e.g. once tracking
+     * stops.
+     */
+    public void flush() throws InterruptedException {
+        if (mFile == null) {
+            return;
+        }
+
+        try {
+            // Saved on the disk thread, so it can't race a pending save
+            mDiskExecutor.submit(this::save).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private void scheduleSave() {
+        if (mFile == null || mSavePending) {
+            return;
+        }
+
+        mSavePending = true;
+        mDiskExecutor.schedule(this::save, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void load() {
+        if (!mFile.exists()) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+
+            int count = in.readInt();
+            List<Key> keys = new ArrayList<>(count);
+            List<Estimate> estimates = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                keys.add(new Key(in.readLong(), in.readLong()));
+
+                Estimate estimate = new Estimate();
+                estimate.weight = in.readDouble();
+                estimate.lat = in.readDouble();
+                estimate.lon = in.readDouble();
+                estimate.spread = in.readDouble();
+                estimate.count = in.readInt();
+                estimate.updatedAt = in.readLong();
+                estimates.add(estimate);
+            }
+
+            synchronized (this) {
+                // Observations made while loading are newer, keep them
+                for (int i = 0; i < count; i++) {
+                    if (!mEstimates.containsKey(keys.get(i))) {
+                        mEstimates.put(keys.get(i), estimates.get(i));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // A truncated or corrupt snapshot is rebuilt from new observations
+            mFile.delete();
+        }
+    }
+
+    private void save() {
+        List<Key> keys;
+        List<Estimate> estimates = new ArrayList<>();
+        synchronized (this) {
+            if (!mSavePending) {
+                // Saved already by flush()
+                return;
+            }
+            mSavePending = false;
+
+            // Least recently observed first, so load() restores the LRU order
+            keys = new ArrayList<>(mEstimates.keySet());
+            for (Estimate estimate : mEstimates.values()) {
+                estimates.add(estimate.copy());
+            }
+        }
+
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                Key key = keys.get(i);
+                Estimate estimate = estimates.get(i);
+
+                out.writeLong(key.high);
+                out.writeLong(key.low);
+                out.writeDouble(estimate.weight);
+                out.writeDouble(estimate.lat);
+                out.writeDouble(estimate.lon);
+                out.writeDouble(estimate.spread);
+                out.writeInt(estimate.count);
+                out.writeLong(estimate.updatedAt);
+            }
+        } catch (IOException e) {
+            tmpFile.delete();
+            return;
+        }
+
+        if (!tmpFile.renameTo(mFile)) {
+            tmpFile.delete();
+        }
+    }
+
+    private static final class Key {
+        final long high;
+        final long low;
+
+        Key(long high, long low) {
+            this.high = high;
+            this.low = low;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return high == key.high && low == key.low;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(high) * 31 + Long.hashCode(low);
+        }
+    }
+
+    /**
+     * Incrementally weighted mean and spread (West's algorithm) of where a cell was seen.
+     */
+    private static final class Estimate {
+        double weight;
+        double lat;
+        double lon;
+        // Weighted sum of squared distances from the mean in square meters
+        double spread;
+        int count;
+        long updatedAt;
+
+        void add(double obsLat, double obsLon, double obsWeight, long timeMillis) {
+            if (count == 0) {
+                weight = obsWeight;
+                lat = obsLat;
+                lon = obsLon;
+                spread = 0;
+            } else {
+                double lonScale = METERS_PER_DEGREE_LON * Math.cos(Math.toRadians(lat));
+                double dyBefore = (obsLat - lat) * METERS_PER_DEGREE_LAT;
+                double dxBefore = (obsLon - lon) * lonScale;
+
+                weight += obsWeight;
+                double ratio = obsWeight / weight;
+                lat += ratio * (obsLat - lat);
+                lon += ratio * (obsLon - lon);
+
+                double dyAfter = (obsLat - lat) * METERS_PER_DEGREE_LAT;
+                double dxAfter = (obsLon - lon) * lonScale;
+                spread += obsWeight * (dyBefore * dyAfter + dxBefore * dxAfter);
+            }
+
+            count++;
+            updatedAt = timeMillis;
+        }
+
+        Estimate copy() {
+            Estimate copy = new Estimate();
+            copy.weight = weight;
+            copy.lat = lat;
+            copy.lon = lon;
+            copy.spread = spread;
+            copy.count = count;
+            copy.updatedAt = updatedAt;
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package github.me_asri.multiloc.location;
+
+import java.util.Arrays;
+
+/**
+ * Combines the locations of several visible cells into a single weighted-centroid fix.
+ * <p>
+ * Each cell is weighted by the inverse square of its estimated distance from the phone. The
+ * estimate comes from timing advance when the modem reports it, otherwise from the cell's
+ * OpenCelliD range scaled down by how strong the received signal is.
+ */
+final class CellPositioning {
+    static final int UNKNOWN_DBM = Integer.MAX_VALUE;
+
+    private static final double DEFAULT_MIN_SIGMA_METERS = 50;
+    private static final double DEFAULT_RANGE_METERS = 1000;
+    private static final int STRONGEST_DBM = -50;
+    private static final int WEAKEST_DBM = -140;
+    private static final int DEFAULT_DBM = -100;
+    // Fraction of the cell range assumed for the strongest possible signal
+    private static final double STRONG_SIGNAL_RANGE_FACTOR = 0.3;
+
+    private static final double METERS_PER_DEGREE_LAT = 110_574;
+    private static final double METERS_PER_DEGREE_LON = 111_320;
+
+    private final double mMinSigma;
+
+    private double[] mLat = new double[8];
+    private double[] mLon = new double[8];
+    private double[] mSigma = new double[8];
+    private int mSize = 0;
+
+    CellPositioning() {
+        this(DEFAULT_MIN_SIGMA_METERS);
+    }
+
+    /**
+     * @param minSigma lower bound of the distance estimate of any transmitter in meters
+     */
+    CellPositioning(double minSigma) {
+        mMinSigma = minSigma;
+    }
+
+    /**
+     * @param range      cell range reported by OpenCelliD in meters
+     * @param dbm        received signal strength, or {@link #UNKNOWN_DBM}
+     * @param taDistance distance derived from timing advance in meters, or a negative value if unknown
+     */
+    void add(double lat, double lon, int range, int dbm, double taDistance) {
+        if (mSize == mLat.length) {
+            mLat = Arrays.copyOf(mLat, mSize * 2);
+            mLon = Arrays.copyOf(mLon, mSize * 2);
+            mSigma = Arrays.copyOf(mSigma, mSize * 2);
+        }
+
+        double sigma;
+        if (taDistance >= 0) {
+            sigma = taDistance;
+        } else {
+            if (dbm == UNKNOWN_DBM) {
+                dbm = DEFAULT_DBM;
+            }
+            double strength = (Math.max(WEAKEST_DBM, Math.min(STRONGEST_DBM, dbm)) - WEAKEST_DBM)
+                    / (double) (STRONGEST_DBM - WEAKEST_DBM);
+            double factor = 1 - (1 - STRONG_SIGNAL_RANGE_FACTOR) * strength;
+
+            sigma = ((range > 0) ? range : DEFAULT_RANGE_METERS) * factor;
+        }
+
+        mLat[mSize] = lat;
+        mLon[mSize] = lon;
+        mSigma[mSize] = Math.max(mMinSigma, sigma);
+        mSize++;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * @return {latitude, longitude, uncertainty radius in meters}, or {@code null} if no cell was added
+     */
+    double[] solve() {
+        if (mSize == 0) {
+            return null;
+        }
+
+        // Work in a local tangent plane around the first cell
+        double lat0 = mLat[0];
+        double lon0 = mLon[0];
+        double lonScale = METERS_PER_DEGREE_LON * Math.cos(Math.toRadians(lat0));
+
+        double sumW = 0, sumX = 0, sumY = 0;
+        for (int i = 0; i < mSize; i++) {
+            double w = 1 / (mSigma[i] * mSigma[i]);
+            sumW += w;
+            sumX += w * (mLon[i] - lon0) * lonScale;
+            sumY += w * (mLat[i] - lat0) * METERS_PER_DEGREE_LAT;
+        }
+        double x = sumX / sumW;
+        double y = sumY / sumW;
+
+        // Spread of the cells around the centroid plus the error of the weighted mean itself
+        double spread = 0;
+        for (int i = 0; i < mSize; i++) {
+            double w = 1 / (mSigma[i] * mSigma[i]);
+            double dx = (mLon[i] - lon0) * lonScale - x;
+            double dy = (mLat[i] - lat0) * METERS_PER_DEGREE_LAT - y;
+            spread += w * (dx * dx + dy * dy);
+        }
+        double uncertainty = Math.sqrt(spread / sumW + 1 / sumW);
+
+        double lat = lat0 + y / METERS_PER_DEGREE_LAT;
+        double lon = (lonScale > 0) ? lon0 + x / lonScale : lon0;
+        return new double[]{lat, lon, uncertainty};
+    }
+}
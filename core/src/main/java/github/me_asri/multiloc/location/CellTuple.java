@@ -0,0 +1,80 @@
+package github.me_asri.multiloc.location;
+
+/**
+ * Identity of a single cell as sent to OpenCelliD.
+ * <p>
+ * Besides the raw values, a tuple can be packed into two longs which are used as the key
+ * for the cell cache and offline index.
+ */
+public final class CellTuple {
+    private static final int UNKNOWN_CODE = 0xFFFF;
+
+    public final String mcc;
+    public final String mnc;
+    public final int tac;
+    public final long ci;
+
+    public CellTuple(String mcc, String mnc, int tac, long ci) {
+        this.mcc = mcc;
+        this.mnc = mnc;
+        this.tac = tac;
+        this.ci = ci;
+    }
+
+    /**
+     * Upper half of the packed key: MCC (16 bits), MNC (16 bits) and LAC/TAC (32 bits).
+     */
+    public long keyHigh() {
+        return keyHigh(parseCode(mcc), parseCode(mnc), tac);
+    }
+
+    /**
+     * Lower half of the packed key: the cell ID.
+     */
+    public long keyLow() {
+        return ci;
+    }
+
+    public static long keyHigh(int mcc, int mnc, int tac) {
+        return ((long) (mcc & 0xFFFF) << 48) | ((long) (mnc & 0xFFFF) << 32) | (tac & 0xFFFFFFFFL);
+    }
+
+    private static int parseCode(String code) {
+        if (code == null || code.isEmpty() || code.length() > 4) {
+            return UNKNOWN_CODE;
+        }
+
+        int value = 0;
+        for (int i = 0; i < code.length(); i++) {
+            char c = code.charAt(i);
+            if (c < '0' || c > '9') {
+                return UNKNOWN_CODE;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof CellTuple)) return false;
+
+        CellTuple other = (CellTuple) o;
+        return keyHigh() == other.keyHigh() && ci == other.ci;
+    }
+
+    @Override
+    public int hashCode() {
+        long h = keyHigh() * 31 + ci;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return "MCC: " + mcc +
+                " MNC: " + mnc +
+                " TAC: " + tac +
+                " CI: " + ci;
+    }
+}
@@ -0,0 +1,264 @@
+package github.me_asri.multiloc.location;
+
+/**
+ * Fuses fixes of every provider into one best estimate with a constant-velocity Kalman filter.
+ * <p>
+ * Positions are filtered in meters east and north of an origin near the estimate. With the same
+ * uncertainty in both directions and independent process noise per axis, the four-state filter
+ * splits exactly into two independent two-state ones, so an update is a handful of scalar
+ * operations and allocates nothing. Fixes are weighed by their accuracy, so a GPS fix pulls the
+ * estimate far harder than an IP fix covering a city. Fixes too far from the estimate for their
+ * accuracy are gated out, unless several in a row disagree with it, in which case the estimate
+ * was the one that was wrong and the filter restarts from the latest fix. Not thread-safe.
+ */
+public class FusionFilter {
+    public static final int ACCEPTED = 0;
+    public static final int REJECTED = 1;
+    public static final int RESET = 2;
+
+    private static final double METERS_PER_DEGREE_LAT = 110_574;
+    private static final double METERS_PER_DEGREE_LON = 111_320;
+    // Distance from the origin after which it's moved under the estimate, as the projection distorts
+    private static final double MAX_ORIGIN_DISTANCE_METERS = 50_000;
+
+    // Accuracy reported by providers is a radius of 68% confidence, which for a circular normal
+    // distribution is about 1.5 standard deviations per axis
+    private static final double ACCURACY_SIGMAS = 1.515;
+    // Accuracies are capped at half the Earth's circumference, so the variance stays finite
+    private static final double MAX_ACCURACY_METERS = 20_000_000;
+    private static final double INITIAL_SPEED_SIGMA = 30;
+    // Chi-squared with 2 degrees of freedom at 99.9%
+    private static final double GATE = 13.8;
+    private static final int MAX_REJECTED = 3;
+
+    private final double mAccelerationNoise;
+
+    private boolean mInitialized = false;
+    private long mTimeMillis;
+    private double mOriginLat;
+    private double mOriginLon;
+    private double mMetersPerDegreeLon;
+
+    // Per axis state of position and velocity, with covariance [[a, b], [b, c]]
+    private double mX, mVx, mXa, mXb, mXc;
+    private double mY, mVy, mYa, mYb, mYc;
+
+    private int mRejectedInRow = 0;
+    private long mAccepted = 0;
+    private long mRejected = 0;
+
+    public FusionFilter() {
+        this(1);
+    }
+
+    /**
+     * @param accelerationNoise spectral density of the acceleration the phone is assumed to
+     *                          undergo in m^2/s^3, higher values follow turns more closely
+     */
+    public FusionFilter(double accelerationNoise) {
+        mAccelerationNoise = accelerationNoise;
+    }
+
+    /**
+     * Adds a fix.
+     * <p>
+     * Fixes older than the estimate, e.g. a slow network provider answering after GPS, are
+     * applied as if they were taken at the time of the estimate.
+     *
+     * @param accuracy horizontal accuracy of the fix in meters
+     * @return {@link #ACCEPTED}, {@link #REJECTED} if the fix was gated out or isn't finite, or
+     * {@link #RESET} if the filter restarted from it
+     */
+    public int update(double lat, double lon, double accuracy, long timeMillis) {
+        if (!Double.isFinite(lat) || !Double.isFinite(lon) || !Double.isFinite(accuracy)) {
+            // Would poison every estimate after it, and says nothing about the estimate itself
+            mRejected++;
+            return REJECTED;
+        }
+
+        double sigma = Math.min(Math.max(accuracy, 1), MAX_ACCURACY_METERS) / ACCURACY_SIGMAS;
+        double r = sigma * sigma;
+
+        if (!mInitialized) {
+            reset(lat, lon, r, timeMillis);
+            return RESET;
+        }
+
+        predict(timeMillis);
+
+        double zx = (lon - mOriginLon) * mMetersPerDegreeLon;
+        double zy = (lat - mOriginLat) * METERS_PER_DEGREE_LAT;
+        double nx = zx - mX;
+        double ny = zy - mY;
+        double sx = mXa + r;
+        double sy = mYa + r;
+
+        if (nx * nx / sx + ny * ny / sy > GATE) {
+            mRejected++;
+            if (++mRejectedInRow < MAX_REJECTED) {
+                return REJECTED;
+            }
+            reset(lat, lon, r, timeMillis);
+            return RESET;
+        }
+        mRejectedInRow = 0;
+        mAccepted++;
+
+        double kx = mXa / sx;
+        double kvx = mXb / sx;
+        mX += kx * nx;
+        mVx += kvx * nx;
+        mXc -= kvx * mXb;
+        mXa *= r / sx;
+        mXb *= r / sx;
+
+        double ky = mYa / sy;
+        double kvy = mYb / sy;
+        mY += ky * ny;
+        mVy += kvy * ny;
+        mYc -= kvy * mYb;
+        mYa *= r / sy;
+        mYb *= r / sy;
+
+        if (Math.abs(mX) > MAX_ORIGIN_DISTANCE_METERS || Math.abs(mY) > MAX_ORIGIN_DISTANCE_METERS) {
+            moveOrigin(getLat(), getLon());
+        }
+        return ACCEPTED;
+    }
+
+    /**
+     * Moves the estimate forward to {@code timeMillis}, growing its uncertainty. Has no effect on
+     * times before the estimate.
+     */
+    public void predict(long timeMillis) {
+        if (!mInitialized || timeMillis <= mTimeMillis) {
+            return;
+        }
+
+        double dt = (timeMillis - mTimeMillis) / 1000.0;
+        double q = mAccelerationNoise;
+        double qa = q * dt * dt * dt / 3;
+        double qb = q * dt * dt / 2;
+        double qc = q * dt;
+
+        mX += dt * mVx;
+        mXa += 2 * dt * mXb + dt * dt * mXc + qa;
+        mXb += dt * mXc + qb;
+        mXc += qc;
+
+        mY += dt * mVy;
+        mYa += 2 * dt * mYb + dt * dt * mYc + qa;
+        mYb += dt * mYc + qb;
+        mYc += qc;
+
+        mTimeMillis = timeMillis;
+    }
+
+    public void clear() {
+        mInitialized = false;
+        mRejectedInRow = 0;
+    }
+
+    public boolean isInitialized() {
+        return mInitialized;
+    }
+
+    /**
+     * @return time of the estimate in the time base of the fixes
+     */
+    public long getTimeMillis() {
+        return mTimeMillis;
+    }
+
+    public double getLat() {
+        return mOriginLat + mY / METERS_PER_DEGREE_LAT;
+    }
+
+    public double getLon() {
+        return mOriginLon + mX / mMetersPerDegreeLon;
+    }
+
+    /**
+     * @return estimated accuracy in meters, on the same scale as the accuracy of fixes
+     */
+    public double getAccuracy() {
+        return Math.sqrt(Math.max(mXa, mYa)) * ACCURACY_SIGMAS;
+    }
+
+    /**
+     * @return estimated speed in m/s
+     */
+    public double getSpeed() {
+        return Math.hypot(mVx, mVy);
+    }
+
+    /**
+     * @return estimated bearing in degrees clockwise from north
+     */
+    public double getBearing() {
+        double bearing = Math.toDegrees(Math.atan2(mVx, mVy));
+        return (bearing < 0) ? bearing + 360 : bearing;
+    }
+
+    /**
+     * Copies the covariance of the state {east, north, east velocity, north velocity}, in meters
+     * and m/s, into {@code out} as a row-major 4x4 matrix.
+     */
+    public void getCovariance(double[] out) {
+        for (int i = 0; i < 16; i++) {
+            out[i] = 0;
+        }
+        out[0] = mXa;
+        out[2] = mXb;
+        out[5] = mYa;
+        out[7] = mYb;
+        out[8] = mXb;
+        out[10] = mXc;
+        out[13] = mYb;
+        out[15] = mYc;
+    }
+
+    public long getAcceptedCount() {
+        return mAccepted;
+    }
+
+    public long getRejectedCount() {
+        return mRejected;
+    }
+
+    private void reset(double lat, double lon, double r, long timeMillis) {
+        mInitialized = true;
+        mRejectedInRow = 0;
+        mTimeMillis = timeMillis;
+        setOrigin(lat, lon);
+
+        mX = 0;
+        mY = 0;
+        mVx = 0;
+        mVy = 0;
+        mXa = r;
+        mYa = r;
+        mXb = 0;
+        mYb = 0;
+        mXc = INITIAL_SPEED_SIGMA * INITIAL_SPEED_SIGMA;
+        mYc = INITIAL_SPEED_SIGMA * INITIAL_SPEED_SIGMA;
+    }
+
+    /**
+     * Moves the origin of the local plane to the given point, keeping the state in place.
+     */
+    private void moveOrigin(double lat, double lon) {
+        double oldLat = getLat();
+        double oldLon = getLon();
+
+        setOrigin(lat, lon);
+        mX = (oldLon - lon) * mMetersPerDegreeLon;
+        mY = (oldLat - lat) * METERS_PER_DEGREE_LAT;
+    }
+
+    private void setOrigin(double lat, double lon) {
+        mOriginLat = lat;
+        mOriginLon = lon;
+        mMetersPerDegreeLon = METERS_PER_DEGREE_LON * Math.cos(Math.toRadians(lat));
+    }
+}
@@ -0,0 +1,100 @@
+package github.me_asri.multiloc.location;
+
+/**
+ * Turns a stream of serving cell observations into confirmed cell changes, ignoring ping-pong
+ * handovers.
+ * <p>
+ * A new serving cell is only confirmed once it has kept serving for a dwell time, so a cell the
+ * phone bounces to and straight back from is never reported. Going back to the cell confirmed
+ * before the current one takes longer to confirm for a while, as that's what ping-pong looks like
+ * at the edge of two cells. Not thread-safe.
+ */
+public class HandoverFilter {
+    private final long mDwellMillis;
+    private final long mReturnDwellMillis;
+    private final long mReturnWindowMillis;
+
+    private CellTuple mConfirmed;
+    // Cell confirmed before the current one, and when it was left
+    private CellTuple mPrevious;
+    private long mPreviousLeftAt;
+
+    private CellTuple mCandidate;
+    private long mCandidateDueAt;
+
+    private long mSuppressed = 0;
+
+    /**
+     * @param dwellMillis        time a new cell has to keep serving before it's confirmed
+     * @param returnDwellMillis  dwell time of the previous cell within {@code returnWindowMillis} of leaving it
+     * @param returnWindowMillis time after leaving a cell during which going back to it is suspect
+     */
+    public HandoverFilter(long dwellMillis, long returnDwellMillis, long returnWindowMillis) {
+        mDwellMillis = dwellMillis;
+        mReturnDwellMillis = returnDwellMillis;
+        mReturnWindowMillis = returnWindowMillis;
+    }
+
+    /**
+     * Reports the cell currently serving.
+     *
+     * @return time in milliseconds after which to call {@link #confirm(CellTuple, long)} with it,
+     * or -1 if it's already confirmed or waiting to be
+     */
+    public long observe(CellTuple serving, long nowMillis) {
+        if (serving.equals(mCandidate)) {
+            return -1;
+        }
+        if (serving.equals(mConfirmed)) {
+            if (mCandidate != null) {
+                // Bounced back before the other cell was confirmed
+                mCandidate = null;
+                mSuppressed++;
+            }
+            return -1;
+        }
+
+        long dwell;
+        if (mConfirmed == null) {
+            dwell = 0;
+        } else if (serving.equals(mPrevious) && nowMillis - mPreviousLeftAt < mReturnWindowMillis) {
+            dwell = mReturnDwellMillis;
+        } else {
+            dwell = mDwellMillis;
+        }
+
+        if (mCandidate != null) {
+            // Replaced before it was confirmed
+            mSuppressed++;
+        }
+        mCandidate = serving;
+        mCandidateDueAt = nowMillis + dwell;
+        return dwell;
+    }
+
+    /**
+     * @return whether {@code cell} kept serving for its dwell time and is now the confirmed cell
+     */
+    public boolean confirm(CellTuple cell, long nowMillis) {
+        if (!cell.equals(mCandidate) || nowMillis < mCandidateDueAt) {
+            return false;
+        }
+
+        mPrevious = mConfirmed;
+        mPreviousLeftAt = nowMillis;
+        mConfirmed = cell;
+        mCandidate = null;
+        return true;
+    }
+
+    public CellTuple getConfirmed() {
+        return mConfirmed;
+    }
+
+    /**
+     * @return number of serving cells that were never confirmed as they didn't keep serving long enough
+     */
+    public long getSuppressedCount() {
+        return mSuppressed;
+    }
+}
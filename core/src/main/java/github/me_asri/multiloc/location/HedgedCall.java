@@ -0,0 +1,220 @@
+package github.me_asri.multiloc.location;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+/**
+ * Retrofit call with tail-latency hedging and retries.
+ * <p>
+ * If an attempt takes longer than the given percentile of recent latencies, a duplicate request
+ * is fired and whichever answers first wins, the other one is cancelled. Attempts failing with an
+ * I/O error or a retryable response are retried after a jittered exponential backoff, as long as
+ * the remaining budget allows. Anything else completes the call right away.
+ */
+public class HedgedCall<T> {
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "HedgedCall-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Supplier<Call<T>> mCallFactory;
+    private final LatencyTracker mLatency;
+    private final double mHedgePercentile;
+    private final Backoff mBackoff;
+    private final Predicate<Response<T>> mRetryable;
+    private final LongSupplier mRemainingMillis;
+    private final BiConsumer<Response<T>, Throwable> mCompletion;
+
+    private final List<Call<T>> mActiveCalls = new ArrayList<>(2);
+    private ScheduledFuture<?> mTimer;
+    private int mAttempt = 0;
+    private boolean mDone = false;
+
+    /**
+     * @param callFactory     creates the call of each attempt and hedge
+     * @param latency         recent latencies deciding when to hedge, or {@code null} to never hedge
+     * @param hedgePercentile latency percentile after which a hedge is fired
+     * @param retryable       whether a response warrants another attempt
+     * @param remainingMillis remaining time budget, no hedges or retries are started beyond it
+     * @param completion      called once with the winning response or the last error, unless cancelled
+     */
+    public HedgedCall(Supplier<Call<T>> callFactory, LatencyTracker latency, double hedgePercentile, Backoff backoff,
+                      Predicate<Response<T>> retryable, LongSupplier remainingMillis,
+                      BiConsumer<Response<T>, Throwable> completion) {
+        mCallFactory = callFactory;
+        mLatency = latency;
+        mHedgePercentile = hedgePercentile;
+        mBackoff = backoff;
+        mRetryable = retryable;
+        mRemainingMillis = remainingMillis;
+        mCompletion = completion;
+    }
+
+    /**
+     * @return whether {@code response} failed with a status worth retrying
+     */
+    public static boolean isRetryableStatus(Response<?> response) {
+        int code = response.code();
+        return code >= 500 || code == 429;
+    }
+
+    public synchronized void start() {
+        startAttempt();
+    }
+
+    public void cancel() {
+        List<Call<T>> calls;
+        synchronized (this) {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            calls = stop();
+        }
+
+        for (Call<T> call : calls) {
+            call.cancel();
+        }
+    }
+
+    private synchronized void startAttempt() {
+        if (mDone) {
+            return;
+        }
+
+        launch();
+
+        long hedgeDelay = (mLatency != null) ? mLatency.percentile(mHedgePercentile) : -1;
+        if (hedgeDelay >= 0 && hedgeDelay < mRemainingMillis.getAsLong()) {
+            mTimer = SCHEDULER.schedule(this::hedge, hedgeDelay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void hedge() {
+        if (mDone || mActiveCalls.isEmpty()) {
+            return;
+        }
+
+        launch();
+    }
+
+    private void launch() {
+        Call<T> call = mCallFactory.get();
+        mActiveCalls.add(call);
+
+        long start = System.nanoTime();
+        call.enqueue(new Callback<T>() {
+            @Override
+            public void onResponse(Call<T> call, Response<T> response) {
+                onCallResponse(call, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), response);
+            }
+
+            @Override
+            public void onFailure(Call<T> call, Throwable t) {
+                onCallFailure(call, t);
+            }
+        });
+    }
+
+    private void onCallResponse(Call<T> call, long latencyMillis, Response<T> response) {
+        List<Call<T>> losers;
+        synchronized (this) {
+            if (mDone || !mActiveCalls.remove(call)) {
+                return;
+            }
+            if (mLatency != null) {
+                mLatency.record(latencyMillis);
+            }
+
+            if (mRetryable.test(response)) {
+                if (!onAttemptFailed()) {
+                    return;
+                }
+                // Out of attempts, hand out the last response as is
+            }
+
+            mDone = true;
+            losers = stop();
+        }
+
+        for (Call<T> loser : losers) {
+            loser.cancel();
+        }
+        mCompletion.accept(response, null);
+    }
+
+    private void onCallFailure(Call<T> call, Throwable t) {
+        List<Call<T>> losers;
+        synchronized (this) {
+            if (mDone || !mActiveCalls.remove(call)) {
+                return;
+            }
+            // Malformed responses and the like won't get any better by asking again
+            if (t instanceof IOException && !onAttemptFailed()) {
+                return;
+            }
+
+            mDone = true;
+            losers = stop();
+        }
+
+        for (Call<T> loser : losers) {
+            loser.cancel();
+        }
+        mCompletion.accept(null, t);
+    }
+
+    /**
+     * Schedules the next attempt once no request of the current one is left. Must be called with
+     * the lock held.
+     *
+     * @return whether the call is to be completed with the last failure
+     */
+    private boolean onAttemptFailed() {
+        if (!mActiveCalls.isEmpty()) {
+            // The other request of this attempt may still make it
+            return false;
+        }
+        if (mTimer != null) {
+            mTimer.cancel(false);
+        }
+
+        mAttempt++;
+        long delay = mBackoff.delayMillis(mAttempt);
+        if (mAttempt < mBackoff.getMaxAttempts() && delay < mRemainingMillis.getAsLong()) {
+            mTimer = SCHEDULER.schedule(this::startAttempt, delay, TimeUnit.MILLISECONDS);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Must be called with the lock held.
+     *
+     * @return calls to cancel outside the lock
+     */
+    private List<Call<T>> stop() {
+        if (mTimer != null) {
+            mTimer.cancel(false);
+            mTimer = null;
+        }
+
+        List<Call<T>> calls = new ArrayList<>(mActiveCalls);
+        mActiveCalls.clear();
+        return calls;
+    }
+}
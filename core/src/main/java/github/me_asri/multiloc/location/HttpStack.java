@@ -0,0 +1,252 @@
+package github.me_asri.multiloc.location;
+
+import com.google.gson.Gson;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import okhttp3.Cache;
+import okhttp3.CacheControl;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
+import okio.GzipSource;
+import okio.Okio;
+import retrofit2.Converter;
+import retrofit2.Retrofit;
+import retrofit2.converter.gson.GsonConverterFactory;
+
+/**
+ * HTTP client shared by all location services.
+ * <p>
+ * A single {@link OkHttpClient} means a single connection pool and dispatcher, so connections
+ * and TLS sessions are reused across services. Responses go through a bounded disk cache whose
+ * freshness can be overridden per endpoint, as the APIs don't send useful cache headers. Error
+ * responses of those endpoints are never cached, even those sent with a 200 status. The network
+ * stages of every call and the decoding of responses are timed into {@link Timings}.
+ */
+public class HttpStack {
+    // Stay below the 5 minute keep-alive of OkHttp's default connection pool
+    private static final long PRECONNECT_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(4);
+    // Bytes of a response body shown to the cacheable predicate of an override
+    private static final long CACHEABLE_PEEK_BYTES = 1024;
+
+    private final OkHttpClient mClient;
+    private final Timings mTimings;
+    // Keyed by URL prefix, so services created again, e.g. per activity, don't add up
+    private final Map<String, CacheOverride> mCacheOverrides = new ConcurrentHashMap<>();
+    private final Map<String, Long> mLastPreconnect = new ConcurrentHashMap<>();
+
+    /**
+     * @param cacheDir      directory of the HTTP cache, or {@code null} to disable caching
+     * @param cacheSize     maximum size of the HTTP cache in bytes
+     * @param timeoutMillis connect and read timeout, calls are further bounded by their deadline
+     */
+    public HttpStack(File cacheDir, long cacheSize, long timeoutMillis) {
+        this(cacheDir, cacheSize, timeoutMillis, new Timings());
+    }
+
+    /**
+     * @param timings where call stages are recorded, shared with the providers using this stack
+     */
+    public HttpStack(File cacheDir, long cacheSize, long timeoutMillis, Timings timings) {
+        mTimings = timings;
+
+        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                .readTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                .connectTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                .callTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                .addNetworkInterceptor(this::overrideCacheControl)
+                .eventListenerFactory(call -> new HttpTimingListener(timings, call));
+        if (cacheDir != null) {
+            builder.cache(new Cache(cacheDir, cacheSize));
+        }
+
+        mClient = builder.build();
+    }
+
+    public OkHttpClient getClient() {
+        return mClient;
+    }
+
+    public Timings getTimings() {
+        return mTimings;
+    }
+
+    /**
+     * @return Retrofit instance for {@code baseUrl} sharing the client of this stack
+     */
+    public Retrofit newRetrofit(String baseUrl, Gson gson, Executor callbackExecutor) {
+        return new Retrofit.Builder()
+                .baseUrl(baseUrl)
+                .addConverterFactory(new TimedConverterFactory(GsonConverterFactory.create(gson),
+                        HttpUrl.get(baseUrl).host()))
+                .callbackExecutor(callbackExecutor)
+                .client(mClient)
+                .build();
+    }
+
+    /**
+     * Replaces the caching headers of successful responses to URLs starting with
+     * {@code urlPrefix}. Other responses to them aren't stored. Replaces any earlier override of
+     * the same prefix.
+     *
+     * @param cacheControl value of the {@code Cache-Control} header to use instead
+     */
+    public void overrideCacheControl(String urlPrefix, String cacheControl) {
+        overrideCacheControl(urlPrefix, cacheControl, null);
+    }
+
+    /**
+     * Like {@link #overrideCacheControl(String, String)}, for APIs reporting errors in the body of
+     * successful responses.
+     *
+     * @param cacheable tells from the start of the body of a successful response whether it's a
+     *                  result worth caching rather than an error, or {@code null} to cache all
+     */
+    public void overrideCacheControl(String urlPrefix, String cacheControl, Predicate<String> cacheable) {
+        mCacheOverrides.put(urlPrefix, new CacheOverride(urlPrefix, cacheControl, cacheable));
+    }
+
+    /**
+     * Opens a connection to the host of {@code url} in the background, so the next request to it
+     * skips DNS lookup and TCP/TLS handshakes. Does nothing if the host was warmed up recently.
+     */
+    public void preconnect(String url) {
+        HttpUrl httpUrl = HttpUrl.get(url);
+        String origin = httpUrl.scheme() + "://" + httpUrl.host() + ":" + httpUrl.port();
+
+        long now = System.currentTimeMillis();
+        Long last = mLastPreconnect.get(origin);
+        if (last != null && now - last < PRECONNECT_INTERVAL_MILLIS) {
+            return;
+        }
+        mLastPreconnect.put(origin, now);
+
+        Request request = new Request.Builder()
+                .url(httpUrl.resolve("/"))
+                .head()
+                .cacheControl(CacheControl.FORCE_NETWORK)
+                .build();
+        mClient.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onResponse(Call call, Response response) {
+                // Releases the connection back to the pool
+                response.close();
+            }
+
+            @Override
+            public void onFailure(Call call, IOException e) {
+                mLastPreconnect.remove(origin);
+            }
+        });
+    }
+
+    private Response overrideCacheControl(Interceptor.Chain chain) throws IOException {
+        Request request = chain.request();
+        Response response = chain.proceed(request);
+        if (!request.method().equals("GET")) {
+            return response;
+        }
+
+        String url = request.url().toString();
+        for (CacheOverride override : mCacheOverrides.values()) {
+            if (url.startsWith(override.urlPrefix)) {
+                String cacheControl = override.cacheControl;
+                if (!response.isSuccessful() || (override.cacheable != null
+                        && !override.cacheable.test(peekBody(response, CACHEABLE_PEEK_BYTES)))) {
+                    // Served from the cache, an error would stick for as long as a result
+                    cacheControl = "no-store";
+                }
+
+                return response.newBuilder()
+                        .removeHeader("Pragma")
+                        .removeHeader("Expires")
+                        .header("Cache-Control", cacheControl)
+                        .build();
+            }
+        }
+        return response;
+    }
+
+    /**
+     * @return up to {@code byteCount} bytes from the start of the body, leaving it unread
+     */
+    private static String peekBody(Response response, long byteCount) throws IOException {
+        ResponseBody body = response.body();
+        if (body == null) {
+            return "";
+        }
+
+        BufferedSource source = body.source().peek();
+        // Network interceptors see the body before OkHttp decompresses it
+        if ("gzip".equalsIgnoreCase(response.header("Content-Encoding"))) {
+            source = Okio.buffer(new GzipSource(source));
+        }
+        source.request(byteCount);
+        return source.readUtf8(Math.min(byteCount, source.getBuffer().size()));
+    }
+
+    /**
+     * Times the decoding of responses by another converter factory.
+     */
+    private class TimedConverterFactory extends Converter.Factory {
+        private final Converter.Factory mDelegate;
+        private final String mHost;
+
+        TimedConverterFactory(Converter.Factory delegate, String host) {
+            mDelegate = delegate;
+            mHost = host;
+        }
+
+        @Override
+        public Converter<ResponseBody, ?> responseBodyConverter(Type type, Annotation[] annotations,
+                                                                Retrofit retrofit) {
+            Converter<ResponseBody, ?> converter = mDelegate.responseBodyConverter(type, annotations, retrofit);
+            if (converter == null) {
+                return null;
+            }
+
+            return body -> {
+                long start = System.nanoTime();
+                try {
+                    return converter.convert(body);
+                } finally {
+                    mTimings.recordSince(mHost, Timings.Stage.DECODE, start);
+                }
+            };
+        }
+
+        @Override
+        public Converter<?, RequestBody> requestBodyConverter(Type type, Annotation[] parameterAnnotations,
+                                                              Annotation[] methodAnnotations, Retrofit retrofit) {
+            return mDelegate.requestBodyConverter(type, parameterAnnotations, methodAnnotations, retrofit);
+        }
+    }
+
+    private static class CacheOverride {
+        final String urlPrefix;
+        final String cacheControl;
+        final Predicate<String> cacheable;
+
+        CacheOverride(String urlPrefix, String cacheControl, Predicate<String> cacheable) {
+            this.urlPrefix = urlPrefix;
+            this.cacheControl = cacheControl;
+            this.cacheable = cacheable;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package github.me_asri.multiloc.location;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+
+import okhttp3.Call;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Response;
+
+/**
+ * Records the network stages of a single call into {@link Timings}, under the host it went to.
+ * <p>
+ * Stages skipped by the call, e.g. DNS and connecting on a pooled connection, aren't recorded,
+ * so their histograms only describe calls that actually went through them.
+ */
+class HttpTimingListener extends EventListener {
+    private final Timings mTimings;
+    private final String mHost;
+
+    private long mCallStart;
+    private long mDnsStart;
+    private long mConnectStart;
+    private long mSecureConnectStart;
+    private long mRequestStart;
+
+    HttpTimingListener(Timings timings, Call call) {
+        mTimings = timings;
+        mHost = call.request().url().host();
+    }
+
+    @Override
+    public void callStart(Call call) {
+        mCallStart = System.nanoTime();
+    }
+
+    @Override
+    public void dnsStart(Call call, String domainName) {
+        mDnsStart = System.nanoTime();
+    }
+
+    @Override
+    public void dnsEnd(Call call, String domainName, List<InetAddress> inetAddressList) {
+        mTimings.recordSince(mHost, Timings.Stage.DNS, mDnsStart);
+    }
+
+    @Override
+    public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+        mConnectStart = System.nanoTime();
+    }
+
+    @Override
+    public void secureConnectStart(Call call) {
+        mSecureConnectStart = System.nanoTime();
+    }
+
+    @Override
+    public void secureConnectEnd(Call call, Handshake handshake) {
+        mTimings.recordSince(mHost, Timings.Stage.TLS, mSecureConnectStart);
+    }
+
+    @Override
+    public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+        mTimings.recordSince(mHost, Timings.Stage.CONNECT, mConnectStart);
+    }
+
+    @Override
+    public void requestHeadersStart(Call call) {
+        mRequestStart = System.nanoTime();
+    }
+
+    @Override
+    public void responseHeadersEnd(Call call, Response response) {
+        // Headers start being read right after the request is sent, they're only here once read
+        mTimings.recordSince(mHost, Timings.Stage.TTFB, mRequestStart);
+    }
+
+    @Override
+    public void callEnd(Call call) {
+        mTimings.recordSince(mHost, Timings.Stage.HTTP, mCallStart);
+    }
+
+    @Override
+    public void callFailed(Call call, IOException ioe) {
+        // Failures are often timeouts, leaving them out would flatter the tail
+        mTimings.recordSince(mHost, Timings.Stage.HTTP, mCallStart);
+    }
+}
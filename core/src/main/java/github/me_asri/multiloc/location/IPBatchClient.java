@@ -0,0 +1,412 @@
+package github.me_asri.multiloc.location;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.HttpException;
+import retrofit2.Response;
+import retrofit2.http.Body;
+import retrofit2.http.POST;
+import retrofit2.http.Query;
+
+/**
+ * Locates lists of arbitrary IP addresses using the batch endpoint of ip-api.com.
+ * <p>
+ * Addresses are deduplicated and sent in chunks of up to {@link #MAX_BATCH_SIZE}, asking only
+ * for the requested fields. Several chunks are kept in flight at once, within the rate limit
+ * window the service reports in its {@code X-Rl} (requests left) and {@code X-Ttl} (seconds
+ * until the window resets) headers, which is shared by all batches of a client. Chunks turned
+ * away with 429 wait for the next window, those failing with an I/O or server error are retried
+ * after a backoff.
+ */
+public class IPBatchClient {
+    public static final String API_URL = "http://ip-api.com/";
+    public static final int MAX_BATCH_SIZE = 100;
+
+    private static final Backoff BACKOFF = new Backoff(500, 8000, 4);
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "IPBatchClient-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Fields of {@link IPLocationResult} that can be requested. The status and, for failed
+     * lookups, the message telling why are always fetched.
+     */
+    public enum Field {
+        COUNTRY("country"),
+        COUNTRY_CODE("countryCode"),
+        REGION("region"),
+        REGION_NAME("regionName"),
+        CITY("city"),
+        ZIP("zip"),
+        LAT("lat"),
+        LON("lon"),
+        TIMEZONE("timezone"),
+        ISP("isp"),
+        ORG("org"),
+        AS("as"),
+        QUERY("query");
+
+        final String apiName;
+
+        Field(String apiName) {
+            this.apiName = apiName;
+        }
+    }
+
+    private final BatchService mService;
+    private final int mMaxInFlight;
+
+    // Chunks waiting to be sent, across all batches
+    private final ArrayDeque<Chunk> mQueue = new ArrayDeque<>();
+    private int mInFlight = 0;
+    // Rate limit window as last reported by the service, until then one chunk at a time probes it
+    private boolean mWindowKnown = false;
+    private int mWindowRemaining = 0;
+    private long mWindowResetAt = 0;
+    private boolean mDispatchScheduled = false;
+
+    /**
+     * @param executor    where responses are processed and callbacks are called
+     * @param maxInFlight chunks sent at once, within the rate limit window
+     */
+    public IPBatchClient(HttpStack http, String baseUrl, Executor executor, int maxInFlight) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("At least one chunk must be allowed in flight");
+        }
+
+        mMaxInFlight = maxInFlight;
+        mService = http.newRetrofit(baseUrl, IPLocationResult.GSON, executor).create(BatchService.class);
+    }
+
+    /**
+     * Locates {@code addresses}, which may also be domain names and may repeat.
+     *
+     * @param fields   fields to fetch, the others are left {@code null} or 0 in the results
+     * @param callback called once with a result for every address in the given order, or with
+     *                 the error that made a chunk fail, e.g. an {@link HttpException}
+     * @return batch, which can be cancelled
+     */
+    public Batch locate(List<String> addresses, Set<Field> fields, BiConsumer<List<IPLocationResult>, Throwable> callback) {
+        Batch batch = new Batch(addresses, fieldsParameter(fields), callback);
+        if (batch.mUnique.length == 0) {
+            batch.complete();
+            return batch;
+        }
+
+        synchronized (this) {
+            for (int start = 0; start < batch.mUnique.length; start += MAX_BATCH_SIZE) {
+                mQueue.add(new Chunk(batch, start, Math.min(batch.mUnique.length, start + MAX_BATCH_SIZE)));
+            }
+        }
+        dispatch();
+        return batch;
+    }
+
+    private static String fieldsParameter(Set<Field> fields) {
+        StringBuilder builder = new StringBuilder("status,message");
+        for (Field field : (fields.isEmpty() ? EnumSet.noneOf(Field.class) : EnumSet.copyOf(fields))) {
+            builder.append(',').append(field.apiName);
+        }
+        return builder.toString();
+    }
+
+    private void dispatch() {
+        List<Chunk> toSend = new ArrayList<>();
+        synchronized (this) {
+            while (!mQueue.isEmpty() && mInFlight < mMaxInFlight) {
+                Chunk chunk = mQueue.peek();
+                if (chunk.batch.isDone()) {
+                    mQueue.poll();
+                    continue;
+                }
+
+                long now = System.currentTimeMillis();
+                if (mWindowKnown && now >= mWindowResetAt) {
+                    // New window, its size is learnt from the next response
+                    mWindowKnown = false;
+                }
+                if (mWindowKnown ? mWindowRemaining <= 0 : mInFlight > 0) {
+                    if (mWindowKnown) {
+                        scheduleDispatch(mWindowResetAt - now);
+                    }
+                    break;
+                }
+
+                mQueue.poll();
+                mInFlight++;
+                mWindowRemaining--;
+                toSend.add(chunk);
+            }
+        }
+
+        for (Chunk chunk : toSend) {
+            send(chunk);
+        }
+    }
+
+    /**
+     * Must be called with the lock held.
+     */
+    private void scheduleDispatch(long delayMillis) {
+        if (mDispatchScheduled) {
+            return;
+        }
+
+        mDispatchScheduled = true;
+        SCHEDULER.schedule(() -> {
+            synchronized (this) {
+                mDispatchScheduled = false;
+            }
+            dispatch();
+        }, Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+    }
+
+    private void send(Chunk chunk) {
+        Call<List<IPLocationResult>> call = mService.locate(chunk.batch.mFields,
+                Arrays.asList(chunk.batch.mUnique).subList(chunk.from, chunk.to));
+        if (!chunk.batch.track(call)) {
+            onChunkDone(null);
+            return;
+        }
+
+        call.enqueue(new Callback<List<IPLocationResult>>() {
+            @Override
+            public void onResponse(Call<List<IPLocationResult>> call, Response<List<IPLocationResult>> response) {
+                chunk.batch.untrack(call);
+                onChunkDone(response);
+
+                List<IPLocationResult> results = response.body();
+                if (response.code() == 429 && response.headers().get("X-Ttl") != null) {
+                    // Turned away, wait for the window to reset
+                    requeue(chunk, 0);
+                } else if (response.code() == 429 || response.code() >= 500) {
+                    retry(chunk, new HttpException(response));
+                } else if (!response.isSuccessful() || results == null) {
+                    chunk.batch.fail(new HttpException(response));
+                } else if (results.size() != chunk.to - chunk.from) {
+                    chunk.batch.fail(new IOException("Expected " + (chunk.to - chunk.from) + " results, got " + results.size()));
+                } else {
+                    chunk.batch.complete(chunk, results);
+                }
+            }
+
+            @Override
+            public void onFailure(Call<List<IPLocationResult>> call, Throwable t) {
+                chunk.batch.untrack(call);
+                onChunkDone(null);
+
+                if (t instanceof IOException && !call.isCanceled()) {
+                    retry(chunk, t);
+                } else {
+                    chunk.batch.fail(t);
+                }
+            }
+        });
+    }
+
+    private void retry(Chunk chunk, Throwable t) {
+        chunk.attempt++;
+        if (chunk.attempt >= BACKOFF.getMaxAttempts()) {
+            chunk.batch.fail(t);
+            return;
+        }
+        requeue(chunk, BACKOFF.delayMillis(chunk.attempt));
+    }
+
+    private void requeue(Chunk chunk, long delayMillis) {
+        Runnable requeue = () -> {
+            synchronized (this) {
+                mQueue.addFirst(chunk);
+            }
+            dispatch();
+        };
+
+        if (delayMillis > 0) {
+            SCHEDULER.schedule(requeue, delayMillis, TimeUnit.MILLISECONDS);
+        } else {
+            requeue.run();
+        }
+    }
+
+    /**
+     * Frees the slot of a chunk and updates the window from the response headers, if any.
+     */
+    private void onChunkDone(Response<?> response) {
+        synchronized (this) {
+            mInFlight--;
+
+            String remaining = (response != null) ? response.headers().get("X-Rl") : null;
+            String ttl = (response != null) ? response.headers().get("X-Ttl") : null;
+            if (remaining != null && ttl != null) {
+                try {
+                    long resetAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(Long.parseLong(ttl.trim()));
+                    // Chunks still in flight may not be counted yet
+                    mWindowRemaining = Integer.parseInt(remaining.trim()) - mInFlight;
+                    mWindowResetAt = resetAt;
+                    mWindowKnown = true;
+                } catch (NumberFormatException ignored) {
+                    // Keep the current window
+                }
+            }
+        }
+        dispatch();
+    }
+
+    /**
+     * Addresses being located together.
+     */
+    public static final class Batch {
+        private final String[] mUnique;
+        // Index into mUnique of each address given
+        private final int[] mPositions;
+        private final IPLocationResult[] mResults;
+        private final String mFields;
+        private final BiConsumer<List<IPLocationResult>, Throwable> mCallback;
+
+        private final List<Call<?>> mCalls = new ArrayList<>();
+        private int mPending;
+        private boolean mDone = false;
+
+        Batch(List<String> addresses, String fields, BiConsumer<List<IPLocationResult>, Throwable> callback) {
+            Map<String, Integer> unique = new HashMap<>();
+            List<String> uniqueList = new ArrayList<>();
+            mPositions = new int[addresses.size()];
+            for (int i = 0; i < mPositions.length; i++) {
+                String address = addresses.get(i).trim();
+                Integer position = unique.get(address);
+                if (position == null) {
+                    position = uniqueList.size();
+                    unique.put(address, position);
+                    uniqueList.add(address);
+                }
+                mPositions[i] = position;
+            }
+
+            mUnique = uniqueList.toArray(new String[0]);
+            mResults = new IPLocationResult[mUnique.length];
+            mPending = (mUnique.length + MAX_BATCH_SIZE - 1) / MAX_BATCH_SIZE;
+            mFields = fields;
+            mCallback = callback;
+        }
+
+        /**
+         * Stops sending the remaining chunks. The callback won't be called afterwards.
+         */
+        public void cancel() {
+            List<Call<?>> calls;
+            synchronized (this) {
+                if (mDone) {
+                    return;
+                }
+                mDone = true;
+                calls = new ArrayList<>(mCalls);
+                mCalls.clear();
+            }
+
+            for (Call<?> call : calls) {
+                call.cancel();
+            }
+        }
+
+        synchronized boolean isDone() {
+            return mDone;
+        }
+
+        /**
+         * @return whether the call belongs to a batch still running
+         */
+        private synchronized boolean track(Call<?> call) {
+            if (mDone) {
+                return false;
+            }
+            mCalls.add(call);
+            return true;
+        }
+
+        private synchronized void untrack(Call<?> call) {
+            mCalls.remove(call);
+        }
+
+        private void complete(Chunk chunk, List<IPLocationResult> results) {
+            synchronized (this) {
+                if (mDone) {
+                    return;
+                }
+                for (int i = 0; i < results.size(); i++) {
+                    mResults[chunk.from + i] = results.get(i);
+                }
+                if (--mPending > 0) {
+                    return;
+                }
+            }
+            complete();
+        }
+
+        private void complete() {
+            List<IPLocationResult> results = new ArrayList<>(mPositions.length);
+            synchronized (this) {
+                if (mDone) {
+                    return;
+                }
+                mDone = true;
+
+                for (int position : mPositions) {
+                    results.add(mResults[position]);
+                }
+            }
+            mCallback.accept(results, null);
+        }
+
+        private void fail(Throwable t) {
+            List<Call<?>> calls;
+            synchronized (this) {
+                if (mDone) {
+                    return;
+                }
+                mDone = true;
+                calls = new ArrayList<>(mCalls);
+                mCalls.clear();
+            }
+
+            for (Call<?> call : calls) {
+                call.cancel();
+            }
+            mCallback.accept(null, t);
+        }
+    }
+
+    private static final class Chunk {
+        final Batch batch;
+        final int from;
+        final int to;
+        int attempt = 0;
+
+        Chunk(Batch batch, int from, int to) {
+            this.batch = batch;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    private interface BatchService {
+        @POST("batch")
+        Call<List<IPLocationResult>> locate(@Query("fields") String fields, @Body List<String> addresses);
+    }
+}
@@ -0,0 +1,175 @@
+package github.me_asri.multiloc.location;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * Response of the ip-api.com JSON endpoint.
+ */
+public class IPLocationResult {
+    /**
+     * Gson reading and writing results with {@link Adapter}, shared as building one is costly.
+     */
+    public static final Gson GSON = new GsonBuilder()
+            .registerTypeAdapter(IPLocationResult.class, new Adapter())
+            .create();
+
+    public final String status;
+    public final String country;
+    public final String countryCode;
+    public final String region;
+    public final String regionName;
+    public final String city;
+    public final String zip;
+    public final double lat;
+    public final double lon;
+    public final String timezone;
+    public final String isp;
+    public final String org;
+    public final String as;
+    public final String query;
+    // Why the lookup failed, e.g. "private range", only set if it did
+    public final String message;
+
+    public IPLocationResult(String status, String country, String countryCode, String region, String regionName, String city, String zip, double lat, double lon, String timezone, String isp, String org, String as, String query) {
+        this(status, country, countryCode, region, regionName, city, zip, lat, lon, timezone, isp, org, as, query, null);
+    }
+
+    public IPLocationResult(String status, String country, String countryCode, String region, String regionName, String city, String zip, double lat, double lon, String timezone, String isp, String org, String as, String query, String message) {
+        this.status = status;
+        this.country = country;
+        this.countryCode = countryCode;
+        this.region = region;
+        this.regionName = regionName;
+        this.city = city;
+        this.zip = zip;
+        this.lat = lat;
+        this.lon = lon;
+        this.timezone = timezone;
+        this.isp = isp;
+        this.org = org;
+        this.as = as;
+        this.query = query;
+        this.message = message;
+    }
+
+    public boolean isSuccess() {
+        return "success".equals(status);
+    }
+
+    /**
+     * Streaming adapter binding the response fields by name, without reflection.
+     */
+    public static class Adapter extends TypeAdapter<IPLocationResult> {
+        @Override
+        public IPLocationResult read(JsonReader in) throws IOException {
+            if (in.peek() != JsonToken.BEGIN_OBJECT) {
+                in.skipValue();
+                return null;
+            }
+
+            String status = null, country = null, countryCode = null, region = null, regionName = null;
+            String city = null, zip = null, timezone = null, isp = null, org = null, as = null, query = null;
+            String message = null;
+            double lat = 0, lon = 0;
+
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+
+                switch (name) {
+                    case "status":
+                        status = in.nextString();
+                        break;
+                    case "country":
+                        country = in.nextString();
+                        break;
+                    case "countryCode":
+                        countryCode = in.nextString();
+                        break;
+                    case "region":
+                        region = in.nextString();
+                        break;
+                    case "regionName":
+                        regionName = in.nextString();
+                        break;
+                    case "city":
+                        city = in.nextString();
+                        break;
+                    case "zip":
+                        zip = in.nextString();
+                        break;
+                    case "lat":
+                        lat = in.nextDouble();
+                        break;
+                    case "lon":
+                        lon = in.nextDouble();
+                        break;
+                    case "timezone":
+                        timezone = in.nextString();
+                        break;
+                    case "isp":
+                        isp = in.nextString();
+                        break;
+                    case "org":
+                        org = in.nextString();
+                        break;
+                    case "as":
+                        as = in.nextString();
+                        break;
+                    case "query":
+                        query = in.nextString();
+                        break;
+                    case "message":
+                        message = in.nextString();
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
+
+            return new IPLocationResult(status, country, countryCode, region, regionName, city, zip,
+                    lat, lon, timezone, isp, org, as, query, message);
+        }
+
+        @Override
+        public void write(JsonWriter out, IPLocationResult value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+
+            out.beginObject();
+            out.name("status").value(value.status);
+            out.name("country").value(value.country);
+            out.name("countryCode").value(value.countryCode);
+            out.name("region").value(value.region);
+            out.name("regionName").value(value.regionName);
+            out.name("city").value(value.city);
+            out.name("zip").value(value.zip);
+            out.name("lat").value(value.lat);
+            out.name("lon").value(value.lon);
+            out.name("timezone").value(value.timezone);
+            out.name("isp").value(value.isp);
+            out.name("org").value(value.org);
+            out.name("as").value(value.as);
+            out.name("query").value(value.query);
+            if (value.message != null) {
+                out.name("message").value(value.message);
+            }
+            out.endObject();
+        }
+    }
+}
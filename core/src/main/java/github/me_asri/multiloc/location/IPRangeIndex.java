@@ -0,0 +1,679 @@
+package github.me_asri.multiloc.location;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Offline IP geolocation table of address ranges.
+ * <p>
+ * IPv4 and IPv6 ranges are kept in two sections of primitive start/end keys sorted by start
+ * address, so a lookup is a binary search over the memory-mapped {@link SortedRecordFile}. Ranges point into a
+ * table of distinct places holding the coordinates and names, which many ranges share.
+ */
+public class IPRangeIndex {
+    static final int MAGIC = 0x4D4C4950;
+    static final int VERSION = 1;
+    // magic, version, IPv4 range count, IPv6 range count, place count, string pool size
+    static final int HEADER_SIZE = 6 * 4;
+    // start, end, place
+    static final int V4_RECORD_SIZE = 4 + 4 + 4;
+    // start high, start low, end high, end low, place
+    static final int V6_RECORD_SIZE = 4 * 8 + 4;
+    // lat, lon, string pool offset
+    static final int PLACE_SIZE = 4 + 4 + 4;
+    static final double COORD_SCALE = 1e7;
+
+    // Dump columns, as in IP2Location LITE DB5:
+    // ip_from,ip_to,country_code,country_name,region_name,city_name,latitude,longitude[,as[,isp]]
+    private static final int COL_FROM = 0;
+    private static final int COL_TO = 1;
+    private static final int COL_COUNTRY_CODE = 2;
+    private static final int COL_COUNTRY = 3;
+    private static final int COL_REGION = 4;
+    private static final int COL_CITY = 5;
+    private static final int COL_LAT = 6;
+    private static final int COL_LON = 7;
+    private static final int COL_AS = 8;
+    private static final int COL_ISP = 9;
+    private static final int MIN_COLUMNS = COL_LON + 1;
+
+    // Country code, country, region, city, AS, ISP
+    private static final int PLACE_FIELDS = 6;
+    // Ranges sorted in memory at once during an import
+    private static final int RUN_SIZE = 1 << 17;
+    // Recent places an import shares among ranges, later repeats are stored again
+    private static final int PLACE_CACHE_SIZE = 1 << 15;
+
+    // ::ffff:0:0/96, where IPv4 addresses live in the IPv6 space
+    private static final long V4_MAPPED_LOW = 0xFFFFL << 32;
+
+    private final File mFile;
+    private volatile Mapping mMapping;
+
+    public IPRangeIndex(File file) {
+        mFile = file;
+        reload();
+    }
+
+    /**
+     * Remaps the index file, picking up changes made by an import.
+     *
+     * @return whether an index is available
+     */
+    public synchronized boolean reload() {
+        ByteBuffer mapped = SortedRecordFile.map(mFile, HEADER_SIZE);
+        Mapping mapping = null;
+        if (mapped != null) {
+            Mapping candidate = new Mapping(mapped, mapped.getInt(8), mapped.getInt(12), mapped.getInt(16),
+                    mapped.getInt(20));
+            if (mapped.getInt(0) == MAGIC && mapped.getInt(4) == VERSION && candidate.isValid(mapped.capacity())) {
+                mapping = candidate;
+            }
+        }
+
+        mMapping = mapping;
+        return mapping != null;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * @return number of IPv4 and IPv6 ranges
+     */
+    public int size() {
+        Mapping mapping = mMapping;
+        return (mapping != null) ? mapping.v4Count + mapping.v6Count : 0;
+    }
+
+    /**
+     * @param address IPv4 or IPv6 address literal, no host names are resolved
+     * @return location of {@code address} in the shape of an ip-api response, or {@code null} if
+     * it's malformed or not covered by any range
+     */
+    public IPLocationResult lookup(String address) {
+        Mapping mapping = mMapping;
+        long[] key = parseAddress(address);
+        if (mapping == null || key == null) {
+            return null;
+        }
+
+        int place = isV4Mapped(key[0], key[1]) ? findV4(mapping, (int) key[1]) : findV6(mapping, key[0], key[1]);
+        return (place >= 0) ? readPlace(mapping, place, address) : null;
+    }
+
+    private static int findV4(Mapping mapping, int address) {
+        ByteBuffer buffer = mapping.buffer;
+
+        // Last range starting at or before the address
+        int low = 0;
+        int high = mapping.v4Count - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (compareUnsigned(buffer.getInt(mapping.v4Offset + mid * V4_RECORD_SIZE), address) <= 0) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (found < 0) {
+            return -1;
+        }
+
+        int offset = mapping.v4Offset + found * V4_RECORD_SIZE;
+        return (compareUnsigned(address, buffer.getInt(offset + 4)) <= 0) ? buffer.getInt(offset + 8) : -1;
+    }
+
+    private static int findV6(Mapping mapping, long addressHigh, long addressLow) {
+        ByteBuffer buffer = mapping.buffer;
+
+        int low = 0;
+        int high = mapping.v6Count - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int offset = mapping.v6Offset + mid * V6_RECORD_SIZE;
+            if (compareUnsigned(buffer.getLong(offset), buffer.getLong(offset + 8), addressHigh, addressLow) <= 0) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (found < 0) {
+            return -1;
+        }
+
+        int offset = mapping.v6Offset + found * V6_RECORD_SIZE;
+        return (compareUnsigned(addressHigh, addressLow, buffer.getLong(offset + 16), buffer.getLong(offset + 24)) <= 0)
+                ? buffer.getInt(offset + 32) : -1;
+    }
+
+    private static IPLocationResult readPlace(Mapping mapping, int place, String address) {
+        ByteBuffer buffer = mapping.buffer;
+        int offset = mapping.placesOffset + place * PLACE_SIZE;
+        double lat = buffer.getInt(offset) / COORD_SCALE;
+        double lon = buffer.getInt(offset + 4) / COORD_SCALE;
+
+        String[] fields = new String[PLACE_FIELDS];
+        int position = mapping.stringsOffset + buffer.getInt(offset + 8);
+        for (int i = 0; i < PLACE_FIELDS; i++) {
+            int length = buffer.getShort(position) & 0xFFFF;
+            position += 2;
+            if (length > 0) {
+                byte[] bytes = new byte[length];
+                ByteBuffer view = buffer.duplicate();
+                view.position(position);
+                view.get(bytes);
+                fields[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            position += length;
+        }
+
+        return new IPLocationResult("success", fields[1], fields[0], null, fields[2], fields[3], null,
+                lat, lon, null, fields[5], null, fields[4], address);
+    }
+
+    /**
+     * @return address as the high and low halves of an IPv6 address, with IPv4 addresses mapped
+     * into {@code ::ffff:0:0/96}, or {@code null} if malformed
+     */
+    static long[] parseAddress(String address) {
+        if (address == null) {
+            return null;
+        }
+
+        int zone = address.indexOf('%');
+        if (zone >= 0) {
+            address = address.substring(0, zone);
+        }
+
+        if (address.indexOf(':') < 0) {
+            long v4 = parseV4(address, 0, address.length());
+            return (v4 >= 0) ? new long[]{0, V4_MAPPED_LOW | v4} : null;
+        }
+        return parseV6(address);
+    }
+
+    /**
+     * @return IPv4 address as an unsigned number, or -1 if malformed
+     */
+    private static long parseV4(String s, int start, int end) {
+        long value = 0;
+        int octets = 0;
+        int octet = -1;
+        for (int i = start; i <= end; i++) {
+            char c = (i < end) ? s.charAt(i) : '.';
+            if (c == '.') {
+                if (octet < 0 || ++octets > 4) {
+                    return -1;
+                }
+                value = (value << 8) | octet;
+                octet = -1;
+            } else if (c >= '0' && c <= '9') {
+                octet = ((octet < 0) ? 0 : octet * 10) + (c - '0');
+                if (octet > 255) {
+                    return -1;
+                }
+            } else {
+                return -1;
+            }
+        }
+        return (octets == 4) ? value : -1;
+    }
+
+    private static long[] parseV6(String s) {
+        int[] groups = new int[8];
+        int count = 0;
+        // Index of the group where "::" stands, if any
+        int gap = -1;
+
+        int i = 0;
+        int n = s.length();
+        if (s.startsWith("::")) {
+            gap = 0;
+            i = 2;
+        }
+        while (i < n) {
+            int colon = s.indexOf(':', i);
+            int end = (colon < 0) ? n : colon;
+
+            if (colon < 0 && s.indexOf('.', i) >= 0) {
+                // Trailing IPv4 part, e.g. ::ffff:192.0.2.1
+                long v4 = parseV4(s, i, end);
+                if (v4 < 0 || count > 6) {
+                    return null;
+                }
+                groups[count++] = (int) (v4 >>> 16);
+                groups[count++] = (int) (v4 & 0xFFFF);
+                break;
+            }
+
+            if (end == i || end - i > 4 || count == 8) {
+                return null;
+            }
+            int group = 0;
+            for (int j = i; j < end; j++) {
+                int digit = Character.digit(s.charAt(j), 16);
+                if (digit < 0) {
+                    return null;
+                }
+                group = (group << 4) | digit;
+            }
+            groups[count++] = group;
+
+            if (colon < 0) {
+                break;
+            }
+            i = colon + 1;
+            if (i < n && s.charAt(i) == ':') {
+                if (gap >= 0) {
+                    return null;
+                }
+                gap = count;
+                i++;
+            } else if (i == n) {
+                return null;
+            }
+        }
+
+        if (gap >= 0) {
+            if (count == 8) {
+                return null;
+            }
+            int missing = 8 - count;
+            System.arraycopy(groups, gap, groups, gap + missing, count - gap);
+            Arrays.fill(groups, gap, gap + missing, 0);
+        } else if (count != 8) {
+            return null;
+        }
+
+        long high = 0;
+        long low = 0;
+        for (int j = 0; j < 4; j++) {
+            high = (high << 16) | groups[j];
+            low = (low << 16) | groups[j + 4];
+        }
+        return new long[]{high, low};
+    }
+
+    private static boolean isV4Mapped(long high, long low) {
+        return high == 0 && (low >>> 32) == 0xFFFFL;
+    }
+
+    private static int compareUnsigned(int a, int b) {
+        return Integer.compare(a ^ Integer.MIN_VALUE, b ^ Integer.MIN_VALUE);
+    }
+
+    private static int compareUnsigned(long aHigh, long aLow, long bHigh, long bLow) {
+        int cmp = Long.compare(aHigh ^ Long.MIN_VALUE, bHigh ^ Long.MIN_VALUE);
+        return (cmp != 0) ? cmp : Long.compare(aLow ^ Long.MIN_VALUE, bLow ^ Long.MIN_VALUE);
+    }
+
+    /**
+     * Replaces the index with a CSV dump of IP ranges, optionally compressed. Addresses may be
+     * given as literals or as decimal numbers. Unparsable rows, e.g. a header, and rows without a
+     * location are skipped, as are ranges overlapping an earlier one.
+     * <p>
+     * Ranges are sorted externally and places are shared among recent rows only, so memory use
+     * doesn't depend on the size of the dump.
+     *
+     * @return number of ranges in the resulting index
+     */
+    public synchronized int importCsv(InputStream in) throws IOException {
+        File tmpDir = mFile.getAbsoluteFile().getParentFile();
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        File placesFile = File.createTempFile("places", ".tmp", tmpDir);
+        File stringsFile = File.createTempFile("strings", ".tmp", tmpDir);
+        int count;
+        try (SortedRecordFile.Sorter v4 = new SortedRecordFile.Sorter(tmpDir, V4_RECORD_SIZE, RUN_SIZE,
+                (a, aOffset, b, bOffset) -> SortedRecordFile.compareUnsigned(a, aOffset, b, bOffset, 4), false);
+             SortedRecordFile.Sorter v6 = new SortedRecordFile.Sorter(tmpDir, V6_RECORD_SIZE, RUN_SIZE,
+                     (a, aOffset, b, bOffset) -> SortedRecordFile.compareUnsigned(a, aOffset, b, bOffset, 16), false)) {
+            int placeCount;
+            int stringsSize;
+            try (Places places = new Places(placesFile, stringsFile)) {
+                readRanges(in, v4, v6, places);
+                placeCount = places.size();
+                stringsSize = places.stringsSize();
+            }
+
+            count = write(tmpFile, v4, v6, placesFile, placeCount, stringsFile, stringsSize);
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            placesFile.delete();
+            //noinspection ResultOfMethodCallIgnored
+            stringsFile.delete();
+        }
+
+        SortedRecordFile.replace(tmpFile, mFile);
+        reload();
+        return count;
+    }
+
+    private static void readRanges(InputStream in, SortedRecordFile.Sorter v4, SortedRecordFile.Sorter v6,
+                                   Places places) throws IOException {
+        byte[] record = new byte[V6_RECORD_SIZE];
+        ByteBuffer writer = ByteBuffer.wrap(record);
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                CellIndexImporter.maybeDecompress(in), StandardCharsets.UTF_8), 1 << 16);
+        List<String> columns = new ArrayList<>(COL_ISP + 1);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            splitCsv(line, columns);
+            if (columns.size() < MIN_COLUMNS) {
+                continue;
+            }
+
+            String fromColumn = columns.get(COL_FROM);
+            String toColumn = columns.get(COL_TO);
+            long[] from = parseImportedAddress(fromColumn);
+            long[] to = parseImportedAddress(toColumn);
+            if (from == null || to == null || compareUnsigned(from[0], from[1], to[0], to[1]) > 0) {
+                continue;
+            }
+            // Plain IPv4 dumps number addresses from 0, literals below ::1:0:0 are IPv6 as written
+            if (!isLiteral(fromColumn) && !isLiteral(toColumn) && to[0] == 0 && (to[1] >>> 32) == 0) {
+                from[1] |= V4_MAPPED_LOW;
+                to[1] |= V4_MAPPED_LOW;
+            }
+
+            double lat;
+            double lon;
+            try {
+                lat = Double.parseDouble(columns.get(COL_LAT));
+                lon = Double.parseDouble(columns.get(COL_LON));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            String countryCode = getField(columns, COL_COUNTRY_CODE);
+            // Reserved and unassigned ranges come without a country
+            if (countryCode == null || Math.abs(lat) > 90 || Math.abs(lon) > 180) {
+                continue;
+            }
+
+            int place = places.add((int) Math.round(lat * COORD_SCALE), (int) Math.round(lon * COORD_SCALE),
+                    countryCode, getField(columns, COL_COUNTRY), getField(columns, COL_REGION),
+                    getField(columns, COL_CITY), getField(columns, COL_AS), getField(columns, COL_ISP));
+            writer.clear();
+            if (isV4Mapped(from[0], from[1]) && isV4Mapped(to[0], to[1])) {
+                writer.putInt((int) from[1]).putInt((int) to[1]).putInt(place);
+                v4.add(record);
+            } else {
+                writer.putLong(from[0]).putLong(from[1]).putLong(to[0]).putLong(to[1]).putInt(place);
+                v6.add(record);
+            }
+        }
+    }
+
+    /**
+     * @return address given as a literal or decimal number, without mapping IPv4 numbers
+     */
+    private static long[] parseImportedAddress(String value) {
+        if (isLiteral(value)) {
+            return parseAddress(value);
+        }
+
+        try {
+            BigInteger number = new BigInteger(value);
+            if (number.signum() < 0 || number.bitLength() > 128) {
+                return null;
+            }
+            return new long[]{number.shiftRight(64).longValue(), number.longValue()};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return whether an imported address is written as a literal rather than a decimal number
+     */
+    private static boolean isLiteral(String value) {
+        return value.isEmpty() || value.indexOf('.') >= 0 || value.indexOf(':') >= 0;
+    }
+
+    private static String getField(List<String> columns, int column) {
+        if (column >= columns.size()) {
+            return null;
+        }
+        String value = columns.get(column).trim();
+        return (value.isEmpty() || value.equals("-")) ? null : value;
+    }
+
+    /**
+     * Splits a CSV row into {@code columns}, honouring double-quoted fields.
+     */
+    private static void splitCsv(String line, List<String> columns) {
+        columns.clear();
+
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                columns.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        columns.add(field.toString());
+    }
+
+    /**
+     * @return number of ranges written
+     */
+    private static int write(File file, SortedRecordFile.Sorter v4, SortedRecordFile.Sorter v6,
+                             File placesFile, int placeCount, File stringsFile, int stringsSize) throws IOException {
+        int v4Count;
+        int v6Count;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            // Counts are filled in once known
+            for (int i = 0; i < 4; i++) {
+                out.writeInt(0);
+            }
+
+            NonOverlapping v4Ranges = new NonOverlapping(out, 4);
+            v4.merge(v4Ranges);
+            v4Count = v4Ranges.count();
+            NonOverlapping v6Ranges = new NonOverlapping(out, 16);
+            v6.merge(v6Ranges);
+            v6Count = v6Ranges.count();
+            append(placesFile, out);
+            append(stringsFile, out);
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            throw e;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(8);
+            raf.writeInt(v4Count);
+            raf.writeInt(v6Count);
+            raf.writeInt(placeCount);
+            raf.writeInt(stringsSize);
+        }
+        return v4Count + v6Count;
+    }
+
+    private static void append(File file, OutputStream out) throws IOException {
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        }
+    }
+
+    private static final class Mapping {
+        final ByteBuffer buffer;
+        final int v4Count;
+        final int v6Count;
+        final int placeCount;
+        final int stringsSize;
+
+        final int v4Offset;
+        final int v6Offset;
+        final int placesOffset;
+        final int stringsOffset;
+
+        Mapping(ByteBuffer buffer, int v4Count, int v6Count, int placeCount, int stringsSize) {
+            this.buffer = buffer;
+            this.v4Count = v4Count;
+            this.v6Count = v6Count;
+            this.placeCount = placeCount;
+            this.stringsSize = stringsSize;
+
+            v4Offset = HEADER_SIZE;
+            v6Offset = v4Offset + v4Count * V4_RECORD_SIZE;
+            placesOffset = v6Offset + v6Count * V6_RECORD_SIZE;
+            stringsOffset = placesOffset + placeCount * PLACE_SIZE;
+        }
+
+        boolean isValid(long size) {
+            return v4Count >= 0 && v6Count >= 0 && placeCount >= 0 && stringsSize >= 0
+                    && HEADER_SIZE + (long) v4Count * V4_RECORD_SIZE + (long) v6Count * V6_RECORD_SIZE
+                    + (long) placeCount * PLACE_SIZE + stringsSize == size;
+        }
+    }
+
+    /**
+     * Writes ranges sorted by start address, dropping those overlapping the one before them.
+     * Ranges of equal starts come in the order of the dump, so the first of them is kept.
+     */
+    private static final class NonOverlapping implements SortedRecordFile.RecordSink {
+        private final OutputStream mOut;
+        private final int mAddressSize;
+        private final byte[] mLastEnd;
+        private int mCount = 0;
+
+        NonOverlapping(OutputStream out, int addressSize) {
+            mOut = out;
+            mAddressSize = addressSize;
+            mLastEnd = new byte[addressSize];
+        }
+
+        @Override
+        public void accept(byte[] record) throws IOException {
+            if (mCount > 0 && SortedRecordFile.compareUnsigned(record, 0, mLastEnd, 0, mAddressSize) <= 0) {
+                return;
+            }
+
+            // Start and end, followed by the place
+            mOut.write(record, 0, 2 * mAddressSize + 4);
+            System.arraycopy(record, mAddressSize, mLastEnd, 0, mAddressSize);
+            mCount++;
+        }
+
+        int count() {
+            return mCount;
+        }
+    }
+
+    /**
+     * Places and their strings as they're written to the index, shared among ranges as long as
+     * they're in the cache of recent places.
+     */
+    private static final class Places implements Closeable {
+        private final Map<String, Integer> mIds = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                return size() > PLACE_CACHE_SIZE;
+            }
+        };
+        private final DataOutputStream mPlaces;
+        private final DataOutputStream mStrings;
+        private int mSize = 0;
+
+        Places(File placesFile, File stringsFile) throws IOException {
+            mPlaces = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(placesFile), 1 << 16));
+            try {
+                mStrings = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(stringsFile), 1 << 16));
+            } catch (IOException e) {
+                mPlaces.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return id of the place, shared with earlier ranges at the same place
+         */
+        int add(int lat, int lon, String... fields) throws IOException {
+            StringBuilder key = new StringBuilder().append(lat).append(',').append(lon);
+            for (String field : fields) {
+                key.append('\0').append((field != null) ? field : "");
+            }
+            Integer id = mIds.get(key.toString());
+            if (id != null) {
+                return id;
+            }
+
+            mPlaces.writeInt(lat);
+            mPlaces.writeInt(lon);
+            mPlaces.writeInt(mStrings.size());
+            for (String field : fields) {
+                byte[] bytes = (field != null) ? field.getBytes(StandardCharsets.UTF_8) : new byte[0];
+                int length = Math.min(bytes.length, 0xFFFF);
+                mStrings.writeShort(length);
+                mStrings.write(bytes, 0, length);
+            }
+
+            mIds.put(key.toString(), mSize);
+            return mSize++;
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        int stringsSize() {
+            return mStrings.size();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                mPlaces.close();
+            } finally {
+                mStrings.close();
+            }
+        }
+    }
+}
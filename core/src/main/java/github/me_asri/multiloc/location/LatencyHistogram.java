@@ -0,0 +1,151 @@
+package github.me_asri.multiloc.location;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size histogram of latencies, safe to record into from any thread without locking.
+ * <p>
+ * Latencies are kept in microseconds, in eight buckets per power of two, so any value is off by
+ * at most an eighth of itself. Values below 2^32 microseconds, about 72 minutes, are told apart,
+ * anything longer lands in the last bucket.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 31;
+    static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mSumMicros = new AtomicLong();
+    private final AtomicLong mMaxMicros = new AtomicLong();
+
+    public void recordNanos(long nanos) {
+        recordMicros(nanos / 1000);
+    }
+
+    public void recordMicros(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+
+        mBuckets.incrementAndGet(bucketOf(micros));
+        mSumMicros.addAndGet(micros);
+
+        long max = mMaxMicros.get();
+        while (micros > max && !mMaxMicros.compareAndSet(max, micros)) {
+            max = mMaxMicros.get();
+        }
+    }
+
+    /**
+     * Clears the histogram. Values recorded concurrently may be partly kept.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets.set(i, 0);
+        }
+        mSumMicros.set(0);
+        mMaxMicros.set(0);
+    }
+
+    /**
+     * @return copy of the histogram, consistent enough for reporting while values are recorded
+     */
+    public Snapshot snapshot() {
+        long[] buckets = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = mBuckets.get(i);
+            count += buckets[i];
+        }
+        return new Snapshot(buckets, count, mSumMicros.get(), mMaxMicros.get());
+    }
+
+    static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return smallest value in microseconds falling into {@code bucket}
+     */
+    static long lowerBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    public static final class Snapshot {
+        private final long[] mBuckets;
+        public final long count;
+        public final long sumMicros;
+        public final long maxMicros;
+
+        Snapshot(long[] buckets, long count, long sumMicros, long maxMicros) {
+            mBuckets = buckets;
+            this.count = count;
+            this.sumMicros = sumMicros;
+            this.maxMicros = maxMicros;
+        }
+
+        public double getMeanMillis() {
+            return (count > 0) ? sumMicros / 1000.0 / count : 0;
+        }
+
+        public double getMaxMillis() {
+            return maxMicros / 1000.0;
+        }
+
+        /**
+         * @param p percentile between 0 and 1
+         * @return upper bound in milliseconds of the bucket holding the percentile, or 0 if empty
+         */
+        public double getPercentileMillis(double p) {
+            if (count == 0) {
+                return 0;
+            }
+
+            long rank = Math.max(1, (long) Math.ceil(p * count));
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank) {
+                    long upper = (i + 1 < mBuckets.length) ? lowerBoundOf(i + 1) - 1 : maxMicros;
+                    return Math.min(upper, maxMicros) / 1000.0;
+                }
+            }
+            return getMaxMillis();
+        }
+
+        /**
+         * @return number of buckets
+         */
+        public int size() {
+            return mBuckets.length;
+        }
+
+        public long getCount(int bucket) {
+            return mBuckets[bucket];
+        }
+
+        /**
+         * @return smallest value in microseconds counted in {@code bucket}
+         */
+        public long getLowerBound(int bucket) {
+            return lowerBoundOf(bucket);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package github.me_asri.multiloc.location;
+
+import java.util.Arrays;
+
+/**
+ * Rolling window of the most recent latencies of an endpoint.
+ */
+public class LatencyTracker {
+    private final long[] mWindow;
+    private final long[] mSorted;
+    private final int mMinSamples;
+    private int mNext = 0;
+    private int mSize = 0;
+
+    /**
+     * @param windowSize number of most recent samples kept
+     * @param minSamples samples needed before percentiles are reported
+     */
+    public LatencyTracker(int windowSize, int minSamples) {
+        if (windowSize <= 0 || minSamples <= 0 || minSamples > windowSize) {
+            throw new IllegalArgumentException("Invalid window");
+        }
+
+        mWindow = new long[windowSize];
+        mSorted = new long[windowSize];
+        mMinSamples = minSamples;
+    }
+
+    public synchronized void record(long latencyMillis) {
+        mWindow[mNext] = latencyMillis;
+        mNext = (mNext + 1) % mWindow.length;
+        if (mSize < mWindow.length) {
+            mSize++;
+        }
+    }
+
+    /**
+     * @param p percentile between 0 and 1
+     * @return latency in milliseconds below which {@code p} of the samples fall, or -1 if there
+     * aren't enough samples yet
+     */
+    public synchronized long percentile(double p) {
+        if (mSize < mMinSamples) {
+            return -1;
+        }
+
+        System.arraycopy(mWindow, 0, mSorted, 0, mSize);
+        Arrays.sort(mSorted, 0, mSize);
+
+        int rank = (int) Math.ceil(p * mSize) - 1;
+        return mSorted[Math.max(0, Math.min(mSize - 1, rank))];
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+}
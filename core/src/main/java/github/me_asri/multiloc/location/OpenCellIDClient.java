@@ -0,0 +1,305 @@
+package github.me_asri.multiloc.location;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+
+import github.me_asri.multiloc.location.BTSException.InvalidRequestException;
+import github.me_asri.multiloc.location.BTSException.QuotaExceededException;
+import github.me_asri.multiloc.location.BTSException.UnregisteredBTSException;
+import retrofit2.Call;
+import retrofit2.Response;
+import retrofit2.http.GET;
+import retrofit2.http.Query;
+
+/**
+ * Resolves cells to their locations using OpenCelliD, without any Android dependencies.
+ * <p>
+ * Cells are looked up in the cache and the offline index first. Concurrent lookups of the same
+ * cell share a single request, which waits for a permit of the {@link RequestQuota} if any, and
+ * falls back to expired cache entries once the quota runs low. Requests slower than most recent
+ * ones may be hedged, and transient failures are retried within the remaining time. Results,
+ * including unregistered cells, are stored in the cache. Callbacks are called on the given
+ * executor, or on the calling thread if the cell was resolved locally.
+ */
+public class OpenCellIDClient {
+    public static final String API_URL = "https://opencellid.org/ajax/";
+    private static final Gson GSON = new GsonBuilder()
+            .registerTypeAdapter(OpenCellIDResponse.class, new OpenCellIDResponse.Adapter())
+            .create();
+
+    private static final long HTTP_CACHE_MAX_AGE_SECONDS = TimeUnit.HOURS.toSeconds(12);
+    // Hedge requests slower than 95% of recent ones
+    private static final double HEDGE_PERCENTILE = 0.95;
+    private static final int LATENCY_WINDOW = 64;
+    private static final int LATENCY_MIN_SAMPLES = 8;
+    private static final Backoff BACKOFF = new Backoff(250, 2000, 3);
+
+    private final HttpStack mHttp;
+    private final String mBaseUrl;
+    private final OpenCellIDService mService;
+    private final CellCache mCache;
+    private final CellIndex mIndex;
+    private final RequestQuota mQuota;
+    private final SingleFlight<CellTuple, CellCache.Entry> mInFlight = new SingleFlight<>();
+    private final LatencyTracker mLatency;
+
+    /**
+     * @param baseUrl URL of the OpenCelliD API, e.g. {@link #API_URL} or a local mock server
+     * @param cache   cache of lookups, or {@code null}
+     * @param index   offline cell index, or {@code null}
+     * @param quota   request limits to respect, or {@code null}
+     * @param latency recent latencies deciding when to hedge slow requests, e.g. from
+     *                {@link #newLatencyTracker()}, or {@code null} to never hedge
+     */
+    public OpenCellIDClient(HttpStack http, String baseUrl, Executor callbackExecutor, CellCache cache,
+                            CellIndex index, RequestQuota quota, LatencyTracker latency) {
+        mHttp = http;
+        mBaseUrl = baseUrl;
+        mCache = cache;
+        mIndex = index;
+        mQuota = quota;
+        mLatency = latency;
+
+        // Cell locations hardly ever change, but don't outlive negative entries in CellCache.
+        // Errors, including unknown cells and quota errors, come as 200s with a bare string
+        http.overrideCacheControl(baseUrl, "max-age=" + HTTP_CACHE_MAX_AGE_SECONDS,
+                OpenCellIDClient::isCellResult);
+        mService = http.newRetrofit(baseUrl, GSON, callbackExecutor).create(OpenCellIDService.class);
+    }
+
+    /**
+     * @return tracker of OpenCelliD latencies for hedging, to be shared by the clients of a
+     * process, so its window outlives each of them
+     */
+    public static LatencyTracker newLatencyTracker() {
+        return new LatencyTracker(LATENCY_WINDOW, LATENCY_MIN_SAMPLES);
+    }
+
+    /**
+     * Warms up the connection to OpenCelliD ahead of a lookup.
+     */
+    public void preconnect() {
+        mHttp.preconnect(mBaseUrl);
+    }
+
+    public CellCache getCache() {
+        return mCache;
+    }
+
+    public RequestQuota getQuota() {
+        return mQuota;
+    }
+
+    /**
+     * Resolves a cell from the cache or the offline index, without any network access.
+     *
+     * @return location of the cell, an entry marked negative if it's known to be unregistered,
+     * or {@code null} if it has to be looked up online
+     */
+    public CellCache.Entry lookupLocal(CellTuple cell) {
+        if (mCache != null) {
+            CellCache.Entry entry = mCache.get(cell);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        return (mIndex != null) ? mIndex.lookup(cell) : null;
+    }
+
+    /**
+     * Resolves a cell locally if possible, otherwise from OpenCelliD.
+     *
+     * @param priority        priority of the request in the quota's queue
+     * @param remainingMillis remaining time budget, no requests are started beyond it
+     * @param callback        called once with the location of the cell, or with an
+     *                        {@link UnregisteredBTSException} if OpenCelliD doesn't know it
+     * @return handle detaching the callback from the lookup, or {@code null} if the cell was resolved locally
+     */
+    public SingleFlight.Handle lookup(CellTuple cell, RequestQuota.Priority priority, LongSupplier remainingMillis,
+                                      BiConsumer<CellCache.Entry, Throwable> callback) {
+        CellCache.Entry entry = lookupLocal(cell);
+        if (entry != null) {
+            deliver(entry, callback);
+            return null;
+        }
+        return fetch(cell, priority, remainingMillis, callback);
+    }
+
+    /**
+     * Resolves a cell from OpenCelliD without looking it up locally first, for callers that did so
+     * themselves. Expired cache entries are still used once the quota runs low.
+     *
+     * @return handle detaching the callback from the lookup, or {@code null} if it was answered
+     * without a request
+     */
+    public SingleFlight.Handle fetch(CellTuple cell, RequestQuota.Priority priority, LongSupplier remainingMillis,
+                                     BiConsumer<CellCache.Entry, Throwable> callback) {
+        if (mQuota != null && mQuota.isExhausted(priority)) {
+            CellCache.Entry stale = getStale(cell);
+            if (stale != null) {
+                deliver(stale, callback);
+            } else {
+                callback.accept(null, new QuotaExceededException());
+            }
+            return null;
+        }
+
+        return mInFlight.execute(cell, remainingMillis,
+                (flightRemainingMillis, completion) -> new Request(cell, priority, flightRemainingMillis, completion).start(),
+                callback);
+    }
+
+    private CellCache.Entry getStale(CellTuple cell) {
+        return (mCache != null) ? mCache.getStale(cell) : null;
+    }
+
+    private static void deliver(CellCache.Entry entry, BiConsumer<CellCache.Entry, Throwable> callback) {
+        if (entry.negative) {
+            callback.accept(null, new UnregisteredBTSException());
+        } else {
+            callback.accept(entry, null);
+        }
+    }
+
+    /**
+     * @param body start of the body of a response
+     * @return whether it holds the location of a cell
+     */
+    static boolean isCellResult(String body) {
+        return body.trim().startsWith("{") && body.contains("\"lat\"") && body.contains("\"lon\"");
+    }
+
+    private static boolean isRetryable(Response<OpenCellIDResponse> response) {
+        if (!response.isSuccessful()) {
+            return HedgedCall.isRetryableStatus(response);
+        }
+
+        // Asking again won't register the cell or fix the request
+        OpenCellIDResponse result = response.body();
+        if (result == null || result.isSuccess()) {
+            return false;
+        }
+        BTSException exception = BTSException.fromErrorResponse(result.error);
+        return !(exception instanceof InvalidRequestException || exception instanceof UnregisteredBTSException);
+    }
+
+    /**
+     * Lookup of a single cell, waiting for a permit of the quota before it's sent.
+     */
+    private class Request {
+        private final CellTuple mCell;
+        private final RequestQuota.Priority mPriority;
+        private final LongSupplier mRemainingMillis;
+        private final BiConsumer<CellCache.Entry, Throwable> mCompletion;
+        // Requests sent, including hedges and retries
+        private final AtomicInteger mSent = new AtomicInteger();
+
+        private RequestQuota.Ticket mTicket;
+        private HedgedCall<OpenCellIDResponse> mCall;
+        private boolean mCancelled = false;
+
+        Request(CellTuple cell, RequestQuota.Priority priority, LongSupplier remainingMillis,
+                BiConsumer<CellCache.Entry, Throwable> completion) {
+            mCell = cell;
+            mPriority = priority;
+            mRemainingMillis = remainingMillis;
+            mCompletion = completion;
+        }
+
+        Runnable start() {
+            if (mQuota == null) {
+                send();
+            } else {
+                RequestQuota.Ticket ticket = mQuota.acquire(mPriority, mRemainingMillis, this::onPermit);
+                synchronized (this) {
+                    mTicket = ticket;
+                }
+            }
+            return this::cancel;
+        }
+
+        private void onPermit(Throwable t) {
+            if (t == null) {
+                send();
+                return;
+            }
+
+            // Out of requests, settle for what we knew before
+            CellCache.Entry stale = (t instanceof QuotaExceededException) ? getStale(mCell) : null;
+            if (stale != null) {
+                deliver(stale, mCompletion);
+            } else {
+                mCompletion.accept(null, t);
+            }
+        }
+
+        private void send() {
+            HedgedCall<OpenCellIDResponse> call = new HedgedCall<>(() -> {
+                // The first request was paid for by the permit
+                if (mSent.getAndIncrement() > 0 && mQuota != null) {
+                    mQuota.record();
+                }
+
+                Call<OpenCellIDResponse> serviceCall = mService.getCellLocation(mCell.mcc, mCell.mnc, mCell.tac, mCell.ci);
+                // A zero timeout means none at all, so always leave at least a millisecond
+                serviceCall.timeout().timeout(Math.max(1, mRemainingMillis.getAsLong()), TimeUnit.MILLISECONDS);
+                return serviceCall;
+            }, mLatency, HEDGE_PERCENTILE, BACKOFF, OpenCellIDClient::isRetryable, mRemainingMillis, this::onResponse);
+
+            synchronized (this) {
+                if (mCancelled) {
+                    return;
+                }
+                mCall = call;
+            }
+            call.start();
+        }
+
+        private void onResponse(Response<OpenCellIDResponse> response, Throwable t) {
+            OpenCellIDResponse result = (response != null) ? response.body() : null;
+            if (result == null) {
+                mCompletion.accept(null, (t != null) ? t
+                        : new BTSException("Unexpected response from OpenCelliD (HTTP " + response.code() + ")"));
+            } else if (result.isSuccess()) {
+                if (mCache != null) {
+                    mCache.put(mCell, result.lat, result.lon, result.range);
+                }
+                mCompletion.accept(new CellCache.Entry(result.lat, result.lon, result.range, false), null);
+            } else {
+                BTSException exception = BTSException.fromErrorResponse(result.error);
+                if (mCache != null && exception instanceof UnregisteredBTSException) {
+                    mCache.putNegative(mCell);
+                }
+                mCompletion.accept(null, exception);
+            }
+        }
+
+        private void cancel() {
+            RequestQuota.Ticket ticket;
+            HedgedCall<OpenCellIDResponse> call;
+            synchronized (this) {
+                mCancelled = true;
+                ticket = mTicket;
+                call = mCall;
+            }
+
+            if (ticket != null) {
+                ticket.cancel();
+            }
+            if (call != null) {
+                call.cancel();
+            }
+        }
+    }
+
+    private interface OpenCellIDService {
+        @GET("searchCell.php")
+        Call<OpenCellIDResponse> getCellLocation(@Query("mcc") String mcc, @Query("mnc") String mnc, @Query("lac") int lac, @Query("cell_id") long ci);
+    }
+}
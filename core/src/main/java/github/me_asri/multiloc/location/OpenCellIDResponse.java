@@ -0,0 +1,122 @@
+package github.me_asri.multiloc.location;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * Response of the OpenCelliD cell search endpoint.
+ * <p>
+ * The endpoint answers with an object holding the cell location as strings on success, and
+ * with a bare string or {@code false} on failure.
+ */
+class OpenCellIDResponse {
+    public final String error;
+    public final double lon;
+    public final double lat;
+    public final int range;
+
+    private OpenCellIDResponse(String error, double lon, double lat, int range) {
+        this.error = error;
+        this.lon = lon;
+        this.lat = lat;
+        this.range = range;
+    }
+
+    static OpenCellIDResponse success(double lon, double lat, int range) {
+        return new OpenCellIDResponse(null, lon, lat, range);
+    }
+
+    static OpenCellIDResponse failure(String error) {
+        return new OpenCellIDResponse(error, 0, 0, 0);
+    }
+
+    public boolean isSuccess() {
+        return (error == null);
+    }
+
+    /**
+     * Streaming adapter telling results from errors by the first token, so no exceptions are
+     * thrown for error responses.
+     */
+    static class Adapter extends TypeAdapter<OpenCellIDResponse> {
+        @Override
+        public OpenCellIDResponse read(JsonReader in) throws IOException {
+            switch (in.peek()) {
+                case BEGIN_OBJECT:
+                    try {
+                        return readLocation(in);
+                    } catch (NumberFormatException e) {
+                        throw new JsonSyntaxException(e);
+                    }
+
+                case STRING:
+                case NUMBER:
+                    return failure(in.nextString());
+
+                case BOOLEAN:
+                    return failure(Boolean.toString(in.nextBoolean()));
+
+                default:
+                    in.skipValue();
+                    return null;
+            }
+        }
+
+        private static OpenCellIDResponse readLocation(JsonReader in) throws IOException {
+            double lon = Double.NaN, lat = Double.NaN;
+            int range = 0;
+
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                JsonToken token = in.peek();
+                // Values are normally quoted, nextDouble()/nextInt() parse either form
+                if (token != JsonToken.STRING && token != JsonToken.NUMBER) {
+                    in.skipValue();
+                    continue;
+                }
+
+                switch (name) {
+                    case "lon":
+                        lon = in.nextDouble();
+                        break;
+                    case "lat":
+                        lat = in.nextDouble();
+                        break;
+                    case "range":
+                        range = (int) in.nextDouble();
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
+
+            if (Double.isNaN(lon) || Double.isNaN(lat)) {
+                return failure("Incomplete response");
+            }
+            return success(lon, lat, range);
+        }
+
+        @Override
+        public void write(JsonWriter out, OpenCellIDResponse value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+            } else if (!value.isSuccess()) {
+                out.value(value.error);
+            } else {
+                out.beginObject();
+                out.name("lon").value(Double.toString(value.lon));
+                out.name("lat").value(Double.toString(value.lat));
+                out.name("range").value(Integer.toString(value.range));
+                out.endObject();
+            }
+        }
+    }
+}
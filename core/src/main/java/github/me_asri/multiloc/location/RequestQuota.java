@@ -0,0 +1,376 @@
+package github.me_asri.multiloc.location;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+import github.me_asri.multiloc.location.BTSException.QuotaExceededException;
+
+/**
+ * Client-side accounting of an API's request limits, with prioritized admission.
+ * <p>
+ * Requests wait in a priority queue for tokens of a bucket refilled at the per-second rate, so
+ * bursts are smoothed out and interactive requests jump ahead of background and bulk ones.
+ * Granted requests are also counted against a daily limit, persisted so it survives restarts.
+ * Lower priorities leave a share of the daily limit to higher ones, and are turned away once
+ * they have used up theirs, letting callers fall back to what they know locally.
+ */
+public class RequestQuota {
+    private static final int MAGIC = 0x4D4C5251;
+    private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    public enum Priority {
+        INTERACTIVE(0),
+        BACKGROUND(0.2),
+        BULK(0.5);
+
+        /**
+         * Share of the daily limit left to higher priorities.
+         */
+        final double reserve;
+
+        Priority(double reserve) {
+            this.reserve = reserve;
+        }
+    }
+
+    public interface Ticket {
+        /**
+         * Leaves the queue. The callback won't be called afterwards.
+         */
+        void cancel();
+    }
+
+    private final File mFile;
+    private final double mPermitsPerSecond;
+    private final int mBurst;
+    private final long mDailyLimit;
+
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "RequestQuota");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final PriorityQueue<Waiter> mQueue = new PriorityQueue<>();
+    private ScheduledFuture<?> mDrainTimer;
+    private long mSequence = 0;
+
+    private double mTokens;
+    private long mLastRefillNanos = System.nanoTime();
+    private long mDay;
+    private long mUsedToday = 0;
+    private boolean mSavePending = false;
+
+    private final long[] mGranted = new long[Priority.values().length];
+    private final long[] mRejected = new long[Priority.values().length];
+    private long mTotalWaitMillis = 0;
+    private long mMaxWaitMillis = 0;
+
+    /**
+     * @param file             where the daily count is kept, or {@code null} to keep it in memory only
+     * @param permitsPerSecond sustained request rate
+     * @param burst            requests allowed at once after being idle
+     * @param dailyLimit       requests allowed per UTC day, or 0 for no limit
+     */
+    public RequestQuota(File file, double permitsPerSecond, int burst, long dailyLimit) {
+        if (permitsPerSecond <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("Rate and burst must be positive");
+        }
+
+        mFile = file;
+        mPermitsPerSecond = permitsPerSecond;
+        mBurst = burst;
+        mDailyLimit = dailyLimit;
+        mTokens = burst;
+        mDay = today();
+
+        if (mFile != null) {
+            load();
+        }
+    }
+
+    /**
+     * Queues a request until a token is available.
+     *
+     * @param remainingMillis time the caller is willing to wait, the request is turned away once it's over
+     * @param callback        called once on the quota's thread, with {@code null} if the request may
+     *                        be sent, a {@link QuotaExceededException} if the daily share of the
+     *                        priority is used up, or a {@link TimeoutException}
+     */
+    public Ticket acquire(Priority priority, LongSupplier remainingMillis, Consumer<Throwable> callback) {
+        Waiter waiter;
+        synchronized (this) {
+            waiter = new Waiter(priority, mSequence++, remainingMillis, callback);
+            mQueue.add(waiter);
+        }
+        mExecutor.execute(this::drain);
+
+        return () -> {
+            synchronized (this) {
+                mQueue.remove(waiter);
+            }
+        };
+    }
+
+    /**
+     * Accounts for a request sent without waiting, e.g. a retry of a granted one. It still uses up
+     * a token, delaying queued requests.
+     */
+    public synchronized void record() {
+        rollOver();
+        refill();
+        mTokens -= 1;
+        mUsedToday++;
+        scheduleSave();
+    }
+
+    /**
+     * @return whether requests of {@code priority} would be turned away for the daily limit
+     */
+    public synchronized boolean isExhausted(Priority priority) {
+        rollOver();
+        return mDailyLimit > 0 && mUsedToday >= (long) (mDailyLimit * (1 - priority.reserve));
+    }
+
+    public synchronized Metrics getMetrics() {
+        rollOver();
+        return new Metrics(mQueue.size(), mGranted.clone(), mRejected.clone(), mTotalWaitMillis, mMaxWaitMillis,
+                mUsedToday, mDailyLimit);
+    }
+
+    /**
+     * Writes the daily count out now rather than shortly after it changed, e.g. before exiting.
+     */
+    public void flush() throws InterruptedException {
+        if (mFile == null) {
+            return;
+        }
+
+        try {
+            // Saved on the quota's thread, so it can't race a pending save
+            mExecutor.submit(this::save).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Waiter waiter;
+            Throwable rejection = null;
+            synchronized (this) {
+                if (mDrainTimer != null) {
+                    mDrainTimer.cancel(false);
+                    mDrainTimer = null;
+                }
+
+                waiter = mQueue.peek();
+                if (waiter == null) {
+                    return;
+                }
+
+                if (isExhausted(waiter.priority)) {
+                    rejection = new QuotaExceededException();
+                } else if (waiter.remainingMillis.getAsLong() <= 0) {
+                    rejection = new TimeoutException("Timed out waiting for a request permit");
+                } else {
+                    refill();
+                    if (mTokens < 1) {
+                        long delayNanos = (long) ((1 - mTokens) / mPermitsPerSecond * 1e9);
+                        mDrainTimer = mExecutor.schedule(this::drain, delayNanos, TimeUnit.NANOSECONDS);
+                        return;
+                    }
+
+                    mTokens -= 1;
+                    mUsedToday++;
+                    scheduleSave();
+
+                    long waitMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - waiter.queuedAtNanos);
+                    mTotalWaitMillis += waitMillis;
+                    mMaxWaitMillis = Math.max(mMaxWaitMillis, waitMillis);
+                }
+
+                mQueue.poll();
+                if (rejection == null) {
+                    mGranted[waiter.priority.ordinal()]++;
+                } else {
+                    mRejected[waiter.priority.ordinal()]++;
+                }
+            }
+
+            waiter.callback.accept(rejection);
+        }
+    }
+
+    /**
+     * Must be called with the lock held.
+     */
+    private void refill() {
+        long now = System.nanoTime();
+        mTokens = Math.min(mBurst, mTokens + (now - mLastRefillNanos) * mPermitsPerSecond / 1e9);
+        mLastRefillNanos = now;
+    }
+
+    /**
+     * Starts a new count once the day is over. Must be called with the lock held.
+     */
+    private void rollOver() {
+        long day = today();
+        if (day != mDay) {
+            mDay = day;
+            mUsedToday = 0;
+        }
+    }
+
+    private static long today() {
+        return System.currentTimeMillis() / DAY_MILLIS;
+    }
+
+    /**
+     * Must be called with the lock held.
+     */
+    private void scheduleSave() {
+        if (mFile == null || mSavePending) {
+            return;
+        }
+
+        mSavePending = true;
+        mExecutor.execute(this::save);
+    }
+
+    private void load() {
+        if (!mFile.exists()) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new FileInputStream(mFile))) {
+            if (in.readInt() != MAGIC) {
+                return;
+            }
+
+            long day = in.readLong();
+            long used = in.readLong();
+            if (day == mDay) {
+                mUsedToday = used;
+            }
+        } catch (IOException e) {
+            // Start counting afresh rather than block requests
+            mFile.delete();
+        }
+    }
+
+    private void save() {
+        long day;
+        long used;
+        synchronized (this) {
+            mSavePending = false;
+            rollOver();
+            day = mDay;
+            used = mUsedToday;
+        }
+
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmpFile))) {
+            out.writeInt(MAGIC);
+            out.writeLong(day);
+            out.writeLong(used);
+        } catch (IOException e) {
+            tmpFile.delete();
+            return;
+        }
+
+        if (!tmpFile.renameTo(mFile)) {
+            tmpFile.delete();
+        }
+    }
+
+    private static final class Waiter implements Comparable<Waiter> {
+        final Priority priority;
+        final long sequence;
+        final LongSupplier remainingMillis;
+        final Consumer<Throwable> callback;
+        final long queuedAtNanos = System.nanoTime();
+
+        Waiter(Priority priority, long sequence, LongSupplier remainingMillis, Consumer<Throwable> callback) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.remainingMillis = remainingMillis;
+            this.callback = callback;
+        }
+
+        @Override
+        public int compareTo(Waiter other) {
+            int cmp = priority.compareTo(other.priority);
+            return (cmp != 0) ? cmp : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    public static final class Metrics {
+        /**
+         * Requests currently waiting for a token.
+         */
+        public final int queueDepth;
+        /**
+         * Requests let through and turned away, indexed by {@link Priority#ordinal()}.
+         */
+        public final long[] granted;
+        public final long[] rejected;
+        public final long totalWaitMillis;
+        public final long maxWaitMillis;
+        public final long usedToday;
+        public final long dailyLimit;
+
+        Metrics(int queueDepth, long[] granted, long[] rejected, long totalWaitMillis, long maxWaitMillis,
+                long usedToday, long dailyLimit) {
+            this.queueDepth = queueDepth;
+            this.granted = granted;
+            this.rejected = rejected;
+            this.totalWaitMillis = totalWaitMillis;
+            this.maxWaitMillis = maxWaitMillis;
+            this.usedToday = usedToday;
+            this.dailyLimit = dailyLimit;
+        }
+
+        /**
+         * @return mean time granted requests waited for a token in milliseconds
+         */
+        public double getMeanWaitMillis() {
+            long count = 0;
+            for (long g : granted) {
+                count += g;
+            }
+            return (count > 0) ? totalWaitMillis / (double) count : 0;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder()
+                    .append("queued: ").append(queueDepth)
+                    .append(" used today: ").append(usedToday);
+            if (dailyLimit > 0) {
+                builder.append('/').append(dailyLimit);
+            }
+            for (Priority priority : Priority.values()) {
+                builder.append(' ').append(priority.name().toLowerCase(Locale.ROOT))
+                        .append(": ").append(granted[priority.ordinal()])
+                        .append(" granted ").append(rejected[priority.ordinal()]).append(" rejected");
+            }
+            return builder.append(" wait: ").append(Math.round(getMeanWaitMillis())).append(" ms mean ")
+                    .append(maxWaitMillis).append(" ms max")
+                    .toString();
+        }
+    }
+}
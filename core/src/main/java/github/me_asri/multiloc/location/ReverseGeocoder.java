@@ -0,0 +1,441 @@
+package github.me_asri.multiloc.location;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Offline reverse geocoder naming the place nearest to a position.
+ * <p>
+ * Places are stored as points on the unit sphere in an implicit k-d tree: the records of each
+ * subtree are laid out with its median along the split axis in the middle, so the tree needs no
+ * pointers and is searched in place over the memory-mapped file. Chord distances on the sphere
+ * order places like great-circle distances do, without special cases at the poles or the
+ * antimeridian.
+ */
+public class ReverseGeocoder {
+    static final int MAGIC = 0x4D4C5247;
+    static final int VERSION = 1;
+    // magic, version, place count, string pool size
+    static final int HEADER_SIZE = 4 * 4;
+    // x, y, z, name offset, area offset
+    static final int RECORD_SIZE = 3 * 4 + 4 + 4;
+
+    private static final double EARTH_RADIUS_METERS = 6_371_000;
+
+    // GeoNames cities dump columns
+    private static final int CITY_COLUMNS = 19;
+    private static final int CITY_COL_NAME = 1;
+    private static final int CITY_COL_LAT = 4;
+    private static final int CITY_COL_LON = 5;
+    private static final int CITY_COL_COUNTRY = 8;
+    private static final int CITY_COL_ADMIN1 = 10;
+    // GeoNames admin1CodesASCII.txt columns
+    private static final int ADMIN1_COLUMNS = 4;
+    private static final int ADMIN1_COL_CODE = 0;
+    private static final int ADMIN1_COL_NAME = 1;
+    // GeoNames countryInfo.txt columns
+    private static final int COUNTRY_COL_ISO = 0;
+    private static final int COUNTRY_COL_NAME = 4;
+
+    private final File mFile;
+    private volatile Mapping mMapping;
+
+    public ReverseGeocoder(File file) {
+        mFile = file;
+        reload();
+    }
+
+    /**
+     * Remaps the index file, picking up changes made by an import.
+     *
+     * @return whether an index is available
+     */
+    public synchronized boolean reload() {
+        Mapping mapping = null;
+
+        ByteBuffer mapped = SortedRecordFile.map(mFile, HEADER_SIZE);
+        if (mapped != null) {
+            int count = mapped.getInt(8);
+            int stringsSize = mapped.getInt(12);
+            if (mapped.getInt(0) == MAGIC && mapped.getInt(4) == VERSION && count >= 0 && stringsSize >= 0
+                    && HEADER_SIZE + (long) count * RECORD_SIZE + stringsSize == mapped.capacity()) {
+                mapping = new Mapping(mapped, count);
+            }
+        }
+
+        mMapping = mapping;
+        return mapping != null;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public int size() {
+        Mapping mapping = mMapping;
+        return (mapping != null) ? mapping.count : 0;
+    }
+
+    /**
+     * @return place nearest to the given position, or {@code null} if no places are indexed or
+     * the position isn't finite
+     */
+    public Place lookup(double lat, double lon) {
+        Mapping mapping = mMapping;
+        if (mapping == null || mapping.count == 0 || !Double.isFinite(lat) || !Double.isFinite(lon)) {
+            return null;
+        }
+
+        Search search = new Search(mapping.buffer, lat, lon);
+        search.visit(0, mapping.count, 0);
+
+        int offset = HEADER_SIZE + search.best * RECORD_SIZE;
+        ByteBuffer buffer = mapping.buffer;
+        String name = readString(buffer, mapping.stringsOffset + buffer.getInt(offset + 12));
+        int area = mapping.stringsOffset + buffer.getInt(offset + 16);
+        String region = readString(buffer, area);
+        String country = readString(buffer, area + 2 + (buffer.getShort(area) & 0xFFFF));
+
+        double chord = Math.sqrt(search.bestDistance);
+        double distance = 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, chord / 2));
+        return new Place(name, region, country, distance);
+    }
+
+    private static String readString(ByteBuffer buffer, int position) {
+        int length = buffer.getShort(position) & 0xFFFF;
+        if (length == 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(position + 2);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Replaces the index with GeoNames dumps: a cities file, e.g. {@code cities500.txt}, and
+     * optionally {@code admin1CodesASCII.txt} and {@code countryInfo.txt} to name regions and
+     * countries. Without them regions are left out and countries are given by their codes. Files
+     * may be compressed and given in any order, their kind is told by their columns.
+     *
+     * @return number of places in the resulting index
+     */
+    public synchronized int importGeoNames(List<InputStream> inputs) throws IOException {
+        Cities cities = new Cities();
+        Map<String, String> regions = new HashMap<>();
+        Map<String, String> countries = new HashMap<>();
+
+        for (InputStream in : inputs) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    CellIndexImporter.maybeDecompress(in), StandardCharsets.UTF_8), 1 << 16);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.charAt(0) == '#') {
+                    continue;
+                }
+
+                String[] columns = line.split("\t", -1);
+                if (columns.length >= CITY_COLUMNS && isNumeric(columns[0])) {
+                    try {
+                        double lat = Double.parseDouble(columns[CITY_COL_LAT]);
+                        double lon = Double.parseDouble(columns[CITY_COL_LON]);
+                        if (Math.abs(lat) <= 90 && Math.abs(lon) <= 180) {
+                            cities.add(columns[CITY_COL_NAME], columns[CITY_COL_COUNTRY], columns[CITY_COL_ADMIN1],
+                                    lat, lon);
+                        }
+                    } catch (NumberFormatException e) {
+                        // Skip malformed row
+                    }
+                } else if (columns.length > COUNTRY_COL_NAME && columns[COUNTRY_COL_ISO].length() == 2) {
+                    countries.put(columns[COUNTRY_COL_ISO], columns[COUNTRY_COL_NAME]);
+                } else if (columns.length == ADMIN1_COLUMNS && columns[ADMIN1_COL_CODE].indexOf('.') > 0) {
+                    regions.put(columns[ADMIN1_COL_CODE], columns[ADMIN1_COL_NAME]);
+                }
+            }
+        }
+
+        int[] order = new int[cities.size];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        cities.build(order, 0, order.length, 0);
+
+        write(cities, order, regions, countries);
+        reload();
+        return cities.size;
+    }
+
+    private static boolean isNumeric(String s) {
+        if (s.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) < '0' || s.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void write(Cities cities, int[] order, Map<String, String> regions, Map<String, String> countries)
+            throws IOException {
+        // Names and region/country pairs shared by several places are stored once
+        Strings strings = new Strings();
+        int[] nameOffsets = new int[cities.size];
+        int[] areaOffsets = new int[cities.size];
+        for (int i = 0; i < cities.size; i++) {
+            nameOffsets[i] = strings.add(cities.name[i]);
+
+            String code = cities.country[i] + "." + cities.admin1[i];
+            String region = regions.get(code);
+            String country = countries.get(cities.country[i]);
+            areaOffsets[i] = strings.add((region != null) ? region : "",
+                    (country != null) ? country : cities.country[i]);
+        }
+
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(cities.size);
+            out.writeInt(strings.bytes.size());
+
+            for (int city : order) {
+                out.writeFloat(cities.x[city]);
+                out.writeFloat(cities.y[city]);
+                out.writeFloat(cities.z[city]);
+                out.writeInt(nameOffsets[city]);
+                out.writeInt(areaOffsets[city]);
+            }
+            strings.bytes.writeTo(out);
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            throw e;
+        }
+
+        SortedRecordFile.replace(tmpFile, mFile);
+    }
+
+    public static class Place {
+        public final String name;
+        public final String region;
+        public final String country;
+        /**
+         * Distance from the looked up position in meters.
+         */
+        public final double distance;
+
+        public Place(String name, String region, String country, double distance) {
+            this.name = name;
+            this.region = region;
+            this.country = country;
+            this.distance = distance;
+        }
+    }
+
+    private static final class Mapping {
+        final ByteBuffer buffer;
+        final int count;
+        final int stringsOffset;
+
+        Mapping(ByteBuffer buffer, int count) {
+            this.buffer = buffer;
+            this.count = count;
+            stringsOffset = HEADER_SIZE + count * RECORD_SIZE;
+        }
+    }
+
+    /**
+     * Nearest neighbour search of a single lookup.
+     */
+    private static final class Search {
+        final ByteBuffer buffer;
+        final float[] target = new float[3];
+        int best = -1;
+        double bestDistance = Double.MAX_VALUE;
+
+        Search(ByteBuffer buffer, double lat, double lon) {
+            this.buffer = buffer;
+            toUnitVector(lat, lon, target);
+        }
+
+        /**
+         * Searches the subtree of records {@code [from, to)} split along axis {@code depth % 3}.
+         */
+        void visit(int from, int to, int depth) {
+            if (from >= to) {
+                return;
+            }
+
+            int mid = (from + to) >>> 1;
+            int offset = HEADER_SIZE + mid * RECORD_SIZE;
+            double dx = buffer.getFloat(offset) - target[0];
+            double dy = buffer.getFloat(offset + 4) - target[1];
+            double dz = buffer.getFloat(offset + 8) - target[2];
+            double distance = dx * dx + dy * dy + dz * dz;
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = mid;
+            }
+
+            int axis = depth % 3;
+            double split = target[axis] - buffer.getFloat(offset + axis * 4);
+            if (split < 0) {
+                visit(from, mid, depth + 1);
+                if (split * split < bestDistance) {
+                    visit(mid + 1, to, depth + 1);
+                }
+            } else {
+                visit(mid + 1, to, depth + 1);
+                if (split * split < bestDistance) {
+                    visit(from, mid, depth + 1);
+                }
+            }
+        }
+    }
+
+    private static void toUnitVector(double lat, double lon, float[] out) {
+        double phi = Math.toRadians(lat);
+        double lambda = Math.toRadians(lon);
+        out[0] = (float) (Math.cos(phi) * Math.cos(lambda));
+        out[1] = (float) (Math.cos(phi) * Math.sin(lambda));
+        out[2] = (float) Math.sin(phi);
+    }
+
+    /**
+     * Growable parallel arrays of imported places.
+     */
+    private static final class Cities {
+        float[] x = new float[1024];
+        float[] y = new float[1024];
+        float[] z = new float[1024];
+        String[] name = new String[1024];
+        String[] country = new String[1024];
+        String[] admin1 = new String[1024];
+        int size = 0;
+
+        private final float[] mPoint = new float[3];
+
+        void add(String name, String country, String admin1, double lat, double lon) {
+            if (size == x.length) {
+                int capacity = size * 2;
+                x = Arrays.copyOf(x, capacity);
+                y = Arrays.copyOf(y, capacity);
+                z = Arrays.copyOf(z, capacity);
+                this.name = Arrays.copyOf(this.name, capacity);
+                this.country = Arrays.copyOf(this.country, capacity);
+                this.admin1 = Arrays.copyOf(this.admin1, capacity);
+            }
+
+            toUnitVector(lat, lon, mPoint);
+            x[size] = mPoint[0];
+            y[size] = mPoint[1];
+            z[size] = mPoint[2];
+            this.name[size] = name;
+            this.country[size] = country;
+            this.admin1[size] = admin1;
+            size++;
+        }
+
+        float coordinate(int city, int axis) {
+            return (axis == 0) ? x[city] : (axis == 1) ? y[city] : z[city];
+        }
+
+        /**
+         * Arranges {@code order[from, to)} into an implicit k-d tree.
+         */
+        void build(int[] order, int from, int to, int depth) {
+            while (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                int axis = depth % 3;
+                select(order, from, to - 1, mid, axis);
+
+                build(order, from, mid, depth + 1);
+                from = mid + 1;
+                depth++;
+            }
+        }
+
+        /**
+         * Moves the {@code k}-th smallest along {@code axis} to {@code order[k]}, smaller ones
+         * before and larger ones after it.
+         */
+        private void select(int[] order, int low, int high, int k, int axis) {
+            while (low < high) {
+                float pivot = coordinate(order[(low + high) >>> 1], axis);
+                int i = low;
+                int j = high;
+                while (i <= j) {
+                    while (coordinate(order[i], axis) < pivot) {
+                        i++;
+                    }
+                    while (coordinate(order[j], axis) > pivot) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        int tmp = order[i];
+                        order[i++] = order[j];
+                        order[j--] = tmp;
+                    }
+                }
+
+                if (k <= j) {
+                    high = j;
+                } else if (k >= i) {
+                    low = i;
+                } else {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * String pool of length-prefixed UTF-8 strings.
+     */
+    private static final class Strings {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final Map<String, Integer> mOffsets = new HashMap<>();
+
+        /**
+         * Adds {@code parts} one after the other.
+         *
+         * @return offset of the first part in the pool, shared with earlier equal additions
+         */
+        int add(String... parts) {
+            String key = String.join("\0", parts);
+            Integer offset = mOffsets.get(key);
+            if (offset != null) {
+                return offset;
+            }
+
+            offset = bytes.size();
+            for (String part : parts) {
+                byte[] encoded = part.getBytes(StandardCharsets.UTF_8);
+                int length = Math.min(encoded.length, 0xFFFF);
+                bytes.write(length >>> 8);
+                bytes.write(length);
+                bytes.write(encoded, 0, length);
+            }
+
+            mOffsets.put(key, offset);
+            return offset;
+        }
+    }
+}
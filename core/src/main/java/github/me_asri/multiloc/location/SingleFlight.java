@@ -0,0 +1,163 @@
+package github.me_asri.multiloc.location;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Coalesces concurrent requests with the same key into a single in-flight operation.
+ * <p>
+ * Every caller attached to an operation receives its result. Cancellation is reference-counted:
+ * a caller cancelling only detaches its own callback, the operation itself is cancelled once no
+ * callers are left waiting for it.
+ * <p>
+ * Time budgets are per caller too. The operation runs within the longest remaining budget of the
+ * callers still waiting for it, so a caller joining with more time isn't cut off when the one
+ * that started it runs out. Callers enforce their own budget by cancelling their handle.
+ */
+public class SingleFlight<K, V> {
+    private final Map<K, Flight> mFlights = new HashMap<>();
+
+    public interface Operation<V> {
+        /**
+         * Starts the operation.
+         *
+         * @param remainingMillis longest remaining time budget of the callers waiting, which may
+         *                        grow as callers join and shrink as they leave
+         * @param completion      to be called exactly once with the result, unless cancelled
+         * @return action cancelling the operation, or {@code null} if it can't be cancelled
+         */
+        Runnable start(LongSupplier remainingMillis, BiConsumer<V, Throwable> completion);
+    }
+
+    public interface Handle {
+        /**
+         * Detaches the caller from the operation. Its callback won't be called afterwards.
+         */
+        void cancel();
+    }
+
+    /**
+     * Runs {@code operation} unless an operation for {@code key} is already in flight, in which
+     * case {@code callback} is attached to it.
+     *
+     * @param remainingMillis remaining time budget of the caller
+     */
+    public Handle execute(K key, LongSupplier remainingMillis, Operation<V> operation,
+                          BiConsumer<V, Throwable> callback) {
+        Waiter<V> waiter = new Waiter<>(remainingMillis, callback);
+        Flight flight;
+        boolean leader = false;
+        synchronized (mFlights) {
+            flight = mFlights.get(key);
+            if (flight == null) {
+                flight = new Flight(key);
+                mFlights.put(key, flight);
+                leader = true;
+            }
+            flight.waiters.add(waiter);
+        }
+
+        if (leader) {
+            Flight started = flight;
+            Runnable canceller = operation.start(started::remainingMillis, started::complete);
+            started.setCanceller(canceller);
+        }
+
+        Flight attached = flight;
+        return () -> attached.detach(waiter);
+    }
+
+    /**
+     * @return number of operations currently in flight
+     */
+    public int size() {
+        synchronized (mFlights) {
+            return mFlights.size();
+        }
+    }
+
+    private static final class Waiter<V> {
+        final LongSupplier remainingMillis;
+        final BiConsumer<V, Throwable> callback;
+
+        Waiter(LongSupplier remainingMillis, BiConsumer<V, Throwable> callback) {
+            this.remainingMillis = remainingMillis;
+            this.callback = callback;
+        }
+    }
+
+    private class Flight {
+        final K key;
+        final List<Waiter<V>> waiters = new ArrayList<>(1);
+        Runnable canceller;
+        boolean finished = false;
+        boolean cancelled = false;
+
+        Flight(K key) {
+            this.key = key;
+        }
+
+        void setCanceller(Runnable canceller) {
+            boolean cancelNow;
+            synchronized (mFlights) {
+                this.canceller = canceller;
+                // Every caller may have left while the operation was being started
+                cancelNow = cancelled;
+            }
+
+            if (cancelNow && canceller != null) {
+                canceller.run();
+            }
+        }
+
+        long remainingMillis() {
+            long remaining = 0;
+            synchronized (mFlights) {
+                for (Waiter<V> waiter : waiters) {
+                    remaining = Math.max(remaining, waiter.remainingMillis.getAsLong());
+                }
+            }
+            return remaining;
+        }
+
+        void complete(V value, Throwable t) {
+            List<Waiter<V>> waiting;
+            synchronized (mFlights) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+                mFlights.remove(key, this);
+
+                waiting = new ArrayList<>(waiters);
+                waiters.clear();
+            }
+
+            for (Waiter<V> waiter : waiting) {
+                waiter.callback.accept(value, t);
+            }
+        }
+
+        void detach(Waiter<V> waiter) {
+            Runnable cancelNow = null;
+            synchronized (mFlights) {
+                if (finished || !waiters.remove(waiter) || !waiters.isEmpty()) {
+                    return;
+                }
+
+                finished = true;
+                cancelled = true;
+                mFlights.remove(key, this);
+                cancelNow = canceller;
+            }
+
+            if (cancelNow != null) {
+                cancelNow.run();
+            }
+        }
+    }
+}
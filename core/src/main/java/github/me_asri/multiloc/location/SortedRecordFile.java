@@ -0,0 +1,447 @@
+package github.me_asri.multiloc.location;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Machinery shared by the offline indexes, files of a header followed by fixed-size records
+ * sorted by key. They are memory-mapped for lookups, built by an external {@link Sorter} and
+ * replaced atomically.
+ * <p>
+ * Headers start with a magic number and a version. Most of them follow with the number of
+ * records, see {@link #COUNTED_HEADER_SIZE}.
+ */
+final class SortedRecordFile {
+    // magic, version, record count
+    static final int COUNTED_HEADER_SIZE = 4 + 4 + 8;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private SortedRecordFile() {
+    }
+
+    /**
+     * @return read-only big-endian mapping of the whole file, or {@code null} if it's missing,
+     * unreadable, smaller than {@code headerSize} or too large to map
+     */
+    static ByteBuffer map(File file, int headerSize) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            if (size < headerSize || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            mapped.order(ByteOrder.BIG_ENDIAN);
+            return mapped;
+        } catch (IOException e) {
+            // Treat unreadable index as missing
+            return null;
+        }
+    }
+
+    /**
+     * @param mapped mapping of a file with a {@link #COUNTED_HEADER_SIZE counted header}
+     * @return number of records, or -1 if the header doesn't match or the file is truncated
+     */
+    static int recordCount(ByteBuffer mapped, int magic, int version, int recordSize) {
+        if (mapped == null) {
+            return -1;
+        }
+
+        long records = mapped.getLong(8);
+        if (mapped.getInt(0) != magic || mapped.getInt(4) != version
+                || records < 0 || COUNTED_HEADER_SIZE + records * recordSize > mapped.capacity()) {
+            return -1;
+        }
+        return (int) records;
+    }
+
+    /**
+     * Reads the number of records of a file with a {@link #COUNTED_HEADER_SIZE counted header}
+     * without mapping it.
+     */
+    static long readCount(File file, int magic, int version) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != magic || in.readInt() != version) {
+                throw new IOException("Invalid index " + file);
+            }
+            return in.readLong();
+        }
+    }
+
+    /**
+     * Writes the records of {@code sorter} to a file with a {@link #COUNTED_HEADER_SIZE counted
+     * header}.
+     *
+     * @return number of records written
+     */
+    static long write(Sorter sorter, File file, int magic, int version) throws IOException {
+        long count;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE))) {
+            out.writeInt(magic);
+            out.writeInt(version);
+            out.writeLong(0);
+            count = sorter.merge(record -> out.write(record));
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            throw e;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(8);
+            raf.writeLong(count);
+        }
+        return count;
+    }
+
+    /**
+     * Moves a freshly written file over {@code file}, deleting it on failure.
+     */
+    static void replace(File tmpFile, File file) throws IOException {
+        if (!tmpFile.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            throw new IOException("Failed to replace " + file);
+        }
+    }
+
+    /**
+     * Compares {@code longs} consecutive signed big-endian longs.
+     */
+    static int compareLongs(byte[] a, int aOffset, byte[] b, int bOffset, int longs) {
+        for (int i = 0; i < longs * 8; i += 8) {
+            int cmp = Long.compare(getLong(a, aOffset + i), getLong(b, bOffset + i));
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Compares {@code length} bytes as an unsigned big-endian number.
+     */
+    static int compareUnsigned(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            int cmp = (a[aOffset + i] & 0xFF) - (b[bOffset + i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    static long getLong(byte[] b, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (b[i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * External sort of fixed-size records.
+     * <p>
+     * Records are collected into sorted runs of bounded size, which are spilled to temporary files
+     * and merged together with any files sorted already, so memory use doesn't depend on the
+     * number of records. Records of equal keys keep the order they were added in, or only the
+     * last added one of them is kept.
+     */
+    static final class Sorter implements Closeable {
+        private final File mTmpDir;
+        private final int mRecordSize;
+        private final int mRunSize;
+        private final KeyComparator mComparator;
+        private final boolean mDistinct;
+        private final List<Input> mInputs = new ArrayList<>();
+        private final List<File> mRuns = new ArrayList<>();
+
+        // Allocated on the first record, so unused sorters cost nothing
+        private byte[] mBuffer;
+        private int[] mOrder;
+        private int mSize = 0;
+
+        /**
+         * @param tmpDir   where runs are spilled
+         * @param runSize  number of records sorted in memory at once
+         * @param distinct whether to keep only the last added record of each key
+         */
+        Sorter(File tmpDir, int recordSize, int runSize, KeyComparator comparator, boolean distinct) {
+            mTmpDir = tmpDir;
+            mRecordSize = recordSize;
+            mRunSize = runSize;
+            mComparator = comparator;
+            mDistinct = distinct;
+        }
+
+        /**
+         * Adds the records of a file sorted already, which come after the records added so far.
+         * With {@code distinct}, its keys must be distinct too.
+         *
+         * @param offset position of the first record in the file
+         */
+        void addSorted(File file, long offset, long count) throws IOException {
+            spill();
+            mInputs.add(new Input(file, offset, count));
+        }
+
+        /**
+         * Adds a copy of the first {@code recordSize} bytes of {@code record}.
+         */
+        void add(byte[] record) throws IOException {
+            if (mBuffer == null) {
+                mBuffer = new byte[mRunSize * mRecordSize];
+                mOrder = new int[mRunSize];
+            }
+
+            System.arraycopy(record, 0, mBuffer, mSize * mRecordSize, mRecordSize);
+            if (++mSize == mRunSize) {
+                spill();
+            }
+        }
+
+        /**
+         * Passes the records to {@code sink} in key order.
+         *
+         * @return number of records passed on
+         */
+        long merge(RecordSink sink) throws IOException {
+            spill();
+
+            List<Reader> readers = new ArrayList<>(mInputs.size());
+            PriorityQueue<Reader> queue = new PriorityQueue<>(Math.max(1, mInputs.size()), (a, b) -> {
+                int cmp = mComparator.compare(a.record, 0, b.record, 0);
+                return (cmp != 0) ? cmp : Integer.compare(a.order, b.order);
+            });
+
+            long count = 0;
+            try {
+                for (Input input : mInputs) {
+                    Reader reader = new Reader(input, readers.size(), mRecordSize);
+                    readers.add(reader);
+                    if (reader.next()) {
+                        queue.add(reader);
+                    }
+                }
+
+                // Inputs hold distinct keys, and equal keys across them are popped in the order
+                // they were added, so the last one of each is the newest
+                Reader current;
+                while ((current = queue.poll()) != null) {
+                    Reader following = queue.peek();
+                    boolean superseded = mDistinct && following != null
+                            && mComparator.compare(following.record, 0, current.record, 0) == 0;
+                    if (!superseded) {
+                        sink.accept(current.record);
+                        count++;
+                    }
+
+                    if (current.next()) {
+                        queue.add(current);
+                    }
+                }
+            } finally {
+                for (Reader reader : readers) {
+                    reader.close();
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Deletes the spilled runs.
+         */
+        @Override
+        public void close() {
+            for (File run : mRuns) {
+                //noinspection ResultOfMethodCallIgnored
+                run.delete();
+            }
+            mRuns.clear();
+        }
+
+        private void spill() throws IOException {
+            if (mSize == 0) {
+                return;
+            }
+
+            for (int i = 0; i < mSize; i++) {
+                mOrder[i] = i;
+            }
+            if (!isSorted()) {
+                sort(0, mSize - 1);
+            }
+
+            File run = File.createTempFile("records", ".run", mTmpDir);
+            mRuns.add(run);
+            int count = 0;
+            try (BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(run), BUFFER_SIZE)) {
+                for (int i = 0; i < mSize; i++) {
+                    // Ties are ordered by addition, so the last of each is the newest
+                    if (mDistinct && i + 1 < mSize && mComparator.compare(mBuffer, mOrder[i + 1] * mRecordSize,
+                            mBuffer, mOrder[i] * mRecordSize) == 0) {
+                        continue;
+                    }
+                    out.write(mBuffer, mOrder[i] * mRecordSize, mRecordSize);
+                    count++;
+                }
+            }
+            mInputs.add(new Input(run, 0, count));
+            mSize = 0;
+        }
+
+        // Dumps often come sorted already
+        private boolean isSorted() {
+            for (int i = 1; i < mSize; i++) {
+                if (compare(i - 1, i) > 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Ties are ordered by addition, keeping the sort stable
+        private int compare(int a, int b) {
+            int cmp = mComparator.compare(mBuffer, a * mRecordSize, mBuffer, b * mRecordSize);
+            return (cmp != 0) ? cmp : Integer.compare(a, b);
+        }
+
+        // Quicksort of the permutation, leaving the records in place
+        private void sort(int from, int to) {
+            int[] order = mOrder;
+            while (to - from > 16) {
+                int mid = (from + to) >>> 1;
+                // Median of three as pivot
+                if (compare(order[mid], order[from]) < 0) {
+                    swap(mid, from);
+                }
+                if (compare(order[to], order[from]) < 0) {
+                    swap(to, from);
+                }
+                if (compare(order[to], order[mid]) < 0) {
+                    swap(to, mid);
+                }
+                int pivot = order[mid];
+
+                int i = from;
+                int j = to;
+                while (i <= j) {
+                    while (compare(order[i], pivot) < 0) {
+                        i++;
+                    }
+                    while (compare(order[j], pivot) > 0) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        swap(i++, j--);
+                    }
+                }
+
+                // Recurse into the smaller half to bound stack depth
+                if (j - from < to - i) {
+                    sort(from, j);
+                    from = i;
+                } else {
+                    sort(i, to);
+                    to = j;
+                }
+            }
+
+            for (int i = from + 1; i <= to; i++) {
+                int value = order[i];
+                int j = i - 1;
+                while (j >= from && compare(order[j], value) > 0) {
+                    order[j + 1] = order[j];
+                    j--;
+                }
+                order[j + 1] = value;
+            }
+        }
+
+        private void swap(int i, int j) {
+            int tmp = mOrder[i];
+            mOrder[i] = mOrder[j];
+            mOrder[j] = tmp;
+        }
+    }
+
+    interface KeyComparator {
+        /**
+         * Compares the keys of the records at the given offsets.
+         */
+        int compare(byte[] a, int aOffset, byte[] b, int bOffset);
+    }
+
+    interface RecordSink {
+        void accept(byte[] record) throws IOException;
+    }
+
+    private static final class Input {
+        final File file;
+        final long offset;
+        final long count;
+
+        Input(File file, long offset, long count) {
+            this.file = file;
+            this.offset = offset;
+            this.count = count;
+        }
+    }
+
+    private static final class Reader implements Closeable {
+        final int order;
+        final byte[] record;
+        private final DataInputStream mIn;
+        private long mRemaining;
+
+        Reader(Input input, int order, int recordSize) throws IOException {
+            this.order = order;
+            record = new byte[recordSize];
+            mRemaining = input.count;
+
+            FileInputStream in = new FileInputStream(input.file);
+            try {
+                in.getChannel().position(input.offset);
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+            mIn = new DataInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+        }
+
+        boolean next() throws IOException {
+            if (mRemaining <= 0) {
+                return false;
+            }
+            mRemaining--;
+            mIn.readFully(record);
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package github.me_asri.multiloc.location;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Latency histograms of the stages of a lookup, per source.
+ * <p>
+ * Sources are location providers, e.g. {@code "BTS"}, or hosts for HTTP stages. Histograms are
+ * created on first use and never removed, so memory stays bounded by the sources and stages
+ * actually seen. Recording is lock-free and can be done from any thread.
+ */
+public class Timings {
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99};
+    private static final String CSV_HEADER = "source,stage,count,mean_ms,p50_ms,p90_ms,p99_ms,max_ms";
+
+    public enum Stage {
+        /**
+         * Cell scan by the modem.
+         */
+        CELL_INFO,
+        /**
+         * Lookup in caches and offline databases.
+         */
+        CACHE,
+        DNS,
+        /**
+         * TCP connect, including the TLS handshake.
+         */
+        CONNECT,
+        TLS,
+        /**
+         * From sending the request headers to having read the response headers.
+         */
+        TTFB,
+        /**
+         * Whole HTTP call from being enqueued, including waiting for the dispatcher and decoding
+         * the response.
+         */
+        HTTP,
+        /**
+         * Reading and parsing a response body, which may still be arriving.
+         */
+        DECODE,
+        /**
+         * From the request of the user to the first fix of a provider.
+         */
+        FIRST_FIX;
+
+        public String getLabel() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final Map<String, AtomicReferenceArray<LatencyHistogram>> mSources = new ConcurrentHashMap<>();
+    private final long mStartMillis = System.currentTimeMillis();
+
+    public void record(String source, Stage stage, long nanos) {
+        getHistogram(source, stage).recordNanos(nanos);
+    }
+
+    /**
+     * Records the time elapsed since {@code startNanos}, a value of {@link System#nanoTime()}.
+     */
+    public void recordSince(String source, Stage stage, long startNanos) {
+        record(source, stage, System.nanoTime() - startNanos);
+    }
+
+    public LatencyHistogram getHistogram(String source, Stage stage) {
+        AtomicReferenceArray<LatencyHistogram> histograms = mSources.get(source);
+        if (histograms == null) {
+            histograms = new AtomicReferenceArray<>(Stage.values().length);
+            AtomicReferenceArray<LatencyHistogram> existing = mSources.putIfAbsent(source, histograms);
+            if (existing != null) {
+                histograms = existing;
+            }
+        }
+
+        LatencyHistogram histogram = histograms.get(stage.ordinal());
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            if (!histograms.compareAndSet(stage.ordinal(), null, histogram)) {
+                histogram = histograms.get(stage.ordinal());
+            }
+        }
+        return histogram;
+    }
+
+    public void reset() {
+        for (AtomicReferenceArray<LatencyHistogram> histograms : mSources.values()) {
+            for (int i = 0; i < histograms.length(); i++) {
+                LatencyHistogram histogram = histograms.get(i);
+                if (histogram != null) {
+                    histogram.reset();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return non-empty histograms ordered by source, then stage
+     */
+    public List<Entry> snapshot() {
+        List<String> sources = new ArrayList<>(mSources.keySet());
+        Collections.sort(sources);
+
+        List<Entry> entries = new ArrayList<>();
+        for (String source : sources) {
+            AtomicReferenceArray<LatencyHistogram> histograms = mSources.get(source);
+            for (Stage stage : Stage.values()) {
+                LatencyHistogram histogram = histograms.get(stage.ordinal());
+                if (histogram == null) {
+                    continue;
+                }
+
+                LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+                if (snapshot.count > 0) {
+                    entries.add(new Entry(source, stage, snapshot));
+                }
+            }
+        }
+        return entries;
+    }
+
+    public void writeCsv(Writer writer) throws IOException {
+        writer.write(CSV_HEADER);
+        writer.write('\n');
+        for (Entry entry : snapshot()) {
+            LatencyHistogram.Snapshot s = entry.snapshot;
+            writer.write(csvField(entry.source) + ',' + entry.stage.getLabel() + ',' + s.count + ','
+                    + formatMillis(s.getMeanMillis()));
+            for (double p : PERCENTILES) {
+                writer.write(',' + formatMillis(s.getPercentileMillis(p)));
+            }
+            writer.write(',' + formatMillis(s.getMaxMillis()) + '\n');
+        }
+        writer.flush();
+    }
+
+    /**
+     * Writes the summary of every histogram along with its non-empty buckets, keyed by their lower
+     * bound in microseconds.
+     */
+    public void writeJson(Writer writer) throws IOException {
+        JsonWriter json = new JsonWriter(writer);
+        json.setIndent("  ");
+
+        json.beginObject();
+        json.name("started_at").value(mStartMillis);
+        json.name("captured_at").value(System.currentTimeMillis());
+        json.name("timings").beginArray();
+        for (Entry entry : snapshot()) {
+            LatencyHistogram.Snapshot s = entry.snapshot;
+            json.beginObject();
+            json.name("source").value(entry.source);
+            json.name("stage").value(entry.stage.getLabel());
+            json.name("count").value(s.count);
+            json.name("mean_ms").value(s.getMeanMillis());
+            for (double p : PERCENTILES) {
+                json.name("p" + Math.round(p * 100) + "_ms").value(s.getPercentileMillis(p));
+            }
+            json.name("max_ms").value(s.getMaxMillis());
+
+            json.name("buckets_us").beginObject();
+            for (int i = 0; i < s.size(); i++) {
+                if (s.getCount(i) > 0) {
+                    json.name(Long.toString(s.getLowerBound(i))).value(s.getCount(i));
+                }
+            }
+            json.endObject();
+            json.endObject();
+        }
+        json.endArray();
+        json.endObject();
+        json.flush();
+    }
+
+    private static String formatMillis(double millis) {
+        return String.format(Locale.ROOT, "%.1f", millis);
+    }
+
+    private static String csvField(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    public static final class Entry {
+        public final String source;
+        public final Stage stage;
+        public final LatencyHistogram.Snapshot snapshot;
+
+        Entry(String source, Stage stage, LatencyHistogram.Snapshot snapshot) {
+            this.source = source;
+            this.stage = stage;
+            this.snapshot = snapshot;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package github.me_asri.multiloc.location;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Streams a {@link TrackLog} out as GPX, GeoJSON or CSV.
+ * <p>
+ * Fixes are written as they're read from the log, so exporting takes constant memory however
+ * long the log is. Coordinates are written from their stored fixed-point form, with no rounding
+ * through doubles. Writers should be buffered.
+ */
+public final class TrackExporter {
+    private static final String CSV_HEADER = "time,provider,lat,lon,accuracy_m,meta";
+    // Gap between fixes that starts a new GPX track segment
+    private static final long GPX_SEGMENT_GAP_MILLIS = 5 * 60 * 1000;
+
+    private TrackExporter() {
+    }
+
+    public static void writeCsv(TrackLog log, Writer writer) throws IOException {
+        SimpleDateFormat timeFormat = newTimeFormat();
+        Date date = new Date();
+        StringBuilder line = new StringBuilder(128);
+
+        writer.write(CSV_HEADER);
+        writer.write('\n');
+        try (TrackLog.Cursor cursor = log.cursor()) {
+            while (cursor.next()) {
+                date.setTime(cursor.getTimeMillis());
+
+                line.setLength(0);
+                line.append(timeFormat.format(date)).append(',');
+                appendCsvField(line, cursor.getProvider()).append(',');
+                appendE7(line, cursor.getLatE7()).append(',');
+                appendE7(line, cursor.getLonE7()).append(',');
+                line.append(cursor.getAccuracy()).append(',');
+                if (cursor.getMeta() != null) {
+                    appendCsvField(line, cursor.getMeta());
+                }
+                line.append('\n');
+                writer.append(line);
+            }
+        }
+        writer.flush();
+    }
+
+    /**
+     * Writes a FeatureCollection with a Point feature per fix, carrying its provider, accuracy,
+     * time and metadata as properties.
+     */
+    public static void writeGeoJson(TrackLog log, Writer writer) throws IOException {
+        SimpleDateFormat timeFormat = newTimeFormat();
+        Date date = new Date();
+        StringBuilder number = new StringBuilder(16);
+
+        JsonWriter json = new JsonWriter(writer);
+        json.beginObject();
+        json.name("type").value("FeatureCollection");
+        json.name("features").beginArray();
+        try (TrackLog.Cursor cursor = log.cursor()) {
+            while (cursor.next()) {
+                date.setTime(cursor.getTimeMillis());
+
+                json.beginObject();
+                json.name("type").value("Feature");
+                json.name("geometry").beginObject();
+                json.name("type").value("Point");
+                // GeoJSON positions are longitude first
+                json.name("coordinates").beginArray();
+                number.setLength(0);
+                json.jsonValue(appendE7(number, cursor.getLonE7()).toString());
+                number.setLength(0);
+                json.jsonValue(appendE7(number, cursor.getLatE7()).toString());
+                json.endArray();
+                json.endObject();
+
+                json.name("properties").beginObject();
+                json.name("provider").value(cursor.getProvider());
+                json.name("accuracy").value(cursor.getAccuracy());
+                json.name("time").value(timeFormat.format(date));
+                if (cursor.getMeta() != null) {
+                    json.name("meta").value(cursor.getMeta());
+                }
+                json.endObject();
+                json.endObject();
+            }
+        }
+        json.endArray();
+        json.endObject();
+        json.flush();
+    }
+
+    /**
+     * Writes a GPX 1.1 track, split into segments where fixes are far apart in time. The
+     * provider goes into {@code src}, metadata into {@code desc} and the accuracy into
+     * {@code hdop}, which GPX has no better place for.
+     */
+    public static void writeGpx(TrackLog log, Writer writer) throws IOException {
+        SimpleDateFormat timeFormat = newTimeFormat();
+        Date date = new Date();
+        StringBuilder point = new StringBuilder(256);
+
+        writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<gpx version=\"1.1\" creator=\"MultiLoc\" xmlns=\"http://www.topografix.com/GPX/1/1\">\n"
+                + "<trk>\n<name>MultiLoc</name>\n");
+
+        long lastMillis = Long.MIN_VALUE;
+        try (TrackLog.Cursor cursor = log.cursor()) {
+            while (cursor.next()) {
+                long timeMillis = cursor.getTimeMillis();
+                if (lastMillis == Long.MIN_VALUE) {
+                    writer.write("<trkseg>\n");
+                } else if (Math.abs(timeMillis - lastMillis) > GPX_SEGMENT_GAP_MILLIS) {
+                    writer.write("</trkseg>\n<trkseg>\n");
+                }
+                lastMillis = timeMillis;
+                date.setTime(timeMillis);
+
+                point.setLength(0);
+                point.append("<trkpt lat=\"");
+                appendE7(point, cursor.getLatE7()).append("\" lon=\"");
+                appendE7(point, cursor.getLonE7()).append("\">");
+                point.append("<time>").append(timeFormat.format(date)).append("</time>");
+                if (cursor.getMeta() != null) {
+                    appendXml(point.append("<desc>"), cursor.getMeta()).append("</desc>");
+                }
+                appendXml(point.append("<src>"), cursor.getProvider()).append("</src>");
+                point.append("<hdop>").append(cursor.getAccuracy()).append("</hdop>");
+                point.append("</trkpt>\n");
+                writer.append(point);
+            }
+        }
+        if (lastMillis != Long.MIN_VALUE) {
+            writer.write("</trkseg>\n");
+        }
+        writer.write("</trk>\n</gpx>\n");
+        writer.flush();
+    }
+
+    private static SimpleDateFormat newTimeFormat() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ROOT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format;
+    }
+
+    /**
+     * Appends a value in units of 1e-7 as a decimal with 7 places.
+     */
+    static StringBuilder appendE7(StringBuilder out, int valueE7) {
+        long value = valueE7;
+        if (value < 0) {
+            out.append('-');
+            value = -value;
+        }
+        out.append(value / 10_000_000).append('.');
+
+        long fraction = value % 10_000_000;
+        for (long digit = 1_000_000; digit > fraction && digit > 1; digit /= 10) {
+            out.append('0');
+        }
+        return out.append(fraction);
+    }
+
+    private static StringBuilder appendCsvField(StringBuilder out, String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return out.append(value);
+        }
+        return out.append('"').append(value.replace("\"", "\"\"")).append('"');
+    }
+
+    private static StringBuilder appendXml(StringBuilder out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '<':
+                    out.append("&lt;");
+                    break;
+                case '>':
+                    out.append("&gt;");
+                    break;
+                case '&':
+                    out.append("&amp;");
+                    break;
+                case '"':
+                    out.append("&quot;");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+        return out;
+    }
+}
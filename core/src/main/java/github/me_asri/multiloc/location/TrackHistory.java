@@ -0,0 +1,236 @@
+package github.me_asri.multiloc.location;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Bounded history of the fixes of one provider, simplified for drawing at any zoom level.
+ * <p>
+ * Fixes are kept in Web Mercator coordinates normalized to the unit square, in blocks of
+ * {@link #BLOCK_SIZE}. Once a block fills up, Douglas-Peucker is run over it once to find for
+ * every point the tolerance below which it matters to the shape of the track, so simplifying for
+ * a zoom level is a comparison per point rather than a new run. The endpoints of a block are
+ * always kept, as is every point of the block still being filled. Blocks also keep their bounds,
+ * so drawing skips those out of view. The oldest block is reused once the capacity is reached,
+ * which bounds memory and keeps adds allocation-free. Not thread-safe.
+ */
+public class TrackHistory {
+    public static final int BLOCK_SIZE = 256;
+
+    private static final double EARTH_CIRCUMFERENCE_METERS = 40_075_016.686;
+
+    public interface Visitor {
+        /**
+         * @param x         normalized Web Mercator x, from 0 at 180 degrees west
+         * @param y         normalized Web Mercator y, from 0 at the north edge of the map
+         * @param accuracy  accuracy of the fix in normalized units
+         * @param connected whether the previous point visited is the one before it on the track
+         */
+        void visit(double x, double y, double accuracy, boolean connected);
+    }
+
+    private final int mMaxBlocks;
+    private final ArrayDeque<Block> mBlocks = new ArrayDeque<>();
+    private long mSize = 0;
+
+    // Preallocated for Douglas-Peucker
+    private final int[] mStack = new int[BLOCK_SIZE * 2 + 4];
+
+    /**
+     * @param capacity maximum number of fixes kept, rounded up to whole blocks
+     */
+    public TrackHistory(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        mMaxBlocks = (capacity + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    /**
+     * @param accuracy accuracy of the fix in meters
+     */
+    public void add(double lat, double lon, double accuracy) {
+        double x = mercatorX(lon);
+        double y = mercatorY(lat);
+        addNormalized(x, y, accuracy / metersPerUnit(y));
+    }
+
+    /**
+     * Adds every fix of {@code other} after the ones already here, e.g. fixes that arrived while
+     * this history was being loaded.
+     */
+    public void addAll(TrackHistory other) {
+        for (Block block : other.mBlocks) {
+            for (int i = 0; i < block.size; i++) {
+                addNormalized(block.x[i], block.y[i], block.accuracy[i]);
+            }
+        }
+    }
+
+    public long size() {
+        return mSize;
+    }
+
+    /**
+     * Visits the points needed to draw the track within the given bounds, oldest first.
+     *
+     * @param tolerance distance in normalized units below which detail is dropped, e.g. the size
+     *                  of a pixel at the zoom level drawn
+     */
+    public void visit(double minX, double minY, double maxX, double maxY, double tolerance, Visitor visitor) {
+        boolean connected = false;
+        double lastX = 0;
+        double lastY = 0;
+        Block newest = mBlocks.peekLast();
+
+        Iterator<Block> blocks = mBlocks.iterator();
+        while (blocks.hasNext()) {
+            Block block = blocks.next();
+            if (block.maxX < minX || block.minX > maxX || block.maxY < minY || block.minY > maxY) {
+                connected = false;
+                continue;
+            }
+
+            boolean sealed = block.size == BLOCK_SIZE;
+            for (int i = 0; i < block.size; i++) {
+                if (sealed && block.significance[i] < tolerance) {
+                    continue;
+                }
+
+                double x = block.x[i];
+                double y = block.y[i];
+                // Drop points on top of the last one, which Douglas-Peucker keeps at block ends
+                // and in the block being filled, but never the latest fix
+                if (connected && Math.abs(x - lastX) < tolerance && Math.abs(y - lastY) < tolerance
+                        && (block != newest || i != block.size - 1)) {
+                    continue;
+                }
+
+                visitor.visit(x, y, block.accuracy[i], connected);
+                connected = true;
+                lastX = x;
+                lastY = y;
+            }
+        }
+    }
+
+    public static double mercatorX(double lon) {
+        return (lon + 180) / 360;
+    }
+
+    public static double mercatorY(double lat) {
+        double sin = Math.sin(Math.toRadians(Math.max(-85.05112878, Math.min(85.05112878, lat))));
+        return 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+    }
+
+    /**
+     * @return meters on the ground per normalized unit at the given Mercator y
+     */
+    public static double metersPerUnit(double y) {
+        return EARTH_CIRCUMFERENCE_METERS / Math.cosh(Math.PI * (1 - 2 * y));
+    }
+
+    private void addNormalized(double x, double y, double accuracy) {
+        Block block = mBlocks.peekLast();
+        if (block == null || block.size == BLOCK_SIZE) {
+            block = (mBlocks.size() < mMaxBlocks) ? new Block() : recycle(mBlocks.pollFirst());
+            mBlocks.addLast(block);
+        }
+
+        int i = block.size++;
+        block.x[i] = x;
+        block.y[i] = y;
+        block.accuracy[i] = (float) accuracy;
+        block.minX = Math.min(block.minX, x);
+        block.maxX = Math.max(block.maxX, x);
+        block.minY = Math.min(block.minY, y);
+        block.maxY = Math.max(block.maxY, y);
+        mSize++;
+
+        if (block.size == BLOCK_SIZE) {
+            simplify(block);
+        }
+    }
+
+    private Block recycle(Block block) {
+        mSize -= block.size;
+        block.size = 0;
+        block.minX = Double.POSITIVE_INFINITY;
+        block.minY = Double.POSITIVE_INFINITY;
+        block.maxX = Double.NEGATIVE_INFINITY;
+        block.maxY = Double.NEGATIVE_INFINITY;
+        return block;
+    }
+
+    /**
+     * Sets the significance of every point of a full block to the Douglas-Peucker tolerance at
+     * which it's dropped, which is never more than that of the point that split its range.
+     */
+    private void simplify(Block block) {
+        int last = block.size - 1;
+        block.significance[0] = Float.POSITIVE_INFINITY;
+        block.significance[last] = Float.POSITIVE_INFINITY;
+
+        int top = 0;
+        if (last >= 2) {
+            mStack[top++] = 0;
+            mStack[top++] = last;
+        }
+        while (top > 0) {
+            int end = mStack[--top];
+            int start = mStack[--top];
+
+            double ax = block.x[start];
+            double ay = block.y[start];
+            double dx = block.x[end] - ax;
+            double dy = block.y[end] - ay;
+            double lengthSquared = dx * dx + dy * dy;
+
+            int farthest = -1;
+            double maxDistance = -1;
+            for (int i = start + 1; i < end; i++) {
+                double px = block.x[i] - ax;
+                double py = block.y[i] - ay;
+                double distance;
+                if (lengthSquared == 0) {
+                    distance = Math.sqrt(px * px + py * py);
+                } else {
+                    // Distance to the segment rather than the line, so backtracking isn't lost
+                    double t = Math.max(0, Math.min(1, (px * dx + py * dy) / lengthSquared));
+                    double ex = px - t * dx;
+                    double ey = py - t * dy;
+                    distance = Math.sqrt(ex * ex + ey * ey);
+                }
+                if (distance > maxDistance) {
+                    maxDistance = distance;
+                    farthest = i;
+                }
+            }
+
+            double parent = Math.min(block.significance[start], block.significance[end]);
+            block.significance[farthest] = (float) Math.min(maxDistance, parent);
+
+            if (farthest - start >= 2) {
+                mStack[top++] = start;
+                mStack[top++] = farthest;
+            }
+            if (end - farthest >= 2) {
+                mStack[top++] = farthest;
+                mStack[top++] = end;
+            }
+        }
+    }
+
+    private static final class Block {
+        final double[] x = new double[BLOCK_SIZE];
+        final double[] y = new double[BLOCK_SIZE];
+        final float[] accuracy = new float[BLOCK_SIZE];
+        final float[] significance = new float[BLOCK_SIZE];
+        int size = 0;
+
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+    }
+}
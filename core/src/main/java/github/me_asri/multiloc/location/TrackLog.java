@@ -0,0 +1,747 @@
+package github.me_asri.multiloc.location;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of every fix, kept in a directory of segment files.
+ * <p>
+ * Each record stores the time and position as zigzag varint deltas from the previous record of
+ * the same segment, so a typical fix takes around a dozen bytes. Providers are numbered per
+ * segment and metadata, e.g. the serving cell, is only stored when it changes. Every record
+ * carries a CRC32, so a record torn by a crash is detected and cut off when the log is reopened.
+ * Segments start afresh once they reach a fixed size, which keeps them independently readable.
+ * <p>
+ * Appends are queued to a dedicated thread and never block the caller. Reading goes through
+ * {@link Cursor}, which maps one segment at a time, so memory use doesn't grow with the log.
+ * A {@link Mark} bounds a cursor to the fixes queued before it was taken, so readers racing new
+ * appends see each fix either in the log or as it's appended, never both.
+ */
+public class TrackLog {
+    private static final int MAGIC = 0x4D4C544B;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+    private static final double E7 = 1e7;
+    // Longest provider name or metadata stored, longer ones are cut
+    private static final int MAX_STRING_BYTES = 255;
+    private static final int MAX_PAYLOAD_SIZE = 1024;
+    private static final long MAX_ACCURACY_DECIMETERS = 100_000_000;
+    // Appends are forced to storage at most this often, a process crash loses nothing either way
+    private static final long FORCE_INTERVAL_MILLIS = 10_000;
+
+    private static final int FLAG_NEW_PROVIDER = 1;
+    private static final int FLAG_META = 1 << 1;
+    private static final int FLAG_SAME_META = 1 << 2;
+
+    // Layout of the published tail, the active segment above the length of its complete records
+    private static final int TAIL_SEGMENT_SHIFT = 40;
+    private static final long TAIL_LENGTH_MASK = (1L << TAIL_SEGMENT_SHIFT) - 1;
+
+    private final File mDir;
+    private final int mSegmentSize;
+
+    private final ExecutorService mDiskExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "TrackLog-disk");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Writer state, only touched on the disk thread
+    private FileChannel mChannel;
+    private int mSegment = -1;
+    private long mCommitted = 0;
+    private final DeltaState mState = new DeltaState();
+    private final byte[] mPayload = new byte[MAX_PAYLOAD_SIZE];
+    private final ByteBuffer mRecord = ByteBuffer.allocate(MAX_PAYLOAD_SIZE + 16);
+    private final CRC32 mCrc = new CRC32();
+    private long mLastForceMillis = 0;
+    private boolean mFailed = false;
+
+    // Active segment and length of its complete records, published together for readers
+    private volatile long mTail = -1;
+    private volatile long mAppended = 0;
+
+    /**
+     * @param dir         directory of the segments, created if missing
+     * @param segmentSize size in bytes after which a new segment is started
+     */
+    public TrackLog(File dir, int segmentSize) {
+        if (segmentSize < HEADER_SIZE + MAX_PAYLOAD_SIZE * 2) {
+            throw new IllegalArgumentException("Segment size too small");
+        }
+
+        mDir = dir;
+        mSegmentSize = segmentSize;
+
+        mDiskExecutor.execute(this::open);
+    }
+
+    public TrackLog(File dir) {
+        this(dir, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Queues a fix to be appended.
+     *
+     * @param accuracy accuracy in meters
+     * @param meta     provider specific details, e.g. the serving cell, or {@code null}
+     */
+    public void append(String provider, double lat, double lon, double accuracy, long timeMillis, String meta) {
+        mDiskExecutor.execute(() -> write(provider, lat, lon, accuracy, timeMillis, meta));
+    }
+
+    /**
+     * Waits for queued appends and forces them to storage, e.g. before reading the log.
+     */
+    public void flush() throws InterruptedException {
+        try {
+            mDiskExecutor.submit(() -> {
+                if (mChannel != null) {
+                    try {
+                        mChannel.force(false);
+                    } catch (IOException e) {
+                        // Already written, the next append notices if the file is gone
+                    }
+                }
+            }).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * @return number of fixes appended since the log was opened
+     */
+    public long getAppendedCount() {
+        return mAppended;
+    }
+
+    /**
+     * @return total size of the segments in bytes
+     */
+    public long getSizeBytes() {
+        long size = 0;
+        for (File file : listSegments()) {
+            size += file.length();
+        }
+        return size;
+    }
+
+    /**
+     * Marks the end of the fixes queued so far, once they're written.
+     */
+    public Future<Mark> mark() {
+        // Queued behind the appends before it and ahead of those after
+        return mDiskExecutor.submit(() -> new Mark(Math.max(0, mTail)));
+    }
+
+    /**
+     * Opens a cursor over the fixes appended so far, oldest first. Fixes appended while reading
+     * may or may not be seen.
+     */
+    public Cursor cursor() {
+        return new Cursor(mTail, false);
+    }
+
+    /**
+     * Opens a cursor over the fixes queued before {@code mark}.
+     *
+     * @param newestSegmentFirst whether to read the segments newest first, e.g. to stop once
+     *                           enough recent fixes were read. Fixes within a segment are still
+     *                           read oldest first, see {@link Cursor#getSegment()}
+     */
+    public Cursor cursor(Mark mark, boolean newestSegmentFirst) {
+        return new Cursor(mark.tail, newestSegmentFirst);
+    }
+
+    /**
+     * Deletes every fix.
+     */
+    public void clear() throws InterruptedException {
+        try {
+            mDiskExecutor.submit(() -> {
+                closeChannel();
+                for (File file : listSegments()) {
+                    file.delete();
+                }
+                mSegment = -1;
+                mCommitted = 0;
+                mTail = -1;
+                mFailed = false;
+                mState.reset();
+            }).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private File[] listSegments() {
+        File[] files = mDir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) {
+            return new File[0];
+        }
+        // Names are zero-padded, so they sort by number
+        Arrays.sort(files);
+        return files;
+    }
+
+    private File segmentFile(int segment) {
+        return new File(mDir, String.format(Locale.ROOT, "%08d", segment) + SEGMENT_SUFFIX);
+    }
+
+    private static int segmentNumber(File file) {
+        String name = file.getName();
+        try {
+            return Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reopens the last segment, cutting off a record torn by a crash, and restores the delta
+     * state of its last record.
+     */
+    private void open() {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            mFailed = true;
+            return;
+        }
+
+        File[] segments = listSegments();
+        if (segments.length == 0) {
+            return;
+        }
+        File last = segments[segments.length - 1];
+        int segment = segmentNumber(last);
+        if (segment < 0) {
+            return;
+        }
+
+        try {
+            FileChannel channel = new RandomAccessFile(last, "rw").getChannel();
+            long valid = scan(channel, mState);
+            if (valid < 0) {
+                // Header itself is broken, leave it be and start the next segment
+                channel.close();
+                mSegment = segment;
+                mCommitted = last.length();
+                publishTail();
+                return;
+            }
+            if (valid < channel.size()) {
+                channel.truncate(valid);
+            }
+            channel.position(valid);
+
+            mChannel = channel;
+            mSegment = segment;
+            mCommitted = valid;
+            publishTail();
+        } catch (IOException e) {
+            mFailed = true;
+        }
+    }
+
+    /**
+     * Decodes every valid record of a segment into {@code state}.
+     *
+     * @return length of the valid part of the segment, or -1 if the header isn't valid
+     */
+    private static long scan(FileChannel channel, DeltaState state) throws IOException {
+        long size = channel.size();
+        if (size < HEADER_SIZE) {
+            return -1;
+        }
+
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            return -1;
+        }
+
+        state.reset();
+        CRC32 crc = new CRC32();
+        byte[] payload = new byte[MAX_PAYLOAD_SIZE];
+        while (readRecord(buffer, payload, crc, state)) {
+            // Decoded into state
+        }
+        return buffer.position();
+    }
+
+    /**
+     * Reads the record at the position of {@code buffer}, leaving the position after it if it's
+     * valid and where it was otherwise.
+     */
+    private static boolean readRecord(ByteBuffer buffer, byte[] payload, CRC32 crc, DeltaState state) {
+        int start = buffer.position();
+
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (!buffer.hasRemaining() || shift > 14) {
+                buffer.position(start);
+                return false;
+            }
+            byte b = buffer.get();
+            length |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        if (length == 0 || length > MAX_PAYLOAD_SIZE || buffer.remaining() < length + 4) {
+            buffer.position(start);
+            return false;
+        }
+
+        buffer.get(payload, 0, length);
+        crc.reset();
+        crc.update(payload, 0, length);
+        if ((int) crc.getValue() != buffer.getInt() || !state.decode(payload, length)) {
+            buffer.position(start);
+            return false;
+        }
+        return true;
+    }
+
+    private void write(String provider, double lat, double lon, double accuracy, long timeMillis, String meta) {
+        if (mFailed) {
+            return;
+        }
+
+        try {
+            if (mChannel == null) {
+                startSegment();
+            }
+
+            int length = mState.encode(mPayload, provider, lat, lon, accuracy, timeMillis, meta);
+            if (mCommitted + length + 8 > mSegmentSize) {
+                startSegment();
+                length = mState.encode(mPayload, provider, lat, lon, accuracy, timeMillis, meta);
+            }
+
+            mCrc.reset();
+            mCrc.update(mPayload, 0, length);
+            mRecord.clear();
+            for (int v = length; ; v >>>= 7) {
+                if ((v & ~0x7F) == 0) {
+                    mRecord.put((byte) v);
+                    break;
+                }
+                mRecord.put((byte) ((v & 0x7F) | 0x80));
+            }
+            mRecord.put(mPayload, 0, length);
+            mRecord.putInt((int) mCrc.getValue());
+            mRecord.flip();
+
+            int recordLength = mRecord.remaining();
+            while (mRecord.hasRemaining()) {
+                mChannel.write(mRecord);
+            }
+            // Only now that the record is complete does it become the base of the next
+            mState.commit();
+            mCommitted += recordLength;
+            publishTail();
+            mAppended++;
+
+            long now = System.currentTimeMillis();
+            if (now - mLastForceMillis >= FORCE_INTERVAL_MILLIS) {
+                mChannel.force(false);
+                mLastForceMillis = now;
+            }
+        } catch (IOException e) {
+            // Reopen on the next append, the torn record is cut off then
+            closeChannel();
+            mState.reset();
+            open();
+        }
+    }
+
+    private void startSegment() throws IOException {
+        if (mChannel != null) {
+            mChannel.force(false);
+            closeChannel();
+        }
+
+        int segment = mSegment + 1;
+        RandomAccessFile file = new RandomAccessFile(segmentFile(segment), "rw");
+        file.setLength(0);
+        FileChannel channel = file.getChannel();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+
+        mChannel = channel;
+        mState.reset();
+        mSegment = segment;
+        mCommitted = HEADER_SIZE;
+        publishTail();
+    }
+
+    private void publishTail() {
+        mTail = ((long) mSegment << TAIL_SEGMENT_SHIFT) | mCommitted;
+    }
+
+    private void closeChannel() {
+        if (mChannel == null) {
+            return;
+        }
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            // Nothing left to lose
+        }
+        mChannel = null;
+    }
+
+    /**
+     * End of the log at some point, see {@link #mark()}.
+     */
+    public static final class Mark {
+        // Layout of the published tail, an empty log is the empty start of the first segment
+        final long tail;
+
+        Mark(long tail) {
+            this.tail = tail;
+        }
+    }
+
+    /**
+     * Reads fixes one at a time, oldest first within each segment. Not thread-safe.
+     */
+    public final class Cursor implements AutoCloseable {
+        private final File[] mSegments;
+        private final int mActiveSegment;
+        private final long mActiveCommitted;
+        private int mNext = 0;
+        private int mSegment = -1;
+
+        private final DeltaState mDecoder = new DeltaState();
+        private final byte[] mPayload = new byte[MAX_PAYLOAD_SIZE];
+        private final CRC32 mCrc = new CRC32();
+        private ByteBuffer mBuffer;
+
+        /**
+         * @param tail end of the fixes read, the active segment is only read up to the last
+         *             complete record there. If negative, every segment is read to its end
+         */
+        Cursor(long tail, boolean newestSegmentFirst) {
+            mActiveSegment = (tail < 0) ? -1 : (int) (tail >>> TAIL_SEGMENT_SHIFT);
+            mActiveCommitted = tail & TAIL_LENGTH_MASK;
+            mSegments = listSegments();
+            if (newestSegmentFirst) {
+                Collections.reverse(Arrays.asList(mSegments));
+            }
+        }
+
+        /**
+         * Moves to the next fix.
+         *
+         * @return whether there is one
+         * @throws IOException if a segment couldn't be read
+         */
+        public boolean next() throws IOException {
+            while (true) {
+                if (mBuffer != null && readRecord(mBuffer, mPayload, mCrc, mDecoder)) {
+                    return true;
+                }
+                // End of the segment, or a damaged record which ends it early
+                mBuffer = null;
+
+                if (mNext >= mSegments.length) {
+                    return false;
+                }
+                File file = mSegments[mNext++];
+                int segment = segmentNumber(file);
+                if (segment < 0 || (mActiveSegment >= 0 && segment > mActiveSegment)) {
+                    continue;
+                }
+
+                try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+                    long size = (segment == mActiveSegment) ? Math.min(mActiveCommitted, channel.size()) : channel.size();
+                    if (size < HEADER_SIZE) {
+                        continue;
+                    }
+                    // The mapping stays valid after the channel is closed
+                    ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                    if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                        continue;
+                    }
+                    mBuffer = buffer;
+                    mSegment = segment;
+                    mDecoder.reset();
+                }
+            }
+        }
+
+        /**
+         * @return number of the segment of the current fix, newer segments have higher numbers
+         */
+        public int getSegment() {
+            return mSegment;
+        }
+
+        public String getProvider() {
+            return mDecoder.mProvider;
+        }
+
+        public double getLat() {
+            return mDecoder.mLatE7 / E7;
+        }
+
+        public double getLon() {
+            return mDecoder.mLonE7 / E7;
+        }
+
+        /**
+         * @return latitude in units of 1e-7 degrees, as stored
+         */
+        public int getLatE7() {
+            return mDecoder.mLatE7;
+        }
+
+        /**
+         * @return longitude in units of 1e-7 degrees, as stored
+         */
+        public int getLonE7() {
+            return mDecoder.mLonE7;
+        }
+
+        /**
+         * @return accuracy in meters, to a decimeter
+         */
+        public double getAccuracy() {
+            return mDecoder.mAccuracyDecimeters / 10.0;
+        }
+
+        public long getTimeMillis() {
+            return mDecoder.mTimeMillis;
+        }
+
+        /**
+         * @return metadata of the fix, or {@code null} if it has none
+         */
+        public String getMeta() {
+            return mDecoder.mMeta;
+        }
+
+        @Override
+        public void close() {
+            mBuffer = null;
+        }
+    }
+
+    /**
+     * Last record of a segment, which the next record is encoded against.
+     */
+    private static final class DeltaState {
+        private final List<String> mProviders = new ArrayList<>();
+        private String mProvider;
+        private long mTimeMillis;
+        private int mLatE7;
+        private int mLonE7;
+        private long mAccuracyDecimeters;
+        private String mMeta;
+
+        // Fix encoded but not yet committed
+        private String mNextProvider;
+        private boolean mNextProviderIsNew;
+        private long mNextTimeMillis;
+        private int mNextLatE7;
+        private int mNextLonE7;
+        private long mNextAccuracyDecimeters;
+        private String mNextMeta;
+
+        private int mPos;
+
+        void reset() {
+            mProviders.clear();
+            mProvider = null;
+            mTimeMillis = 0;
+            mLatE7 = 0;
+            mLonE7 = 0;
+            mAccuracyDecimeters = 0;
+            mMeta = null;
+        }
+
+        /**
+         * Encodes a fix against the current state into {@code out}, without changing the state
+         * until {@link #commit()}.
+         *
+         * @return length of the payload
+         */
+        int encode(byte[] out, String provider, double lat, double lon, double accuracy, long timeMillis,
+                   String meta) {
+            int latE7 = (int) Math.round(Math.max(-90, Math.min(90, lat)) * E7);
+            int lonE7 = (int) Math.round(Math.max(-180, Math.min(180, lon)) * E7);
+            long accuracyDecimeters = Math.max(0, Math.min(MAX_ACCURACY_DECIMETERS, Math.round(accuracy * 10)));
+            String providerName = (provider != null) ? provider : "";
+            int providerIndex = mProviders.indexOf(providerName);
+
+            int flags = 0;
+            if (providerIndex < 0) {
+                flags |= FLAG_NEW_PROVIDER;
+            }
+            if (meta != null) {
+                flags |= FLAG_META;
+                if (meta.equals(mMeta)) {
+                    flags |= FLAG_SAME_META;
+                }
+            }
+
+            mNextProvider = providerName;
+            mNextProviderIsNew = providerIndex < 0;
+            mNextTimeMillis = timeMillis;
+            mNextLatE7 = latE7;
+            mNextLonE7 = lonE7;
+            mNextAccuracyDecimeters = accuracyDecimeters;
+            mNextMeta = meta;
+
+            mPos = 0;
+            out[mPos++] = (byte) flags;
+            if (providerIndex < 0) {
+                putString(out, providerName);
+            } else {
+                putVarint(out, providerIndex);
+            }
+            putVarint(out, zigzag(timeMillis - mTimeMillis));
+            putVarint(out, zigzag((long) latE7 - mLatE7));
+            putVarint(out, zigzag((long) lonE7 - mLonE7));
+            putVarint(out, accuracyDecimeters);
+            if ((flags & FLAG_META) != 0 && (flags & FLAG_SAME_META) == 0) {
+                putString(out, meta);
+            }
+            return mPos;
+        }
+
+        /**
+         * Makes the fix last encoded the current state.
+         */
+        void commit() {
+            if (mNextProviderIsNew) {
+                mProviders.add(mNextProvider);
+            }
+            mProvider = mNextProvider;
+            mTimeMillis = mNextTimeMillis;
+            mLatE7 = mNextLatE7;
+            mLonE7 = mNextLonE7;
+            mAccuracyDecimeters = mNextAccuracyDecimeters;
+            mMeta = mNextMeta;
+        }
+
+        /**
+         * Applies an encoded record to the state.
+         *
+         * @return whether the record was well-formed
+         */
+        boolean decode(byte[] in, int length) {
+            mPos = 0;
+            try {
+                int flags = in[mPos++];
+
+                String provider;
+                if ((flags & FLAG_NEW_PROVIDER) != 0) {
+                    provider = getString(in, length);
+                    mProviders.add(provider);
+                } else {
+                    long index = getVarint(in, length);
+                    if (index >= mProviders.size()) {
+                        return false;
+                    }
+                    provider = mProviders.get((int) index);
+                }
+
+                long timeMillis = mTimeMillis + unzigzag(getVarint(in, length));
+                int latE7 = (int) (mLatE7 + unzigzag(getVarint(in, length)));
+                int lonE7 = (int) (mLonE7 + unzigzag(getVarint(in, length)));
+                long accuracyDecimeters = getVarint(in, length);
+
+                String meta = null;
+                if ((flags & FLAG_META) != 0) {
+                    meta = ((flags & FLAG_SAME_META) != 0) ? mMeta : getString(in, length);
+                }
+                if (mPos != length) {
+                    return false;
+                }
+
+                mProvider = provider;
+                mTimeMillis = timeMillis;
+                mLatE7 = latE7;
+                mLonE7 = lonE7;
+                mAccuracyDecimeters = accuracyDecimeters;
+                mMeta = meta;
+                return true;
+            } catch (ArrayIndexOutOfBoundsException e) {
+                return false;
+            }
+        }
+
+        private void putVarint(byte[] out, long value) {
+            while ((value & ~0x7FL) != 0) {
+                out[mPos++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out[mPos++] = (byte) value;
+        }
+
+        private void putString(byte[] out, String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            int length = Math.min(bytes.length, MAX_STRING_BYTES);
+            putVarint(out, length);
+            System.arraycopy(bytes, 0, out, mPos, length);
+            mPos += length;
+        }
+
+        private long getVarint(byte[] in, int length) {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (mPos >= length) {
+                    throw new ArrayIndexOutOfBoundsException(mPos);
+                }
+                byte b = in[mPos++];
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new ArrayIndexOutOfBoundsException(mPos);
+        }
+
+        private String getString(byte[] in, int length) {
+            long size = getVarint(in, length);
+            if (size > MAX_STRING_BYTES || mPos + size > length) {
+                throw new ArrayIndexOutOfBoundsException(mPos);
+            }
+            String value = new String(in, mPos, (int) size, StandardCharsets.UTF_8);
+            mPos += (int) size;
+            return value;
+        }
+
+        private static long zigzag(long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+
+        private static long unzigzag(long value) {
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package github.me_asri.multiloc.location;
+
+/**
+ * Picks the update interval, minimum distance and batching delay of continuous tracking from how
+ * the phone is moving.
+ * <p>
+ * Fixes are requested often while speed or bearing are changing, spaced out to a roughly constant
+ * distance while moving steadily, and rarely once the phone is stationary. Stationary is decided
+ * from the variance of the accelerometer magnitude, which costs far less than a fix, or from speed
+ * alone where there's no accelerometer. Relaxing the rate waits for a few fixes agreeing on it,
+ * while tightening is immediate, so the provider isn't re-registered on every fix. Not thread-safe.
+ */
+public class TrackingRate {
+    public static final long MIN_INTERVAL_MILLIS = 1000;
+    public static final long MAX_MOVING_INTERVAL_MILLIS = 10_000;
+    public static final long STATIONARY_INTERVAL_MILLIS = 60_000;
+
+    // Distance between fixes aimed for while moving steadily
+    private static final float FIX_SPACING_METERS = 20;
+    private static final float STATIONARY_MIN_DISTANCE_METERS = 25;
+
+    private static final float TURN_DEGREES_PER_SECOND = 10;
+    private static final float SPEED_CHANGE_RATIO = 0.3f;
+    // Speed below which bearing and relative speed changes are mostly noise
+    private static final float MIN_MOVING_SPEED = 1;
+    private static final float STATIONARY_SPEED = 0.5f;
+
+    // Variance of the acceleration magnitude, in (m/s^2)^2, of a phone lying still and of one being carried
+    private static final double STILL_VARIANCE = 0.02;
+    private static final double MOVING_VARIANCE = 0.3;
+    private static final double VARIANCE_TIME_CONSTANT_MILLIS = 2000;
+    private static final long STILL_MILLIS = 20_000;
+
+    // Fixes agreeing on a longer interval before it's taken
+    private static final int RELAX_FIXES = 3;
+    // Intervals closer than this ratio aren't worth re-registering for
+    private static final double INTERVAL_HYSTERESIS = 1.5;
+
+    private final long mMaxBatchDelayMillis;
+
+    private Rate mRate;
+    private boolean mStationary = false;
+    private int mRelaxVotes = 0;
+
+    private long mLastFixMillis = -1;
+    private float mLastSpeed = Float.NaN;
+    private float mLastBearing = Float.NaN;
+
+    private long mLastSampleMillis = -1;
+    private double mMeanMagnitude;
+    private double mVariance;
+    private long mStillSinceMillis = -1;
+    private boolean mHasAccelerometer = false;
+
+    /**
+     * @param maxBatchDelayMillis longest time fixes may be held back and delivered together while
+     *                            moving steadily or stationary, 0 to deliver every fix right away
+     */
+    public TrackingRate(long maxBatchDelayMillis) {
+        mMaxBatchDelayMillis = maxBatchDelayMillis;
+        mRate = new Rate(MIN_INTERVAL_MILLIS, 0, 0);
+    }
+
+    public Rate getRate() {
+        return mRate;
+    }
+
+    public boolean isStationary() {
+        return mStationary;
+    }
+
+    /**
+     * Reports a fix.
+     *
+     * @param speed   speed in m/s, or NaN if unknown
+     * @param bearing bearing in degrees, or NaN if unknown
+     * @return whether the rate changed
+     */
+    public boolean onFix(long timeMillis, float speed, float bearing) {
+        boolean changing = false;
+        if (mLastFixMillis >= 0 && timeMillis > mLastFixMillis) {
+            double seconds = (timeMillis - mLastFixMillis) / 1000.0;
+
+            if (!Float.isNaN(speed) && !Float.isNaN(mLastSpeed)
+                    && Math.max(speed, mLastSpeed) >= MIN_MOVING_SPEED
+                    && Math.abs(speed - mLastSpeed) > SPEED_CHANGE_RATIO * Math.max(speed, mLastSpeed)) {
+                changing = true;
+            }
+            if (!Float.isNaN(bearing) && !Float.isNaN(mLastBearing)
+                    && !Float.isNaN(speed) && speed >= MIN_MOVING_SPEED
+                    && bearingDelta(bearing, mLastBearing) / seconds > TURN_DEGREES_PER_SECOND) {
+                changing = true;
+            }
+        }
+        mLastFixMillis = timeMillis;
+        mLastSpeed = speed;
+        mLastBearing = bearing;
+
+        if (!Float.isNaN(speed)) {
+            if (speed >= MIN_MOVING_SPEED) {
+                // Smooth rides barely shake the phone, trust the fix over the accelerometer
+                mStationary = false;
+                mStillSinceMillis = -1;
+            } else if (!mHasAccelerometer && speed < STATIONARY_SPEED) {
+                if (mStillSinceMillis < 0) {
+                    mStillSinceMillis = timeMillis;
+                } else if (timeMillis - mStillSinceMillis >= STILL_MILLIS) {
+                    mStationary = true;
+                }
+            }
+        }
+
+        return update(changing);
+    }
+
+    /**
+     * Reports an accelerometer sample.
+     *
+     * @param magnitude length of the acceleration vector in m/s^2, gravity included
+     * @return whether the rate changed
+     */
+    public boolean onAcceleration(long timeMillis, float magnitude) {
+        mHasAccelerometer = true;
+
+        if (mLastSampleMillis < 0) {
+            mMeanMagnitude = magnitude;
+            mVariance = 0;
+        } else {
+            // Exponentially weighted, so irregular batched samples are weighted by the time they cover
+            double alpha = 1 - Math.exp(-Math.max(0, timeMillis - mLastSampleMillis) / VARIANCE_TIME_CONSTANT_MILLIS);
+            double delta = magnitude - mMeanMagnitude;
+            mMeanMagnitude += alpha * delta;
+            mVariance = (1 - alpha) * (mVariance + alpha * delta * delta);
+        }
+        mLastSampleMillis = timeMillis;
+
+        if (mVariance >= MOVING_VARIANCE) {
+            mStillSinceMillis = -1;
+            if (mStationary) {
+                mStationary = false;
+                return update(true);
+            }
+        } else if (mVariance < STILL_VARIANCE && !mStationary) {
+            if (mStillSinceMillis < 0) {
+                mStillSinceMillis = timeMillis;
+            } else if (timeMillis - mStillSinceMillis >= STILL_MILLIS
+                    && (Float.isNaN(mLastSpeed) || mLastSpeed < MIN_MOVING_SPEED)) {
+                mStationary = true;
+                return update(false);
+            }
+        } else {
+            mStillSinceMillis = -1;
+        }
+        return false;
+    }
+
+    /**
+     * Reports that the phone started moving, e.g. from a significant motion sensor.
+     *
+     * @return whether the rate changed
+     */
+    public boolean onMotion() {
+        mStillSinceMillis = -1;
+        mLastSampleMillis = -1;
+        if (!mStationary) {
+            return false;
+        }
+        mStationary = false;
+        return update(true);
+    }
+
+    private boolean update(boolean changing) {
+        Rate target;
+        if (mStationary) {
+            target = new Rate(STATIONARY_INTERVAL_MILLIS, STATIONARY_MIN_DISTANCE_METERS, mMaxBatchDelayMillis);
+        } else if (changing || Float.isNaN(mLastSpeed)) {
+            // Without a speed there's nothing to space fixes by, so keep up
+            target = new Rate(MIN_INTERVAL_MILLIS, 0, 0);
+        } else {
+            long interval = Math.round(FIX_SPACING_METERS / Math.max(mLastSpeed, 0.1) * 1000);
+            interval = Math.max(MIN_INTERVAL_MILLIS, Math.min(MAX_MOVING_INTERVAL_MILLIS, interval));
+            target = new Rate(interval, FIX_SPACING_METERS / 2, mMaxBatchDelayMillis);
+        }
+
+        if (target.intervalMillis < mRate.intervalMillis / INTERVAL_HYSTERESIS
+                || (target.maxDelayMillis < mRate.maxDelayMillis && target.intervalMillis <= mRate.intervalMillis)) {
+            mRelaxVotes = 0;
+            mRate = target;
+            return true;
+        }
+        if (target.intervalMillis > mRate.intervalMillis * INTERVAL_HYSTERESIS
+                || (target.maxDelayMillis > mRate.maxDelayMillis && target.intervalMillis >= mRate.intervalMillis)) {
+            // Stationary is already settled by the accelerometer, it needs no more votes
+            if (mStationary || ++mRelaxVotes >= RELAX_FIXES) {
+                mRelaxVotes = 0;
+                mRate = target;
+                return true;
+            }
+            return false;
+        }
+        mRelaxVotes = 0;
+        return false;
+    }
+
+    private static double bearingDelta(float a, float b) {
+        double delta = Math.abs(a - b) % 360;
+        return (delta > 180) ? 360 - delta : delta;
+    }
+
+    public static final class Rate {
+        public final long intervalMillis;
+        public final float minDistanceMeters;
+        /**
+         * Longest time fixes may be held back to be delivered in a batch.
+         */
+        public final long maxDelayMillis;
+
+        Rate(long intervalMillis, float minDistanceMeters, long maxDelayMillis) {
+            this.intervalMillis = intervalMillis;
+            this.minDistanceMeters = minDistanceMeters;
+            this.maxDelayMillis = maxDelayMillis;
+        }
+
+        @Override
+        public String toString() {
+            return intervalMillis + " ms, " + minDistanceMeters + " m, batched up to " + maxDelayMillis + " ms";
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package github.me_asri.multiloc.location;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Lookups, expiry and replay of the cell cache against a {@link LinkedHashMap} LRU.
+ */
+public class CellCacheTest {
+    private static final long HOUR_MILLIS = 60 * 60 * 1000;
+    // keyHigh, keyLow, lat, lon, range, expiresAt, flags
+    private static final int RECORD_SIZE = 45;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final Random mRandom = new Random(42);
+
+    @Test
+    public void evictsLeastRecentlyUsedLikeReference() {
+        int capacity = 64;
+        CellCache cache = new CellCache(null, capacity, HOUR_MILLIS, HOUR_MILLIS);
+        Map<CellTuple, Integer> reference = new LinkedHashMap<CellTuple, Integer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CellTuple, Integer> eldest) {
+                return size() > capacity;
+            }
+        };
+
+        // Few enough cells that most lookups hit, many enough that evictions shift probe chains
+        for (int i = 0; i < 200_000; i++) {
+            CellTuple cell = cell(mRandom.nextInt(200));
+            if (mRandom.nextInt(3) == 0) {
+                int range = mRandom.nextInt(10_000);
+                cache.put(cell, 1, 2, range);
+                reference.put(cell, range);
+            } else {
+                CellCache.Entry entry = cache.get(cell);
+                Integer range = reference.get(cell);
+                if (range == null) {
+                    assertNull(entry);
+                } else {
+                    assertNotNull("Lost " + cell + " at step " + i, entry);
+                    assertEquals((int) range, entry.range);
+                }
+            }
+            assertEquals(reference.size(), cache.size());
+        }
+
+        for (int i = 0; i < 200; i++) {
+            assertEquals(reference.containsKey(cell(i)), cache.getStale(cell(i)) != null);
+        }
+    }
+
+    @Test
+    public void expiresEntriesAfterTtl() throws Exception {
+        CellCache cache = new CellCache(null, 16, 200, HOUR_MILLIS);
+        CellTuple cell = cell(1);
+        cache.put(cell, 3.139, 101.687, 1500);
+
+        CellCache.Entry entry = cache.get(cell);
+        assertEquals(3.139, entry.lat, 0);
+        assertEquals(101.687, entry.lon, 0);
+        assertEquals(1500, entry.range);
+        assertFalse(entry.negative);
+
+        Thread.sleep(300);
+        assertNull(cache.get(cell));
+        // Still there for when OpenCelliD can't be asked
+        assertEquals(1500, cache.getStale(cell).range);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        cache.put(cell, 3.139, 101.687, 800);
+        assertEquals(800, cache.get(cell).range);
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void expiresNegativeEntriesAfterTheirOwnTtl() throws Exception {
+        CellCache cache = new CellCache(null, 16, HOUR_MILLIS, 200);
+        cache.putNegative(cell(1));
+        cache.put(cell(2), 1, 2, 3);
+
+        assertTrue(cache.get(cell(1)).negative);
+        Thread.sleep(300);
+        assertNull(cache.get(cell(1)));
+        assertNotNull(cache.get(cell(2)));
+
+        // The cell got registered meanwhile
+        cache.put(cell(1), 1, 2, 3);
+        assertFalse(cache.get(cell(1)).negative);
+    }
+
+    @Test
+    public void replaysFileOnCreation() throws Exception {
+        File file = new File(mFolder.getRoot(), "cells.bin");
+        CellCache cache = new CellCache(file, 16, HOUR_MILLIS, HOUR_MILLIS);
+        cache.put(cell(1), 3.139, 101.687, 1500);
+        cache.put(cell(2), 1.29, 103.85, 900);
+        cache.putNegative(cell(3));
+        // Updated, the later record wins
+        cache.put(cell(2), 1.3, 103.8, 700);
+        cache.flush();
+
+        CellCache replayed = new CellCache(file, 16, HOUR_MILLIS, HOUR_MILLIS);
+        replayed.flush();
+        assertEquals(3, replayed.size());
+        assertEquals(3.139, replayed.get(cell(1)).lat, 0);
+        assertEquals(101.687, replayed.get(cell(1)).lon, 0);
+        assertEquals(700, replayed.get(cell(2)).range);
+        assertTrue(replayed.get(cell(3)).negative);
+        assertNull(replayed.get(cell(4)));
+    }
+
+    @Test
+    public void skipsExpiredAndTornRecordsOnReplay() throws Exception {
+        File file = new File(mFolder.getRoot(), "cells.bin");
+        CellCache cache = new CellCache(file, 16, HOUR_MILLIS, 100);
+        cache.put(cell(1), 1, 2, 3);
+        cache.putNegative(cell(2));
+        // Unregistered since, the expired record still replaces the earlier one
+        cache.put(cell(3), 1, 2, 3);
+        cache.putNegative(cell(3));
+        cache.flush();
+        long valid = file.length();
+        assertEquals(4 * RECORD_SIZE, valid);
+
+        // A record cut short by a crash
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(valid);
+            raf.write(new byte[RECORD_SIZE / 2]);
+        }
+        Thread.sleep(200);
+
+        CellCache replayed = new CellCache(file, 16, HOUR_MILLIS, HOUR_MILLIS);
+        replayed.flush();
+        assertEquals(2, replayed.size());
+        assertNotNull(replayed.get(cell(1)));
+        assertNull(replayed.getStale(cell(2)));
+        assertNull(replayed.get(cell(3)));
+        assertTrue(replayed.getStale(cell(3)).negative);
+        assertEquals(valid, file.length());
+
+        // Appends stay aligned to whole records
+        replayed.put(cell(4), 4, 5, 6);
+        replayed.flush();
+        CellCache again = new CellCache(file, 16, HOUR_MILLIS, HOUR_MILLIS);
+        again.flush();
+        assertEquals(6, again.get(cell(4)).range);
+    }
+
+    @Test
+    public void keepsRecentEntriesAcrossCompaction() throws Exception {
+        File file = new File(mFolder.getRoot(), "cells.bin");
+        int capacity = 8;
+        CellCache cache = new CellCache(file, capacity, HOUR_MILLIS, HOUR_MILLIS);
+        for (int i = 0; i < 100; i++) {
+            cache.put(cell(i), i, i, i);
+        }
+        cache.flush();
+        // Rewritten as the file grew, rather than holding every update
+        assertTrue("Size " + file.length(), file.length() <= 4L * capacity * RECORD_SIZE + RECORD_SIZE);
+
+        CellCache replayed = new CellCache(file, capacity, HOUR_MILLIS, HOUR_MILLIS);
+        replayed.flush();
+        assertEquals(capacity, replayed.size());
+        for (int i = 100 - capacity; i < 100; i++) {
+            assertEquals(i, replayed.get(cell(i)).range);
+        }
+        assertNull(replayed.getStale(cell(100 - capacity - 1)));
+    }
+
+    private static CellTuple cell(int ci) {
+        return new CellTuple("510", "10", 1234, ci);
+    }
+}
@@ -0,0 +1,147 @@
+package github.me_asri.multiloc.location;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Imports of OpenCelliD-like exports and lookups against the rows imported.
+ */
+public class CellIndexTest {
+    private static final String HEADER = "radio,mcc,net,area,cell,unit,lon,lat,range,samples,changeable,created,updated,averageSignal\n";
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final Random mRandom = new Random(42);
+
+    @Test
+    public void findsEveryImportedCell() throws Exception {
+        Map<CellTuple, double[]> cells = new HashMap<>();
+        StringBuilder csv = new StringBuilder(HEADER);
+        for (int i = 0; i < 20_000; i++) {
+            // Few areas and cells, so rows repeat and the last of them counts
+            CellTuple cell = new CellTuple(Integer.toString(500 + mRandom.nextInt(20)),
+                    Integer.toString(mRandom.nextInt(3)), mRandom.nextInt(50), mRandom.nextInt(100_000));
+            double[] location = {mRandom.nextDouble() * 180 - 90, mRandom.nextDouble() * 360 - 180, mRandom.nextInt(50_000)};
+            cells.put(cell, location);
+            appendRow(csv, cell, location);
+        }
+
+        CellIndex index = importCsv(csv.toString(), false);
+        assertEquals(cells.size(), index.size());
+        for (Map.Entry<CellTuple, double[]> entry : cells.entrySet()) {
+            assertLocation(entry.getValue(), index.lookup(entry.getKey()));
+        }
+
+        // Neighbours of indexed cells
+        for (int i = 0; i < 10_000; i++) {
+            CellTuple cell = new CellTuple(Integer.toString(500 + mRandom.nextInt(20)),
+                    Integer.toString(mRandom.nextInt(3)), mRandom.nextInt(50), mRandom.nextInt(100_000));
+            CellCache.Entry found = index.lookup(cell);
+            if (cells.containsKey(cell)) {
+                assertLocation(cells.get(cell), found);
+            } else {
+                assertNull(found);
+            }
+        }
+    }
+
+    @Test
+    public void replacesCellsWithDiffRows() throws Exception {
+        CellTuple kept = new CellTuple("502", "16", 1000, 1);
+        CellTuple moved = new CellTuple("502", "16", 1000, 2);
+        CellTuple added = new CellTuple("502", "16", 1001, 1);
+        StringBuilder full = new StringBuilder(HEADER);
+        appendRow(full, kept, new double[]{3.1, 101.6, 500});
+        appendRow(full, moved, new double[]{3.2, 101.7, 600});
+        CellIndex index = importCsv(full.toString(), false);
+        assertEquals(2, index.size());
+
+        // Daily diffs come compressed
+        StringBuilder diff = new StringBuilder(HEADER);
+        appendRow(diff, moved, new double[]{3.3, 101.8, 700});
+        appendRow(diff, added, new double[]{-3.4, -101.9, 800});
+        importCsv(diff.toString(), true);
+        assertTrue(index.reload());
+
+        assertEquals(3, index.size());
+        assertLocation(new double[]{3.1, 101.6, 500}, index.lookup(kept));
+        assertLocation(new double[]{3.3, 101.8, 700}, index.lookup(moved));
+        assertLocation(new double[]{-3.4, -101.9, 800}, index.lookup(added));
+    }
+
+    @Test
+    public void skipsMalformedRows() throws Exception {
+        String csv = HEADER
+                + "LTE,502,16,1000,1,0,101.6,3.1,500,1,1,0,0,0\n"
+                // Latitude out of range, negative cell, missing range, not numbers
+                + "LTE,502,16,1000,2,0,101.6,91,500,1,1,0,0,0\n"
+                + "LTE,502,16,1000,-3,0,101.6,3.1,500,1,1,0,0,0\n"
+                + "LTE,502,16,1000,4,0,101.6,3.1\n"
+                + "LTE,502,xx,1000,5,0,101.6,3.1,500,1,1,0,0,0\n"
+                + "LTE,502,16,1000,6,0,east,3.1,500\n"
+                // Export cut after the range column
+                + "GSM,502,16,1000,7,0,101.6,3.1,250";
+        CellIndex index = importCsv(csv, false);
+
+        assertEquals(2, index.size());
+        assertLocation(new double[]{3.1, 101.6, 500}, index.lookup(new CellTuple("502", "16", 1000, 1)));
+        assertLocation(new double[]{3.1, 101.6, 250}, index.lookup(new CellTuple("502", "16", 1000, 7)));
+    }
+
+    @Test
+    public void findsNothingWithoutIndex() {
+        CellIndex index = new CellIndex(new File(mFolder.getRoot(), "missing.bin"));
+        assertFalse(index.reload());
+        assertEquals(0, index.size());
+        assertNull(index.lookup(new CellTuple("502", "16", 1000, 1)));
+    }
+
+    private CellIndex importCsv(String csv, boolean gzip) throws Exception {
+        byte[] bytes = csv.getBytes(StandardCharsets.US_ASCII);
+        if (gzip) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+                out.write(bytes);
+            }
+            bytes = compressed.toByteArray();
+        }
+
+        File file = new File(mFolder.getRoot(), "cells.bin");
+        // Small runs, so imports spill and merge
+        CellIndexImporter importer = new CellIndexImporter(mFolder.getRoot(), 256);
+        try (InputStream in = new ByteArrayInputStream(bytes)) {
+            importer.importCsv(in, file);
+        }
+        return new CellIndex(file);
+    }
+
+    private static void appendRow(StringBuilder csv, CellTuple cell, double[] location) {
+        csv.append("LTE,").append(cell.mcc).append(',').append(cell.mnc).append(',').append(cell.tac).append(',')
+                .append(cell.ci).append(",0,").append(location[1]).append(',').append(location[0]).append(',')
+                .append((int) location[2]).append(",12,1,1500000000,1600000000,-90\n");
+    }
+
+    private static void assertLocation(double[] expected, CellCache.Entry entry) {
+        assertEquals(expected[0], entry.lat, 1e-7);
+        assertEquals(expected[1], entry.lon, 1e-7);
+        assertEquals((int) expected[2], entry.range);
+        assertFalse(entry.negative);
+    }
+}
@@ -0,0 +1,258 @@
+package github.me_asri.multiloc.location;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Filtering of synthetic fix sequences with noise of the reported accuracy.
+ */
+public class FusionFilterTest {
+    private static final double LAT = 3.1390;
+    private static final double LON = 101.6869;
+    private static final double METERS_PER_DEGREE_LAT = 110_574;
+    private static final double METERS_PER_DEGREE_LON = 111_320 * Math.cos(Math.toRadians(LAT));
+    // Accuracy is a radius of 68% confidence, about 1.5 standard deviations per axis
+    private static final double ACCURACY_SIGMAS = 1.515;
+    private static final long START_MILLIS = 1_000_000;
+
+    private final Random mRandom = new Random(42);
+
+    @Test
+    public void convergesOnStationaryPoint() {
+        FusionFilter filter = new FusionFilter();
+
+        for (int i = 0; i < 60; i++) {
+            addNoisy(filter, 0, 0, 10, i);
+        }
+
+        // Tighter than any single fix, and honest about it
+        assertTrue("Accuracy " + filter.getAccuracy(), filter.getAccuracy() < 10);
+        assertTrue("Off by " + distance(filter, 0, 0) + " m", distance(filter, 0, 0) < 2 * filter.getAccuracy());
+        // Noise leaves some speed, within what the filter admits to
+        double[] covariance = new double[16];
+        filter.getCovariance(covariance);
+        double speedSigma = Math.sqrt(Math.max(covariance[10], covariance[15]));
+        assertTrue("Speed " + filter.getSpeed(), filter.getSpeed() < 3 * speedSigma);
+        assertEquals(0, filter.getRejectedCount());
+    }
+
+    @Test
+    public void tracksConstantVelocity() {
+        FusionFilter filter = new FusionFilter();
+
+        // East at 10 m/s
+        for (int i = 0; i <= 60; i++) {
+            addNoisy(filter, 10 * i, 0, 5, i);
+        }
+
+        assertTrue("Off by " + distance(filter, 600, 0) + " m", distance(filter, 600, 0) < 5);
+        assertEquals(10, filter.getSpeed(), 1);
+        assertEquals(90, filter.getBearing(), 5);
+        assertEquals(0, filter.getRejectedCount());
+    }
+
+    @Test
+    public void followsTrackAcrossOriginMoves() {
+        FusionFilter filter = new FusionFilter();
+
+        // 120 km east at 30 m/s, well past the distance at which the origin moves
+        for (int i = 0; i <= 4000; i++) {
+            assertEquals(i == 0 ? FusionFilter.RESET : FusionFilter.ACCEPTED, addNoisy(filter, 30 * i, 0, 5, i));
+        }
+
+        assertTrue("Off by " + distance(filter, 120_000, 0) + " m", distance(filter, 120_000, 0) < 5);
+        assertEquals(30, filter.getSpeed(), 1);
+    }
+
+    @Test
+    public void weighsFixesByAccuracy() {
+        FusionFilter filter = new FusionFilter();
+        for (int i = 0; i < 30; i++) {
+            addNoisy(filter, 0, 0, 5, i);
+        }
+        double before = distance(filter, 0, 0);
+
+        // An IP fix a few km away covering a city
+        assertEquals(FusionFilter.ACCEPTED, filter.update(lat(3000), lon(0), 10_000, time(30)));
+        assertTrue("Moved by " + distance(filter, 0, 0) + " m", distance(filter, 0, 0) - before < 5);
+    }
+
+    @Test
+    public void rejectsOutlier() {
+        FusionFilter filter = new FusionFilter();
+        for (int i = 0; i < 30; i++) {
+            addNoisy(filter, 0, 0, 5, i);
+        }
+        filter.predict(time(30));
+        double lat = filter.getLat();
+        double lon = filter.getLon();
+
+        assertEquals(FusionFilter.REJECTED, filter.update(lat(0), lon(2000), 10, time(30)));
+        assertEquals(1, filter.getRejectedCount());
+        assertEquals(lat, filter.getLat(), 1e-6);
+        assertEquals(lon, filter.getLon(), 1e-6);
+
+        // The next consistent fix resets the count of rejections in a row
+        assertEquals(FusionFilter.ACCEPTED, addNoisy(filter, 0, 0, 5, 31));
+        assertEquals(FusionFilter.REJECTED, filter.update(lat(0), lon(2000), 10, time(32)));
+        assertEquals(FusionFilter.REJECTED, filter.update(lat(0), lon(2000), 10, time(33)));
+        assertEquals(FusionFilter.ACCEPTED, addNoisy(filter, 0, 0, 5, 34));
+    }
+
+    @Test
+    public void resetsAfterRepeatedRejections() {
+        FusionFilter filter = new FusionFilter();
+        for (int i = 0; i < 30; i++) {
+            addNoisy(filter, 0, 0, 5, i);
+        }
+
+        // The estimate was wrong, e.g. a teleport after a long tunnel
+        assertEquals(FusionFilter.REJECTED, filter.update(lat(5000), lon(0), 10, time(30)));
+        assertEquals(FusionFilter.REJECTED, filter.update(lat(5000), lon(0), 10, time(31)));
+        assertEquals(FusionFilter.RESET, filter.update(lat(5000), lon(0), 10, time(32)));
+
+        assertEquals(0, distance(filter, 0, 5000), 1e-3);
+        assertEquals(10, filter.getAccuracy(), 1e-6);
+        assertEquals(0, filter.getSpeed(), 1e-9);
+        assertEquals(time(32), filter.getTimeMillis());
+        assertEquals(FusionFilter.ACCEPTED, filter.update(lat(5000), lon(0), 10, time(33)));
+    }
+
+    @Test
+    public void covarianceShrinksOnUpdateAndGrowsOnPredict() {
+        FusionFilter filter = new FusionFilter();
+        double[] covariance = new double[16];
+
+        filter.update(lat(0), lon(0), 20, time(0));
+        filter.getCovariance(covariance);
+        double initial = covariance[0];
+        assertEquals(Math.pow(20 / ACCURACY_SIGMAS, 2), initial, 1e-6);
+
+        double previous = initial;
+        for (int i = 1; i <= 10; i++) {
+            filter.update(lat(0), lon(0), 20, time(0));
+            filter.getCovariance(covariance);
+            assertTrue(covariance[0] < previous);
+            assertEquals(covariance[0], covariance[5], 1e-9);
+            previous = covariance[0];
+        }
+
+        filter.getCovariance(covariance);
+        double position = covariance[0];
+        double velocity = covariance[10];
+        filter.predict(time(10));
+        filter.getCovariance(covariance);
+        assertTrue(covariance[0] > position);
+        assertTrue(covariance[10] > velocity);
+        assertPositiveDefinite(covariance);
+
+        // Predicting into the past changes nothing
+        filter.predict(time(5));
+        double[] unchanged = new double[16];
+        filter.getCovariance(unchanged);
+        assertEquals(covariance[0], unchanged[0], 0);
+        assertEquals(time(10), filter.getTimeMillis());
+
+        // Moving fixes make the velocity known
+        for (int i = 11; i <= 40; i++) {
+            addNoisy(filter, 10 * i, 0, 5, i);
+            filter.getCovariance(covariance);
+            assertPositiveDefinite(covariance);
+        }
+        assertTrue(covariance[10] < velocity);
+    }
+
+    @Test
+    public void appliesLateFixesAtTimeOfEstimate() {
+        FusionFilter filter = new FusionFilter();
+        for (int i = 0; i <= 10; i++) {
+            addNoisy(filter, 0, 0, 5, i);
+        }
+
+        assertEquals(FusionFilter.ACCEPTED, filter.update(lat(20), lon(0), 100, time(5)));
+        assertEquals(time(10), filter.getTimeMillis());
+    }
+
+    @Test
+    public void restartsAfterClear() {
+        FusionFilter filter = new FusionFilter();
+        addNoisy(filter, 0, 0, 5, 0);
+        assertTrue(filter.isInitialized());
+
+        filter.clear();
+        assertFalse(filter.isInitialized());
+        assertEquals(FusionFilter.RESET, filter.update(lat(8000), lon(0), 50, time(1)));
+        assertEquals(0, distance(filter, 0, 8000), 1e-3);
+    }
+
+    @Test
+    public void ignoresFixesThatAreNotFinite() {
+        FusionFilter filter = new FusionFilter();
+        assertEquals(FusionFilter.REJECTED, filter.update(Double.NaN, lon(0), 10, time(0)));
+        assertFalse(filter.isInitialized());
+
+        for (int i = 0; i < 30; i++) {
+            addNoisy(filter, 0, 0, 5, i);
+        }
+        double lat = filter.getLat();
+        double lon = filter.getLon();
+        double accuracy = filter.getAccuracy();
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(FusionFilter.REJECTED, filter.update(lat(0), Double.NaN, 10, time(30)));
+            assertEquals(FusionFilter.REJECTED, filter.update(lat(0), lon(0), Double.POSITIVE_INFINITY, time(30)));
+        }
+        assertEquals(lat, filter.getLat(), 0);
+        assertEquals(lon, filter.getLon(), 0);
+        assertEquals(accuracy, filter.getAccuracy(), 0);
+
+        // A platform fix without accuracy may still be reported as huge, it must not overflow
+        assertEquals(FusionFilter.ACCEPTED, filter.update(lat(0), lon(0), Double.MAX_VALUE, time(31)));
+        assertTrue(Double.isFinite(filter.getLat()) && Double.isFinite(filter.getLon()));
+        assertTrue("Off by " + distance(filter, 0, 0) + " m", distance(filter, 0, 0) < 2 * filter.getAccuracy());
+        assertEquals(FusionFilter.ACCEPTED, addNoisy(filter, 0, 0, 5, 32));
+    }
+
+    /**
+     * Adds a fix {@code east} and {@code north} meters from the start, off by noise matching
+     * {@code accuracy}, {@code second} seconds after the start.
+     */
+    private int addNoisy(FusionFilter filter, double east, double north, double accuracy, int second) {
+        double sigma = accuracy / ACCURACY_SIGMAS;
+        return filter.update(lat(north + mRandom.nextGaussian() * sigma), lon(east + mRandom.nextGaussian() * sigma),
+                accuracy, time(second));
+    }
+
+    private static double lat(double north) {
+        return LAT + north / METERS_PER_DEGREE_LAT;
+    }
+
+    private static double lon(double east) {
+        return LON + east / METERS_PER_DEGREE_LON;
+    }
+
+    private static long time(int second) {
+        return START_MILLIS + second * 1000L;
+    }
+
+    private static double distance(FusionFilter filter, double east, double north) {
+        return Math.hypot((filter.getLon() - LON) * METERS_PER_DEGREE_LON - east,
+                (filter.getLat() - LAT) * METERS_PER_DEGREE_LAT - north);
+    }
+
+    private static void assertPositiveDefinite(double[] covariance) {
+        // Per axis blocks [[a, b], [b, c]] of the state {east, north, east velocity, north velocity}
+        for (int axis = 0; axis < 2; axis++) {
+            double a = covariance[axis * 5];
+            double b = covariance[axis * 5 + 2];
+            double c = covariance[axis * 5 + 10];
+            assertEquals(b, covariance[axis * 5 + 8], 0);
+            assertTrue(a > 0 && c > 0 && a * c - b * b > 0);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package github.me_asri.multiloc.location;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Confirmation of serving cell sequences, including ping-pong at the edge of two cells.
+ */
+public class HandoverFilterTest {
+    private static final long DWELL_MILLIS = 5_000;
+    private static final long RETURN_DWELL_MILLIS = 20_000;
+    private static final long RETURN_WINDOW_MILLIS = 60_000;
+
+    private static final CellTuple A = new CellTuple("510", "10", 1234, 1);
+    private static final CellTuple B = new CellTuple("510", "10", 1234, 2);
+    private static final CellTuple C = new CellTuple("510", "10", 1234, 3);
+
+    private final HandoverFilter mFilter = new HandoverFilter(DWELL_MILLIS, RETURN_DWELL_MILLIS, RETURN_WINDOW_MILLIS);
+
+    @Test
+    public void confirmsFirstCellAtOnce() {
+        assertNull(mFilter.getConfirmed());
+        assertEquals(0, mFilter.observe(A, 0));
+        assertTrue(mFilter.confirm(A, 0));
+        assertEquals(A, mFilter.getConfirmed());
+
+        // Still serving
+        assertEquals(-1, mFilter.observe(A, 1000));
+        assertEquals(0, mFilter.getSuppressedCount());
+    }
+
+    @Test
+    public void confirmsNewCellOnlyAfterDwell() {
+        confirmFirst(A);
+
+        assertEquals(DWELL_MILLIS, mFilter.observe(B, 10_000));
+        // Observed again while waiting
+        assertEquals(-1, mFilter.observe(B, 12_000));
+        assertFalse(mFilter.confirm(B, 10_000 + DWELL_MILLIS - 1));
+        assertEquals(A, mFilter.getConfirmed());
+
+        assertTrue(mFilter.confirm(B, 10_000 + DWELL_MILLIS));
+        assertEquals(B, mFilter.getConfirmed());
+        assertFalse(mFilter.confirm(B, 20_000));
+        assertEquals(0, mFilter.getSuppressedCount());
+    }
+
+    @Test
+    public void suppressesBounceBeforeDwell() {
+        confirmFirst(A);
+
+        // A -> B -> A within the dwell time, B is never reported
+        assertEquals(DWELL_MILLIS, mFilter.observe(B, 10_000));
+        assertEquals(-1, mFilter.observe(A, 12_000));
+        assertFalse(mFilter.confirm(B, 10_000 + DWELL_MILLIS));
+        assertEquals(A, mFilter.getConfirmed());
+        assertEquals(1, mFilter.getSuppressedCount());
+
+        // A candidate replaced by another is suppressed too
+        assertEquals(DWELL_MILLIS, mFilter.observe(B, 20_000));
+        assertEquals(DWELL_MILLIS, mFilter.observe(C, 21_000));
+        assertFalse(mFilter.confirm(B, 20_000 + DWELL_MILLIS));
+        assertTrue(mFilter.confirm(C, 21_000 + DWELL_MILLIS));
+        assertEquals(C, mFilter.getConfirmed());
+        assertEquals(2, mFilter.getSuppressedCount());
+    }
+
+    @Test
+    public void delaysReturnToPreviousCellWithinWindow() {
+        confirmFirst(A);
+        confirmAfterDwell(B, 10_000);
+        long leftA = 10_000 + DWELL_MILLIS;
+
+        // Back to A soon after leaving it looks like ping-pong
+        assertEquals(RETURN_DWELL_MILLIS, mFilter.observe(A, leftA + 1000));
+        assertFalse(mFilter.confirm(A, leftA + 1000 + DWELL_MILLIS));
+        assertEquals(B, mFilter.getConfirmed());
+
+        // Bouncing back to B before then reports nothing
+        assertEquals(-1, mFilter.observe(B, leftA + 2000));
+        assertEquals(B, mFilter.getConfirmed());
+        assertEquals(1, mFilter.getSuppressedCount());
+
+        // Staying on A for the longer dwell confirms it
+        assertEquals(RETURN_DWELL_MILLIS, mFilter.observe(A, leftA + 3000));
+        assertTrue(mFilter.confirm(A, leftA + 3000 + RETURN_DWELL_MILLIS));
+        assertEquals(A, mFilter.getConfirmed());
+    }
+
+    @Test
+    public void returnsToPreviousCellWithNormalDwellAfterWindow() {
+        confirmFirst(A);
+        confirmAfterDwell(B, 10_000);
+        long leftA = 10_000 + DWELL_MILLIS;
+
+        assertEquals(DWELL_MILLIS, mFilter.observe(A, leftA + RETURN_WINDOW_MILLIS));
+        assertTrue(mFilter.confirm(A, leftA + RETURN_WINDOW_MILLIS + DWELL_MILLIS));
+        assertEquals(A, mFilter.getConfirmed());
+
+        // Only the cell confirmed just before is suspect, not older ones
+        long leftB = leftA + RETURN_WINDOW_MILLIS + DWELL_MILLIS;
+        confirmAfterDwell(C, leftB + 1000);
+        assertEquals(DWELL_MILLIS, mFilter.observe(B, leftB + 2000 + DWELL_MILLIS));
+        assertEquals(0, mFilter.getSuppressedCount());
+    }
+
+    private void confirmFirst(CellTuple cell) {
+        assertEquals(0, mFilter.observe(cell, 0));
+        assertTrue(mFilter.confirm(cell, 0));
+    }
+
+    private void confirmAfterDwell(CellTuple cell, long nowMillis) {
+        assertEquals(DWELL_MILLIS, mFilter.observe(cell, nowMillis));
+        assertTrue(mFilter.confirm(cell, nowMillis + DWELL_MILLIS));
+    }
+}
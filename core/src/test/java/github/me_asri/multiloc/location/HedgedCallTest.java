@@ -0,0 +1,168 @@
+package github.me_asri.multiloc.location;
+
+import com.google.gson.Gson;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import retrofit2.Call;
+import retrofit2.Response;
+import retrofit2.http.GET;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hedging and retries against a local server injecting delays and failures.
+ */
+public class HedgedCallTest {
+    private static final long SLOW_MILLIS = 3000;
+    private static final long TYPICAL_MILLIS = 100;
+
+    private MockWebServer mServer;
+    private Service mService;
+    // Calls of every attempt and hedge, in order
+    private final List<Call<String>> mCalls = new CopyOnWriteArrayList<>();
+    // Arrival of every request at the server in System.nanoTime() time base
+    private final List<Long> mArrivals = new CopyOnWriteArrayList<>();
+
+    private interface Service {
+        @GET("cell")
+        Call<String> get();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new MockWebServer();
+        mServer.start();
+
+        HttpStack http = new HttpStack(null, 0, 10_000);
+        mService = http.newRetrofit(mServer.url("/").toString(), new Gson(), Runnable::run)
+                .create(Service.class);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void hedgesAfterPercentileAndCancelsLoser() throws Exception {
+        AtomicInteger count = new AtomicInteger();
+        serve(request -> (count.getAndIncrement() == 0)
+                ? new MockResponse().setBody("\"slow\"").setHeadersDelay(SLOW_MILLIS, TimeUnit.MILLISECONDS)
+                : new MockResponse().setBody("\"fast\""));
+
+        LatencyTracker latency = new LatencyTracker(16, 8);
+        for (int i = 0; i < 8; i++) {
+            latency.record(TYPICAL_MILLIS);
+        }
+
+        long start = System.nanoTime();
+        Response<String> response = call(latency, new Backoff(10, 20, 1), 10_000);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals("fast", response.body());
+        assertTrue("Answered after " + elapsedMillis + " ms", elapsedMillis < SLOW_MILLIS / 2);
+        assertEquals(2, mArrivals.size());
+        long hedgeDelayMillis = TimeUnit.NANOSECONDS.toMillis(mArrivals.get(1) - mArrivals.get(0));
+        assertTrue("Hedged after " + hedgeDelayMillis + " ms", hedgeDelayMillis >= TYPICAL_MILLIS - 10);
+        assertTrue(mCalls.get(0).isCanceled());
+        assertFalse(mCalls.get(1).isCanceled());
+    }
+
+    @Test
+    public void doesNotHedgeWithoutEnoughSamples() throws Exception {
+        serve(request -> new MockResponse().setBody("\"ok\"").setHeadersDelay(300, TimeUnit.MILLISECONDS));
+
+        LatencyTracker latency = new LatencyTracker(16, 8);
+        latency.record(1);
+
+        assertEquals("ok", call(latency, new Backoff(10, 20, 1), 10_000).body());
+        assertEquals(1, mArrivals.size());
+    }
+
+    @Test
+    public void retriesTransientFailures() throws Exception {
+        AtomicInteger count = new AtomicInteger();
+        serve(request -> (count.getAndIncrement() < 2)
+                ? new MockResponse().setResponseCode(503)
+                : new MockResponse().setBody("\"ok\""));
+
+        Response<String> response = call(null, new Backoff(10, 20, 3), 10_000);
+
+        assertEquals("ok", response.body());
+        assertEquals(3, mArrivals.size());
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() throws Exception {
+        serve(request -> new MockResponse().setResponseCode(503));
+
+        Response<String> response = call(null, new Backoff(10, 20, 3), 10_000);
+
+        assertEquals(503, response.code());
+        assertEquals(3, mArrivals.size());
+    }
+
+    @Test
+    public void givesUpWhenOutOfTime() throws Exception {
+        serve(request -> new MockResponse().setResponseCode(503));
+
+        // Any backoff delay is beyond the budget
+        Response<String> response = call(null, new Backoff(1000, 1000, 3), 0);
+
+        assertEquals(503, response.code());
+        assertEquals(1, mArrivals.size());
+    }
+
+    @Test
+    public void doesNotRetryClientErrors() throws Exception {
+        serve(request -> new MockResponse().setResponseCode(404));
+
+        assertEquals(404, call(null, new Backoff(10, 20, 3), 10_000).code());
+        assertEquals(1, mArrivals.size());
+    }
+
+    private void serve(Function<RecordedRequest, MockResponse> responder) {
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                mArrivals.add(System.nanoTime());
+                return responder.apply(request);
+            }
+        });
+    }
+
+    private Response<String> call(LatencyTracker latency, Backoff backoff, long remainingMillis) throws Exception {
+        CompletableFuture<Response<String>> result = new CompletableFuture<>();
+        HedgedCall<String> call = new HedgedCall<>(() -> {
+            Call<String> serviceCall = mService.get();
+            mCalls.add(serviceCall);
+            return serviceCall;
+        }, latency, 0.95, backoff, response -> !response.isSuccessful() && HedgedCall.isRetryableStatus(response),
+                () -> remainingMillis, (response, t) -> {
+            if (t != null) {
+                result.completeExceptionally(t);
+            } else {
+                result.complete(response);
+            }
+        });
+        call.start();
+
+        return result.get(10, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,217 @@
+package github.me_asri.multiloc.location;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import retrofit2.HttpException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Batches against a local stub of the ip-api.com batch endpoint.
+ */
+public class IPBatchClientTest {
+    private static final Gson GSON = new Gson();
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private MockWebServer mServer;
+    private HttpStack mHttp;
+    // Sizes of the chunks received, in order
+    private final List<Integer> mChunkSizes = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new MockWebServer();
+        mServer.start();
+        mHttp = new HttpStack(mFolder.newFolder("http"), 1 << 20, 10_000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void sendsChunksOfAtMost100AndKeepsOrder() throws Exception {
+        serve(request -> new MockResponse().setBody(answer(request)));
+        IPBatchClient client = newClient(4);
+
+        List<String> addresses = new ArrayList<>();
+        for (int i = 0; i < 250; i++) {
+            addresses.add("10.0." + (i / 256) + "." + (i % 256));
+        }
+        // Repeats are looked up once and answered at every position
+        addresses.add(" 10.0.0.7 ");
+        addresses.add(0, "10.0.0.249");
+
+        List<IPLocationResult> results = locate(client, addresses, EnumSet.of(IPBatchClient.Field.QUERY))
+                .get(5, TimeUnit.SECONDS);
+        assertEquals(addresses.size(), results.size());
+        for (int i = 0; i < addresses.size(); i++) {
+            assertEquals(addresses.get(i).trim(), results.get(i).query);
+        }
+
+        assertEquals(3, mServer.getRequestCount());
+        List<Integer> sizes = new ArrayList<>(mChunkSizes);
+        sizes.sort(null);
+        assertEquals(50, (int) sizes.get(0));
+        assertEquals(100, (int) sizes.get(1));
+        assertEquals(100, (int) sizes.get(2));
+    }
+
+    @Test
+    public void asksOnlyForRequestedFields() throws Exception {
+        serve(request -> new MockResponse().setBody(answer(request)));
+        IPBatchClient client = newClient(1);
+
+        locate(client, Collections.singletonList("1.1.1.1"), EnumSet.of(IPBatchClient.Field.QUERY, IPBatchClient.Field.LAT))
+                .get(5, TimeUnit.SECONDS);
+        locate(client, Collections.singletonList("1.1.1.1"), EnumSet.noneOf(IPBatchClient.Field.class)).get(5, TimeUnit.SECONDS);
+
+        assertEquals("status,message,lat,query", mServer.takeRequest().getRequestUrl().queryParameter("fields"));
+        assertEquals("status,message", mServer.takeRequest().getRequestUrl().queryParameter("fields"));
+    }
+
+    @Test
+    public void keepsFailedLookupsWithTheirMessage() throws Exception {
+        serve(request -> new MockResponse().setBody(
+                "[{\"status\":\"fail\",\"message\":\"private range\",\"query\":\"10.0.0.1\"}]"));
+        IPBatchClient client = newClient(1);
+
+        IPLocationResult result = locate(client, Collections.singletonList("10.0.0.1"), EnumSet.of(IPBatchClient.Field.LAT))
+                .get(5, TimeUnit.SECONDS).get(0);
+        assertEquals("private range", result.message);
+        assertFalse(result.isSuccess());
+    }
+
+    @Test
+    public void waitsForRateLimitWindowToReset() throws Exception {
+        List<Long> sentAt = new CopyOnWriteArrayList<>();
+        AtomicInteger remaining = new AtomicInteger(1);
+        serve(request -> {
+            sentAt.add(System.nanoTime());
+            // One request left in a window of a second, then a fresh window
+            int left = remaining.getAndDecrement();
+            return new MockResponse().setBody(answer(request))
+                    .setHeader("X-Rl", Math.max(0, left))
+                    .setHeader("X-Ttl", 1);
+        });
+        IPBatchClient client = newClient(4);
+
+        List<String> addresses = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            addresses.add("10.1." + (i / 256) + "." + (i % 256));
+        }
+        assertEquals(300, locate(client, addresses, EnumSet.of(IPBatchClient.Field.QUERY))
+                .get(10, TimeUnit.SECONDS).size());
+
+        // The first probes the window, the second uses its last request, the third waits
+        assertEquals(3, sentAt.size());
+        long waitMillis = TimeUnit.NANOSECONDS.toMillis(sentAt.get(2) - sentAt.get(1));
+        assertTrue("Waited " + waitMillis + " ms", waitMillis >= 500);
+    }
+
+    @Test
+    public void retriesChunksTurnedAwayUntilWindowResets() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        serve(request -> {
+            if (attempts.getAndIncrement() == 0) {
+                return new MockResponse().setResponseCode(429).setHeader("X-Rl", 0).setHeader("X-Ttl", 1);
+            }
+            return new MockResponse().setBody(answer(request));
+        });
+        IPBatchClient client = newClient(1);
+
+        long start = System.nanoTime();
+        assertEquals("8.8.8.8", locate(client, Collections.singletonList("8.8.8.8"), EnumSet.of(IPBatchClient.Field.QUERY))
+                .get(5, TimeUnit.SECONDS).get(0).query);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(2, mServer.getRequestCount());
+        assertTrue("Retried after " + elapsedMillis + " ms", elapsedMillis >= 500);
+    }
+
+    @Test
+    public void failsOnClientErrors() throws Exception {
+        serve(request -> new MockResponse().setResponseCode(400));
+        IPBatchClient client = newClient(1);
+
+        try {
+            locate(client, Collections.singletonList("8.8.8.8"), EnumSet.of(IPBatchClient.Field.QUERY)).get(5, TimeUnit.SECONDS);
+            fail("Expected HttpException");
+        } catch (ExecutionException e) {
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof HttpException);
+        }
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    private IPBatchClient newClient(int maxInFlight) {
+        return new IPBatchClient(mHttp, mServer.url("/").toString(), Runnable::run, maxInFlight);
+    }
+
+    private static CompletableFuture<List<IPLocationResult>> locate(IPBatchClient client, List<String> addresses,
+                                                                    EnumSet<IPBatchClient.Field> fields) {
+        CompletableFuture<List<IPLocationResult>> result = new CompletableFuture<>();
+        client.locate(addresses, fields, (results, t) -> {
+            if (t != null) {
+                result.completeExceptionally(t);
+            } else {
+                result.complete(results);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return successful result for every address of the chunk, in order
+     */
+    private String answer(RecordedRequest request) {
+        JsonArray addresses = GSON.fromJson(request.getBody().readUtf8(), JsonArray.class);
+        mChunkSizes.add(addresses.size());
+
+        JsonArray results = new JsonArray();
+        for (int i = 0; i < addresses.size(); i++) {
+            JsonObject result = new JsonObject();
+            result.addProperty("status", "success");
+            result.addProperty("query", addresses.get(i).getAsString());
+            results.add(result);
+        }
+        return results.toString();
+    }
+
+    private void serve(Function<RecordedRequest, MockResponse> responder) {
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return responder.apply(request);
+            }
+        });
+    }
+}
@@ -0,0 +1,206 @@
+package github.me_asri.multiloc.location;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Address parsing, and lookups in ranges imported from IP2Location-like dumps.
+ */
+public class IPRangeIndexTest {
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final Random mRandom = new Random(42);
+
+    @Test
+    public void parsesAddressLiterals() throws Exception {
+        assertArrayEquals(new long[]{0, 0xFFFF_C000_0201L}, IPRangeIndex.parseAddress("192.0.2.1"));
+        assertArrayEquals(new long[]{0, 0xFFFF_FFFF_FFFFL}, IPRangeIndex.parseAddress("255.255.255.255"));
+        assertArrayEquals(new long[]{0, 0}, IPRangeIndex.parseAddress("::"));
+        assertArrayEquals(new long[]{0, 1}, IPRangeIndex.parseAddress("::1"));
+        assertArrayEquals(new long[]{0x0001_0000_0000_0000L, 0}, IPRangeIndex.parseAddress("1::"));
+        assertArrayEquals(new long[]{0x2001_0DB8_0000_0000L, 1}, IPRangeIndex.parseAddress("2001:DB8::1"));
+        assertArrayEquals(new long[]{-1, -1}, IPRangeIndex.parseAddress("ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff"));
+
+        // Embedded IPv4 addresses
+        assertArrayEquals(IPRangeIndex.parseAddress("192.0.2.1"), IPRangeIndex.parseAddress("::ffff:192.0.2.1"));
+        assertArrayEquals(new long[]{0x0064_FF9B_0000_0000L, 0xC000_0201L}, IPRangeIndex.parseAddress("64:ff9b::192.0.2.1"));
+        assertArrayEquals(new long[]{0x0001_0002_0003_0004L, 0x0005_0006_C000_0201L},
+                IPRangeIndex.parseAddress("1:2:3:4:5:6:192.0.2.1"));
+
+        // Zone IDs are dropped
+        assertArrayEquals(IPRangeIndex.parseAddress("fe80::1"), IPRangeIndex.parseAddress("fe80::1%wlan0"));
+        assertArrayEquals(IPRangeIndex.parseAddress("fe80::1"), IPRangeIndex.parseAddress("fe80::1%2"));
+
+        for (int i = 0; i < 10_000; i++) {
+            byte[] bytes = new byte[16];
+            mRandom.nextBytes(bytes);
+            // Runs of zero groups to be compressed
+            int zeros = mRandom.nextInt(8);
+            int first = mRandom.nextInt(8 - zeros + 1);
+            for (int j = first * 2; j < (first + zeros) * 2; j++) {
+                bytes[j] = 0;
+            }
+            ByteBuffer expected = ByteBuffer.wrap(bytes);
+
+            String literal = InetAddress.getByAddress(bytes).getHostAddress();
+            long[] parsed = IPRangeIndex.parseAddress(literal);
+            assertArrayEquals(literal, new long[]{expected.getLong(0), expected.getLong(8)}, parsed);
+            String compressed = compress(bytes);
+            assertArrayEquals(compressed, parsed, IPRangeIndex.parseAddress(compressed));
+        }
+    }
+
+    @Test
+    public void rejectsMalformedAddresses() {
+        String[] malformed = {null, "", "1.2.3", "1.2.3.4.5", "256.0.0.1", "1..2.3", "1.2.3.", ".1.2.3", "1.2.3.a",
+                ":", ":::", ":1", "1:", "1::2::3", "12345::", "g::", "1:2:3:4:5:6:7:8:9", "1:2:3:4:5:6:7:8::",
+                "::1:2:3:4:5:6:7:8", "1:2:3:4:5:6:7:192.0.2.1", "::ffff:192.0.2", "::192.0.2.1:1", "example.com"};
+        for (String address : malformed) {
+            assertNull(address, IPRangeIndex.parseAddress(address));
+        }
+    }
+
+    @Test
+    public void looksUpImportedRanges() throws Exception {
+        String csv = "\"ip_from\",\"ip_to\",\"country_code\",\"country_name\",\"region_name\",\"city_name\",\"latitude\",\"longitude\"\n"
+                // 1.0.0.0-1.0.0.255 and 1.0.1.0-1.0.3.255, numbered as in the IPv4 dumps
+                + "\"16777216\",\"16777471\",\"AU\",\"Australia\",\"Queensland\",\"Brisbane\",\"-27.467\",\"153.028\"\n"
+                + "\"16777472\",\"16778239\",\"CN\",\"China\",\"Fujian\",\"Fuzhou\",\"26.061\",\"119.306\",\"AS4134\",\"Chinanet\"\n"
+                // Reserved ranges have no place
+                + "\"0\",\"16777215\",\"-\",\"-\",\"-\",\"-\",\"0\",\"0\"\n"
+                + "2001:db8::,2001:db8::ffff,MY,Malaysia,\"Kuala Lumpur, Federal Territory\",Kuala Lumpur,3.139,101.687\n";
+        IPRangeIndex index = importCsv(csv);
+        assertEquals(3, index.size());
+
+        IPLocationResult result = index.lookup("1.0.0.0");
+        assertEquals("success", result.status);
+        assertEquals("AU", result.countryCode);
+        assertEquals("Australia", result.country);
+        assertEquals("Queensland", result.regionName);
+        assertEquals("Brisbane", result.city);
+        assertEquals(-27.467, result.lat, 1e-7);
+        assertEquals(153.028, result.lon, 1e-7);
+        assertEquals("1.0.0.0", result.query);
+        assertEquals("Brisbane", index.lookup("1.0.0.255").city);
+
+        result = index.lookup("1.0.3.255");
+        assertEquals("Fuzhou", result.city);
+        assertEquals("AS4134", result.as);
+        assertEquals("Chinanet", result.isp);
+        assertEquals("Fuzhou", index.lookup("::ffff:1.0.2.3").city);
+        assertNull(index.lookup("1.0.4.0"));
+        assertNull(index.lookup("0.1.2.3"));
+
+        result = index.lookup("2001:db8::abcd");
+        assertEquals("Kuala Lumpur, Federal Territory", result.regionName);
+        assertEquals("MY", result.countryCode);
+        assertNull(index.lookup("2001:db8::1:0"));
+        assertNull(index.lookup("not an address"));
+    }
+
+    @Test
+    public void dropsRangesOverlappingEarlierOnes() throws Exception {
+        String csv = "1.0.0.20,1.0.0.40,BB,B,,,2,2\n"
+                + "1.0.0.10,1.0.0.20,AA,A,,,1,1\n"
+                // Starts inside the range before it
+                + "1.0.0.15,1.0.0.30,CC,C,,,3,3\n"
+                // Same start, the first of the dump is kept
+                + "1.0.0.21,1.0.0.25,DD,D,,,4,4\n"
+                + "1.0.0.21,1.0.0.22,EE,E,,,5,5\n"
+                + "2001:db8::10,2001:db8::20,FF,F,,,6,6\n"
+                + "2001:db8::18,2001:db8::30,GG,G,,,7,7\n";
+        IPRangeIndex index = importCsv(csv);
+        assertEquals(3, index.size());
+
+        assertEquals("AA", index.lookup("1.0.0.10").countryCode);
+        assertEquals("AA", index.lookup("1.0.0.20").countryCode);
+        // Dropped ranges leave their addresses uncovered, later ranges past the kept one stay
+        assertEquals("DD", index.lookup("1.0.0.21").countryCode);
+        assertEquals("DD", index.lookup("1.0.0.25").countryCode);
+        assertNull(index.lookup("1.0.0.26"));
+        assertNull(index.lookup("1.0.0.35"));
+        assertEquals("FF", index.lookup("2001:db8::20").countryCode);
+        assertNull(index.lookup("2001:db8::21"));
+    }
+
+    @Test
+    public void mapsOnlyNumberedRangesIntoIPv4() throws Exception {
+        String csv = "16909056,16909311,NU,Numbered,,,1,1\n"
+                // IPv6 literals below ::1:0:0 stay IPv6
+                + "::1:0,::1:ff,LI,Literal,,,2,2\n"
+                // IPv4 numbered as IPv6, as in the IPv6 dumps
+                + "281470698652160,281470698652415,V6,Mapped,,,3,3\n";
+        IPRangeIndex index = importCsv(csv);
+        assertEquals(3, index.size());
+
+        assertEquals("NU", index.lookup("1.2.3.4").countryCode);
+        assertNull(index.lookup("::102:304"));
+        assertEquals("LI", index.lookup("::1:5").countryCode);
+        assertNull(index.lookup("0.1.0.5"));
+        assertEquals("V6", index.lookup("1.2.2.5").countryCode);
+    }
+
+    @Test
+    public void findsNothingWithoutIndex() {
+        IPRangeIndex index = new IPRangeIndex(new File(mFolder.getRoot(), "missing.bin"));
+        assertEquals(0, index.size());
+        assertNull(index.lookup("1.2.3.4"));
+    }
+
+    private IPRangeIndex importCsv(String csv) throws Exception {
+        IPRangeIndex index = new IPRangeIndex(new File(mFolder.getRoot(), "ranges.bin"));
+        index.importCsv(new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8)));
+        return index;
+    }
+
+    /**
+     * @return literal with the longest run of zero groups written as "::"
+     */
+    private static String compress(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int[] groups = new int[8];
+        for (int i = 0; i < 8; i++) {
+            groups[i] = buffer.getShort() & 0xFFFF;
+        }
+
+        int bestStart = -1;
+        int bestLength = 0;
+        for (int i = 0; i < 8; i++) {
+            int length = 0;
+            while (i + length < 8 && groups[i + length] == 0) {
+                length++;
+            }
+            if (length > bestLength) {
+                bestStart = i;
+                bestLength = length;
+            }
+        }
+
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            if (i == bestStart) {
+                literal.append("::");
+                i += bestLength - 1;
+                continue;
+            }
+            if (literal.length() > 0 && literal.charAt(literal.length() - 1) != ':') {
+                literal.append(':');
+            }
+            literal.append(Integer.toHexString(groups[i]));
+        }
+        return literal.toString();
+    }
+}
@@ -0,0 +1,134 @@
+package github.me_asri.multiloc.location;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Bucketing of latencies and percentiles of values recorded from several threads.
+ */
+public class LatencyHistogramTest {
+    private static final int THREADS = 4;
+    private static final int VALUES_PER_THREAD = 250_000;
+
+    @Test
+    public void mapsBucketEdgesBothWays() {
+        // Small values get a bucket each
+        for (int micros = 0; micros < 8; micros++) {
+            assertEquals(micros, LatencyHistogram.bucketOf(micros));
+            assertEquals(micros, LatencyHistogram.lowerBoundOf(micros));
+        }
+        assertEquals(8, LatencyHistogram.bucketOf(8));
+        assertEquals(8, LatencyHistogram.lowerBoundOf(8));
+
+        for (int bucket = 0; bucket < LatencyHistogram.BUCKET_COUNT; bucket++) {
+            long lower = LatencyHistogram.lowerBoundOf(bucket);
+            assertEquals(bucket, LatencyHistogram.bucketOf(lower));
+            if (bucket > 0) {
+                assertEquals(bucket - 1, LatencyHistogram.bucketOf(lower - 1));
+            }
+        }
+
+        int top = LatencyHistogram.BUCKET_COUNT - 1;
+        assertEquals(1L << 31, LatencyHistogram.lowerBoundOf(LatencyHistogram.bucketOf(1L << 31)));
+        assertEquals(top, LatencyHistogram.bucketOf((1L << 32) - 1));
+        // Anything longer lands in the last bucket
+        assertEquals(top, LatencyHistogram.bucketOf(1L << 32));
+        assertEquals(top, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void keepsValuesWithinAnEighth() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            long micros = 8 + (random.nextLong() >>> 32);
+            long lower = LatencyHistogram.lowerBoundOf(LatencyHistogram.bucketOf(micros));
+            assertTrue(micros + " in bucket from " + lower, lower <= micros && micros - lower <= micros / 8);
+        }
+    }
+
+    @Test
+    public void reportsPercentilesOfConcurrentRecordsWithinAnEighth() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        long[][] values = new long[THREADS][VALUES_PER_THREAD];
+        for (int t = 0; t < THREADS; t++) {
+            // Lognormal around 50 ms, like network latencies
+            Random random = new Random(t);
+            for (int i = 0; i < VALUES_PER_THREAD; i++) {
+                values[t][i] = (long) (50_000 * Math.exp(random.nextGaussian()));
+            }
+        }
+
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            long[] own = values[t];
+            threads[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (long micros : own) {
+                    histogram.recordMicros(micros);
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        long[] all = new long[THREADS * VALUES_PER_THREAD];
+        long sum = 0;
+        for (int t = 0; t < THREADS; t++) {
+            System.arraycopy(values[t], 0, all, t * VALUES_PER_THREAD, VALUES_PER_THREAD);
+            for (long micros : values[t]) {
+                sum += micros;
+            }
+        }
+        Arrays.sort(all);
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(all.length, snapshot.count);
+        assertEquals(sum, snapshot.sumMicros);
+        assertEquals(all[all.length - 1], snapshot.maxMicros);
+
+        for (double p : new double[]{0.01, 0.5, 0.9, 0.99, 0.999, 1}) {
+            long exact = all[(int) Math.ceil(p * all.length) - 1];
+            double reported = snapshot.getPercentileMillis(p) * 1000;
+            assertTrue("p" + p + " " + reported + " vs " + exact,
+                    reported >= exact && reported <= exact * 1.125 + 1);
+        }
+    }
+
+    @Test
+    public void startsOverAfterReset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordMicros(1500);
+        histogram.recordNanos(3_000_000);
+        histogram.recordMicros(-5);
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(3, snapshot.count);
+        assertEquals(4500, snapshot.sumMicros);
+        assertEquals(3, snapshot.getMaxMillis(), 0);
+        assertEquals(1, snapshot.getCount(0));
+
+        histogram.reset();
+        snapshot = histogram.snapshot();
+        assertEquals(0, snapshot.count);
+        assertEquals(0, snapshot.sumMicros);
+        assertEquals(0, snapshot.getMaxMillis(), 0);
+        assertEquals(0, snapshot.getPercentileMillis(0.5), 0);
+
+        histogram.recordMicros(200);
+        assertEquals(200, histogram.snapshot().maxMicros);
+    }
+}
@@ -0,0 +1,201 @@
+package github.me_asri.multiloc.location;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import github.me_asri.multiloc.location.BTSException.QuotaExceededException;
+import github.me_asri.multiloc.location.BTSException.UnregisteredBTSException;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Lookups against a local stub of the OpenCelliD API.
+ */
+public class OpenCellIDClientTest {
+    private static final CellTuple CELL = new CellTuple("510", "10", 1234, 567890);
+    private static final String CELL_BODY = "{\"lon\":\"106.8\",\"lat\":\"-6.2\",\"range\":\"1500\"}";
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private MockWebServer mServer;
+    private HttpStack mHttp;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new MockWebServer();
+        mServer.start();
+        mHttp = new HttpStack(mFolder.newFolder("http"), 1 << 20, 10_000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void resolvesCellAndCachesIt() throws Exception {
+        serve(request -> new MockResponse().setBody(CELL_BODY));
+        CellCache cache = newCache(TimeUnit.DAYS.toMillis(1));
+        OpenCellIDClient client = newClient(cache, null);
+
+        CellCache.Entry entry = lookup(client, CELL).get(5, TimeUnit.SECONDS);
+        assertEquals(-6.2, entry.lat, 1e-9);
+        assertEquals(106.8, entry.lon, 1e-9);
+        assertEquals(1500, entry.range);
+
+        RecordedRequest request = mServer.takeRequest();
+        assertEquals("510", request.getRequestUrl().queryParameter("mcc"));
+        assertEquals("10", request.getRequestUrl().queryParameter("mnc"));
+        assertEquals("1234", request.getRequestUrl().queryParameter("lac"));
+        assertEquals("567890", request.getRequestUrl().queryParameter("cell_id"));
+
+        assertNotNull(client.lookupLocal(CELL));
+        assertEquals(1500, lookup(client, CELL).get(5, TimeUnit.SECONDS).range);
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    @Test
+    public void sharesConcurrentLookupsOfCell() throws Exception {
+        serve(request -> new MockResponse().setBody(CELL_BODY).setHeadersDelay(300, TimeUnit.MILLISECONDS));
+        OpenCellIDClient client = newClient(null, null);
+
+        List<CompletableFuture<CellCache.Entry>> lookups = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            lookups.add(lookup(client, CELL));
+        }
+
+        for (CompletableFuture<CellCache.Entry> lookup : lookups) {
+            assertEquals(1500, lookup.get(5, TimeUnit.SECONDS).range);
+        }
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    @Test
+    public void remembersUnregisteredCells() throws Exception {
+        serve(request -> new MockResponse().setBody("false"));
+        OpenCellIDClient client = newClient(newCache(TimeUnit.DAYS.toMillis(1)), null);
+
+        assertFailure(UnregisteredBTSException.class, lookup(client, CELL));
+        assertTrue(client.lookupLocal(CELL).negative);
+        assertFailure(UnregisteredBTSException.class, lookup(client, CELL));
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    @Test
+    public void keepsOnlyCellResultsInHttpCache() throws Exception {
+        CellTuple unregistered = new CellTuple("510", "10", 1234, 1);
+        serve(request -> new MockResponse().setBody(
+                "1".equals(request.getRequestUrl().queryParameter("cell_id")) ? "false" : CELL_BODY));
+        // Without a cell cache, repeated lookups reach the HTTP cache
+        OpenCellIDClient client = newClient(null, null);
+
+        for (int i = 0; i < 2; i++) {
+            assertEquals(1500, lookup(client, CELL).get(5, TimeUnit.SECONDS).range);
+            assertFailure(UnregisteredBTSException.class, lookup(client, unregistered));
+        }
+        // The cell once, the error every time
+        assertEquals(3, mServer.getRequestCount());
+    }
+
+    @Test
+    public void retriesTransientFailures() throws Exception {
+        MockResponseQueue responses = new MockResponseQueue(
+                new MockResponse().setResponseCode(503), new MockResponse().setBody(CELL_BODY));
+        serve(responses::next);
+        OpenCellIDClient client = newClient(null, null);
+
+        assertEquals(1500, lookup(client, CELL).get(5, TimeUnit.SECONDS).range);
+        assertEquals(2, mServer.getRequestCount());
+    }
+
+    @Test
+    public void fallsBackToStaleEntriesOnceQuotaIsUsedUp() throws Exception {
+        serve(request -> new MockResponse().setBody(CELL_BODY));
+        CellCache cache = newCache(1);
+        RequestQuota quota = new RequestQuota(null, 100, 10, 1);
+        OpenCellIDClient client = newClient(cache, quota);
+
+        cache.put(CELL, 1, 2, 300);
+        Thread.sleep(10);
+        quota.record();
+
+        CellCache.Entry stale = lookup(client, CELL).get(5, TimeUnit.SECONDS);
+        assertEquals(300, stale.range);
+        assertFailure(QuotaExceededException.class, lookup(client, new CellTuple("510", "10", 1234, 2)));
+        assertEquals(0, mServer.getRequestCount());
+    }
+
+    private OpenCellIDClient newClient(CellCache cache, RequestQuota quota) {
+        return new OpenCellIDClient(mHttp, mServer.url("/").toString(), Runnable::run, cache, null, quota, null);
+    }
+
+    private static CellCache newCache(long ttlMillis) {
+        return new CellCache(null, 16, ttlMillis, ttlMillis);
+    }
+
+    private static CompletableFuture<CellCache.Entry> lookup(OpenCellIDClient client, CellTuple cell) {
+        CompletableFuture<CellCache.Entry> result = new CompletableFuture<>();
+        client.lookup(cell, RequestQuota.Priority.INTERACTIVE, () -> NO_DEADLINE, (entry, t) -> {
+            if (t != null) {
+                result.completeExceptionally(t);
+            } else {
+                result.complete(entry);
+            }
+        });
+        return result;
+    }
+
+    private static void assertFailure(Class<? extends Throwable> expected, CompletableFuture<?> lookup)
+            throws Exception {
+        try {
+            lookup.get(5, TimeUnit.SECONDS);
+            fail("Expected " + expected.getSimpleName());
+        } catch (ExecutionException e) {
+            assertTrue(String.valueOf(e.getCause()), expected.isInstance(e.getCause()));
+        }
+    }
+
+    private void serve(Function<RecordedRequest, MockResponse> responder) {
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return responder.apply(request);
+            }
+        });
+    }
+
+    /**
+     * Responses given in turn, repeating the last one.
+     */
+    private static final class MockResponseQueue {
+        private final MockResponse[] mResponses;
+        private int mNext = 0;
+
+        MockResponseQueue(MockResponse... responses) {
+            mResponses = responses;
+        }
+
+        synchronized MockResponse next(RecordedRequest request) {
+            return mResponses[Math.min(mNext++, mResponses.length - 1)];
+        }
+    }
+}
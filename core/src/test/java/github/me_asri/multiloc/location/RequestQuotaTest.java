@@ -0,0 +1,149 @@
+package github.me_asri.multiloc.location;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import github.me_asri.multiloc.location.BTSException.QuotaExceededException;
+import github.me_asri.multiloc.location.RequestQuota.Priority;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Admission by rate, priority and daily limit, timed against the real clock.
+ */
+public class RequestQuotaTest {
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void grantsBurstAtOnceThenAtRate() throws Exception {
+        RequestQuota quota = new RequestQuota(null, 10, 2, 0);
+
+        long start = System.nanoTime();
+        assertNull(acquire(quota, Priority.INTERACTIVE).get(1, TimeUnit.SECONDS));
+        assertNull(acquire(quota, Priority.INTERACTIVE).get(1, TimeUnit.SECONDS));
+        long burstMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        CompletableFuture<Throwable> third = acquire(quota, Priority.INTERACTIVE);
+        CompletableFuture<Throwable> fourth = acquire(quota, Priority.INTERACTIVE);
+        assertNull(third.get(1, TimeUnit.SECONDS));
+        assertNull(fourth.get(1, TimeUnit.SECONDS));
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue("Burst took " + burstMillis + " ms", burstMillis < 100);
+        // Two more tokens at 10 per second
+        assertTrue("Granted after " + elapsedMillis + " ms", elapsedMillis >= 150);
+        assertEquals(4, quota.getMetrics().granted[Priority.INTERACTIVE.ordinal()]);
+    }
+
+    @Test
+    public void grantsHigherPrioritiesFirst() throws Exception {
+        RequestQuota quota = new RequestQuota(null, 5, 1, 0);
+        // Use up the only token, so the rest have to queue
+        assertNull(acquire(quota, Priority.BULK).get(1, TimeUnit.SECONDS));
+
+        List<Priority> order = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(3);
+        for (Priority priority : new Priority[]{Priority.BULK, Priority.BACKGROUND, Priority.INTERACTIVE}) {
+            quota.acquire(priority, () -> NO_DEADLINE, t -> {
+                order.add(priority);
+                done.countDown();
+            });
+        }
+
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals(Priority.INTERACTIVE, order.get(0));
+        assertEquals(Priority.BACKGROUND, order.get(1));
+        assertEquals(Priority.BULK, order.get(2));
+    }
+
+    @Test
+    public void leavesReserveOfDailyLimitToHigherPriorities() throws Exception {
+        RequestQuota quota = new RequestQuota(null, 1000, 100, 10);
+
+        // Bulk requests may use half of the limit
+        for (int i = 0; i < 5; i++) {
+            assertNull(acquire(quota, Priority.BULK).get(1, TimeUnit.SECONDS));
+        }
+        assertTrue(quota.isExhausted(Priority.BULK));
+        assertTrue(acquire(quota, Priority.BULK).get(1, TimeUnit.SECONDS) instanceof QuotaExceededException);
+
+        assertFalse(quota.isExhausted(Priority.BACKGROUND));
+        for (int i = 0; i < 3; i++) {
+            assertNull(acquire(quota, Priority.BACKGROUND).get(1, TimeUnit.SECONDS));
+        }
+        assertTrue(quota.isExhausted(Priority.BACKGROUND));
+
+        // Retries count as well
+        quota.record();
+        assertNull(acquire(quota, Priority.INTERACTIVE).get(1, TimeUnit.SECONDS));
+        assertTrue(quota.isExhausted(Priority.INTERACTIVE));
+        assertTrue(acquire(quota, Priority.INTERACTIVE).get(1, TimeUnit.SECONDS) instanceof QuotaExceededException);
+
+        RequestQuota.Metrics metrics = quota.getMetrics();
+        assertEquals(10, metrics.usedToday);
+        assertEquals(1, metrics.rejected[Priority.BULK.ordinal()]);
+        assertEquals(1, metrics.rejected[Priority.INTERACTIVE.ordinal()]);
+    }
+
+    @Test
+    public void turnsAwayRequestsOutOfTime() throws Exception {
+        RequestQuota quota = new RequestQuota(null, 10, 1, 0);
+
+        CompletableFuture<Throwable> result = new CompletableFuture<>();
+        quota.acquire(Priority.INTERACTIVE, () -> 0, result::complete);
+
+        assertTrue(result.get(1, TimeUnit.SECONDS) instanceof TimeoutException);
+        // The token is left for others
+        assertNull(acquire(quota, Priority.INTERACTIVE).get(1, TimeUnit.SECONDS));
+        assertEquals(1, quota.getMetrics().usedToday);
+    }
+
+    @Test
+    public void doesNotCallBackCancelledTickets() throws Exception {
+        RequestQuota quota = new RequestQuota(null, 10, 1, 0);
+        assertNull(acquire(quota, Priority.INTERACTIVE).get(1, TimeUnit.SECONDS));
+
+        CompletableFuture<Throwable> cancelled = new CompletableFuture<>();
+        quota.acquire(Priority.INTERACTIVE, () -> NO_DEADLINE, cancelled::complete).cancel();
+
+        // Granted the token the cancelled ticket would have got
+        assertNull(acquire(quota, Priority.BULK).get(1, TimeUnit.SECONDS));
+        assertFalse(cancelled.isDone());
+        assertEquals(2, quota.getMetrics().usedToday);
+    }
+
+    @Test
+    public void keepsDailyCountAcrossInstances() throws Exception {
+        File file = new File(mFolder.getRoot(), "quota.bin");
+
+        RequestQuota quota = new RequestQuota(file, 1000, 100, 10);
+        for (int i = 0; i < 3; i++) {
+            assertNull(acquire(quota, Priority.INTERACTIVE).get(1, TimeUnit.SECONDS));
+        }
+        quota.flush();
+
+        RequestQuota restarted = new RequestQuota(file, 1000, 100, 10);
+        assertEquals(3, restarted.getMetrics().usedToday);
+    }
+
+    private static CompletableFuture<Throwable> acquire(RequestQuota quota, Priority priority) {
+        CompletableFuture<Throwable> result = new CompletableFuture<>();
+        quota.acquire(priority, () -> NO_DEADLINE, result::complete);
+        return result;
+    }
+}
@@ -0,0 +1,174 @@
+package github.me_asri.multiloc.location;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Nearest place lookups against a brute force search over GeoNames-like dumps.
+ */
+public class ReverseGeocoderTest {
+    private static final double EARTH_RADIUS_METERS = 6_371_000;
+    // Coordinates are stored as floats, a few tenths of a meter on the ground
+    private static final double TOLERANCE_METERS = 5;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final Random mRandom = new Random(42);
+
+    @Test
+    public void findsSameNearestPlaceAsBruteForce() throws Exception {
+        List<double[]> places = new ArrayList<>();
+        StringBuilder cities = new StringBuilder();
+        for (int i = 0; i < 20_000; i++) {
+            // Uniform over the sphere
+            double lat = Math.toDegrees(Math.asin(2 * mRandom.nextDouble() - 1));
+            double lon = 360 * mRandom.nextDouble() - 180;
+            places.add(new double[]{lat, lon});
+            appendCity(cities, i, "P" + i, lat, lon, "MY", "14");
+        }
+        ReverseGeocoder geocoder = newGeocoder(cities.toString());
+        assertEquals(20_000, geocoder.size());
+
+        for (int i = 0; i < 2000; i++) {
+            double lat = Math.toDegrees(Math.asin(2 * mRandom.nextDouble() - 1));
+            double lon = 360 * mRandom.nextDouble() - 180;
+            assertNearest(geocoder, places, lat, lon);
+        }
+        for (double[] query : new double[][]{{90, 0}, {-90, 0}, {89.99, 45}, {0, 180}, {0, -180}, {45, 179.999}}) {
+            assertNearest(geocoder, places, query[0], query[1]);
+        }
+    }
+
+    @Test
+    public void findsPlacesAcrossPolesAndAntimeridian() throws Exception {
+        StringBuilder cities = new StringBuilder();
+        appendCity(cities, 1, "West", 10, -179.99, "FJ", "01");
+        appendCity(cities, 2, "East", 10, 170, "FJ", "01");
+        appendCity(cities, 3, "North", 89.9, -100, "GL", "01");
+        appendCity(cities, 4, "Equator", 0, 0, "GH", "01");
+        ReverseGeocoder geocoder = newGeocoder(cities.toString());
+
+        ReverseGeocoder.Place place = geocoder.lookup(10, 179.99);
+        assertEquals("West", place.name);
+        assertEquals(distance(10, 179.99, 10, -179.99), place.distance, TOLERANCE_METERS);
+
+        // Meridians meet at the pole, so the other side of it is close
+        place = geocoder.lookup(89.9, 80);
+        assertEquals("North", place.name);
+        assertEquals(distance(89.9, 80, 89.9, -100), place.distance, TOLERANCE_METERS);
+        assertEquals("North", geocoder.lookup(90, 0).name);
+    }
+
+    @Test
+    public void namesRegionsAndCountriesWhenKnown() throws Exception {
+        StringBuilder cities = new StringBuilder();
+        appendCity(cities, 1, "Kuala Lumpur", 3.14, 101.69, "MY", "14");
+        appendCity(cities, 2, "Singapore", 1.29, 103.85, "SG", "01");
+        appendCity(cities, 3, "Jakarta", -6.21, 106.85, "ID", "04");
+        String admin1 = "MY.14\tKuala Lumpur\tKuala Lumpur\t1733046\n";
+        String countryInfo = "# ISO\tISO3\tISO-Numeric\tfips\tCountry\n"
+                + "MY\tMYS\t458\tMY\tMalaysia\tKuala Lumpur\n"
+                + "ID\tIDN\t360\tID\tIndonesia\tJakarta\n";
+        ReverseGeocoder geocoder = newGeocoder(countryInfo, cities.toString(), admin1);
+
+        ReverseGeocoder.Place place = geocoder.lookup(3.15, 101.7);
+        assertEquals("Kuala Lumpur", place.name);
+        assertEquals("Kuala Lumpur", place.region);
+        assertEquals("Malaysia", place.country);
+
+        // Region missing from admin1
+        place = geocoder.lookup(-6.2, 106.8);
+        assertEquals("Jakarta", place.name);
+        assertNull(place.region);
+        assertEquals("Indonesia", place.country);
+
+        // Country missing from countryInfo falls back to its code
+        place = geocoder.lookup(1.3, 103.8);
+        assertNull(place.region);
+        assertEquals("SG", place.country);
+    }
+
+    @Test
+    public void returnsNothingForPositionsThatAreNotFinite() throws Exception {
+        StringBuilder cities = new StringBuilder();
+        appendCity(cities, 1, "Equator", 0, 0, "GH", "01");
+        ReverseGeocoder geocoder = newGeocoder(cities.toString());
+
+        assertNull(geocoder.lookup(Double.NaN, 0));
+        assertNull(geocoder.lookup(0, Double.POSITIVE_INFINITY));
+        assertEquals("Equator", geocoder.lookup(0, 0).name);
+    }
+
+    @Test
+    public void returnsNothingWithoutIndex() throws Exception {
+        ReverseGeocoder geocoder = new ReverseGeocoder(new File(mFolder.getRoot(), "missing.bin"));
+        assertEquals(0, geocoder.size());
+        assertNull(geocoder.lookup(0, 0));
+    }
+
+    private ReverseGeocoder newGeocoder(String... dumps) throws Exception {
+        ReverseGeocoder geocoder = new ReverseGeocoder(mFolder.newFile());
+        List<InputStream> inputs = new ArrayList<>();
+        for (String dump : dumps) {
+            inputs.add(new ByteArrayInputStream(dump.getBytes(StandardCharsets.UTF_8)));
+        }
+        geocoder.importGeoNames(inputs);
+        return geocoder;
+    }
+
+    private static void assertNearest(ReverseGeocoder geocoder, List<double[]> places, double lat, double lon) {
+        double nearest = Double.MAX_VALUE;
+        for (double[] place : places) {
+            nearest = Math.min(nearest, distance(lat, lon, place[0], place[1]));
+        }
+
+        ReverseGeocoder.Place place = geocoder.lookup(lat, lon);
+        double[] found = places.get(Integer.parseInt(place.name.substring(1)));
+        // A different place at the same distance is as good
+        assertEquals("Lookup at " + lat + ", " + lon, nearest, distance(lat, lon, found[0], found[1]), TOLERANCE_METERS);
+        assertEquals(nearest, place.distance, TOLERANCE_METERS);
+    }
+
+    /**
+     * Appends a row of the GeoNames cities dump.
+     */
+    private static void appendCity(StringBuilder out, int id, String name, double lat, double lon, String country,
+                                   String admin1) {
+        String[] columns = new String[19];
+        Arrays.fill(columns, "");
+        columns[0] = Integer.toString(id);
+        columns[1] = name;
+        columns[2] = name;
+        columns[4] = Double.toString(lat);
+        columns[5] = Double.toString(lon);
+        columns[6] = "P";
+        columns[7] = "PPL";
+        columns[8] = country;
+        columns[10] = admin1;
+        out.append(String.join("\t", columns)).append('\n');
+    }
+
+    private static double distance(double lat1, double lon1, double lat2, double lon2) {
+        double phi1 = Math.toRadians(lat1);
+        double phi2 = Math.toRadians(lat2);
+        double dPhi = phi2 - phi1;
+        double dLambda = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dPhi / 2) * Math.sin(dPhi / 2)
+                + Math.cos(phi1) * Math.cos(phi2) * Math.sin(dLambda / 2) * Math.sin(dLambda / 2);
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+}
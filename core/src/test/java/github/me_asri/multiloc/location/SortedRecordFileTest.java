@@ -0,0 +1,196 @@
+package github.me_asri.multiloc.location;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * External sorts of records keyed by a long, against an in-memory stable sort.
+ */
+public class SortedRecordFileTest {
+    private static final int MAGIC = 0x54455354;
+    private static final int VERSION = 3;
+    // key, sequence number
+    private static final int RECORD_SIZE = 8 + 4;
+    private static final SortedRecordFile.KeyComparator BY_KEY =
+            (a, aOffset, b, bOffset) -> SortedRecordFile.compareLongs(a, aOffset, b, bOffset, 1);
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final Random mRandom = new Random(42);
+
+    @Test
+    public void sortsAcrossRunsKeepingOrderOfEqualKeys() throws Exception {
+        List<long[]> added = new ArrayList<>();
+        List<long[]> merged;
+        try (SortedRecordFile.Sorter sorter = newSorter(100, false)) {
+            for (int i = 0; i < 5000; i++) {
+                // Few distinct keys, both signs, so runs share keys
+                long key = mRandom.nextInt(500) - 250;
+                added.add(new long[]{key, i});
+                sorter.add(record(key, i));
+            }
+            merged = merge(sorter);
+        }
+
+        added.sort(Comparator.comparingLong(record -> record[0]));
+        assertRecords(added, merged);
+    }
+
+    @Test
+    public void keepsLastAddedOfEachKeyWhenDistinct() throws Exception {
+        long[] last = new long[500];
+        List<long[]> merged;
+        try (SortedRecordFile.Sorter sorter = newSorter(64, true)) {
+            for (int i = 0; i < 5000; i++) {
+                int key = mRandom.nextInt(last.length);
+                last[key] = i + 1;
+                sorter.add(record(key, i + 1));
+            }
+            merged = merge(sorter);
+        }
+
+        List<long[]> expected = new ArrayList<>();
+        for (int key = 0; key < last.length; key++) {
+            if (last[key] > 0) {
+                expected.add(new long[]{key, last[key]});
+            }
+        }
+        assertRecords(expected, merged);
+    }
+
+    @Test
+    public void sortsPresortedAndReversedInput() throws Exception {
+        for (boolean reversed : new boolean[]{false, true}) {
+            List<long[]> merged;
+            try (SortedRecordFile.Sorter sorter = newSorter(1000, false)) {
+                for (int i = 0; i < 3000; i++) {
+                    long key = reversed ? 3000 - i : i;
+                    sorter.add(record(key, i));
+                }
+                merged = merge(sorter);
+            }
+
+            assertEquals(3000, merged.size());
+            for (int i = 1; i < merged.size(); i++) {
+                assertTrue(merged.get(i - 1)[0] < merged.get(i)[0]);
+            }
+        }
+    }
+
+    @Test
+    public void writesCountedFileThatLaterRecordsOverride() throws Exception {
+        File file = mFolder.newFile();
+        try (SortedRecordFile.Sorter sorter = newSorter(16, true)) {
+            for (int key = 0; key < 100; key++) {
+                sorter.add(record(key * 2, 1));
+            }
+            assertEquals(100, SortedRecordFile.write(sorter, file, MAGIC, VERSION));
+        }
+        assertEquals(100, SortedRecordFile.readCount(file, MAGIC, VERSION));
+
+        // Merge new records over the file, as an import does with the current index
+        File merged = mFolder.newFile();
+        try (SortedRecordFile.Sorter sorter = newSorter(16, true)) {
+            sorter.addSorted(file, SortedRecordFile.COUNTED_HEADER_SIZE, 100);
+            for (int key = 0; key < 50; key++) {
+                sorter.add(record(key * 3, 2));
+            }
+            SortedRecordFile.write(sorter, merged, MAGIC, VERSION);
+        }
+
+        ByteBuffer mapped = SortedRecordFile.map(merged, SortedRecordFile.COUNTED_HEADER_SIZE);
+        int count = SortedRecordFile.recordCount(mapped, MAGIC, VERSION, RECORD_SIZE);
+        // Keys divisible by 2 or 3 below 200 and 150
+        assertEquals(100 + 50 - 25, count);
+        long previous = Long.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            int offset = SortedRecordFile.COUNTED_HEADER_SIZE + i * RECORD_SIZE;
+            long key = mapped.getLong(offset);
+            assertTrue(key > previous);
+            assertEquals((key % 3 == 0 && key < 150) ? 2 : 1, mapped.getInt(offset + 8));
+            previous = key;
+        }
+    }
+
+    @Test
+    public void rejectsMismatchedAndTruncatedFiles() throws Exception {
+        File file = mFolder.newFile();
+        try (SortedRecordFile.Sorter sorter = newSorter(16, false)) {
+            for (int key = 0; key < 10; key++) {
+                sorter.add(record(key, key));
+            }
+            SortedRecordFile.write(sorter, file, MAGIC, VERSION);
+        }
+
+        ByteBuffer mapped = SortedRecordFile.map(file, SortedRecordFile.COUNTED_HEADER_SIZE);
+        assertEquals(10, SortedRecordFile.recordCount(mapped, MAGIC, VERSION, RECORD_SIZE));
+        assertEquals(-1, SortedRecordFile.recordCount(mapped, MAGIC, VERSION + 1, RECORD_SIZE));
+        assertEquals(-1, SortedRecordFile.recordCount(mapped, MAGIC + 1, VERSION, RECORD_SIZE));
+        assertEquals(-1, SortedRecordFile.recordCount(null, MAGIC, VERSION, RECORD_SIZE));
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+        mapped = SortedRecordFile.map(file, SortedRecordFile.COUNTED_HEADER_SIZE);
+        assertEquals(-1, SortedRecordFile.recordCount(mapped, MAGIC, VERSION, RECORD_SIZE));
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(SortedRecordFile.COUNTED_HEADER_SIZE - 1);
+        }
+        assertNull(SortedRecordFile.map(file, SortedRecordFile.COUNTED_HEADER_SIZE));
+        assertNull(SortedRecordFile.map(new File(mFolder.getRoot(), "missing"), SortedRecordFile.COUNTED_HEADER_SIZE));
+    }
+
+    @Test
+    public void comparesUnsignedBytes() {
+        byte[] a = {0x00, (byte) 0xFF, 0x01};
+        byte[] b = {0x00, 0x7F, 0x01};
+        assertTrue(SortedRecordFile.compareUnsigned(a, 0, b, 0, 3) > 0);
+        assertTrue(SortedRecordFile.compareUnsigned(b, 0, a, 0, 3) < 0);
+        assertEquals(0, SortedRecordFile.compareUnsigned(a, 2, b, 2, 1));
+
+        // Longs compare signed
+        assertTrue(SortedRecordFile.compareLongs(record(-1, 0), 0, record(1, 0), 0, 1) < 0);
+        assertEquals(-1, SortedRecordFile.getLong(record(-1, 0), 0));
+    }
+
+    private SortedRecordFile.Sorter newSorter(int runSize, boolean distinct) {
+        return new SortedRecordFile.Sorter(mFolder.getRoot(), RECORD_SIZE, runSize, BY_KEY, distinct);
+    }
+
+    private static byte[] record(long key, int sequence) {
+        return ByteBuffer.allocate(RECORD_SIZE).putLong(key).putInt(sequence).array();
+    }
+
+    private static List<long[]> merge(SortedRecordFile.Sorter sorter) throws Exception {
+        List<long[]> records = new ArrayList<>();
+        long count = sorter.merge(record -> {
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            records.add(new long[]{buffer.getLong(), buffer.getInt()});
+        });
+        assertEquals(records.size(), count);
+        return records;
+    }
+
+    private static void assertRecords(List<long[]> expected, List<long[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals("Record " + i, expected.get(i), actual.get(i));
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package github.me_asri.multiloc.location;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trips of fixes through the segment files, including torn tails left by a crash.
+ */
+public class TrackLogTest {
+    // Smallest segment allowed, so that tests roll over often
+    private static final int SMALL_SEGMENT_SIZE = 8 + 1024 * 2;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final Random mRandom = new Random(42);
+
+    @Test
+    public void readsBackWhatWasAppended() throws Exception {
+        TrackLog log = new TrackLog(mFolder.newFolder());
+        List<Fix> fixes = new ArrayList<>();
+        double lat = 3.139;
+        double lon = 101.687;
+        long time = 1_600_000_000_000L;
+        for (int i = 0; i < 100_000; i++) {
+            // Random walk with the odd jump, backwards in time too, so deltas of either sign
+            lat = clamp(lat + mRandom.nextGaussian() * ((i % 1000 == 0) ? 50 : 1e-4), 90);
+            lon = clamp(lon + mRandom.nextGaussian() * ((i % 1000 == 0) ? 100 : 1e-4), 180);
+            time += (i % 777 == 0) ? -60_000 : 1000;
+            fixes.add(new Fix((i % 3 == 0) ? "GPS" : "Network", lat, lon, mRandom.nextDouble() * 100, time,
+                    (i % 5 == 0) ? "cell " + (i / 50) : null));
+        }
+        fixes.add(new Fix("GPS", 90, 180, 0, Long.MAX_VALUE / 2, null));
+        fixes.add(new Fix("GPS", -90, -180, 1e7, 0, ""));
+
+        for (Fix fix : fixes) {
+            log.append(fix.provider, fix.lat, fix.lon, fix.accuracy, fix.time, fix.meta);
+        }
+        log.flush();
+
+        assertEquals(fixes.size(), log.getAppendedCount());
+        assertEquals(fixes, readAll(log));
+    }
+
+    @Test
+    public void storesRepeatedProvidersAndMetadataOnce() throws Exception {
+        String meta = "510-10-1234-567890, a serving cell described at length";
+        TrackLog log = new TrackLog(mFolder.newFolder());
+        for (int i = 0; i < 1000; i++) {
+            log.append((i % 2 == 0) ? "GPS-Track" : "BTS-Track", 3.139, 101.687, 10, 1000L * i, meta);
+        }
+        log.flush();
+
+        // A dozen bytes a fix, far less than the strings
+        assertTrue("Size " + log.getSizeBytes(), log.getSizeBytes() < 1000 * 16);
+
+        List<Fix> fixes = readAll(log);
+        assertEquals(1000, fixes.size());
+        assertEquals("GPS-Track", fixes.get(998).provider);
+        assertEquals("BTS-Track", fixes.get(999).provider);
+        assertEquals(meta, fixes.get(999).meta);
+
+        // Metadata is only kept for the fixes that have it
+        log.append("GPS-Track", 3.139, 101.687, 10, 1_000_000, null);
+        log.append("GPS-Track", 3.139, 101.687, 10, 1_000_001, meta);
+        log.flush();
+        fixes = readAll(log);
+        assertNull(fixes.get(1000).meta);
+        assertEquals(meta, fixes.get(1001).meta);
+    }
+
+    @Test
+    public void rollsOverToNewSegments() throws Exception {
+        File dir = mFolder.newFolder();
+        TrackLog log = new TrackLog(dir, SMALL_SEGMENT_SIZE);
+        List<Fix> fixes = appendRandom(log, 2000);
+        log.flush();
+
+        File[] segments = dir.listFiles();
+        assertTrue(segments.length > 5);
+        for (File segment : segments) {
+            assertTrue(segment.length() <= SMALL_SEGMENT_SIZE);
+        }
+        // Providers and deltas start afresh in every segment
+        assertEquals(fixes, readAll(log));
+        assertEquals(fixes, readAll(new TrackLog(dir, SMALL_SEGMENT_SIZE)));
+    }
+
+    @Test
+    public void cutsOffTornTailOnReopen() throws Exception {
+        File dir = mFolder.newFolder();
+        TrackLog log = new TrackLog(dir, SMALL_SEGMENT_SIZE);
+        List<Fix> fixes = appendRandom(log, 500);
+        log.flush();
+
+        File[] segments = dir.listFiles();
+        File last = segments[0];
+        for (File segment : segments) {
+            if (segment.getName().compareTo(last.getName()) > 0) {
+                last = segment;
+            }
+        }
+        long valid = last.length();
+        // A record cut short by a crash, followed by garbage
+        try (RandomAccessFile file = new RandomAccessFile(last, "rw")) {
+            file.seek(valid);
+            file.write(new byte[]{20, 1, 2, 3, 4, 5, (byte) 0xFF, (byte) 0x80});
+        }
+
+        TrackLog reopened = new TrackLog(dir, SMALL_SEGMENT_SIZE);
+        // Reopening happens on the disk thread
+        reopened.flush();
+        assertEquals(fixes, readAll(reopened));
+        assertEquals(valid, last.length());
+
+        // Appends continue from the last valid record
+        fixes.add(new Fix("GPS", 1, 2, 3, 4, "after"));
+        reopened.append("GPS", 1, 2, 3, 4, "after");
+        reopened.flush();
+        assertEquals(fixes, readAll(reopened));
+    }
+
+    @Test
+    public void readsNewestSegmentFirstUpToMark() throws Exception {
+        TrackLog log = new TrackLog(mFolder.newFolder(), SMALL_SEGMENT_SIZE);
+        List<Fix> fixes = appendRandom(log, 1000);
+        TrackLog.Mark mark = log.mark().get();
+        appendRandom(log, 100);
+        log.flush();
+
+        List<List<Fix>> segments = new ArrayList<>();
+        int lastSegment = Integer.MAX_VALUE;
+        try (TrackLog.Cursor cursor = log.cursor(mark, true)) {
+            while (cursor.next()) {
+                if (cursor.getSegment() != lastSegment) {
+                    assertTrue(cursor.getSegment() < lastSegment);
+                    lastSegment = cursor.getSegment();
+                    segments.add(new ArrayList<>());
+                }
+                segments.get(segments.size() - 1).add(read(cursor));
+            }
+        }
+        assertTrue(segments.size() > 1);
+
+        // Oldest first within each segment, so reversing the segments gives the log up to the mark
+        List<Fix> read = new ArrayList<>();
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            read.addAll(segments.get(i));
+        }
+        assertEquals(fixes, read);
+    }
+
+    @Test
+    public void readsNothingUpToMarkOfEmptyLog() throws Exception {
+        TrackLog log = new TrackLog(mFolder.newFolder());
+        TrackLog.Mark mark = log.mark().get();
+        appendRandom(log, 10);
+        log.flush();
+
+        try (TrackLog.Cursor cursor = log.cursor(mark, false)) {
+            assertFalse(cursor.next());
+        }
+        assertEquals(10, readAll(log).size());
+    }
+
+    private List<Fix> appendRandom(TrackLog log, int count) {
+        List<Fix> fixes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Fix fix = new Fix((i % 4 == 0) ? "IP" : "GPS", mRandom.nextDouble() * 180 - 90,
+                    mRandom.nextDouble() * 360 - 180, mRandom.nextInt(1000), mRandom.nextInt(1 << 30),
+                    (i % 7 == 0) ? "meta " + mRandom.nextInt(3) : null);
+            log.append(fix.provider, fix.lat, fix.lon, fix.accuracy, fix.time, fix.meta);
+            fixes.add(fix);
+        }
+        return fixes;
+    }
+
+    private static List<Fix> readAll(TrackLog log) throws Exception {
+        List<Fix> fixes = new ArrayList<>();
+        try (TrackLog.Cursor cursor = log.cursor()) {
+            while (cursor.next()) {
+                fixes.add(read(cursor));
+            }
+        }
+        return fixes;
+    }
+
+    private static Fix read(TrackLog.Cursor cursor) {
+        return new Fix(cursor.getProvider(), cursor.getLat(), cursor.getLon(), cursor.getAccuracy(),
+                cursor.getTimeMillis(), cursor.getMeta());
+    }
+
+    private static double clamp(double value, double limit) {
+        return Math.max(-limit, Math.min(limit, value));
+    }
+
+    /**
+     * Fix as stored, to 1e-7 degrees and a decimeter.
+     */
+    private static final class Fix {
+        final String provider;
+        final int latE7;
+        final int lonE7;
+        final long accuracyDecimeters;
+        final long time;
+        final String meta;
+        final double lat;
+        final double lon;
+        final double accuracy;
+
+        Fix(String provider, double lat, double lon, double accuracy, long time, String meta) {
+            this.provider = provider;
+            this.lat = lat;
+            this.lon = lon;
+            this.accuracy = accuracy;
+            latE7 = (int) Math.round(lat * 1e7);
+            lonE7 = (int) Math.round(lon * 1e7);
+            accuracyDecimeters = Math.round(accuracy * 10);
+            this.time = time;
+            this.meta = meta;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Fix)) {
+                return false;
+            }
+            Fix fix = (Fix) o;
+            return provider.equals(fix.provider) && latE7 == fix.latE7 && lonE7 == fix.lonE7
+                    && accuracyDecimeters == fix.accuracyDecimeters && time == fix.time
+                    && ((meta == null) ? fix.meta == null : meta.equals(fix.meta));
+        }
+
+        @Override
+        public int hashCode() {
+            return latE7 * 31 + lonE7;
+        }
+
+        @Override
+        public String toString() {
+            return provider + " " + latE7 + "," + lonE7 + " " + accuracyDecimeters + " " + time + " " + meta;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package github.me_asri.multiloc.location;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Rate decisions for synthetic sequences of fixes and accelerometer samples.
+ */
+public class TrackingRateTest {
+    private static final long MAX_BATCH_DELAY_MILLIS = 30_000;
+    private static final float GRAVITY = 9.81f;
+
+    private final TrackingRate mRate = new TrackingRate(MAX_BATCH_DELAY_MILLIS);
+
+    @Test
+    public void startsAtFastestRate() {
+        assertEquals(TrackingRate.MIN_INTERVAL_MILLIS, mRate.getRate().intervalMillis);
+        assertEquals(0, mRate.getRate().maxDelayMillis);
+        assertFalse(mRate.isStationary());
+
+        // Without a speed there's nothing to space fixes by
+        for (int i = 0; i < 10; i++) {
+            assertFalse(mRate.onFix(i * 1000L, Float.NaN, Float.NaN));
+        }
+        assertEquals(TrackingRate.MIN_INTERVAL_MILLIS, mRate.getRate().intervalMillis);
+    }
+
+    @Test
+    public void relaxesOnlyAfterThreeAgreeingFixes() {
+        // Walking steadily at 2 m/s, a fix every 20 m
+        assertFalse(mRate.onFix(0, 2, 0));
+        assertFalse(mRate.onFix(1000, 2, 0));
+        assertTrue(mRate.onFix(2000, 2, 0));
+        assertEquals(10_000, mRate.getRate().intervalMillis);
+        assertEquals(MAX_BATCH_DELAY_MILLIS, mRate.getRate().maxDelayMillis);
+
+        // Nothing left to relax
+        assertFalse(mRate.onFix(12_000, 2, 0));
+    }
+
+    @Test
+    public void startsVotingOverWhenFixDisagrees() {
+        assertFalse(mRate.onFix(0, 2, 0));
+        assertFalse(mRate.onFix(1000, 2, 0));
+        // Turning, which keeps the fastest rate and resets the votes
+        assertFalse(mRate.onFix(2000, 2, 90));
+
+        assertFalse(mRate.onFix(3000, 2, 90));
+        assertFalse(mRate.onFix(4000, 2, 90));
+        assertEquals(TrackingRate.MIN_INTERVAL_MILLIS, mRate.getRate().intervalMillis);
+        assertTrue(mRate.onFix(5000, 2, 90));
+        assertEquals(10_000, mRate.getRate().intervalMillis);
+    }
+
+    @Test
+    public void tightensAtOnceWhenSpeedChanges() {
+        relaxToWalking();
+
+        assertTrue(mRate.onFix(20_000, 10, 0));
+        assertEquals(TrackingRate.MIN_INTERVAL_MILLIS, mRate.getRate().intervalMillis);
+        assertEquals(0, mRate.getRate().maxDelayMillis);
+    }
+
+    @Test
+    public void tightensAtOnceWhenTurning() {
+        relaxToWalking();
+
+        // 90 degrees in 5 s
+        assertTrue(mRate.onFix(15_000, 2, 90));
+        assertEquals(TrackingRate.MIN_INTERVAL_MILLIS, mRate.getRate().intervalMillis);
+    }
+
+    @Test
+    public void ignoresSmallIntervalChanges() {
+        relaxToWalking();
+
+        // 20 m at 2.5 m/s is 8 s, too close to 10 s to re-register for
+        for (int i = 1; i <= 10; i++) {
+            assertFalse(mRate.onFix(20_000 + i * 8000L, 2.5f, 0));
+        }
+        assertEquals(10_000, mRate.getRate().intervalMillis);
+
+        // Speeding up gradually, tightened once the interval is well below the current one
+        assertFalse(mRate.onFix(110_000, 3, 0));
+        assertTrue(mRate.onFix(116_000, 4, 0));
+        assertEquals(5000, mRate.getRate().intervalMillis);
+    }
+
+    @Test
+    public void goesStationaryOnStillAccelerometerAndWakesOnMotion() {
+        mRate.onFix(0, 0, Float.NaN);
+
+        long time = 0;
+        boolean changed = false;
+        for (; time < 25_000 && !changed; time += 100) {
+            changed = mRate.onAcceleration(time, GRAVITY);
+        }
+        assertTrue(changed);
+        assertTrue(mRate.isStationary());
+        // Stationary is settled by the accelerometer, no fixes needed to agree
+        assertTrue(time >= 20_000);
+        assertEquals(TrackingRate.STATIONARY_INTERVAL_MILLIS, mRate.getRate().intervalMillis);
+        assertEquals(MAX_BATCH_DELAY_MILLIS, mRate.getRate().maxDelayMillis);
+
+        assertTrue(mRate.onMotion());
+        assertFalse(mRate.isStationary());
+        assertEquals(TrackingRate.MIN_INTERVAL_MILLIS, mRate.getRate().intervalMillis);
+        assertFalse(mRate.onMotion());
+    }
+
+    @Test
+    public void wakesWhenPhoneIsShaken() {
+        mRate.onFix(0, 0, Float.NaN);
+        long time = 0;
+        for (; time <= 20_000; time += 100) {
+            mRate.onAcceleration(time, GRAVITY);
+        }
+        assertTrue(mRate.isStationary());
+
+        boolean changed = false;
+        for (int i = 0; i < 50 && !changed; i++, time += 100) {
+            changed = mRate.onAcceleration(time, GRAVITY + ((i % 2 == 0) ? 3 : -3));
+        }
+        assertTrue(changed);
+        assertFalse(mRate.isStationary());
+        assertEquals(TrackingRate.MIN_INTERVAL_MILLIS, mRate.getRate().intervalMillis);
+    }
+
+    @Test
+    public void staysMovingWhileFixesReportSpeed() {
+        // Smooth ride, the phone lies still in a holder
+        for (long time = 0; time <= 30_000; time += 100) {
+            if (time % 1000 == 0) {
+                mRate.onFix(time, 15, 0);
+            }
+            mRate.onAcceleration(time, GRAVITY);
+        }
+        assertFalse(mRate.isStationary());
+    }
+
+    @Test
+    public void goesStationaryFromSpeedWithoutAccelerometer() {
+        long time = 0;
+        for (; time < 20_000; time += 1000) {
+            mRate.onFix(time, 0.2f, Float.NaN);
+            assertFalse(mRate.isStationary());
+        }
+        assertTrue(mRate.onFix(time, 0.2f, Float.NaN));
+        assertTrue(mRate.isStationary());
+        assertEquals(TrackingRate.STATIONARY_INTERVAL_MILLIS, mRate.getRate().intervalMillis);
+
+        // Moving again
+        assertTrue(mRate.onFix(time + 60_000, 3, 0));
+        assertFalse(mRate.isStationary());
+        assertEquals(TrackingRate.MIN_INTERVAL_MILLIS, mRate.getRate().intervalMillis);
+    }
+
+    /**
+     * Walks steadily at 2 m/s until the rate relaxes to a fix every 10 s, ending at 10 s.
+     */
+    private void relaxToWalking() {
+        assertFalse(mRate.onFix(0, 2, 0));
+        assertFalse(mRate.onFix(5000, 2, 0));
+        assertTrue(mRate.onFix(10_000, 2, 0));
+        assertEquals(10_000, mRate.getRate().intervalMillis);
+    }
+}
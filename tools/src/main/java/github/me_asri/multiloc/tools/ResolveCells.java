@@ -0,0 +1,290 @@
+package github.me_asri.multiloc.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import github.me_asri.multiloc.location.BTSException.InvalidRequestException;
+import github.me_asri.multiloc.location.BTSException.QuotaExceededException;
+import github.me_asri.multiloc.location.BTSException.UnregisteredBTSException;
+import github.me_asri.multiloc.location.CellCache;
+import github.me_asri.multiloc.location.CellIndex;
+import github.me_asri.multiloc.location.CellTuple;
+import github.me_asri.multiloc.location.HttpStack;
+import github.me_asri.multiloc.location.OpenCellIDClient;
+import github.me_asri.multiloc.location.RequestQuota;
+import okhttp3.Dispatcher;
+
+/**
+ * Resolves a list of cells to their locations in bulk, using the app's OpenCelliD client.
+ * <p>
+ * Input rows are {@code mcc,mnc,lac,cell_id}, optionally preceded by a radio column as in
+ * OpenCelliD exports, and are streamed rather than read up front. Lookups run concurrently up to
+ * a cap, requests go through a {@link RequestQuota} at bulk priority and cells are deduplicated
+ * through the cell cache and the output itself. Results are appended to the output as they come in, in completion order, and a
+ * rerun with the same output skips cells already resolved. Cells that failed transiently aren't
+ * written, so a rerun retries them.
+ */
+public class ResolveCells {
+    private static final String USAGE = "Usage: ResolveCells [options] <input.csv|-> <output.csv>\n" +
+            "  --url URL          OpenCelliD API URL (default " + OpenCellIDClient.API_URL + ")\n" +
+            "  --concurrency N    maximum lookups in flight (default 16)\n" +
+            "  --rate N           maximum requests per second (default 20)\n" +
+            "  --daily-limit N    requests allowed per UTC day, bulk runs use up to half of it,\n" +
+            "                     0 for no limit (default 0)\n" +
+            "  --quota FILE       where requests made today are counted, shared with other runs\n" +
+            "  --timeout MS       time budget of a single lookup (default 30000)\n" +
+            "  --cache FILE       persistent cell cache, kept in memory only if not given\n" +
+            "  --index FILE       offline cell index imported by the app\n";
+
+    private static final int CACHE_CAPACITY = 1 << 16;
+    private static final long CACHE_TTL_MILLIS = TimeUnit.DAYS.toMillis(30);
+    private static final long CACHE_NEGATIVE_TTL_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final long HTTP_TIMEOUT_MILLIS = 10_000;
+    private static final long PROGRESS_INTERVAL_MILLIS = 5_000;
+
+    private static final String[] RADIO_TYPES = {"GSM", "UMTS", "CDMA", "LTE", "NR"};
+
+    private final OpenCellIDClient mClient;
+    private final RequestQuota mQuota;
+    private final ResultLog mLog;
+    private final long mTimeoutMillis;
+    private final Semaphore mPermits;
+    private final int mConcurrency;
+
+    private final AtomicLong mResolved = new AtomicLong();
+    private final AtomicLong mUnregistered = new AtomicLong();
+    private final AtomicLong mInvalid = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+    private volatile IOException mWriteError;
+
+    ResolveCells(OpenCellIDClient client, RequestQuota quota, ResultLog log, int concurrency, long timeoutMillis) {
+        mClient = client;
+        mQuota = quota;
+        mLog = log;
+        mConcurrency = concurrency;
+        mTimeoutMillis = timeoutMillis;
+        mPermits = new Semaphore(concurrency);
+    }
+
+    public static void main(String[] args) throws Exception {
+        String url = OpenCellIDClient.API_URL;
+        int concurrency = 16;
+        double rate = 20;
+        long dailyLimit = 0;
+        long timeoutMillis = 30_000;
+        File quotaFile = null;
+        File cacheFile = null;
+        File indexFile = null;
+
+        int i = 0;
+        try {
+            for (; i < args.length && args[i].startsWith("--"); i += 2) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value of " + args[i]);
+                }
+
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--url":
+                        url = value.endsWith("/") ? value : value + "/";
+                        break;
+                    case "--concurrency":
+                        concurrency = Integer.parseInt(value);
+                        break;
+                    case "--rate":
+                        rate = Double.parseDouble(value);
+                        break;
+                    case "--daily-limit":
+                        dailyLimit = Long.parseLong(value);
+                        break;
+                    case "--quota":
+                        quotaFile = new File(value);
+                        break;
+                    case "--timeout":
+                        timeoutMillis = Long.parseLong(value);
+                        break;
+                    case "--cache":
+                        cacheFile = new File(value);
+                        break;
+                    case "--index":
+                        indexFile = new File(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if (args.length - i != 2) {
+                throw new IllegalArgumentException("Expected input and output files");
+            }
+            if (concurrency <= 0) {
+                throw new IllegalArgumentException("Concurrency must be positive");
+            }
+            if (rate <= 0) {
+                throw new IllegalArgumentException("Rate must be positive");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(USAGE);
+            System.exit(64);
+            return;
+        }
+
+        // Spread requests evenly, quotas are often enforced per second
+        RequestQuota quota = new RequestQuota(quotaFile, rate, 1, dailyLimit);
+        HttpStack http = new HttpStack(null, 0, HTTP_TIMEOUT_MILLIS);
+        Dispatcher dispatcher = http.getClient().dispatcher();
+        dispatcher.setMaxRequests(concurrency);
+        dispatcher.setMaxRequestsPerHost(concurrency);
+
+        CellCache cache = new CellCache(cacheFile, CACHE_CAPACITY, CACHE_TTL_MILLIS, CACHE_NEGATIVE_TTL_MILLIS);
+        CellIndex index = (indexFile != null) ? new CellIndex(indexFile) : null;
+        // Throughput is bound by the rate limit, hedges would only use it up
+        OpenCellIDClient client = new OpenCellIDClient(http, url, Runnable::run, cache, index, quota, null);
+
+        boolean complete;
+        String input = args[i];
+        try (InputStream in = input.equals("-") ? System.in : new FileInputStream(input);
+             ResultLog log = new ResultLog(new File(args[i + 1]))) {
+            complete = new ResolveCells(client, quota, log, concurrency, timeoutMillis).run(in);
+        }
+
+        quota.flush();
+        dispatcher.executorService().shutdown();
+        http.getClient().connectionPool().evictAll();
+        System.exit(complete ? 0 : 2);
+    }
+
+    /**
+     * @return whether a rerun would have nothing left to retry
+     */
+    boolean run(InputStream in) throws IOException, InterruptedException {
+        if (mLog.getResumedCount() > 0) {
+            System.err.println("Resuming after " + mLog.getResumedCount() + " cells");
+        }
+
+        long start = System.currentTimeMillis();
+        long lastProgress = start;
+        long skipped = 0;
+        boolean stopped = false;
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (mWriteError != null) {
+                throw mWriteError;
+            }
+            if (mQuota.isExhausted(RequestQuota.Priority.BULK)) {
+                System.err.println("Daily request quota used up, stopping");
+                stopped = true;
+                break;
+            }
+
+            CellTuple cell = parseCell(line);
+            if (cell == null) {
+                continue;
+            }
+            // Repeated rows still in flight share the lookup, later ones hit the cache
+            if (mLog.contains(cell)) {
+                skipped++;
+                continue;
+            }
+
+            mPermits.acquire();
+            resolve(cell);
+
+            long now = System.currentTimeMillis();
+            if (now - lastProgress >= PROGRESS_INTERVAL_MILLIS) {
+                lastProgress = now;
+                printProgress(start, now, skipped);
+            }
+        }
+
+        // Wait for the lookups still in flight
+        mPermits.acquire(mConcurrency);
+        if (mWriteError != null) {
+            throw mWriteError;
+        }
+
+        printProgress(start, System.currentTimeMillis(), skipped);
+        return !stopped && mFailed.get() == 0;
+    }
+
+    private void resolve(CellTuple cell) {
+        long deadline = System.currentTimeMillis() + mTimeoutMillis;
+        mClient.lookup(cell, RequestQuota.Priority.BULK, () -> deadline - System.currentTimeMillis(), (entry, t) -> {
+            try {
+                if (entry != null) {
+                    if (mLog.write(cell, ResultLog.STATUS_OK, entry.lat, entry.lon, entry.range)) {
+                        mResolved.incrementAndGet();
+                    }
+                } else if (t instanceof UnregisteredBTSException) {
+                    if (mLog.write(cell, ResultLog.STATUS_UNREGISTERED, 0, 0, 0)) {
+                        mUnregistered.incrementAndGet();
+                    }
+                } else if (t instanceof InvalidRequestException) {
+                    if (mLog.write(cell, ResultLog.STATUS_INVALID, 0, 0, 0)) {
+                        mInvalid.incrementAndGet();
+                    }
+                } else {
+                    // Left out of the output, so the next run retries it
+                    mFailed.incrementAndGet();
+                    if (!(t instanceof QuotaExceededException)) {
+                        System.err.println(cell + ": " + ((t != null) ? t.getMessage() : "lookup failed"));
+                    }
+                }
+            } catch (IOException e) {
+                mWriteError = e;
+            } finally {
+                mPermits.release();
+            }
+        });
+    }
+
+    private void printProgress(long start, long now, long skipped) {
+        long resolved = mResolved.get();
+        long unregistered = mUnregistered.get();
+        double minutes = Math.max(1, now - start) / 60_000.0;
+        System.err.printf("%d resolved, %d unregistered, %d invalid, %d failed, %d skipped (%.0f cells/min)%n",
+                resolved, unregistered, mInvalid.get(), mFailed.get(), skipped, (resolved + unregistered) / minutes);
+        System.err.println("  " + mQuota.getMetrics());
+    }
+
+    /**
+     * @return cell of a {@code [radio,]mcc,mnc,lac,cell_id} row, or {@code null} if malformed
+     */
+    static CellTuple parseCell(String line) {
+        String[] columns = line.split(",", -1);
+        int first = 0;
+        if (columns.length > 0) {
+            for (String radio : RADIO_TYPES) {
+                if (radio.equalsIgnoreCase(columns[0].trim())) {
+                    first = 1;
+                    break;
+                }
+            }
+        }
+        if (columns.length < first + 4) {
+            return null;
+        }
+
+        try {
+            String mcc = columns[first].trim();
+            String mnc = columns[first + 1].trim();
+            // Validates the codes, which are sent as given
+            Integer.parseInt(mcc);
+            Integer.parseInt(mnc);
+            return new CellTuple(mcc, mnc, Integer.parseInt(columns[first + 2].trim()),
+                    Long.parseLong(columns[first + 3].trim()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package github.me_asri.multiloc.tools;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+import github.me_asri.multiloc.location.CellTuple;
+
+/**
+ * CSV file of resolved cells, appended to as results come in.
+ * <p>
+ * Every row is flushed once written, so an interrupted run loses at most the row being written.
+ * Reopening the file drops such a partial row and remembers the cells already in it, letting the
+ * next run skip them.
+ */
+class ResultLog implements AutoCloseable {
+    static final String HEADER = "mcc,mnc,lac,cell_id,status,lat,lon,range";
+
+    static final String STATUS_OK = "ok";
+    static final String STATUS_UNREGISTERED = "unregistered";
+    static final String STATUS_INVALID = "invalid";
+
+    private final Set<CellTuple> mDone = new HashSet<>();
+    private final Writer mWriter;
+
+    ResultLog(File file) throws IOException {
+        if (file.length() > 0) {
+            truncatePartialRow(file);
+            load(file);
+        }
+
+        boolean empty = (file.length() == 0);
+        mWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.US_ASCII));
+        if (empty) {
+            mWriter.write(HEADER);
+            mWriter.write('\n');
+            mWriter.flush();
+        }
+    }
+
+    /**
+     * @return number of cells resolved by earlier runs
+     */
+    int getResumedCount() {
+        return mDone.size();
+    }
+
+    /**
+     * @return whether {@code cell} is already in the file
+     */
+    synchronized boolean contains(CellTuple cell) {
+        return mDone.contains(cell);
+    }
+
+    /**
+     * @return whether the row was written, i.e. {@code cell} wasn't in the file yet
+     */
+    synchronized boolean write(CellTuple cell, String status, double lat, double lon, int range) throws IOException {
+        if (!mDone.add(cell)) {
+            return false;
+        }
+
+        StringBuilder row = new StringBuilder(64)
+                .append(cell.mcc).append(',')
+                .append(cell.mnc).append(',')
+                .append(cell.tac).append(',')
+                .append(cell.ci).append(',')
+                .append(status).append(',');
+        if (status.equals(STATUS_OK)) {
+            row.append(lat).append(',').append(lon).append(',').append(range);
+        } else {
+            row.append(",,");
+        }
+        row.append('\n');
+
+        mWriter.write(row.toString());
+        mWriter.flush();
+        return true;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mWriter.close();
+    }
+
+    private static void truncatePartialRow(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long end = raf.length();
+            while (end > 0) {
+                raf.seek(end - 1);
+                if (raf.read() == '\n') {
+                    break;
+                }
+                end--;
+            }
+            raf.setLength(end);
+        }
+    }
+
+    private void load(File file) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                StandardCharsets.US_ASCII))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] columns = line.split(",", -1);
+                if (columns.length < 4) {
+                    continue;
+                }
+
+                try {
+                    mDone.add(new CellTuple(columns[0], columns[1], Integer.parseInt(columns[2]),
+                            Long.parseLong(columns[3])));
+                } catch (NumberFormatException e) {
+                    // Header
+                }
+            }
+        }
+    }
+}